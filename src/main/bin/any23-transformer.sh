@@ -0,0 +1,111 @@
+#!/bin/sh
+#
+# Launcher for the shaded Any23 transformer jar using class data sharing
+#
+#   any23-transformer.sh train [options]  creates the archive by a training run
+#   any23-transformer.sh [run] [options]  starts the transformer (using the
+#                                         archive if present)
+#
+# Options are passed to the transformer (see 'any23-transformer.sh run -h').
+#
+# The archive depends on the JDK version:
+#   JDK 24+    ahead-of-time cache ({jar}.aot) with loaded and linked classes
+#   JDK 13-23  dynamic AppCDS archive ({jar}.jsa)
+#   JDK 10-12  static AppCDS archive ({jar}.jsa) from the loaded class list
+# JDK 8 only shares JDK classes (-Xshare:auto is the default).
+#
+# The training run starts the transformer on ANY23_TRAINING_PORT, sends the
+# built-in warm-up corpus (or the directory parsed with '-W {dir}') and exits.
+# Archives MUST BE recreated after updating the jar or the JDK. Invalid
+# archives are ignored by the JVM.
+#
+# Environment:
+#   JAVA_HOME            the JDK (default: java on the PATH)
+#   JAVA_OPTS            additional JVM options (e.g. -Xmx2g)
+#   ANY23_JAR            the shaded jar (default: the jar next to this script
+#                        or in ../target)
+#   ANY23_ARCHIVE        the archive (default: {jar} with .jsa or .aot suffix)
+#   ANY23_TRAINING_PORT  the port used by the training run (default: 18303)
+#
+
+MODE=run
+case "$1" in
+    train|run) MODE=$1; shift;;
+esac
+
+if [ -n "$JAVA_HOME" ]; then
+    JAVA="$JAVA_HOME/bin/java"
+else
+    JAVA=java
+fi
+
+if [ -z "$ANY23_JAR" ]; then
+    DIR=$(dirname "$0")
+    for jar in "$DIR"/any23-transformer-*.jar "$DIR"/../../../target/any23-transformer-*.jar; do
+        case "$jar" in
+            *-sources.jar|*-javadoc.jar|*/original-*) ;;
+            *) [ -f "$jar" ] && ANY23_JAR="$jar" && break;;
+        esac
+    done
+fi
+if [ ! -f "$ANY23_JAR" ]; then
+    echo "Any23 transformer jar not found (set ANY23_JAR)" >&2
+    exit 1
+fi
+
+# major version of the JDK ("1.8.0_392" -> 8, "17.0.9" -> 17)
+VERSION=$("$JAVA" -version 2>&1 | sed -n 's/.* version "\([^"]*\)".*/\1/p' | head -n 1)
+case "$VERSION" in
+    1.*) MAJOR=$(echo "$VERSION" | cut -d. -f2);;
+    *) MAJOR=$(echo "$VERSION" | sed 's/[^0-9].*//');;
+esac
+if [ -z "$MAJOR" ]; then
+    echo "Unable to determine the version of $JAVA" >&2
+    exit 1
+fi
+
+if [ "$MAJOR" -ge 24 ]; then
+    ARCHIVE=${ANY23_ARCHIVE:-${ANY23_JAR%.jar}.aot}
+else
+    ARCHIVE=${ANY23_ARCHIVE:-${ANY23_JAR%.jar}.jsa}
+fi
+
+if [ "$MODE" = "train" ]; then
+    PORT=${ANY23_TRAINING_PORT:-18303}
+    rm -f "$ARCHIVE"
+    if [ "$MAJOR" -ge 24 ]; then
+        CONF="$ARCHIVE.conf"
+        "$JAVA" $JAVA_OPTS -XX:AOTMode=record -XX:AOTConfiguration="$CONF" \
+            -jar "$ANY23_JAR" -C -p "$PORT" "$@" || exit $?
+        "$JAVA" $JAVA_OPTS -XX:AOTMode=create -XX:AOTConfiguration="$CONF" \
+            -XX:AOTCache="$ARCHIVE" -jar "$ANY23_JAR" || exit $?
+        rm -f "$CONF"
+    elif [ "$MAJOR" -ge 13 ]; then
+        "$JAVA" $JAVA_OPTS -XX:ArchiveClassesAtExit="$ARCHIVE" \
+            -jar "$ANY23_JAR" -C -p "$PORT" "$@" || exit $?
+    elif [ "$MAJOR" -ge 10 ]; then
+        LIST="$ARCHIVE.classlist"
+        "$JAVA" $JAVA_OPTS -XX:+UseAppCDS -XX:DumpLoadedClassList="$LIST" \
+            -jar "$ANY23_JAR" -C -p "$PORT" "$@" || exit $?
+        "$JAVA" $JAVA_OPTS -XX:+UseAppCDS -Xshare:dump -XX:SharedClassListFile="$LIST" \
+            -XX:SharedArchiveFile="$ARCHIVE" -cp "$ANY23_JAR" || exit $?
+        rm -f "$LIST"
+    else
+        echo "Application class data sharing requires JDK 10+ (found: $VERSION)" >&2
+        exit 1
+    fi
+    echo "created $ARCHIVE" >&2
+    exit 0
+fi
+
+SHARING=
+if [ -f "$ARCHIVE" ]; then
+    if [ "$MAJOR" -ge 24 ]; then
+        SHARING="-XX:AOTCache=$ARCHIVE"
+    elif [ "$MAJOR" -ge 13 ]; then
+        SHARING="-XX:SharedArchiveFile=$ARCHIVE -Xshare:auto"
+    elif [ "$MAJOR" -ge 10 ]; then
+        SHARING="-XX:+UseAppCDS -XX:SharedArchiveFile=$ARCHIVE -Xshare:auto"
+    fi
+fi
+exec "$JAVA" $JAVA_OPTS $SHARING -jar "$ANY23_JAR" "$@"
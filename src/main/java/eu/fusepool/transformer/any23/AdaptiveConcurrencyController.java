@@ -0,0 +1,340 @@
+package eu.fusepool.transformer.any23;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the concurrency limit of a {@link Bulkhead} based on the observed
+ * job latency, the time jobs wait in the queue and the CPU utilization.<p>
+ * The controller uses an AIMD (additive increase, multiplicative decrease)
+ * algorithm. It is called periodically (see {@link #run()}) and
+ * <ul>
+ * <li> decreases the limit by the {@link #BACKOFF} factor if the CPU
+ * utilization is above the target or the average latency exceeds the 
+ * baseline (minimum observed latency) by more than the {@link #TOLERANCE}
+ * <li> increases the limit by one if the bulkhead is saturated (jobs were
+ * rejected or had to wait in the queue)
+ * <li> holds the limit otherwise.
+ * </ul>
+ * The latency is only measured for runs that processed a job (see 
+ * {@link Bulkhead.MeasuredJob}) so that e.g. jobs parked while waiting for
+ * heap budget do not lower the baseline. It is normalized by the size of
+ * the processed data: every job counts as <code>1 + length / 
+ * {@link #LATENCY_UNIT}</code> units so that a mix of small and large
+ * documents does not look like overload.<p>
+ * The limit is always kept within <code>[minLimit..maxLimit]</code>.
+ * Decisions are logged and exposed via JMX 
+ * (see {@link AdaptiveConcurrencyControllerMBean}).
+ */
+public class AdaptiveConcurrencyController implements AdaptiveConcurrencyControllerMBean, Runnable {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default interval in milliseconds between two decisions
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+    /**
+     * The default CPU utilization above which the limit is decreased
+     */
+    public static final double DEFAULT_CPU_TARGET = 0.9;
+    /**
+     * The limit is decreased if the latency exceeds the baseline by this factor
+     */
+    public static final double TOLERANCE = 2.0;
+    /**
+     * The factor the limit is multiplied with on a decrease
+     */
+    public static final double BACKOFF = 0.75;
+    /**
+     * The factor the baseline latency increases every interval so that
+     * the controller adapts to changes of the processed data
+     */
+    public static final double BASELINE_DRIFT = 1.01;
+    /**
+     * The number of bytes processed by a job that count as an additional
+     * unit of work when normalizing the latency
+     */
+    public static final long LATENCY_UNIT = 64 * 1024;
+    /**
+     * Jobs waiting longer (in milliseconds) in the queue indicate that the
+     * bulkhead is saturated
+     */
+    private static final double SATURATION_WAIT = 1;
+
+    public enum Decision { INCREASE, DECREASE, HOLD }
+
+    private final Bulkhead bulkhead;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double cpuTarget;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    private long lastProcessed;
+    private long lastMeasured;
+    private long lastMeasuredNanos;
+    private long lastMeasuredLength;
+    private long lastWaitNanos;
+    private long lastRejected;
+
+    private volatile Decision lastDecision = Decision.HOLD;
+    private volatile String lastReason = "initial";
+    private volatile long increases;
+    private volatile long decreases;
+    private volatile double latency;
+    private volatile double baseline;
+    private volatile double queueWait;
+    private volatile double cpuLoad = -1;
+
+    private ObjectName objectName;
+
+    /**
+     * Creates a controller for the parsed bulkhead with the
+     * {@link #DEFAULT_CPU_TARGET}
+     * @param bulkhead the bulkhead
+     * @param minLimit the minimum concurrency limit
+     * @param maxLimit the maximum concurrency limit. Values greater as the
+     * max pool size of the bulkhead are ignored.
+     */
+    public AdaptiveConcurrencyController(Bulkhead bulkhead, int minLimit, int maxLimit) {
+        this(bulkhead, minLimit, maxLimit, DEFAULT_CPU_TARGET);
+    }
+
+    /**
+     * Creates a controller for the parsed bulkhead
+     * @param bulkhead the bulkhead
+     * @param minLimit the minimum concurrency limit
+     * @param maxLimit the maximum concurrency limit. Values greater as the
+     * max pool size of the bulkhead are ignored.
+     * @param cpuTarget the CPU utilization [0..1] above which the limit is decreased
+     */
+    public AdaptiveConcurrencyController(Bulkhead bulkhead, int minLimit, int maxLimit,
+            double cpuTarget) {
+        if(bulkhead == null){
+            throw new IllegalArgumentException("The parsed Bulkhead MUST NOT be NULL");
+        }
+        maxLimit = Math.min(maxLimit, bulkhead.getMaxPoolSize());
+        if(minLimit <= 0 || maxLimit < minLimit){
+            throw new IllegalArgumentException("Invalid limits [min: " + minLimit
+                    + " | max: " + maxLimit + "] for bulkhead " + bulkhead.getName());
+        }
+        if(cpuTarget <= 0 || cpuTarget > 1){
+            throw new IllegalArgumentException("The CPU target MUST BE in the range (0..1]");
+        }
+        this.bulkhead = bulkhead;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.cpuTarget = cpuTarget;
+    }
+
+    /**
+     * Starts the controller by setting the limit to the max limit and 
+     * registering the MBean
+     */
+    public synchronized void start() {
+        bulkhead.setLimit(maxLimit);
+        lastProcessed = bulkhead.getProcessedCount();
+        lastMeasured = bulkhead.getMeasuredCount();
+        lastMeasuredNanos = bulkhead.getTotalMeasuredNanos();
+        lastMeasuredLength = bulkhead.getTotalMeasuredLength();
+        lastWaitNanos = bulkhead.getTotalWaitNanos();
+        lastRejected = bulkhead.getRejectedCount();
+        if(objectName == null){
+            objectName = MBeans.register(this, "AdaptiveConcurrency", bulkhead.getName());
+        }
+        log.info(" - started {}", this);
+    }
+
+    /**
+     * Stops the controller and unregisters the MBean
+     */
+    public synchronized void stop() {
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * Samples the metrics of the bulkhead since the last call and adapts
+     * the limit.
+     */
+    @Override
+    public synchronized void run() {
+        try {
+            long processed = bulkhead.getProcessedCount();
+            long measured = bulkhead.getMeasuredCount();
+            long measuredNanos = bulkhead.getTotalMeasuredNanos();
+            long measuredLength = bulkhead.getTotalMeasuredLength();
+            long waitNanos = bulkhead.getTotalWaitNanos();
+            long rejected = bulkhead.getRejectedCount();
+            long runs = processed - lastProcessed;
+            long jobs = measured - lastMeasured;
+            double units = jobs + (measuredLength - lastMeasuredLength) / (double)LATENCY_UNIT;
+            double latency = jobs <= 0 ? -1 : toMillis(measuredNanos - lastMeasuredNanos) / units;
+            double queueWait = runs <= 0 ? 0 : toMillis(waitNanos - lastWaitNanos) / runs;
+            boolean saturated = rejected > lastRejected || queueWait > SATURATION_WAIT;
+            lastProcessed = processed;
+            lastMeasured = measured;
+            lastMeasuredNanos = measuredNanos;
+            lastMeasuredLength = measuredLength;
+            lastWaitNanos = waitNanos;
+            lastRejected = rejected;
+            decide(latency, queueWait, getCurrentCpuLoad(), saturated);
+        } catch (RuntimeException e) { //do not stop scheduled executions
+            log.warn("Unable to adapt concurrency limit of bulkhead " + bulkhead.getName(), e);
+        }
+    }
+
+    /**
+     * Decides about the new limit based on the parsed sample and applies it
+     * to the bulkhead
+     * @param latency the average latency in milliseconds per unit of work
+     * (see {@link #LATENCY_UNIT}) or a negative value if no job was processed
+     * @param queueWait the average time jobs waited in the queue in milliseconds
+     * @param cpuLoad the CPU utilization [0..1] or a negative value if unknown
+     * @param saturated if jobs where rejected or had to wait in the queue
+     * @return the decision
+     */
+    synchronized Decision decide(double latency, double queueWait, double cpuLoad,
+            boolean saturated) {
+        this.latency = latency;
+        this.queueWait = queueWait;
+        this.cpuLoad = cpuLoad;
+        if(latency >= 0){
+            baseline = baseline <= 0 || latency < baseline ? latency :
+                Math.min(latency, baseline * BASELINE_DRIFT);
+        }
+        int limit = bulkhead.getLimit();
+        Decision decision;
+        String reason;
+        if(cpuLoad >= cpuTarget){
+            decision = Decision.DECREASE;
+            reason = String.format("cpu %.2f >= %.2f", cpuLoad, cpuTarget);
+        } else if(latency > baseline * TOLERANCE){
+            decision = Decision.DECREASE;
+            reason = String.format("latency %.1fms > %.1f x baseline %.1fms", 
+                    latency, TOLERANCE, baseline);
+        } else if(saturated){
+            decision = Decision.INCREASE;
+            reason = String.format("saturated (queue wait %.1fms)", queueWait);
+        } else {
+            decision = Decision.HOLD;
+            reason = latency < 0 ? "idle" : "stable";
+        }
+        int newLimit = limit;
+        if(decision == Decision.DECREASE){
+            newLimit = Math.max(minLimit, (int)(limit * BACKOFF));
+        } else if(decision == Decision.INCREASE){
+            newLimit = Math.min(maxLimit, limit + 1);
+        }
+        if(newLimit != limit){
+            bulkhead.setLimit(newLimit);
+            log.debug(" - bulkhead {}: {} limit {} -> {} ({})", new Object[]{
+                    bulkhead.getName(), decision, limit, newLimit, reason});
+            if(decision == Decision.INCREASE){
+                increases++;
+            } else {
+                decreases++;
+            }
+        } else if(decision != Decision.HOLD){ //at the bounds
+            reason = reason + " (limit " + limit + " at bound)";
+            decision = Decision.HOLD;
+        }
+        lastDecision = decision;
+        lastReason = reason;
+        return decision;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * The CPU load of this process if available. Falls back to the system
+     * load average divided by the number of processors.
+     * @return the CPU load [0..1] or a negative value if unknown
+     */
+    double getCurrentCpuLoad() {
+        if(os instanceof com.sun.management.OperatingSystemMXBean){
+            double load = ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuLoad();
+            if(load >= 0){
+                return load;
+            }
+        }
+        double load = os.getSystemLoadAverage();
+        return load < 0 ? -1 : Math.min(1, load / os.getAvailableProcessors());
+    }
+
+    @Override
+    public String getBulkhead() {
+        return bulkhead.getName();
+    }
+
+    @Override
+    public int getLimit() {
+        return bulkhead.getLimit();
+    }
+
+    @Override
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    @Override
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    @Override
+    public String getLastDecision() {
+        return lastDecision.name();
+    }
+
+    @Override
+    public String getLastReason() {
+        return lastReason;
+    }
+
+    @Override
+    public long getIncreaseCount() {
+        return increases;
+    }
+
+    @Override
+    public long getDecreaseCount() {
+        return decreases;
+    }
+
+    @Override
+    public double getLatency() {
+        return latency;
+    }
+
+    @Override
+    public double getBaselineLatency() {
+        return baseline;
+    }
+
+    @Override
+    public double getQueueWait() {
+        return queueWait;
+    }
+
+    @Override
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[bulkhead: ")
+                .append(bulkhead.getName()).append(" | min: ").append(minLimit)
+                .append(" | max: ").append(maxLimit).append(" | cpu: ")
+                .append(cpuTarget).append("]").toString();
+    }
+}
@@ -0,0 +1,67 @@
+package eu.fusepool.transformer.any23;
+
+/**
+ * JMX interface exposing the decisions of an {@link AdaptiveConcurrencyController}
+ */
+public interface AdaptiveConcurrencyControllerMBean {
+
+    /**
+     * The name of the controlled bulkhead
+     */
+    String getBulkhead();
+
+    /**
+     * The current concurrency limit
+     */
+    int getLimit();
+
+    int getMinLimit();
+
+    int getMaxLimit();
+
+    /**
+     * The last decision (<code>INCREASE</code>, <code>DECREASE</code> or
+     * <code>HOLD</code>)
+     */
+    String getLastDecision();
+
+    /**
+     * The reason for the last decision
+     */
+    String getLastReason();
+
+    /**
+     * The number of times the limit was increased
+     */
+    long getIncreaseCount();
+
+    /**
+     * The number of times the limit was decreased
+     */
+    long getDecreaseCount();
+
+    /**
+     * The average processing time of jobs in the last interval in milliseconds
+     * per unit of work (a job plus one unit per 
+     * {@link AdaptiveConcurrencyController#LATENCY_UNIT} bytes of data)
+     */
+    double getLatency();
+
+    /**
+     * The (slowly increasing) minimum observed latency in milliseconds used
+     * as baseline to detect overload
+     */
+    double getBaselineLatency();
+
+    /**
+     * The average time jobs waited in the queue in the last interval in milliseconds
+     */
+    double getQueueWait();
+
+    /**
+     * The CPU utilization [0..1] of the last interval or a negative value
+     * if not available
+     */
+    double getCpuLoad();
+
+}
@@ -0,0 +1,105 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Administrative endpoints of the {@link Any23Server}:<ul>
+ * <li><code>GET {@value #READY}</code>: <code>200 OK</code> if the transformer
+ * accepts requests, <code>503 Service Unavailable</code> otherwise (e.g. 
+ * while warming up or draining). Intended for readiness probes of load
+ * balancers.
+ * <li><code>GET {@value #STARTUP}</code>: the JVM uptime in milliseconds 
+ * when the server got ready and when the first request was served
+ * (<code>-1</code> if not yet) as <code>text/plain</code> properties.
+ * <li><code>POST {@value #DRAIN}</code>: starts to 
+ * {@link Any23Server#drainAndStop() drain and stop} the server. Returns
+ * <code>202 Accepted</code>. Only accepted from the loopback interface.
+ * <li><code>POST {@value #RELOAD}</code>: reloads the configuration file
+ * (see {@link ConfigReloader}). Returns <code>400 Bad Request</code> if the
+ * configuration is not valid and <code>404 Not Found</code> if the server 
+ * was not started with a configuration file. Only accepted from the loopback
+ * interface.
+ * </ul>
+ */
+public class AdminServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String READY = "/ready";
+    public static final String DRAIN = "/drain";
+    public static final String RELOAD = "/reload";
+    public static final String STARTUP = "/startup";
+
+    private final Any23Server server;
+    private final Any23Transformer transformer;
+
+    public AdminServlet(Any23Server server, Any23Transformer transformer) {
+        this.server = server;
+        this.transformer = transformer;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        if(READY.equals(req.getPathInfo())){
+            boolean warmingUp = server.isWarmingUp();
+            boolean ready = !warmingUp && transformer.isReady();
+            resp.setStatus(ready ? HttpServletResponse.SC_OK : 
+                HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setContentType("text/plain;charset=UTF-8");
+            resp.setHeader("Cache-Control", "no-cache");
+            resp.getWriter().write(ready ? "ready" : warmingUp ? "warming up" : "draining");
+        } else if(STARTUP.equals(req.getPathInfo())){
+            resp.setContentType("text/plain;charset=UTF-8");
+            resp.setHeader("Cache-Control", "no-cache");
+            resp.getWriter().write("ready=" + server.getReadyTime() + "\n"
+                    + "first-request=" + server.getFirstRequestTime() + "\n");
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        if((DRAIN.equals(req.getPathInfo()) || RELOAD.equals(req.getPathInfo())) &&
+                !InetAddress.getByName(req.getRemoteAddr()).isLoopbackAddress()){
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        if(RELOAD.equals(req.getPathInfo())){
+            ConfigReloader reloader = server.getConfigReloader();
+            if(reloader == null){
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, 
+                        "No configuration file to reload");
+                return;
+            }
+            try {
+                reloader.reload();
+            } catch (IllegalArgumentException e) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            resp.setContentType("text/plain;charset=UTF-8");
+            resp.getWriter().write("reloaded (version: " 
+                    + transformer.getConfigurationVersion() + ")");
+        } else if(DRAIN.equals(req.getPathInfo())){
+            Thread drain = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.drainAndStop();
+                }
+            }, "any23-drain");
+            drain.start();
+            resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import com.thetransactioncompany.cors.CORSFilter;
+
+import eu.fusepool.p3.transformer.server.TransformerServer;
+import eu.fusepool.p3.transformer.server.handler.TransformerHandlerFactory;
+
+/**
+ * Embedded Jetty server for the {@link Any23Transformer}. Sets up the
+ * same environment as the {@link TransformerServer} of the transformer
+ * library but allows to register additional filters in front of the
+ * transformer servlet (e.g. the {@link PartialResultFilter} and the
+ * {@link ResultFetchFilter}). The {@link DrainFilter} is always called before
+ * filters added by {@link #addFilter(Filter, String)} so that requests are 
+ * refused before any filter reads the request body.<p>
+ * If a {@link Warmup} is set it is run after the server is started and
+ * before the server reports to be ready. The JVM uptime when the server 
+ * got ready and when the first request was served are logged and available
+ * by <code>GET /admin/startup</code> to measure the time to first request.
+ */
+public class Any23Server {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default time in seconds to wait for active jobs while draining
+     */
+    public static final int DEFAULT_DRAIN_TIMEOUT = 60;
+    /**
+     * The default time in seconds results stay available after draining
+     */
+    public static final int DEFAULT_DRAIN_GRACE_PERIOD = 10;
+    /**
+     * The default time in seconds the shutdown hook waits for the server to
+     * drain and stop. Lower than the 30sec container runtimes commonly wait 
+     * before they kill the process.
+     */
+    public static final int DEFAULT_SHUTDOWN_TIMEOUT = 25;
+
+    private static final EnumSet<DispatcherType> DISPATCHER_TYPES = EnumSet.of(
+            DispatcherType.FORWARD, DispatcherType.INCLUDE, DispatcherType.REQUEST);
+
+    /**
+     * The path of the {@link ExtractorProfileServlet}
+     */
+    public static final String EXTRACTORS_PATH = "/extractors";
+    /**
+     * The path of the {@link AdminServlet}
+     */
+    public static final String ADMIN_PATH = "/admin/*";
+
+    private final int port;
+    private final Server server;
+    private final ServletHandler handler;
+    private Any23Transformer transformer;
+    private int drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    private int drainGracePeriod = DEFAULT_DRAIN_GRACE_PERIOD;
+    private int shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    /**
+     * Filters added before the server is started. Registered by 
+     * {@link #start(Any23Transformer)} after the {@link DrainFilter}
+     */
+    private final List<FilterHolder> filters = new ArrayList<FilterHolder>();
+    private final List<String> filterPathSpecs = new ArrayList<String>();
+    private boolean stopped;
+    private ConfigReloader configReloader;
+    private Warmup warmup;
+    private volatile boolean warmingUp;
+    private volatile long readyTime = -1;
+    private volatile long firstRequestTime = -1;
+
+    /**
+     * Creates the server
+     * @param port the port
+     * @param corsEnabled if CORS headers should be added to responses
+     */
+    public Any23Server(int port, boolean corsEnabled) {
+        this.port = port;
+        handler = new ServletHandler();
+        server = new Server(port);
+        server.setHandler(handler);
+        registerFilter(createHolder(new FirstRequestFilter()), "/*");
+        if(corsEnabled){
+            registerFilter(createHolder(new CORSFilter()), "/");
+        }
+    }
+
+    /**
+     * Adds a filter. Filters are called in the order they are added but
+     * after the {@link DrainFilter}. Filters added after the server was
+     * {@link #start(Any23Transformer) started} are called after the filters 
+     * of the transformer.
+     * @param filter the filter
+     * @param pathSpec the path specification (e.g. <code>/job/*</code>)
+     */
+    public synchronized void addFilter(Filter filter, String pathSpec) {
+        FilterHolder holder = createHolder(filter);
+        if(transformer == null){ //registered on start
+            filters.add(holder);
+            filterPathSpecs.add(pathSpec);
+        } else {
+            registerFilter(holder, pathSpec);
+        }
+    }
+
+    private static FilterHolder createHolder(Filter filter) {
+        FilterHolder holder = new FilterHolder(filter);
+        //required by filters using Servlet 3.1 async I/O
+        holder.setAsyncSupported(true);
+        return holder;
+    }
+
+    private void registerFilter(FilterHolder holder, String pathSpec) {
+        handler.addFilterWithMapping(holder, pathSpec, DISPATCHER_TYPES);
+    }
+
+    /**
+     * Starts the server with the parsed transformer
+     * @param transformer the transformer
+     * @throws Exception if the server can not be started
+     */
+    public void start(Any23Transformer transformer) throws Exception {
+        synchronized (this) {
+            this.transformer = transformer;
+            //refuse requests while draining before other filters read the body
+            registerFilter(createHolder(new DrainFilter(transformer, drainGracePeriod)), "/");
+            for(int i = 0; i < filters.size(); i++){
+                registerFilter(filters.get(i), filterPathSpecs.get(i));
+            }
+            filters.clear();
+            filterPathSpecs.clear();
+        }
+        addFilter(new PartialResultFilter(transformer), "/job/*");
+        addFilter(new ResultFetchFilter(transformer), "/job/*");
+        handler.addServletWithMapping(new ServletHolder(new AdminServlet(this, transformer)),
+                ADMIN_PATH);
+        handler.addServletWithMapping(new ServletHolder(new ExtractorProfileServlet(
+                transformer.getExtractorProfiler())), EXTRACTORS_PATH);
+        ServletHolder holder = new ServletHolder(
+                TransformerHandlerFactory.getTransformerHandler(transformer));
+        holder.setAsyncSupported(true);
+        handler.addServletWithMapping(holder, "/");
+        if(warmup != null){
+            warmingUp = true;
+        }
+        server.start();
+        log.info("> server started after {}ms (JVM uptime)", getUptime());
+        if(warmup != null){
+            try {
+                warmup.run(new URL("http://localhost:" + port + "/"));
+            } finally {
+                warmingUp = false;
+            }
+        }
+        readyTime = getUptime();
+        log.info("> server ready after {}ms (JVM uptime)", readyTime);
+    }
+
+    /**
+     * Setter for the warm-up run by {@link #start(Any23Transformer)}
+     * @param warmup the warm-up or <code>null</code> to start without
+     */
+    public void setWarmup(Warmup warmup) {
+        this.warmup = warmup;
+    }
+
+    public Warmup getWarmup() {
+        return warmup;
+    }
+
+    /**
+     * If the server is started but still running the {@link Warmup}
+     * @return the warm-up state
+     */
+    public boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * The JVM uptime when this server got ready to serve requests
+     * @return the uptime in milliseconds or <code>-1</code> if not yet ready
+     */
+    public long getReadyTime() {
+        return readyTime;
+    }
+
+    /**
+     * The JVM uptime when the first request (other than warm-up requests)
+     * was served.
+     * @return the uptime in milliseconds or <code>-1</code> if no request
+     * was served yet
+     */
+    public long getFirstRequestTime() {
+        return firstRequestTime;
+    }
+
+    private static long getUptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Setter for the reloader used by <code>POST /admin/reload</code>
+     * @param configReloader the reloader or <code>null</code> if the 
+     * configuration can not be reloaded
+     */
+    public void setConfigReloader(ConfigReloader configReloader) {
+        this.configReloader = configReloader;
+    }
+
+    public ConfigReloader getConfigReloader() {
+        return configReloader;
+    }
+
+    /**
+     * Setter for the time to wait for active jobs while draining
+     * @param drainTimeout the timeout in seconds
+     */
+    public void setDrainTimeout(int drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    public int getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Setter for the time results stay available after draining
+     * @param drainGracePeriod the grace period in seconds
+     */
+    public void setDrainGracePeriod(int drainGracePeriod) {
+        this.drainGracePeriod = drainGracePeriod;
+    }
+
+    public int getDrainGracePeriod() {
+        return drainGracePeriod;
+    }
+
+    /**
+     * Setter for the time {@link #shutdown()} waits for the server to drain
+     * and stop
+     * @param shutdownTimeout the timeout in seconds
+     * @throws IllegalArgumentException if the parsed timeout is &lt;= 0
+     */
+    public void setShutdownTimeout(int shutdownTimeout) {
+        if(shutdownTimeout <= 0){
+            throw new IllegalArgumentException("The shutdown timeout MUST BE greater as 0");
+        }
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public int getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    /**
+     * {@link #drainAndStop() Drains and stops} the server but waits at most
+     * the {@link #getShutdownTimeout() shutdown timeout}. Intended to be 
+     * called by a shutdown hook as the JVM (and the container runtime) does 
+     * not wait for the drain timeout plus grace period. If the timeout is 
+     * exceeded the JVM exits while draining. Jobs not finished are replayed
+     * on the next start if a {@link JobJournal} is used.
+     */
+    public void shutdown() {
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainAndStop();
+            }
+        }, "any23-drain");
+        drain.setDaemon(true);
+        drain.start();
+        try {
+            drain.join(TimeUnit.SECONDS.toMillis(shutdownTimeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(drain.isAlive()){
+            log.warn("> shutdown timeout of {}sec exceeded while draining", shutdownTimeout);
+        }
+    }
+
+    /**
+     * Drains the transformer, keeps results available for the grace period
+     * and stops the server and the transformer afterwards. Can be called 
+     * several times (e.g. by the {@link AdminServlet} and a shutdown hook) 
+     * but only drains once. Later calls block until the server is stopped.
+     * @see Any23Transformer#drain(long, TimeUnit)
+     */
+    public synchronized void drainAndStop() {
+        if(stopped){
+            return;
+        }
+        try {
+            if(transformer != null){
+                transformer.drain(drainTimeout, TimeUnit.SECONDS);
+                log.info(" ... keep results available for {}sec", drainGracePeriod);
+                Thread.sleep(TimeUnit.SECONDS.toMillis(drainGracePeriod));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while draining");
+        }
+        try {
+            server.stop();
+        } catch (Exception e) {
+            log.warn("Unable to stop server", e);
+        }
+        if(configReloader != null){
+            try {
+                configReloader.close();
+            } catch (IOException e) {
+                log.warn("Unable to close config reloader", e);
+            }
+        }
+        if(transformer != null){
+            try {
+                transformer.close();
+            } catch (IOException e) {
+                log.warn("Unable to close transformer", e);
+            }
+        }
+        stopped = true;
+        log.info("> server stopped");
+    }
+
+    /**
+     * Waits for the server to stop
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        server.join();
+    }
+
+    /**
+     * Stops the server
+     * @throws Exception on any error while stopping
+     */
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * Records the time the first request was served
+     */
+    private class FirstRequestFilter implements Filter {
+
+        @Override
+        public void init(FilterConfig filterConfig) throws ServletException {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                throws IOException, ServletException {
+            boolean first = firstRequestTime < 0 && !warmingUp;
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                if(first && firstRequestTime < 0){
+                    firstRequestTime = getUptime();
+                    log.info("> first request served after {}ms (JVM uptime)", firstRequestTime);
+                }
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
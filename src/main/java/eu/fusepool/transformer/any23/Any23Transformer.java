@@ -6,51 +6,116 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.any23.Any23;
+import org.apache.any23.ExtractionReport;
 import org.apache.any23.configuration.Configuration;
 import org.apache.any23.configuration.DefaultConfiguration;
 import org.apache.any23.configuration.ModifiableConfiguration;
 import org.apache.any23.extractor.ExtractionException;
 import org.apache.any23.extractor.ExtractionParameters;
 import org.apache.any23.extractor.ExtractionParameters.ValidationMode;
+import org.apache.any23.extractor.ExtractorFactory;
+import org.apache.any23.extractor.ExtractorGroup;
+import org.apache.any23.extractor.ExtractorRegistryImpl;
+import org.apache.any23.mime.MIMEType;
+import org.apache.any23.mime.TikaMIMETypeDetector;
+import org.apache.any23.mime.purifier.WhiteSpacesPurifier;
 import org.apache.any23.source.DocumentSource;
 import org.apache.any23.writer.TripleHandler;
 import org.apache.any23.writer.TripleHandlerException;
 import org.apache.any23.writer.TurtleWriter;
 import org.apache.clerezza.rdf.core.serializedform.SupportedFormat;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.fusepool.p3.transformer.AsyncTransformer;
 import eu.fusepool.p3.transformer.HttpRequestEntity;
+import eu.fusepool.p3.transformer.TransformerException;
+import eu.fusepool.p3.transformer.commons.Entity;
 
 public class Any23Transformer implements AsyncTransformer, Closeable {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
+    /**
+     * Logs the {@link JobTrace traces} of jobs exceeding the 
+     * {@link #getSlowJobThreshold() slow job threshold}
+     */
+    private final Logger slowJobLog = LoggerFactory.getLogger(
+            Any23Transformer.class.getName() + ".SlowJobs");
     
     public static final long KEEP_ALIVE_TIME = 60L;
 
     public static final int MAX_POOL_SIZE = 20;
 
     public static final int CORE_POOL_SIZE = 3;
+    
+    /**
+     * Properties of the configuration starting with this prefix are used to
+     * configure the transformer and are not parsed to Any23.
+     */
+    public static final String PROPERTY_PREFIX = "transformer.";
+    
+    /**
+     * The default threshold in milliseconds for jobs to be logged as slow
+     */
+    public static final long SLOW_JOB_THRESHOLD = 10000L;
+    /**
+     * Property used to configure the {@link ValidationMode}. Overrides the
+     * mode parsed to the constructor
+     */
+    public static final String PROPERTY_VALIDATION_MODE = PROPERTY_PREFIX + "validation-mode";
+    /**
+     * Property used to configure the slow job threshold in milliseconds
+     */
+    public static final String PROPERTY_SLOW_JOB_THRESHOLD = PROPERTY_PREFIX + "slow-job-threshold";
+    
+    /**
+     * The interval used to check for active jobs while draining
+     */
+    private static final long DRAIN_POLL_INTERVAL = 100L;
+    
+    /**
+     * The time to wait before re-submitting a replayed or resumed job 
+     * rejected by the executor
+     */
+    static final long RETRY_WAIT = 100L;
+    
+    /**
+     * The compression ratio assumed for encoded data as their declared
+     * decoded length is not trusted
+     */
+    private static final int COMPRESSION_RATIO = 5;
 
     /**
      * This transformer uses the {@link ValidationMode#ValidateAndFix} as default
@@ -122,21 +187,123 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
         OUTPUT_FORMATS = Collections.unmodifiableSet(formats);
     }
     
-    private final Configuration config;
-    private final Any23 any23;
+    /**
+     * Content types that are trusted by the {@link DeclaredMIMETypeDetector}.
+     * For those Any23 will not run its own (Tika based) detection.
+     */
+    private static final Set<MimeType> TRUSTED_MIME_TYPES;
+    
+    static {
+        Set<MimeType> formats = new HashSet<MimeType>(INPUT_FORMATS);
+        formats.removeAll(DETECTION_MIME_TYPES);
+        formats.add(N_TRIPLE2);
+        formats.add(N3);
+        TRUSTED_MIME_TYPES = Collections.unmodifiableSet(formats);
+    }
+    
+    /**
+     * Content types accepted by the transformer that Any23 registers its
+     * extractors for under a different name. The <code>rdf-nt</code> 
+     * extractor only accepts <code>text/nt</code>, <code>text/ntriples</code>
+     * and <code>text/plain</code>, the <code>rdf-nq</code> extractor 
+     * <code>text/nq</code> and similar types. Used by the 
+     * {@link DeclaredMIMETypeDetector} so that declared and sniffed types
+     * select the right extractor.
+     */
+    static final Map<String,String> ANY23_MIME_TYPES;
+    
+    static {
+        Map<String,String> types = new HashMap<String,String>();
+        types.put(N_TRIPLE.getBaseType(), "text/nt");
+        types.put(N_TRIPLE2.getBaseType(), "text/nt");
+        types.put(N_QUADS.getBaseType(), "text/nq");
+        ANY23_MIME_TYPES = Collections.unmodifiableMap(types);
+    }
+    
+    /**
+     * The Any23 instance and configuration used for new jobs. Replaced on
+     * {@link #reload(Properties)}
+     */
+    private volatile Setup setup;
+    private final AtomicLong setupVersion = new AtomicLong();
     
     protected final Set<String> activeRequests = new HashSet<String>();
     protected final ReadWriteLock requestLock = new ReentrantReadWriteLock();
+    
+    private boolean coalescing = true;
+    /**
+     * Running jobs by their coalescing key. Guarded by the {@link #requestLock}
+     */
+    private final JobCoalescer<TransformationJob> coalescer = 
+            new JobCoalescer<TransformationJob>();
+    
+    private boolean directConversion = true;
+    
+    private volatile boolean draining;
 
     private CallBackHandler callBackHandler;
 
-    private ExecutorService executor;
+    /**
+     * The bulkheads configured for groups of content types. Jobs not accepted
+     * by any of those are processed by the {@link #defaultBulkhead}
+     */
+    private final List<Bulkhead> bulkheads = new ArrayList<Bulkhead>();
+    private volatile Bulkhead defaultBulkhead;
+    
+    private JobStore jobStore = new LocalJobStore();
+    
+    private JobJournal journal;
     
     int corePoolSize = CORE_POOL_SIZE;
     int maxPoolSize = MAX_POOL_SIZE;
     long keepAliveTime = KEEP_ALIVE_TIME;
+    
+    private boolean adaptiveConcurrency;
+    private final List<AdaptiveConcurrencyController> controllers = 
+            new ArrayList<AdaptiveConcurrencyController>();
+    private ScheduledExecutorService controllerScheduler;
+    /**
+     * Re-submits jobs resumed after waiting for heap budget if their 
+     * bulkhead is saturated
+     */
+    private volatile ScheduledExecutorService retryScheduler;
+    
+    private MemoryBudget memoryBudget = new MemoryBudget();
+    
+    private BufferPool bufferPool = new BufferPool();
+    
+    private final ExtractorProfiler profiler = new ExtractorProfiler();
+    
+    private final ParallelExtraction parallelExtraction = new ParallelExtraction();
+    private int extractorThreads;
+    
+    private volatile long slowJobThreshold = SLOW_JOB_THRESHOLD;
+    
+    private boolean streamingResults;
+    /**
+     * The results of jobs that are not yet finished if 
+     * {@link #isStreamingResults() streaming} is enabled
+     */
+    private final ConcurrentMap<String,PartialResult> partialResults = 
+            new ConcurrentHashMap<String,PartialResult>();
+    /**
+     * The results reported to the {@link CallBackHandler}. Used by the
+     * {@link ResultFetchFilter} to serve ranges and conditional requests
+     */
+    private final ConcurrentMap<String,TmpFileEntity> results = 
+            new ConcurrentHashMap<String,TmpFileEntity>();
+    /**
+     * The ids of {@link #results} completed by other instances and registered
+     * from the {@link JobStore}. Those are evicted as soon as the store
+     * removed the result
+     */
+    private final Set<String> remoteResults = 
+            Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
 
-    private final ValidationMode validationMode;
+    /**
+     * The validation mode used if not configured by {@link #PROPERTY_VALIDATION_MODE}
+     */
+    private final ValidationMode defaultValidationMode;
     
     public Any23Transformer() {
         this(null, null);
@@ -149,18 +316,175 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
      */
     public Any23Transformer(Properties config, ValidationMode vm) {
         log.info("> created Any23 transformer ");
+        this.defaultValidationMode = vm == null ? DEFAULT_VALIDATION_MODE : vm;
         if(config != null && config.size() > 0){
-            this.config = DefaultConfiguration.copy();
+            bulkheads.addAll(Bulkhead.fromProperties(config));
+        }
+        setup(createSetup(config));
+    }
+
+    /**
+     * Swaps in the parsed setup for new jobs and applies the transformer
+     * properties that can be changed at runtime
+     * @param setup the validated setup
+     */
+    private void setup(Setup setup) {
+        this.setup = setup;
+        if(setup.slowJobThreshold != null){
+            setSlowJobThreshold(setup.slowJobThreshold);
+        }
+    }
+
+    /**
+     * Creates the Any23 instance and configuration for the parsed properties.
+     * Nothing is applied to this transformer so that an invalid configuration
+     * has no effect.
+     * @param config the properties or <code>null</code> for the default
+     * configuration
+     * @return the setup
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    private Setup createSetup(Properties config) {
+        Configuration any23Config;
+        ValidationMode validationMode = defaultValidationMode;
+        Long slowJobThreshold = null; //not configured
+        if(config != null && config.size() > 0){
+            any23Config = DefaultConfiguration.copy();
             for(Enumeration<?> keys = config.propertyNames(); keys.hasMoreElements();){
                 String key = keys.nextElement().toString();
-                ((ModifiableConfiguration)this.config).setProperty(
-                        key, config.getProperty(key));
+                if(!key.startsWith(PROPERTY_PREFIX)){
+                    ((ModifiableConfiguration)any23Config).setProperty(
+                            key, config.getProperty(key));
+                } //else transformer property
+            }
+            String mode = config.getProperty(PROPERTY_VALIDATION_MODE);
+            if(mode != null){
+                try {
+                    validationMode = ValidationMode.valueOf(mode.trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("The value '" + mode 
+                            + "' of property " + PROPERTY_VALIDATION_MODE 
+                            + " is not valid (supported: " 
+                            + Arrays.toString(ValidationMode.values()) + ")", e);
+                }
+            }
+            String threshold = config.getProperty(PROPERTY_SLOW_JOB_THRESHOLD);
+            if(threshold != null){
+                try {
+                    slowJobThreshold = Long.valueOf(threshold.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("The value '" + threshold 
+                            + "' of property " + PROPERTY_SLOW_JOB_THRESHOLD 
+                            + " is not a number", e);
+                }
             }
         } else {
-            this.config = DefaultConfiguration.singleton();
+            any23Config = DefaultConfiguration.singleton();
+        }
+        //extractors are profiled where they run (inline or by the pool)
+        ExtractorGroup extractors = parallelExtraction.wrap(profiler.wrap(
+                ExtractorRegistryImpl.getInstance().getExtractorGroup()));
+        Any23 any23 = new Any23(any23Config, extractors);
+        any23.setMIMETypeDetector(new DeclaredMIMETypeDetector(TRUSTED_MIME_TYPES, 
+                ANY23_MIME_TYPES, new TikaMIMETypeDetector(new WhiteSpacesPurifier())));
+        //RDF serializations are converted directly by a single ContentExtractor
+        DirectConversion direct = new DirectConversion(extractors);
+        log.debug(" - direct conversion: {}", direct.getTypes());
+        //the DOM extractors run in parallel for HTML documents
+        Map<String,ExtractorGroup> parallel = new HashMap<String,ExtractorGroup>();
+        for(MimeType type : Arrays.asList(HTML, XHTML)){
+            parallel.put(type.getBaseType(), extractors.filterByMIMEType(
+                    MIMEType.parse(type.getBaseType())));
+        }
+        return new Setup(setupVersion.incrementAndGet(), any23Config, validationMode, any23,
+                TripleFilter.fromProperties(config), slowJobThreshold, direct, parallel);
+    }
+
+    /**
+     * Replaces the Any23 configuration. A new {@link Any23} instance is 
+     * created and atomically swapped in for new jobs. Queued and running jobs
+     * finish with the configuration they were accepted with.<p>
+     * Besides the Any23 configuration the {@link #PROPERTY_VALIDATION_MODE 
+     * validation mode}, the {@link #PROPERTY_SLOW_JOB_THRESHOLD slow job
+     * threshold} and the {@link TripleFilter} are updated. Changes of 
+     * bulkheads are ignored.
+     * @param config the properties or <code>null</code> to reset to the 
+     * default configuration
+     * @throws IllegalArgumentException if the configuration is not valid. In
+     * that case the current configuration stays active
+     */
+    public void reload(Properties config) {
+        long start = System.currentTimeMillis();
+        Setup setup = createSetup(config);
+        setup(setup);
+        log.info("> reloaded configuration (version: {}, validation mode: {}) in {}ms", 
+                new Object[]{setup.version, setup.validationMode, 
+                        System.currentTimeMillis() - start});
+    }
+
+    /**
+     * The version of the configuration. Incremented on every 
+     * {@link #reload(Properties)}
+     * @return the version
+     */
+    public long getConfigurationVersion() {
+        return setup.version;
+    }
+
+    /**
+     * The validation mode used for new jobs
+     * @return the validation mode
+     */
+    public ValidationMode getValidationMode() {
+        return setup.validationMode;
+    }
+
+    /**
+     * Synchronously extracts the parsed source with the current configuration
+     * in the calling thread. Used by the {@link BatchConverter} so that offline
+     * conversions produce the same results as requests to the transformer.
+     * Thread pools, bulkheads and the memory budget are not used. The
+     * configured {@link TripleFilter} is applied and RDF serializations are
+     * {@link #setDirectConversion(boolean) converted directly} if enabled.
+     * @param source the document source
+     * @param charset the charset of the source or <code>null</code> to detect it
+     * @param handler the handler receiving the extracted triples. Not closed
+     * by this method
+     * @return the extraction report or <code>null</code> if the source was
+     * converted directly
+     * @throws IOException on any error while reading the source
+     * @throws ExtractionException on any error during the extraction
+     * @throws TripleHandlerException on any error of the parsed handler 
+     * during a direct conversion
+     */
+    public ExtractionReport extract(DocumentSource source, String charset,
+            TripleHandler handler) throws IOException, ExtractionException, 
+            TripleHandlerException {
+        Setup setup = this.setup;
+        ExtractorProfiler.Profile profile = profiler.start(source.getContentType());
+        ExtractionReport report = null;
+        if(setup.filter != null){
+            handler = setup.filter.wrap(handler);
+        }
+        ExtractionParameters params = new ExtractionParameters(setup.config,
+                setup.validationMode);
+        ExtractorFactory<?> direct = getDirectFactory(setup, source.getContentType());
+        ParallelExtraction.Batch batch = null;
+        try {
+            if(direct != null){
+                DirectConversion.convert(direct, params, source, profile.wrap(handler));
+            } else {
+                batch = parallelExtraction.start(
+                        setup.getParallelGroup(source.getContentType()), source, profile);
+                report = setup.any23.extract(params, source, profile.wrap(handler), charset);
+            }
+            return report;
+        } finally {
+            if(batch != null){
+                batch.finish();
+            }
+            profile.finish(report);
         }
-        this.validationMode = vm == null ? DEFAULT_VALIDATION_MODE : vm;
-        any23 = new Any23(this.config);
     }
 
     /**
@@ -176,7 +500,7 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
      * @throws IllegalStateException if the transformer was already started
      */
     public void setCorePoolSize(int corePoolSize) {
-        if(executor != null){
+        if(defaultBulkhead != null){
             throw new IllegalStateException("Transformer already started");
         }
         this.corePoolSize = corePoolSize;
@@ -195,7 +519,7 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
      * @throws IllegalStateException if the transformer was already started
      */
     public void setMaxPoolSize(int maxPoolSize) {
-        if(executor != null){
+        if(defaultBulkhead != null){
             throw new IllegalStateException("Transformer already started");
         }
         this.maxPoolSize = maxPoolSize;
@@ -215,12 +539,348 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
      * @throws IllegalStateException if the transformer was already started
      */
     public void setKeepAliveTime(long keepAliveTime) {
-        if(executor != null){
+        if(defaultBulkhead != null){
             throw new IllegalStateException("Transformer already started");
         }
         this.keepAliveTime = keepAliveTime;
     }
 
+    /**
+     * If the concurrency limits of the bulkheads are adapted at runtime
+     * @return the adaptive concurrency state
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * Enables/disables adaptive concurrency. If enabled the concurrency limit
+     * of every bulkhead is adapted between its core and max pool size by an
+     * {@link AdaptiveConcurrencyController} based on the observed latency,
+     * queue wait and CPU utilization.
+     * @param adaptiveConcurrency the state
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    /**
+     * Getter for the heap budget shared by all jobs
+     * @return the memory budget or <code>null</code> if disabled
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Setter for the heap budget shared by all jobs. Jobs wait for budget
+     * before they start and jobs with an estimated cost exceeding the whole
+     * budget are rejected. By default a {@link MemoryBudget} of 
+     * {@link MemoryBudget#DEFAULT_HEAP_FRACTION} of the max heap is used.
+     * @param memoryBudget the memory budget or <code>null</code> to disable
+     * memory-aware admission
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Getter for the pool of the arrays used by XZ streams and copy buffers
+     * of the jobs
+     * @return the buffer pool or <code>null</code> if disabled
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Setter for the pool of the arrays used by the XZ streams spooling 
+     * request data and storing results as well as buffers used to copy data.
+     * Pooled arrays are reused by following jobs instead of being allocated
+     * for every job. By default a {@link BufferPool} of 
+     * {@link BufferPool#DEFAULT_MAX_SIZE} is used.
+     * @param bufferPool the buffer pool or <code>null</code> to use the default
+     * cache of the XZ library (that allocates arrays for every job unless
+     * configured otherwise)
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Getter for the profiler recording time, triple yield and errors of
+     * the Any23 extractors per content type
+     * @return the extractor profiler
+     */
+    public ExtractorProfiler getExtractorProfiler() {
+        return profiler;
+    }
+
+    /**
+     * If identical submissions are coalesced with running jobs
+     * @return the coalescing state
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Enables/disables coalescing of identical submissions (enabled by 
+     * default). If enabled requests with the same content (SHA-256 hash), 
+     * content type, charset and document URI as a running job are attached
+     * to that job instead of starting a new transformation. When the job 
+     * finishes all attached requests get the shared result.
+     * @param coalescing the coalescing state
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setCoalescing(boolean coalescing) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * If RDF serializations are converted directly
+     * @return the direct conversion state
+     */
+    public boolean isDirectConversion() {
+        return directConversion;
+    }
+
+    /**
+     * Enables/disables the direct conversion of RDF serializations (enabled
+     * by default). If enabled RDF serializations (<code>application/rdf+xml</code>,
+     * <code>text/turtle</code>, N3, N-Triples, N-Quads and JSON-LD) are 
+     * streamed from the spooled data through the Any23 extractor of the
+     * format into the writer. This bypasses the content type
+     * detection and the decoding of the whole document before the extraction
+     * so that - except for JSON-LD - documents of any size are converted with
+     * constant memory. Such documents are also spooled without compression
+     * and only reserve the base cost of the {@link MemoryBudget}.
+     * @param directConversion the direct conversion state
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setDirectConversion(boolean directConversion) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.directConversion = directConversion;
+    }
+
+    /**
+     * The number of threads used to run the DOM extractors of HTML documents
+     * in parallel
+     * @return the number of threads or <code>0</code> if disabled
+     */
+    public int getExtractorThreads() {
+        return extractorThreads;
+    }
+
+    /**
+     * Sets the number of threads of the pool shared by all jobs to run the
+     * DOM extractors (RDFa, microdata, microformats ...) of HTML documents in
+     * parallel (disabled by default). Any23 still parses the document once 
+     * but the extractors run concurrently on copies of the DOM so that the 
+     * latency of a job is no longer the sum of all extractors. Triples are
+     * written in the same order as by sequential extraction
+     * (see {@link ParallelExtraction}).
+     * @param extractorThreads the number of threads or <code>0</code> to 
+     * run the extractors sequentially in the thread of the job
+     * @throws IllegalStateException if the transformer was already started
+     * @throws IllegalArgumentException if the parsed value is negative
+     */
+    public void setExtractorThreads(int extractorThreads) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        if(extractorThreads < 0){
+            throw new IllegalArgumentException("The number of extractor threads MUST NOT be negative");
+        }
+        this.extractorThreads = extractorThreads;
+    }
+
+    /**
+     * The number of requests that were attached to an identical running job
+     * @return the number of coalesced requests
+     */
+    public long getCoalescedCount() {
+        return coalescer.getCoalescedCount();
+    }
+
+    /**
+     * Getter for the threshold of jobs to be logged as slow
+     * @return the threshold in milliseconds or <code>-1</code> if disabled
+     */
+    public long getSlowJobThreshold() {
+        return slowJobThreshold;
+    }
+
+    /**
+     * Setter for the threshold in milliseconds. The {@link JobTrace trace} of 
+     * jobs taking longer (including the time waiting in the queue) is logged
+     * to the <code>eu.fusepool.transformer.any23.Any23Transformer.SlowJobs</code>
+     * logger.
+     * @param slowJobThreshold the threshold or a negative value to disable
+     */
+    public void setSlowJobThreshold(long slowJobThreshold) {
+        this.slowJobThreshold = slowJobThreshold < 0 ? -1 : slowJobThreshold;
+    }
+
+    /**
+     * If clients can stream the results of jobs while they are produced
+     * @return the streaming state
+     */
+    public boolean isStreamingResults() {
+        return streamingResults;
+    }
+
+    /**
+     * Enables/disables streaming of results. If enabled the triples are 
+     * additionally written to an uncompressed tmp file while the job runs
+     * and clients can stream them by using the {@link PartialResultFilter}.
+     * @param streamingResults the state
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setStreamingResults(boolean streamingResults) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.streamingResults = streamingResults;
+    }
+
+    /**
+     * Getter for the partial result of a job that is not yet finished
+     * @param requestId the request id
+     * @return the partial result or <code>null</code> if not available
+     */
+    PartialResult getPartialResult(String requestId) {
+        return partialResults.get(requestId);
+    }
+
+    /**
+     * Getter for the result of a completed job
+     * @param requestId the request id
+     * @return the result or <code>null</code> if the job is not completed
+     * or its result is not kept in a {@link TmpFileEntity}
+     */
+    TmpFileEntity getResult(String requestId) {
+        TmpFileEntity result = results.get(requestId);
+        if(result != null && !result.getFile().isFile()){ //result was deleted
+            log.debug(" - evict deleted result of {}", requestId);
+            results.remove(requestId, result);
+            remoteResults.remove(requestId);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Adds a bulkhead used to process jobs of a group of content types. 
+     * Jobs are processed by the first bulkhead accepting the content type.
+     * Jobs not accepted by any of the added bulkheads are processed by a 
+     * default bulkhead configured by the core/max pool size and keep alive time.
+     * @param bulkhead the bulkhead
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void addBulkhead(Bulkhead bulkhead) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        bulkheads.add(bulkhead);
+    }
+    
+    /**
+     * Getter for the bulkheads of this transformer
+     * @return the bulkheads excluding the default bulkhead
+     */
+    public List<Bulkhead> getBulkheads() {
+        return Collections.unmodifiableList(bulkheads);
+    }
+
+    /**
+     * Getter for the bulkhead used to process jobs of the parsed content type
+     * @param contentType the content type
+     * @return the bulkhead
+     * @throws IllegalStateException if the transformer is not active
+     */
+    Bulkhead getBulkhead(String contentType) {
+        Bulkhead defaultBulkhead = this.defaultBulkhead;
+        if(defaultBulkhead == null){
+            throw new IllegalStateException("Transformer not active");
+        }
+        if(!bulkheads.isEmpty()){
+            MimeType type;
+            try {
+                type = new MimeType(contentType);
+            } catch (MimeTypeParseException e) {
+                return defaultBulkhead;
+            }
+            for(Bulkhead bulkhead : bulkheads){
+                if(bulkhead.accepts(type)){
+                    return bulkhead;
+                }
+            }
+        }
+        return defaultBulkhead;
+    }
+
+    /**
+     * Getter for the store used to share job states and results
+     * @return the job store
+     */
+    public JobStore getJobStore() {
+        return jobStore;
+    }
+
+    /**
+     * Setter for the store used to share job states and results with other
+     * instances (e.g. a {@link SharedFileJobStore}). 
+     * @param jobStore the job store or <code>null</code> to use a
+     * {@link LocalJobStore}
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setJobStore(JobStore jobStore) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.jobStore = jobStore == null ? new LocalJobStore() : jobStore;
+    }
+
+    /**
+     * Getter for the journal of accepted jobs
+     * @return the journal or <code>null</code> if none is used
+     */
+    public JobJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Setter for the journal used to record accepted jobs. If set request
+     * data are spooled to the directory of the journal and pending jobs are
+     * replayed on {@link #activate(CallBackHandler)}.
+     * @param journal the journal or <code>null</code> to not use a journal
+     * @throws IllegalStateException if the transformer was already started
+     */
+    public void setJournal(JobJournal journal) {
+        if(defaultBulkhead != null){
+            throw new IllegalStateException("Transformer already started");
+        }
+        this.journal = journal;
+    }
+
     @Override
     public Set<MimeType> getSupportedInputFormats() {
         return INPUT_FORMATS;
@@ -233,22 +893,115 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
 
     @Override
     public void activate(CallBackHandler callBackHandler) {
-        this.callBackHandler = callBackHandler;
-        executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize,
-                keepAliveTime, TimeUnit.SECONDS,
-                new SynchronousQueue<Runnable>());
+        this.callBackHandler = callBackHandler == null ? null : 
+            new ResultTracker(callBackHandler);
+        if(memoryBudget != null){
+            memoryBudget.start();
+        }
+        if(bufferPool != null){
+            bufferPool.start();
+        }
+        profiler.start();
+        if(extractorThreads > 0){
+            parallelExtraction.start(extractorThreads);
+        }
+        for(Bulkhead bulkhead : bulkheads){
+            bulkhead.start();
+        }
+        Bulkhead defaultBulkhead = new Bulkhead("default", null, corePoolSize, 
+                maxPoolSize, keepAliveTime, 0);
+        defaultBulkhead.start();
+        this.defaultBulkhead = defaultBulkhead;
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "any23-resume-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if(adaptiveConcurrency){
+            controllerScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "any23-adaptive-concurrency");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            List<Bulkhead> all = new ArrayList<Bulkhead>(bulkheads);
+            all.add(defaultBulkhead);
+            for(Bulkhead bulkhead : all){
+                AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                        bulkhead, Math.max(1, bulkhead.getCorePoolSize()), bulkhead.getMaxPoolSize());
+                controller.start();
+                controllers.add(controller);
+                controllerScheduler.scheduleWithFixedDelay(controller, 
+                        AdaptiveConcurrencyController.DEFAULT_INTERVAL, 
+                        AdaptiveConcurrencyController.DEFAULT_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        if(journal != null){
+            try {
+                new JournalReplay(this, journal, this.callBackHandler).replay(journal.open());
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open journal " + journal, e);
+            }
+        }
+    }
+    
+    /**
+     * Creates a job for a request replayed from the {@link JobJournal}. The
+     * job is not coalesced with other jobs.
+     * @param requestId the request id
+     * @param source the spooled data
+     * @param filter the filter requested for the job or <code>null</code>
+     * @param trace the trace of the job
+     * @return the job
+     */
+    TransformationJob createJob(String requestId, TmpFileDocumentSource source,
+            TripleFilter filter, JobTrace trace) {
+        return new TransformationJob(requestId, setup, source, source.getCharset(), 
+                filter, trace, null);
+    }
+
+    /**
+     * Marks the parsed requests as active
+     * @param requestIds the request ids
+     */
+    void addActive(Collection<String> requestIds) {
+        requestLock.writeLock().lock();
+        try {
+            activeRequests.addAll(requestIds);
+        } finally {
+            requestLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Submits the parsed job to the bulkhead of its content type
+     * @param job the job
+     * @throws RejectedExecutionException if the bulkhead is saturated
+     * @throws IllegalStateException if the transformer is not active
+     */
+    void submit(TransformationJob job) {
+        getBulkhead(job.source.getContentType()).submit(job);
     }
 
     @Override
     public void transform(HttpRequestEntity entity, String requestId)
             throws IOException {
         log.debug("> transform request {}", requestId);
+        if(draining){ //refuse before consuming the request body
+            throw new TransformerException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The transformer is shutting down. Please retry the request.");
+        }
         log.debug(" - mime: {}",entity.getType());
         log.debug(" - contentLoc: {}",entity.getContentLocation());
         //syncronously check the request
         HttpServletRequest req = entity.getRequest();
-        
-        ExtractionParameters extractionParams = new ExtractionParameters(config, validationMode);
+        //the configuration used for this request
+        Setup setup = this.setup;
         
         //Create the Document URI form the content location:
         String documentUri;
@@ -284,33 +1037,379 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
             documentUri = uri.toString();
         }
         log.debug(" - documentUri: {}",documentUri);
+        String encodingHeader = req.getHeader("Content-Encoding");
+        ContentEncoding encoding = ContentEncoding.parse(encodingHeader);
+        if(encoding == null){
+            throw new TransformerException(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Unsupported Content-Encoding '" + encodingHeader + "' (supported: "
+                    + Arrays.toString(ContentEncoding.values()) + ")");
+        }
+        log.debug(" - encoding: {}", encoding);
+        //NOTE: do not use getParameter(..) as it might consume form encoded bodies
+        TripleFilter filter = TripleFilter.fromQuery(req.getQueryString());
+        log.debug(" - filter: {}", filter);
+        JobTrace trace = new JobTrace(requestId, req.getHeader(JobTrace.TRACEPARENT));
+        log.debug(" - trace: {}", trace.getTraceId());
+        long spoolStart = System.nanoTime();
         //NOTE: We need to consume the data from the request before we end the
         //      sync. request processing.
-        DocumentSource source = new TmpFileDocumentSource(requestId, entity.getData(), 
-                entity.getType(), documentUri);
+        TmpFileDocumentSource.Options options = new TmpFileDocumentSource.Options()
+                .detect(isDetectionType(entity.getType()))
+                .spoolDirectory(journal == null ? null : journal.getDirectory())
+                .encoding(encoding)
+                .arrayCache(bufferPool);
+        Object spooled = req.getAttribute(NonBlockingIngestFilter.SPOOLED_BODY);
+        TmpFileDocumentSource source;
+        if(spooled instanceof NonBlockingIngestFilter.SpooledBody){ //take over the file
+            source = new TmpFileDocumentSource(requestId, (NonBlockingIngestFilter.SpooledBody)spooled,
+                    entity.getType(), documentUri, options);
+        } else {
+            //data converted directly are read once so do not compress them
+            options.compress(entity.getType() == null ||
+                    getDirectFactory(setup, entity.getType().getBaseType()) == null);
+            source = new TmpFileDocumentSource(requestId, entity.getData(), 
+                    entity.getType(), documentUri, options);
+        }
+        trace.span(JobTrace.SPOOL, spoolStart, System.nanoTime());
+        trace.setDocument(documentUri, source.getContentType(), source.getContentLength());
         log.debug(" - documentSource: {}", source);
+        if(memoryBudget != null && !memoryBudget.admit(source.getContentType(), 
+                getBudgetLength(setup, source), getBudgetCopies(setup, source))){
+            long cost = memoryBudget.estimate(source.getContentType(), 
+                    getBudgetLength(setup, source), getBudgetCopies(setup, source));
+            source.close();
+            log.info("> reject Entity[id: {} | type: {} | length: {}] (estimated heap: {} > budget {})",
+                    new Object[]{requestId, source.getContentType(), source.getContentLength(),
+                            cost, memoryBudget.getBudget()});
+            throw new TransformerException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "The estimated memory required to transform the parsed " 
+                    + source.getContentType() + " document of " + source.getContentLength()
+                    + " bytes exceeds the memory budget of this transformer");
+        }
         //Now create the job for async. processing 
-        TransformationJob job = new TransformationJob(requestId, extractionParams, source);
+        TransformationJob job = new TransformationJob(requestId, setup, 
+                source, source.getCharset(), filter, trace, coalescing ? 
+                        JobCoalescer.getKey(setup.version, source, filter) : null);
         
+        //mark the job as accepted before submitting it as otherwise the
+        //job might complete before
+        boolean journaled = false;
+        try {
+            if(journal != null){ //returns after the record is durable
+                journal.accepted(requestId, source, filter);
+                journaled = true;
+            }
+            jobStore.accepted(requestId);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to accept request " + requestId + " (message: " 
+                    + e.getMessage() + ")", e);
+            abort(requestId, source, journaled, e);
+            throw e;
+        }
+        PartialResult partial = null;
         requestLock.writeLock().lock();
         try {
+            TransformationJob running = coalescer.attach(job.key, job);
+            if(running != null){ //attached to the running job
+                log.info("> attach Entity[id: {} | uri: {} | type: {}] to identical job {}", 
+                        new Object[]{requestId, documentUri, entity.getType(), running.id});
+                activeRequests.add(requestId);
+                PartialResult runningPartial = partialResults.get(running.id);
+                if(runningPartial != null){ //stream the result of the running job
+                    partialResults.put(requestId, runningPartial);
+                }
+                return;
+            }
+            if(streamingResults){
+                partial = new PartialResult(requestId);
+                partialResults.put(requestId, partial);
+            }
             log.info("> schedule transformation of Entity[id: {} | uri: {} | type: {}]", 
                     new Object[]{requestId, documentUri, entity.getType()});
-            executor.submit(job);
+            getBulkhead(source.getContentType()).submit(job);
             activeRequests.add(requestId);
+            coalescer.started(job.key, job);
+        } catch (IOException | RuntimeException e) { //e.g. RejectedExecutionException
+            if(partial != null){
+                partialResults.remove(requestId);
+                partial.failed(e.getMessage());
+            }
+            try {
+                jobStore.failed(requestId, e);
+            } catch (IOException e1) {
+                log.warn("Unable to store state of job "+requestId+" in "+ jobStore, e1);
+            }
+            abort(requestId, source, journal != null, e);
+            throw e;
         } finally {
             requestLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Cleans up after a job could not be scheduled: marks the job as failed
+     * in the journal (so that it is not replayed on restart) and deletes the
+     * spooled data
+     * @param requestId the request id
+     * @param source the spooled data
+     * @param journaled if the job was recorded as accepted by the journal
+     * @param e the reason
+     */
+    private void abort(String requestId, TmpFileDocumentSource source, 
+            boolean journaled, Exception e) {
+        if(journaled){
+            try {
+                journal.failed(requestId, e);
+            } catch (IOException e1) {
+                log.warn("Unable to journal state of job "+requestId, e1);
+            }
+        }
+        IOUtils.closeQuietly(source);
+    }
+
+    /**
+     * Creates the entity for the result of a job by the {@link JobStore}.
+     * The XZ streams of the entity use the {@link #getBufferPool() buffer pool}.
+     * @param requestId the request id
+     * @param type the media type of the result
+     * @return the entity
+     * @throws IOException on any error while creating the entity
+     */
+    private TmpFileEntity createResult(String requestId, MimeType type) throws IOException {
+        TmpFileEntity result = jobStore.createResult(requestId, type);
+        result.setArrayCache(bufferPool);
+        return result;
+    }
+
+    /**
+     * Creates the result of an attached request by linking (or - if not
+     * supported - copying) the file of the parsed result
+     * @param requestId the attached request
+     * @param result the result of the job
+     * @return the result of the attached request
+     * @throws IOException on any error while creating the result
+     */
+    private TmpFileEntity shareResult(String requestId, TmpFileEntity result) throws IOException {
+        TmpFileEntity shared = createResult(requestId, result.getType());
+        JobCoalescer.share(result, shared);
+        return shared;
+    }
+
+    /**
+     * The length of the data of the parsed source. The decoded length of 
+     * encoded data is declared by the client (e.g. the gzip ISIZE) so it is
+     * estimated as at least the {@link #COMPRESSION_RATIO} of the spooled
+     * data.
+     * @param source the source
+     * @return the (estimated) length
+     */
+    private static long getEstimatedLength(DocumentSource source) {
+        long length = source.getContentLength();
+        if(source instanceof TmpFileDocumentSource &&
+                ((TmpFileDocumentSource)source).getEncoding() != ContentEncoding.IDENTITY){
+            length = Math.max(length, 
+                    ((TmpFileDocumentSource)source).getFile().length() * COMPRESSION_RATIO);
+        }
+        return length;
+    }
+
+    /**
+     * The length used to estimate the heap required to transform the parsed
+     * source. Sources that are {@link #setDirectConversion(boolean) converted
+     * directly} by a streaming extractor need constant memory and therefore
+     * only the base cost of the {@link MemoryBudget}.
+     * @param setup the setup used to transform the source
+     * @param source the source
+     * @return the length or <code>0</code> for streamed sources
+     */
+    private long getBudgetLength(Setup setup, DocumentSource source) {
+        if(DirectConversion.isStreaming(getDirectFactory(setup, source.getContentType()))){
+            return 0;
+        }
+        return getEstimatedLength(source);
+    }
+
+    /**
+     * The number of DOM copies created by the {@link ParallelExtraction}
+     * while transforming the parsed source. Charged to the memory budget in
+     * addition to the DOM built by Any23.
+     * @param setup the setup used to transform the source
+     * @param source the source
+     * @return the number of copies or <code>0</code> if the source is not 
+     * extracted in parallel
+     */
+    private int getBudgetCopies(Setup setup, DocumentSource source) {
+        if(getDirectFactory(setup, source.getContentType()) != null){
+            return 0;
+        }
+        return parallelExtraction.getCopies(setup.getParallelGroup(source.getContentType()),
+                source.getContentLength());
+    }
+
+    /**
+     * The factory used to {@link #setDirectConversion(boolean) convert}
+     * documents of the parsed type directly
+     * @param setup the setup used to transform the document
+     * @param contentType the content type
+     * @return the factory or <code>null</code> if documents of this type
+     * are not converted directly
+     */
+    private ExtractorFactory<?> getDirectFactory(Setup setup, String contentType) {
+        return directConversion ? setup.direct.getFactory(contentType) : null;
+    }
+
+    /**
+     * Checks if the content type needs to be detected for the parsed type
+     * @param type the declared content type
+     * @return <code>true</code> if the parsed type is one of the
+     * {@link #DETECTION_MIME_TYPES}
+     */
+    private static boolean isDetectionType(MimeType type){
+        if(type == null){
+            return true;
+        }
+        for(MimeType detectionType : DETECTION_MIME_TYPES){
+            if(detectionType.match(type)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If this transformer is started and accepts new requests
+     * @return the readiness state
+     */
+    public boolean isReady() {
+        return defaultBulkhead != null && !draining;
+    }
+
+    /**
+     * If this transformer is {@link #drain(long, TimeUnit) draining}
+     * @return the drain state
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * The number of accepted requests that are not yet finished (queued,
+     * running or attached to a running job)
+     * @return the number of active requests
+     */
+    public int getActiveCount() {
+        requestLock.readLock().lock();
+        try {
+            return activeRequests.size();
+        } finally {
+            requestLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Switches to drain mode and waits for active requests to finish. In
+     * drain mode this transformer is no longer {@link #isReady() ready} and
+     * new requests are refused with a <code>503 Service Unavailable</code>.
+     * Results of finished jobs stay available until {@link #close()}.<p>
+     * Requests still active after the timeout are lost unless a 
+     * {@link JobJournal} is used. In that case they are replayed on the 
+     * next start.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return <code>true</code> if all requests finished within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        draining = true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int active = getActiveCount();
+        log.info("> drain transformer ({} active requests, timeout: {}ms)", 
+                active, unit.toMillis(timeout));
+        while(active > 0){
+            if(System.nanoTime() >= deadline){
+                log.warn("> drain timeout exceeded with {} active requests ({})", active,
+                        journal == null ? "lost" : "replayed on restart");
+                return false;
+            }
+            Thread.sleep(DRAIN_POLL_INTERVAL);
+            active = getActiveCount();
+        }
+        log.info(" ... drained");
+        return true;
+    }
+
     @Override
     public boolean isActive(String requestId) {
         requestLock.readLock().lock();
         try {
-            return activeRequests.contains(requestId);
+            if(activeRequests.contains(requestId)){
+                return true; //fast path for local jobs
+            }
         } finally {
             requestLock.readLock().unlock();
         }
+        //the request is not known locally. So check the job store
+        return checkJobStore(requestId);
+    }
+    
+    /**
+     * Checks the {@link JobStore} for a job that is not known by this
+     * instance. Jobs completed by other instances are registered with the
+     * {@link CallBackHandler} so that the result can be served by this
+     * instance.
+     * @param requestId the request id
+     * @return <code>true</code> if the job is known by the store
+     */
+    private boolean checkJobStore(String requestId) {
+        evictRemoteResults();
+        try {
+            switch (jobStore.getState(requestId)) {
+                case ACTIVE:
+                    return true;
+                case COMPLETED:
+                    Entity result = jobStore.getResult(requestId);
+                    if(result == null){
+                        log.warn("Result for completed job {} not available in {}", 
+                                requestId, jobStore);
+                        return false;
+                    }
+                    log.debug(" - register result of {} from {}", requestId, jobStore);
+                    if(result instanceof TmpFileEntity){
+                        ((TmpFileEntity)result).setArrayCache(bufferPool);
+                    }
+                    getCallBackHandler().responseAvailable(requestId, result);
+                    remoteResults.add(requestId);
+                    //return true as the result will be available on the next request
+                    return true;
+                case FAILED:
+                    getCallBackHandler().reportException(requestId, 
+                            jobStore.getException(requestId));
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read state of job "+requestId+" from "+ jobStore, e);
+            return false;
+        }
+    }
+
+    /**
+     * Evicts results registered from the {@link JobStore} that were removed
+     * by the instance owning them (or because they expired)
+     */
+    private void evictRemoteResults() {
+        for(Iterator<String> ids = remoteResults.iterator(); ids.hasNext();){
+            String id = ids.next();
+            TmpFileEntity result = results.get(id);
+            if(result == null || !result.getFile().isFile()){
+                log.debug(" - evict removed result of {} from {}", id, jobStore);
+                ids.remove();
+                if(result != null){
+                    results.remove(id, result);
+                }
+            }
+        }
     }
 
     protected CallBackHandler getCallBackHandler() {
@@ -319,10 +1418,37 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
     
     @Override
     public void close() throws IOException {
-        if(executor != null){
-            executor.shutdown();
-            executor = null;
+        if(controllerScheduler != null){
+            controllerScheduler.shutdownNow();
+            controllerScheduler = null;
+            for(AdaptiveConcurrencyController controller : controllers){
+                controller.stop();
+            }
+            controllers.clear();
         }
+        if(defaultBulkhead != null){
+            for(Bulkhead bulkhead : bulkheads){
+                bulkhead.shutdown();
+            }
+            defaultBulkhead.shutdown();
+            defaultBulkhead = null;
+        }
+        if(retryScheduler != null){
+            retryScheduler.shutdownNow();
+            retryScheduler = null;
+        }
+        if(journal != null){
+            journal.close();
+        }
+        if(memoryBudget != null){
+            memoryBudget.stop();
+        }
+        if(bufferPool != null){
+            bufferPool.stop();
+        }
+        profiler.stop();
+        parallelExtraction.stop();
+        jobStore.close();
     }
     
     @Override
@@ -330,36 +1456,264 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
         close();
     }
     
-    class TransformationJob implements Runnable{
+    /**
+     * An {@link Any23} instance together with the configuration it was
+     * created for
+     */
+    private static final class Setup {
+
+        final long version;
+        final Configuration config;
+        final ValidationMode validationMode;
+        final Any23 any23;
+        /**
+         * The filter applied to all jobs or <code>null</code> if none
+         */
+        final TripleFilter filter;
+        /**
+         * The configured slow job threshold or <code>null</code> if not
+         * configured
+         */
+        final Long slowJobThreshold;
+        /**
+         * The extractors used to directly convert RDF serializations
+         */
+        final DirectConversion direct;
+        /**
+         * The extractors run in parallel by base content type
+         */
+        final Map<String,ExtractorGroup> parallel;
+
+        Setup(long version, Configuration config, ValidationMode validationMode, Any23 any23,
+                TripleFilter filter, Long slowJobThreshold, DirectConversion direct,
+                Map<String,ExtractorGroup> parallel) {
+            this.version = version;
+            this.config = config;
+            this.validationMode = validationMode;
+            this.any23 = any23;
+            this.filter = filter;
+            this.slowJobThreshold = slowJobThreshold;
+            this.direct = direct;
+            this.parallel = parallel;
+        }
+
+        /**
+         * The extractors of documents of the parsed type that can be run by
+         * a {@link ParallelExtraction.Batch}
+         * @param contentType the content type (parameters are ignored)
+         * @return the extractors or <code>null</code> if none
+         */
+        ExtractorGroup getParallelGroup(String contentType) {
+            return contentType == null ? null : parallel.get(getBaseType(contentType));
+        }
+
+        private static String getBaseType(String contentType) {
+            int idx = contentType.indexOf(';');
+            String baseType = (idx < 0 ? contentType : contentType.substring(0, idx)).trim();
+            return baseType.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Keeps the {@link TmpFileEntity results} reported to the parsed
+     * {@link CallBackHandler}
+     */
+    private class ResultTracker implements CallBackHandler {
+
+        private final CallBackHandler delegate;
+
+        ResultTracker(CallBackHandler delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void responseAvailable(String requestId, Entity response) {
+            if(response instanceof TmpFileEntity){
+                results.put(requestId, (TmpFileEntity)response);
+            }
+            delegate.responseAvailable(requestId, response);
+        }
+
+        @Override
+        public void reportException(String requestId, Exception exception) {
+            results.remove(requestId);
+            delegate.reportException(requestId, exception);
+        }
+    }
+
+    class TransformationJob implements Bulkhead.MeasuredJob, MemoryBudget.Listener {
 
         private final String id;
         private final DocumentSource source;
-        private ExtractionParameters extractionParams;
-
-        public TransformationJob(String id, ExtractionParameters extractionParams,
-                DocumentSource source) {
+        private final String charset;
+        private final Any23 any23;
+        private final ExtractionParameters extractionParams;
+        private final TripleFilter configFilter;
+        private final TripleFilter filter;
+        private final Setup setup;
+        /**
+         * The factory used to {@link #setDirectConversion(boolean) convert the
+         * source directly} or <code>null</code> to use Any23
+         */
+        private final ExtractorFactory<?> direct;
+        private final JobTrace trace;
+        /**
+         * The time the job was queued as returned by {@link System#nanoTime()}
+         */
+        private final long queued;
+        /**
+         * The key used to coalesce identical submissions or <code>null</code>
+         */
+        private final String key;
+        /**
+         * The heap budget reserved for the job
+         */
+        private volatile MemoryBudget.Reservation reservation;
+        /**
+         * The time the job was parked waiting for heap budget as returned by
+         * {@link System#nanoTime()} or <code>-1</code> if it did not wait
+         */
+        private volatile long parked = -1;
+        /**
+         * The length of the data processed by the last run or <code>-1</code>
+         * if the job was parked
+         */
+        private volatile long processedLength = -1;
+        /**
+         * @param id the request id
+         * @param setup the Any23 instance and configuration used by the job
+         * @param source the document source
+         * @param charset the charset of the source or <code>null</code> if
+         * unknown. In that case Any23 will detect the charset.
+         * @param filter the filter requested for this job or <code>null</code>
+         * @param trace the trace of the job
+         * @param key the key used to coalesce identical submissions or 
+         * <code>null</code> to not coalesce submissions with this job
+         */
+        public TransformationJob(String id, Setup setup,
+                DocumentSource source, String charset, TripleFilter filter, 
+                JobTrace trace, String key) {
             this.id = id;
-            this.extractionParams = extractionParams;
+            this.any23 = setup.any23;
+            this.extractionParams = new ExtractionParameters(setup.config, setup.validationMode);
+            this.configFilter = setup.filter;
+            this.filter = filter;
+            this.setup = setup;
+            this.direct = getDirectFactory(setup, source.getContentType());
             this.source = source;
+            this.charset = charset;
+            this.trace = trace;
+            this.queued = System.nanoTime();
+            this.key = key;
+        }
 
+        /**
+         * The request id of the job
+         */
+        String getId() {
+            return id;
+        }
+
+        @Override
+        public void budgetAvailable(MemoryBudget.Reservation reservation) {
+            this.reservation = reservation;
+            resume();
+        }
+
+        /**
+         * Re-submits the job after budget was reserved for it. If the 
+         * bulkhead is saturated the job keeps its reservation and is re-submitted
+         * by the {@link #retryScheduler} as this is called by the thread 
+         * releasing the budget that MUST NOT run nor fail the job.
+         */
+        private void resume() {
+            try {
+                getBulkhead(source.getContentType()).submit(this);
+                log.debug(" - resumed job {}", id);
+            } catch (RejectedExecutionException e) {
+                log.debug(" - bulkhead saturated, retry to resume job {} in {}ms", id, RETRY_WAIT);
+                ScheduledExecutorService scheduler = retryScheduler;
+                try {
+                    if(scheduler == null){
+                        throw new RejectedExecutionException("closed");
+                    }
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume();
+                        }
+                    }, RETRY_WAIT, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e1) {
+                    log.warn("Unable to resume job {} as the transformer was closed", id);
+                }
+            } catch (IllegalStateException e) {
+                log.warn("Unable to resume job {} as the transformer was closed", id);
+            }
+        }
+
+        @Override
+        public long getProcessedLength() {
+            return processedLength;
         }
 
         @Override
         public void run() {
-            log.info("> Transform Entity [id: {}]",id);
+            processedLength = -1;
+            long now = System.nanoTime();
+            if(parked < 0){
+                trace.span(JobTrace.QUEUE, queued, now);
+            } else { //resumed after waiting for heap budget
+                trace.span(JobTrace.BUDGET, parked, now);
+            }
+            if(memoryBudget != null && reservation == null){
+                reservation = memoryBudget.reserve(source.getContentType(), 
+                        getBudgetLength(setup, source), getBudgetCopies(setup, source), this);
+                if(reservation == null){ //do not block the thread while waiting
+                    log.debug(" - park job {} until heap budget is available", id);
+                    parked = now;
+                    return;
+                }
+            }
+            processedLength = Math.max(0, getEstimatedLength(source));
+            trace.attach();
+            log.info("> Transform Entity [id: {} | trace: {}]", id, trace.getTraceId());
             boolean success = false;
             TmpFileEntity transformed = null;
             Exception ex = null;
+            PartialResult partial = partialResults.get(id);
+            ExtractorProfiler.Profile profile = profiler.start(source.getContentType());
+            ExtractionReport report = null;
+            ParallelExtraction.Batch batch = null;
             try {
                 long start = System.currentTimeMillis();
-                transformed = new TmpFileEntity(id, OUTPUT);
+                transformed = createResult(id, OUTPUT);
                 log.debug(" - target: {}",transformed);
                 OutputStream out = null;
                 TripleHandler handler = null;
                 try {
                     out = transformed.getWriter();
-                    handler = new TurtleWriter(out);
-                    any23.extract(extractionParams, source, handler, UTF8.name());
+                    if(partial != null){ //also write to the partial result
+                        out = new TeeOutputStream(out, partial.open());
+                    }
+                    handler = trace.wrap(new TurtleWriter(out));
+                    //filter before serialization
+                    if(filter != null){
+                        handler = filter.wrap(handler);
+                    }
+                    if(configFilter != null){
+                        handler = configFilter.wrap(handler);
+                    }
+                    if(direct != null){
+                        log.debug(" - direct conversion by {}", direct.getExtractorName());
+                        DirectConversion.convert(direct, extractionParams, source, 
+                                profile.wrap(handler));
+                    } else {
+                        batch = parallelExtraction.start(setup.getParallelGroup(
+                                source.getContentType()), source, profile);
+                        //NOTE: parsing null as charset will cause Any23 to detect it
+                        report = any23.extract(extractionParams, source, 
+                                profile.wrap(handler), charset);
+                    }
                     success = true;
                     log.debug(" - transformed in {}ms", System.currentTimeMillis()-start);
                 } finally { //close all the streams
@@ -391,26 +1745,149 @@ public class Any23Transformer implements AsyncTransformer, Closeable {
             	}
             	log.error(" - unable to transform job "+id+" (message: "+ex.getMessage()+")!", ex);
             } finally {
-            	
+                if(batch != null){
+                    batch.finish();
+                }
+                profile.finish(report);
+                if(reservation != null){
+                    reservation.release();
+                }
+                if(!success && ex == null){ //an Error was thrown
+                    ex = new RuntimeException("Error while processing "+id);
+                }
+                if(!success && transformed != null){ //delete the data and ETag
+                    IOUtils.closeQuietly(transformed);
+                }
+                //no more requests can attach after this point
+                List<TransformationJob> attached = Collections.emptyList();
+                if(key != null){
+                    requestLock.writeLock().lock();
+                    try {
+                        attached = coalescer.finished(key);
+                    } finally {
+                        requestLock.writeLock().unlock();
+                    }
+                }
+                try {
+                    if(success){
+                        jobStore.completed(id, transformed);
+                    } else {
+                        jobStore.failed(id, ex);
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to store state of job "+id+" in "+ jobStore, e);
+                }
+                if(journal != null){
+                    try {
+                        if(success){
+                            journal.completed(id, transformed);
+                        } else {
+                            journal.failed(id, ex);
+                        }
+                    } catch (IOException e) {
+                        log.warn("Unable to journal state of job "+id, e);
+                    }
+                }
+                Map<String,TmpFileEntity> sharedResults = new HashMap<String,TmpFileEntity>();
+                for(TransformationJob follower : attached){
+                    sharedResults.put(follower.id, follower.completed(success ? transformed : null, ex));
+                }
+                long callbackStart = System.nanoTime();
+                //null if activated without handler (e.g. for replaying the journal)
+                CallBackHandler callBackHandler = getCallBackHandler();
                 requestLock.writeLock().lock();
                 try {
                     activeRequests.remove(id);
-                    if(success) {
-                    	getCallBackHandler().responseAvailable(id, transformed);
+                    if(callBackHandler == null){
+                        log.debug(" - no callback handler for result of {}", id);
+                    } else if(success) {
+                    	callBackHandler.responseAvailable(id, transformed);
                     } else {
-                    	if(ex == null){ //an Error was thrown
-                    		ex = new RuntimeException("Error while processing "+id);
-                    	} //else catched Exception
-                    	getCallBackHandler().reportException(id, ex);
+                    	callBackHandler.reportException(id, ex);
+                    }
+                    for(TransformationJob follower : attached){
+                        activeRequests.remove(follower.id);
+                        TmpFileEntity shared = sharedResults.get(follower.id);
+                        if(callBackHandler == null){
+                            continue;
+                        } else if(shared != null){
+                            callBackHandler.responseAvailable(follower.id, shared);
+                        } else {
+                            callBackHandler.reportException(follower.id, ex != null ? ex :
+                                new RuntimeException("Unable to share result of job " + id));
+                        }
                     }
                 } finally {
                     requestLock.writeLock().unlock();
                     //in any case try to close the source
                 }
+                trace.span(JobTrace.CALLBACK, callbackStart, System.nanoTime());
+                //finish the partial result after the result is available
+                for(TransformationJob follower : attached){
+                    partialResults.remove(follower.id);
+                }
+                if(partial != null){
+                    partialResults.remove(id);
+                    if(success){
+                        partial.completed();
+                    } else {
+                        partial.failed(ex.getMessage());
+                    }
+                }
+                trace.finish();
+                trace.detach();
+                long threshold = slowJobThreshold;
+                if(threshold >= 0 && trace.getDuration(TimeUnit.MILLISECONDS) > threshold){
+                    slowJobLog.warn("{}", trace);
+                } else {
+                    log.debug(" - trace: {}", trace);
+                }
             }
             
         }
         
+        /**
+         * Completes an attached job with the result of the job it is attached to
+         * @param result the result or <code>null</code> if the job failed
+         * @param ex the exception if the job failed
+         * @return the result for this job or <code>null</code> if failed
+         */
+        private TmpFileEntity completed(TmpFileEntity result, Exception ex) {
+            TmpFileEntity shared = null;
+            if(result != null){
+                try {
+                    shared = shareResult(id, result);
+                } catch (IOException e) {
+                    log.warn("Unable to share result with attached job " + id, e);
+                    ex = e;
+                }
+            }
+            try {
+                if(shared != null){
+                    jobStore.completed(id, shared);
+                } else {
+                    jobStore.failed(id, ex);
+                }
+            } catch (IOException e) {
+                log.warn("Unable to store state of job "+id+" in "+ jobStore, e);
+            }
+            if(journal != null){
+                try {
+                    if(shared != null){
+                        journal.completed(id, shared);
+                    } else {
+                        journal.failed(id, ex);
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to journal state of job "+id, e);
+                }
+            }
+            if(source instanceof Closeable){
+                IOUtils.closeQuietly((Closeable)source);
+            }
+            return shared;
+        }
+
         @Override
         public int hashCode() {
             return id.hashCode();
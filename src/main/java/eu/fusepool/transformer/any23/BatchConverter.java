@@ -0,0 +1,704 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.any23.source.DocumentSource;
+import org.apache.any23.writer.CompositeTripleHandler;
+import org.apache.any23.writer.CountingTripleHandler;
+import org.apache.any23.writer.NQuadsWriter;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.any23.writer.TurtleWriter;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline bulk conversion of files in directories and archives (zip, jar,
+ * tar optionally compressed with gzip, xz or zstd) by using the configuration
+ * of an {@link Any23Transformer}.<p>
+ * The media type of files is determined by the file name patterns
+ * ({@link #addType(String, String)}). Files not matching any pattern are
+ * skipped. Files are converted in parallel and the results are written
+ * either as a single N-Quads stream (the graph being the document URI) or
+ * as one Turtle file per input file.<p>
+ * If a checkpoint file is configured the ids of converted files are
+ * appended to it. A restarted conversion skips those files and appends to
+ * the N-Quads stream. As the results of a file are written before its
+ * checkpoint, a crash may cause the results of the last files to be written
+ * twice.
+ */
+public class BatchConverter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The default interval in seconds used to log the progress of a conversion
+     */
+    public static final int DEFAULT_PROGRESS_INTERVAL = 10;
+
+    /**
+     * The default mappings of file name patterns to media types
+     */
+    public static final Map<String,String> DEFAULT_TYPES;
+
+    static {
+        Map<String,String> types = new LinkedHashMap<String,String>();
+        types.put("*.{html,htm}", Any23Transformer.HTML.getBaseType());
+        types.put("*.xhtml", Any23Transformer.XHTML.getBaseType());
+        types.put("*.csv", Any23Transformer.CSV.getBaseType());
+        types.put("*.{rdf,owl}", Any23Transformer.RDF_XML.getBaseType());
+        types.put("*.ttl", Any23Transformer.TURTLE.getBaseType());
+        types.put("*.n3", Any23Transformer.N3.getBaseType());
+        types.put("*.nt", Any23Transformer.N_TRIPLE.getBaseType());
+        types.put("*.nq", Any23Transformer.N_QUADS.getBaseType());
+        types.put("*.jsonld", Any23Transformer.JSON_LD.getBaseType());
+        DEFAULT_TYPES = Collections.unmodifiableMap(types);
+    }
+
+    private static final String[] ARCHIVE_SUFFIXES = new String[]{
+        ".zip",".jar",".tar",".tar.gz",".tgz",".tar.xz",".txz",".tar.zst"};
+
+    private final Any23Transformer transformer;
+
+    private final Map<String,String> types = new LinkedHashMap<String,String>();
+    private final Map<PathMatcher,String> matchers = new LinkedHashMap<PathMatcher,String>();
+
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private File outputFile;
+    private File outputDir;
+    private File checkpointFile;
+    private String baseUri;
+    private int progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    /*
+     * state of the running conversion
+     */
+    private ThreadPoolExecutor executor;
+    private OutputStream nquads;
+    private Writer checkpoint;
+    private Set<String> completed;
+    private Stats stats;
+
+    /**
+     * Creates a batch converter using the default {@link #DEFAULT_TYPES types}
+     * @param transformer the transformer providing the Any23 configuration
+     */
+    public BatchConverter(Any23Transformer transformer) {
+        if(transformer == null){
+            throw new IllegalArgumentException("The parsed transformer MUST NOT be NULL!");
+        }
+        this.transformer = transformer;
+        for(Map.Entry<String,String> entry : DEFAULT_TYPES.entrySet()){
+            addType(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Maps a file name pattern to a media type. Mappings added later take
+     * precedence over earlier ones (including the defaults).
+     * @param pattern the glob pattern matched against the file name (e.g.
+     * <code>*.html</code>)
+     * @param type the media type
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    public void addType(String pattern, String type) {
+        if(pattern == null || pattern.isEmpty() || type == null || type.isEmpty()){
+            throw new IllegalArgumentException("The parsed pattern and type MUST NOT be NULL nor empty!");
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        types.remove(pattern);
+        types.put(pattern, type);
+        //keep the latest mapping first
+        Map<PathMatcher,String> copy = new LinkedHashMap<PathMatcher,String>(matchers);
+        matchers.clear();
+        matchers.put(matcher, type);
+        matchers.putAll(copy);
+    }
+
+    /**
+     * Parses a <code>{pattern}={type}</code> mapping
+     * @param mapping the mapping
+     * @throws IllegalArgumentException if the mapping is not valid
+     * @see #addType(String, String)
+     */
+    public void addType(String mapping) {
+        int idx = mapping == null ? -1 : mapping.lastIndexOf('=');
+        if(idx < 1 || idx == mapping.length() - 1){
+            throw new IllegalArgumentException("Invalid type mapping '" + mapping
+                    + "' (expected: '{pattern}={type}', e.g. '*.html=text/html')");
+        }
+        addType(mapping.substring(0, idx).trim(), mapping.substring(idx + 1).trim());
+    }
+
+    /**
+     * The media type for the parsed file name
+     * @param name the file name
+     * @return the media type or <code>null</code> if no pattern matches
+     */
+    public String getType(String name) {
+        Path path = Paths.get(name.toLowerCase(Locale.ROOT));
+        for(Map.Entry<PathMatcher,String> entry : matchers.entrySet()){
+            if(entry.getKey().matches(path)){
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The configured file name patterns and media types
+     * @return the mappings in the order they were added
+     */
+    public Map<String,String> getTypes() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Setter for the number of files converted in parallel
+     * @param workers the number of worker threads
+     */
+    public void setWorkers(int workers) {
+        if(workers < 1){
+            throw new IllegalArgumentException("The number of workers MUST BE >= 1");
+        }
+        this.workers = workers;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Setter for the file the N-Quads of all files are written to
+     * @param outputFile the file or <code>-</code> for <code>System.out</code>
+     */
+    public void setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    /**
+     * Setter for the directory Turtle results are written to. Results use
+     * the relative path of the input file with the <code>.ttl</code> suffix.
+     * @param outputDir the directory
+     */
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Setter for the checkpoint file used to resume conversions
+     * @param checkpointFile the file or <code>null</code> to not checkpoint
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public String getBaseUri() {
+        return baseUri;
+    }
+
+    /**
+     * Setter for the base URI used for document URIs. The relative path of
+     * a file is appended to it. If <code>null</code> <code>file:</code>
+     * (and <code>jar:</code> for archive entries) URIs are used.
+     * @param baseUri the base URI
+     */
+    public void setBaseUri(String baseUri) {
+        this.baseUri = baseUri == null || baseUri.isEmpty() || baseUri.endsWith("/") ?
+                baseUri : baseUri + '/';
+    }
+
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Setter for the interval used to log the progress
+     * @param progressInterval the interval in seconds. <code>0</code> to
+     * deactivate progress logging
+     */
+    public void setProgressInterval(int progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Converts all files in the parsed input directories, archives and files.
+     * @param inputs the inputs
+     * @return the statistics of the conversion
+     * @throws IOException if an input, the output or the checkpoint file can
+     * not be read or written. Errors while converting single files are
+     * counted as failed files
+     * @throws InterruptedException if interrupted while waiting for the
+     * conversion to complete
+     * @throws IllegalStateException if no output is configured
+     */
+    public Stats convert(Collection<File> inputs) throws IOException, InterruptedException {
+        if(outputFile == null && outputDir == null){
+            throw new IllegalStateException("Neither an output file nor an output directory is configured");
+        }
+        completed = readCheckpoint();
+        stats = new Stats();
+        stats.resumed.set(completed.size());
+        log.info("> batch conversion [workers: {} | output: {} | checkpoint: {} | resumed: {}]",
+                new Object[]{workers, outputFile != null ? outputFile : outputDir,
+                        checkpointFile, completed.size()});
+        ScheduledExecutorService progress = null;
+        try {
+            if(outputFile != null){
+                nquads = "-".equals(outputFile.getPath()) ? new FilterOutputStream(System.out){
+                    @Override
+                    public void close() throws IOException {
+                        flush(); //do not close System.out
+                    }
+                } : new BufferedOutputStream(new FileOutputStream(outputFile, !completed.isEmpty()));
+            }
+            if(checkpointFile != null){
+                checkpoint = new OutputStreamWriter(new FileOutputStream(checkpointFile, true), UTF8);
+            }
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(workers * 2), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "any23-batch-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            if(progressInterval > 0){
+                progress = Executors.newSingleThreadScheduledExecutor();
+                progress.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        log.info(" - progress: {}", stats);
+                    }
+                }, progressInterval, progressInterval, TimeUnit.SECONDS);
+            }
+            for(File input : inputs){
+                if(input.isDirectory()){
+                    addDirectory(input, input);
+                } else if(input.isFile()){
+                    addFile(input.getAbsoluteFile().getParentFile(), input);
+                } else {
+                    throw new IOException("Input " + input + " does not exist");
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            if(executor != null){
+                executor.shutdownNow();
+            }
+            if(progress != null){
+                progress.shutdownNow();
+            }
+            stats.finish();
+            IOUtils.closeQuietly(nquads);
+            IOUtils.closeQuietly(checkpoint);
+            nquads = null;
+            checkpoint = null;
+            executor = null;
+        }
+        log.info("> batch conversion completed: {}", stats);
+        return stats;
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        Set<String> completed = new HashSet<String>();
+        if(checkpointFile == null || !checkpointFile.isFile()){
+            return completed;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(checkpointFile), UTF8));
+        try {
+            String line;
+            while((line = reader.readLine()) != null){
+                if(!line.isEmpty()){
+                    completed.add(line);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return completed;
+    }
+
+    private void addDirectory(File root, File dir) throws IOException {
+        File[] children = dir.listFiles();
+        if(children == null){
+            throw new IOException("Unable to list directory " + dir);
+        }
+        Arrays.sort(children); //convert files in a stable order
+        for(File child : children){
+            if(child.isDirectory()){
+                addDirectory(root, child);
+            } else if(child.isFile()){
+                addFile(root, child);
+            }
+        }
+    }
+
+    private void addFile(File root, File file) throws IOException {
+        String path = root.toURI().relativize(file.toURI()).getPath();
+        if(isArchive(file.getName())){
+            addArchive(path, file);
+            return;
+        }
+        String type = getType(file.getName());
+        if(type == null){
+            stats.skipped.incrementAndGet();
+            log.debug(" - skip {} (unknown type)", file);
+            return;
+        }
+        String id = file.getAbsolutePath();
+        if(completed.contains(id)){
+            log.trace(" - skip {} (completed)", id);
+            return;
+        }
+        String uri = baseUri != null ? baseUri + encodePath(path) : file.toURI().toString();
+        executor.execute(new Item(id, path, file, false, type, uri));
+    }
+
+    private void addArchive(String path, File archive) throws IOException {
+        log.debug(" - read archive {}", archive);
+        String name = archive.getName().toLowerCase(Locale.ROOT);
+        InputStream in = new BufferedInputStream(new FileInputStream(archive));
+        try {
+            ContentEncoding encoding = name.endsWith(".gz") || name.endsWith(".tgz") ? ContentEncoding.GZIP :
+                name.endsWith(".xz") || name.endsWith(".txz") ? ContentEncoding.XZ :
+                    name.endsWith(".zst") ? ContentEncoding.ZSTD : null;
+            if(encoding != null){
+                in = new BufferedInputStream(encoding.decode(in, transformer.getBufferPool()));
+            }
+            ArchiveInputStream ain;
+            try {
+                ain = new ArchiveStreamFactory().createArchiveInputStream(in);
+            } catch (ArchiveException e) {
+                throw new IOException("Unable to read archive " + archive, e);
+            }
+            ArchiveEntry entry;
+            while((entry = ain.getNextEntry()) != null){
+                if(entry.isDirectory()){
+                    continue;
+                }
+                String entryName = entry.getName();
+                int idx = entryName.lastIndexOf('/');
+                String type = getType(idx < 0 ? entryName : entryName.substring(idx + 1));
+                if(type == null){
+                    stats.skipped.incrementAndGet();
+                    log.debug(" - skip {}!/{} (unknown type)", archive, entryName);
+                    continue;
+                }
+                String id = archive.getAbsolutePath() + "!/" + entryName;
+                if(completed.contains(id)){
+                    log.trace(" - skip {} (completed)", id);
+                    continue;
+                }
+                //entries are read sequentially so spool them for the workers
+                File tmp = File.createTempFile("any23-batch", ".tmp");
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    IOUtils.copyLarge(ain, out);
+                } catch (IOException e) {
+                    tmp.delete();
+                    throw e;
+                } finally {
+                    IOUtils.closeQuietly(out);
+                }
+                String entryPath = path + "/" + entryName;
+                String uri = baseUri != null ? baseUri + encodePath(entryPath) :
+                    "jar:" + archive.toURI() + "!/" + encodePath(entryName);
+                executor.execute(new Item(id, entryPath, tmp, true, type, uri));
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    static boolean isArchive(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        for(String suffix : ARCHIVE_SUFFIXES){
+            if(name.endsWith(suffix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String encodePath(String path) {
+        try {
+            return new URI(null, null, path, null).getRawPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Unable to encode path " + path, e);
+        }
+    }
+
+    private File getTarget(String path) throws IOException {
+        File target = new File(outputDir, path + ".ttl").getCanonicalFile();
+        if(!target.getPath().startsWith(outputDir.getCanonicalPath() + File.separator)){
+            //do not write outside of the output directory (e.g. '../' in archives)
+            target = new File(outputDir, TmpFileEntity.toFileName(path) + ".ttl");
+        }
+        File parent = target.getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs()){
+            throw new IOException("Unable to create directory " + parent);
+        }
+        return target;
+    }
+
+    private void completed(Item item, File result) throws IOException {
+        if(nquads != null){
+            InputStream in = new FileInputStream(result);
+            try {
+                synchronized (nquads) {
+                    IOUtils.copyLarge(in, nquads);
+                    nquads.flush();
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        if(checkpoint != null){
+            synchronized (checkpoint) {
+                checkpoint.write(item.id);
+                checkpoint.write('\n');
+                checkpoint.flush();
+            }
+        }
+    }
+
+    /**
+     * A file to be converted
+     */
+    private class Item implements Runnable, DocumentSource {
+
+        private final String id;
+        private final String path;
+        private final File file;
+        private final boolean tmp;
+        private final String type;
+        private final String uri;
+
+        Item(String id, String path, File file, boolean tmp, String type, String uri) {
+            this.id = id;
+            this.path = path;
+            this.file = file;
+            this.tmp = tmp;
+            this.type = type;
+            this.uri = uri;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            File result = null;
+            OutputStream out = null;
+            try {
+                result = outputDir == null ? File.createTempFile("any23-batch", ".nq") :
+                    getTarget(path);
+                out = new BufferedOutputStream(new FileOutputStream(result));
+                TripleHandler writer = outputDir == null ? new NQuadsWriter(out) :
+                    new TurtleWriter(out);
+                CountingTripleHandler counter = new CountingTripleHandler();
+                List<TripleHandler> handlers = new ArrayList<TripleHandler>(2);
+                handlers.add(writer);
+                handlers.add(counter);
+                TripleHandler handler = new CompositeTripleHandler(handlers);
+                try {
+                    transformer.extract(this, null, handler);
+                } finally {
+                    handler.close();
+                    out.close();
+                }
+                completed(this, result);
+                stats.completed(file.length(), counter.getCount());
+                log.debug(" - converted {} ({} triples in {}ms)", new Object[]{
+                        id, counter.getCount(), (System.nanoTime() - start) / 1000000});
+            } catch (Exception e) {
+                stats.failed.incrementAndGet();
+                log.warn("Unable to convert " + id + " (message: " + e.getMessage() + ")", e);
+                if(outputDir != null && result != null){
+                    result.delete();
+                }
+            } finally {
+                IOUtils.closeQuietly(out);
+                if(outputDir == null && result != null){
+                    result.delete();
+                }
+                if(tmp){
+                    file.delete();
+                }
+            }
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+
+        @Override
+        public String getContentType() {
+            return type;
+        }
+
+        @Override
+        public long getContentLength() {
+            return file.length();
+        }
+
+        @Override
+        public String getDocumentURI() {
+            return uri;
+        }
+
+        @Override
+        public boolean isLocal() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    /**
+     * Statistics of a batch conversion
+     */
+    public static class Stats {
+
+        private final long start = System.nanoTime();
+        private volatile long end;
+        private final AtomicLong converted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong resumed = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong triples = new AtomicLong();
+
+        void completed(long length, long count) {
+            converted.incrementAndGet();
+            bytes.addAndGet(length);
+            triples.addAndGet(count);
+        }
+
+        void finish() {
+            end = System.nanoTime();
+        }
+
+        /**
+         * The number of converted files
+         */
+        public long getConverted() {
+            return converted.get();
+        }
+
+        /**
+         * The number of files that could not be converted
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * The number of files skipped because their type is not known
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * The number of files converted by a previous run (read from the
+         * checkpoint file)
+         */
+        public long getResumed() {
+            return resumed.get();
+        }
+
+        /**
+         * The number of bytes of converted files
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * The number of extracted triples
+         */
+        public long getTriples() {
+            return triples.get();
+        }
+
+        /**
+         * The duration of the conversion in milliseconds
+         */
+        public long getDuration() {
+            return ((end == 0 ? System.nanoTime() : end) - start) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            double sec = Math.max(getDuration(), 1) / 1000d;
+            return String.format(Locale.ROOT, "%d files (%d failed, %d skipped, %d resumed) | "
+                    + "%.1f MB | %d triples in %.1fsec | %.1f files/sec | %.2f MB/sec | "
+                    + "%.0f triples/sec", converted.get(), failed.get(), skipped.get(),
+                    resumed.get(), bytes.get() / 1048576d, triples.get(), sec,
+                    converted.get() / sec, bytes.get() / 1048576d / sec, triples.get() / sec);
+        }
+    }
+}
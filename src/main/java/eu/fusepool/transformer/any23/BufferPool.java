@@ -0,0 +1,302 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.ArrayCache;
+
+/**
+ * A bounded pool of the byte and int arrays used on the job hot path so that
+ * they are reused by the following jobs instead of being allocated (and
+ * collected) for every request. This covers:<ul>
+ * <li> the encoder and decoder state of the XZ streams used to spool request
+ * data ({@link TmpFileDocumentSource}) and to store results
+ * ({@link TmpFileEntity}). The XZ encoder of a single stream allocates several
+ * MByte of arrays. The pool is parsed explicitly to the XZ streams created
+ * by this transformer. The JVM wide default {@link ArrayCache} of the XZ
+ * library is not changed.
+ * <li> the buffers used to {@link #copy(InputStream, OutputStream, ArrayCache)
+ * copy} data
+ * </ul>
+ * Arrays are pooled by their exact length. Returned arrays are dropped if the
+ * pool is full or not {@link #start() started}. Arrays smaller than
+ * {@link #MIN_ARRAY_SIZE} are never pooled as allocating them is cheaper than
+ * pooling.
+ */
+public class BufferPool extends ArrayCache implements BufferPoolMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    /**
+     * The default maximum size of the pooled arrays (limited to
+     * {@link #DEFAULT_HEAP_FRACTION} of the max heap)
+     */
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    /**
+     * The max fraction of the max heap used by default
+     */
+    public static final double DEFAULT_HEAP_FRACTION = 0.125;
+    /**
+     * Smaller arrays (in bytes) are not pooled
+     */
+    public static final int MIN_ARRAY_SIZE = 4096;
+    /**
+     * The size of buffers used by {@link #copy(InputStream, OutputStream)}
+     */
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final long maxSize;
+
+    private final Map<Integer,Deque<byte[]>> byteArrays = new HashMap<Integer,Deque<byte[]>>();
+    private final Map<Integer,Deque<int[]>> intArrays = new HashMap<Integer,Deque<int[]>>();
+    private long pooledBytes;
+    private int pooledArrays;
+    private boolean active;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * Creates a pool of {@link #DEFAULT_MAX_SIZE} (but at most
+     * {@link #DEFAULT_HEAP_FRACTION} of the max heap)
+     */
+    public BufferPool() {
+        this(Math.min(DEFAULT_MAX_SIZE, (long)(Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION)));
+    }
+
+    /**
+     * Creates a pool
+     * @param maxSize the maximum size of the pooled arrays in bytes
+     */
+    public BufferPool(long maxSize) {
+        if(maxSize <= 0){
+            throw new IllegalArgumentException("The max size MUST BE greater as 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Activates pooling of returned arrays and registers the MBean
+     */
+    public synchronized void start() {
+        active = true;
+        if(objectName == null){
+            objectName = MBeans.register(this, "BufferPool", "arrays");
+        }
+    }
+
+    /**
+     * Removes all pooled arrays and unregisters the MBean. Arrays returned
+     * afterwards are dropped.
+     */
+    public synchronized void stop() {
+        if(active){
+            log.info(" - stopped {} [hits: {} | misses: {} | dropped: {} | reused: {}MB]",
+                    new Object[]{this, hits.get(), misses.get(), dropped.get(),
+                            reused.get() / (1024 * 1024)});
+            active = false;
+        }
+        clear();
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    @Override
+    public byte[] getByteArray(int size, boolean fillWithZeros) {
+        byte[] array = size < MIN_ARRAY_SIZE ? null : take(byteArrays, size, size);
+        if(array == null){
+            return new byte[size];
+        }
+        if(fillWithZeros){
+            Arrays.fill(array, (byte)0);
+        }
+        return array;
+    }
+
+    @Override
+    public void putArray(byte[] array) {
+        if(array.length >= MIN_ARRAY_SIZE){
+            put(byteArrays, array.length, array, array.length);
+        }
+    }
+
+    @Override
+    public int[] getIntArray(int size, boolean fillWithZeros) {
+        int[] array = size * 4L < MIN_ARRAY_SIZE ? null : take(intArrays, size, size * 4L);
+        if(array == null){
+            return new int[size];
+        }
+        if(fillWithZeros){
+            Arrays.fill(array, 0);
+        }
+        return array;
+    }
+
+    @Override
+    public void putArray(int[] array) {
+        if(array.length * 4L >= MIN_ARRAY_SIZE){
+            put(intArrays, array.length, array, array.length * 4L);
+        }
+    }
+
+    private <T> T take(Map<Integer,Deque<T>> arrays, int length, long bytes) {
+        T array = null;
+        synchronized (this) {
+            Deque<T> pooled = arrays.get(length);
+            if(pooled != null){
+                array = pooled.pollFirst();
+                if(array != null){
+                    pooledBytes -= bytes;
+                    pooledArrays--;
+                }
+            }
+        }
+        if(array == null){
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+            reused.addAndGet(bytes);
+        }
+        return array;
+    }
+
+    private <T> void put(Map<Integer,Deque<T>> arrays, int length, T array, long bytes) {
+        synchronized (this) {
+            if(active && pooledBytes + bytes <= maxSize){
+                Deque<T> pooled = arrays.get(length);
+                if(pooled == null){
+                    pooled = new ArrayDeque<T>();
+                    arrays.put(length, pooled);
+                }
+                pooled.addFirst(array); //LIFO: recently used arrays are likely still cached
+                pooledBytes += bytes;
+                pooledArrays++;
+                return;
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * The parsed cache or - if <code>null</code> - the default 
+     * {@link ArrayCache} of the XZ library
+     * @param cache the cache (e.g. a {@link BufferPool}) or <code>null</code>
+     * @return the cache to use
+     */
+    static ArrayCache orDefault(ArrayCache cache) {
+        return cache == null ? ArrayCache.getDefaultCache() : cache;
+    }
+
+    /**
+     * Copies all data using a buffer of the parsed {@link ArrayCache}.
+     * @param in the stream to read from
+     * @param out the stream to write to
+     * @param cache the cache providing the buffer (e.g. a {@link BufferPool})
+     * or <code>null</code> for the default cache of the XZ library
+     * @return the number of copied bytes
+     * @throws IOException on any error while copying
+     */
+    public static long copy(InputStream in, OutputStream out, ArrayCache cache) throws IOException {
+        cache = orDefault(cache);
+        byte[] buffer = cache.getByteArray(COPY_BUFFER_SIZE, false);
+        try {
+            return IOUtils.copyLarge(in, out, buffer);
+        } finally {
+            cache.putArray(buffer);
+        }
+    }
+
+    /**
+     * Copies a range of the data using a buffer of the parsed {@link ArrayCache}.
+     * @param in the stream to read from
+     * @param out the stream to write to
+     * @param offset the number of bytes to skip
+     * @param length the number of bytes to copy (a negative value copies
+     * all remaining bytes)
+     * @param cache the cache providing the buffer (e.g. a {@link BufferPool})
+     * or <code>null</code> for the default cache of the XZ library
+     * @return the number of copied bytes
+     * @throws IOException on any error while copying
+     */
+    public static long copy(InputStream in, OutputStream out, long offset, long length,
+            ArrayCache cache) throws IOException {
+        cache = orDefault(cache);
+        byte[] buffer = cache.getByteArray(COPY_BUFFER_SIZE, false);
+        try {
+            return IOUtils.copyLarge(in, out, offset, length, buffer);
+        } finally {
+            cache.putArray(buffer);
+        }
+    }
+
+    @Override
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    @Override
+    public synchronized int getPooledArrays() {
+        return pooledArrays;
+    }
+
+    @Override
+    public synchronized double getOccupancy() {
+        return pooledBytes / (double)maxSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getReusedBytes() {
+        return reused.get();
+    }
+
+    @Override
+    public synchronized void clear() {
+        byteArrays.clear();
+        intArrays.clear();
+        pooledBytes = 0;
+        pooledArrays = 0;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[max: ")
+                .append(maxSize / (1024 * 1024)).append("MB | pooled: ")
+                .append(getPooledBytes() / (1024 * 1024)).append("MB]").toString();
+    }
+}
@@ -0,0 +1,55 @@
+package eu.fusepool.transformer.any23;
+
+/**
+ * JMX interface exposing the occupancy of the {@link BufferPool}
+ */
+public interface BufferPoolMBean {
+
+    /**
+     * The maximum size of the pooled arrays in bytes
+     */
+    long getMaxSize();
+
+    /**
+     * The size of the currently pooled arrays in bytes
+     */
+    long getPooledBytes();
+
+    /**
+     * The number of currently pooled arrays
+     */
+    int getPooledArrays();
+
+    /**
+     * The fraction of the {@link #getMaxSize() max size} currently used
+     * (<code>0..1</code>)
+     */
+    double getOccupancy();
+
+    /**
+     * The number of requested arrays taken from the pool
+     */
+    long getHitCount();
+
+    /**
+     * The number of requested arrays that needed to be allocated
+     */
+    long getMissCount();
+
+    /**
+     * The number of returned arrays dropped because the pool was full
+     */
+    long getDroppedCount();
+
+    /**
+     * The bytes of requested arrays taken from the pool (the bytes not
+     * allocated thanks to the pool)
+     */
+    long getReusedBytes();
+
+    /**
+     * Removes all pooled arrays
+     */
+    void clear();
+
+}
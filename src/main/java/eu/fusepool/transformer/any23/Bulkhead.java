@@ -0,0 +1,495 @@
+package eu.fusepool.transformer.any23;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A worker pool (bulkhead) used to process jobs of a group of content types.
+ * Every bulkhead has its own thread pool and queue so that a flood of
+ * requests for one group (e.g. long running CSV transformations) can not take
+ * capacity from other groups (e.g. HTML).<p>
+ * Metrics of the bulkhead are exposed via JMX (see {@link BulkheadMBean}).
+ */
+public class Bulkhead implements BulkheadMBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Prefix for bulkhead properties in the configuration file
+     */
+    public static final String PROPERTY_PREFIX = Any23Transformer.PROPERTY_PREFIX + "bulkhead.";
+
+    public static final String PROPERTY_TYPES = "types";
+    public static final String PROPERTY_CORE_POOL = "core-pool";
+    public static final String PROPERTY_MAX_POOL = "max-pool";
+    public static final String PROPERTY_KEEP_ALIVE = "keep-alive";
+    public static final String PROPERTY_QUEUE = "queue";
+
+    private final String name;
+    private final Set<MimeType> types;
+    private final int corePoolSize;
+    private final int maxPoolSize;
+    private final long keepAliveTime;
+    private final int queueCapacity;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong processingTime = new AtomicLong();
+    /**
+     * Runs that processed a job (see {@link MeasuredJob})
+     */
+    private final AtomicLong measured = new AtomicLong();
+    private final AtomicLong measuredTime = new AtomicLong();
+    private final AtomicLong measuredLength = new AtomicLong();
+    private volatile int limit;
+
+    private ThreadPoolExecutor executor;
+    private ObjectName objectName;
+
+    /**
+     * Creates a bulkhead
+     * @param name the name
+     * @param types the content types processed by this bulkhead. If empty
+     * this bulkhead accepts all types.
+     * @param corePoolSize the core pool size
+     * @param maxPoolSize the maximum pool size
+     * @param keepAliveTime the keep alive time of idle threads in seconds
+     * @param queueCapacity the capacity of the queue. If <code>0</code> jobs
+     * are directly handed over to threads and rejected if none is available.
+     */
+    public Bulkhead(String name, Collection<MimeType> types, int corePoolSize,
+            int maxPoolSize, long keepAliveTime, int queueCapacity) {
+        if(name == null || name.isEmpty()){
+            throw new IllegalArgumentException("The name MUST NOT be NULL nor empty");
+        }
+        if(corePoolSize < 0 || maxPoolSize <= 0 || maxPoolSize < corePoolSize){
+            throw new IllegalArgumentException("Invalid pool size [core: " + corePoolSize
+                    + " | max: " + maxPoolSize + "] for bulkhead " + name);
+        }
+        if(queueCapacity < 0){
+            throw new IllegalArgumentException("The queue capacity MUST NOT be negative");
+        }
+        this.name = name;
+        this.types = types == null ? Collections.<MimeType>emptySet() :
+            Collections.unmodifiableSet(new LinkedHashSet<MimeType>(types));
+        this.corePoolSize = corePoolSize;
+        this.maxPoolSize = maxPoolSize;
+        this.keepAliveTime = keepAliveTime;
+        this.queueCapacity = queueCapacity;
+        this.limit = maxPoolSize;
+    }
+
+    /**
+     * Checks if this bulkhead processes jobs of the parsed content type
+     * @param type the content type
+     * @return if the content type is accepted
+     */
+    public boolean accepts(MimeType type) {
+        if(types.isEmpty()){
+            return true;
+        }
+        if(type == null){
+            return false;
+        }
+        for(MimeType accepted : types){
+            if(accepted.match(type)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the thread pool of this bulkhead and registers the MBean
+     * @throws IllegalStateException if already started
+     */
+    public synchronized void start() {
+        if(executor != null){
+            throw new IllegalStateException("Bulkhead " + name + " already started");
+        }
+        BlockingQueue<Runnable> queue;
+        if(queueCapacity == 0){
+            queue = new SynchronousQueue<Runnable>();
+        } else {
+            queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        }
+        limit = maxPoolSize;
+        executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize,
+                keepAliveTime, TimeUnit.SECONDS, queue);
+        objectName = MBeans.register(this, "Bulkhead", name);
+        log.info(" - started {}", this);
+    }
+
+    /**
+     * Submits a job to this bulkhead
+     * @param job the job
+     * @throws RejectedExecutionException if the bulkhead has no capacity left
+     * @throws IllegalStateException if the bulkhead is not started
+     */
+    public void submit(Runnable job) {
+        ThreadPoolExecutor executor = this.executor;
+        if(executor == null){
+            throw new IllegalStateException("Bulkhead " + name + " is not started");
+        }
+        try {
+            executor.execute(new TimedJob(job));
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Shuts down the thread pool of this bulkhead and unregisters the MBean
+     */
+    public synchronized void shutdown() {
+        if(executor != null){
+            executor.shutdown();
+            executor = null;
+        }
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * Sets the concurrency limit of this bulkhead. The limit is the maximum
+     * number of threads processing jobs and is bound to 
+     * <code>[1..{@link #getMaxPoolSize()}]</code>. The core pool size is
+     * reduced if it exceeds the limit. Used by the
+     * {@link AdaptiveConcurrencyController} to adapt the pool at runtime.
+     * @param limit the limit
+     * @return the applied limit
+     */
+    public synchronized int setLimit(int limit) {
+        limit = Math.max(1, Math.min(maxPoolSize, limit));
+        ThreadPoolExecutor executor = this.executor;
+        if(executor != null && limit != this.limit){
+            int core = Math.min(corePoolSize, limit);
+            //the core size MUST NOT exceed the max size at any time
+            if(limit > executor.getMaximumPoolSize()){
+                executor.setMaximumPoolSize(limit);
+                executor.setCorePoolSize(core);
+            } else {
+                executor.setCorePoolSize(core);
+                executor.setMaximumPoolSize(limit);
+            }
+        }
+        this.limit = limit;
+        return limit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Getter for the content types accepted by this bulkhead
+     * @return the content types. An empty set if all types are accepted
+     */
+    public Set<MimeType> getAcceptedTypes() {
+        return types;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getTypes() {
+        return types.isEmpty() ? "*/*" : types.toString();
+    }
+
+    @Override
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * The keep alive time of idle threads in seconds
+     */
+    public long getKeepAliveTime() {
+        return keepAliveTime;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getActiveCount() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getPoolSize();
+    }
+
+    @Override
+    public int getQueueSize() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    @Override
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        ThreadPoolExecutor executor = this.executor;
+        return executor == null ? 0 : executor.getCompletedTaskCount();
+    }
+
+    @Override
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    @Override
+    public long getTotalWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+
+    @Override
+    public long getTotalProcessingTime() {
+        return TimeUnit.NANOSECONDS.toMillis(processingTime.get());
+    }
+
+    /**
+     * The total time jobs waited in the queue in nanoseconds
+     */
+    long getTotalWaitNanos() {
+        return waitTime.get();
+    }
+
+    /**
+     * The total time used to process jobs in nanoseconds
+     */
+    long getTotalProcessingNanos() {
+        return processingTime.get();
+    }
+
+    /**
+     * The number of runs that processed a job
+     */
+    long getMeasuredCount() {
+        return measured.get();
+    }
+
+    /**
+     * The total time of runs that processed a job in nanoseconds
+     */
+    long getTotalMeasuredNanos() {
+        return measuredTime.get();
+    }
+
+    /**
+     * The total length of the data processed by measured runs in bytes
+     */
+    long getTotalMeasuredLength() {
+        return measuredLength.get();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[name: ")
+                .append(name).append(" | types: ").append(getTypes())
+                .append(" | core: ").append(corePoolSize).append(" | max: ")
+                .append(maxPoolSize).append(" | keep: ").append(keepAliveTime)
+                .append("sec | queue: ").append(queueCapacity).append("]").toString();
+    }
+
+    /**
+     * Parses a bulkhead from the command line representation
+     * <code>{name}={type}[,{type}]:{core}:{max}[:{queue}]</code> (e.g.
+     * <code>csv=text/csv:1:2:10</code>).
+     * @param spec the bulkhead specification
+     * @param keepAliveTime the keep alive time of idle threads in seconds
+     * @return the bulkhead
+     * @throws IllegalArgumentException if the parsed specification is not valid
+     */
+    public static Bulkhead parse(String spec, long keepAliveTime) {
+        int sep = spec.indexOf('=');
+        String[] parts = sep < 0 ? new String[0] : spec.substring(sep + 1).split(":");
+        if(sep <= 0 || parts.length < 3 || parts.length > 4){
+            throw new IllegalArgumentException("Invalid bulkhead '" + spec + "' (expected: "
+                    + "{name}={type}[,{type}]:{core}:{max}[:{queue}])");
+        }
+        try {
+            return new Bulkhead(spec.substring(0, sep), parseTypes(parts[0]),
+                    Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), keepAliveTime,
+                    parts.length > 3 ? Integer.parseInt(parts[3]) : 0);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid pool or queue size in bulkhead '"
+                    + spec + "'", e);
+        }
+    }
+
+    /**
+     * Parses bulkheads from properties of the form
+     * <code>transformer.bulkhead.{name}.{property}</code> with the properties
+     * {@link #PROPERTY_TYPES} (required), {@link #PROPERTY_CORE_POOL},
+     * {@link #PROPERTY_MAX_POOL}, {@link #PROPERTY_KEEP_ALIVE} and
+     * {@link #PROPERTY_QUEUE}.
+     * @param config the configuration
+     * @return the bulkheads in the order of their names
+     * @throws IllegalArgumentException if a bulkhead configuration is not valid
+     */
+    public static List<Bulkhead> fromProperties(Properties config) {
+        Map<String,Properties> configs = new LinkedHashMap<String,Properties>();
+        if(config != null){
+            for(Enumeration<?> keys = config.propertyNames(); keys.hasMoreElements();){
+                String key = keys.nextElement().toString();
+                if(key.startsWith(PROPERTY_PREFIX)){
+                    int sep = key.lastIndexOf('.');
+                    if(sep <= PROPERTY_PREFIX.length()){
+                        throw new IllegalArgumentException("Invalid bulkhead property " + key);
+                    }
+                    String name = key.substring(PROPERTY_PREFIX.length(), sep);
+                    Properties props = configs.get(name);
+                    if(props == null){
+                        props = new Properties();
+                        configs.put(name, props);
+                    }
+                    props.setProperty(key.substring(sep + 1), config.getProperty(key));
+                }
+            }
+        }
+        List<String> names = new ArrayList<String>(configs.keySet());
+        Collections.sort(names);
+        List<Bulkhead> bulkheads = new ArrayList<Bulkhead>(names.size());
+        for(String name : names){
+            Properties props = configs.get(name);
+            String types = props.getProperty(PROPERTY_TYPES);
+            if(types == null){
+                throw new IllegalArgumentException("Missing property " + PROPERTY_PREFIX
+                        + name + '.' + PROPERTY_TYPES);
+            }
+            try {
+                bulkheads.add(new Bulkhead(name, parseTypes(types),
+                        Integer.parseInt(props.getProperty(PROPERTY_CORE_POOL,
+                                String.valueOf(Any23Transformer.CORE_POOL_SIZE))),
+                        Integer.parseInt(props.getProperty(PROPERTY_MAX_POOL,
+                                String.valueOf(Any23Transformer.MAX_POOL_SIZE))),
+                        Long.parseLong(props.getProperty(PROPERTY_KEEP_ALIVE,
+                                String.valueOf(Any23Transformer.KEEP_ALIVE_TIME))),
+                        Integer.parseInt(props.getProperty(PROPERTY_QUEUE, "0"))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in configuration "
+                        + "of bulkhead " + name, e);
+            }
+        }
+        return bulkheads;
+    }
+
+    private static Set<MimeType> parseTypes(String types) {
+        Set<MimeType> parsed = new LinkedHashSet<MimeType>();
+        for(String type : types.split(",")){
+            type = type.trim();
+            if(!type.isEmpty()){
+                try {
+                    parsed.add(new MimeType(type));
+                } catch (MimeTypeParseException e) {
+                    throw new IllegalArgumentException("Invalid content type '"
+                            + type + "'", e);
+                }
+            }
+        }
+        if(parsed.isEmpty()){
+            throw new IllegalArgumentException("A bulkhead MUST define at least a single type");
+        }
+        return parsed;
+    }
+
+    /**
+     * Implemented by jobs that report what a run processed so that runs not
+     * processing the job (e.g. parking it) and the size of the processed 
+     * data can be considered when measuring the latency. Other jobs are 
+     * measured as processing no data.
+     */
+    public interface MeasuredJob extends Runnable {
+
+        /**
+         * The length of the data processed by the last run. Called by the
+         * thread that ran the job after it returned.
+         * @return the length in bytes or a negative value if the run did
+         * not process the job
+         */
+        long getProcessedLength();
+    }
+
+    /**
+     * Records the queue wait and processing time of a job
+     */
+    private class TimedJob implements Runnable {
+
+        private final Runnable job;
+        private final long queued = System.nanoTime();
+
+        TimedJob(Runnable job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            waitTime.addAndGet(start - queued);
+            try {
+                job.run();
+            } finally {
+                long time = System.nanoTime() - start;
+                long length = job instanceof MeasuredJob ? 
+                        ((MeasuredJob)job).getProcessedLength() : 0;
+                if(length >= 0){
+                    measuredTime.addAndGet(time);
+                    measuredLength.addAndGet(length);
+                    measured.incrementAndGet();
+                }
+                processingTime.addAndGet(time);
+                processed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package eu.fusepool.transformer.any23;
+
+/**
+ * JMX interface exposing the configuration and metrics of a {@link Bulkhead}
+ */
+public interface BulkheadMBean {
+
+    /**
+     * The name of the bulkhead
+     */
+    String getName();
+
+    /**
+     * The content types processed by the bulkhead
+     */
+    String getTypes();
+
+    int getCorePoolSize();
+
+    int getMaxPoolSize();
+
+    /**
+     * The capacity of the queue (<code>0</code> for no queue)
+     */
+    int getQueueCapacity();
+
+    /**
+     * The number of threads currently processing jobs
+     */
+    int getActiveCount();
+
+    /**
+     * The current number of threads in the pool
+     */
+    int getPoolSize();
+
+    /**
+     * The number of jobs currently waiting in the queue
+     */
+    int getQueueSize();
+
+    /**
+     * The number of jobs accepted by the bulkhead
+     */
+    long getSubmittedCount();
+
+    /**
+     * The number of jobs rejected by the bulkhead
+     */
+    long getRejectedCount();
+
+    /**
+     * The number of completed jobs
+     */
+    long getCompletedCount();
+
+    /**
+     * The current concurrency limit (maximum number of threads)
+     */
+    int getLimit();
+
+    /**
+     * The number of jobs processed since the bulkhead was created
+     */
+    long getProcessedCount();
+
+    /**
+     * The total time jobs waited in the queue in milliseconds
+     */
+    long getTotalWaitTime();
+
+    /**
+     * The total time used to process jobs in milliseconds
+     */
+    long getTotalProcessingTime();
+
+}
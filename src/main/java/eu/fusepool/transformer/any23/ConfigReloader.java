@@ -0,0 +1,148 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reloads the configuration of an {@link Any23Transformer} from a properties
+ * file. The file is watched for changes (see {@link #start()}) and can also
+ * be reloaded explicitly (e.g. by <code>POST /admin/reload</code>).<p>
+ * Invalid configurations are logged and the current configuration stays
+ * active.
+ */
+public class ConfigReloader implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Changes are collected for this time before the file is reloaded as
+     * editors often write files in several steps
+     */
+    private static final long SETTLE_TIME = 250L;
+
+    private final File file;
+    private final Any23Transformer transformer;
+    private WatchService watchService;
+    private Thread watcher;
+
+    /**
+     * @param file the configuration file
+     * @param transformer the transformer
+     */
+    public ConfigReloader(File file, Any23Transformer transformer) {
+        this.file = file.getAbsoluteFile();
+        this.transformer = transformer;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the configuration file and reloads the configuration of the 
+     * transformer
+     * @throws IOException if the file can not be read
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public synchronized void reload() throws IOException {
+        log.info("> reload configuration from {}", file);
+        Properties config = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            config.load(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        transformer.reload(config);
+    }
+
+    /**
+     * Starts watching the configuration file for changes
+     * @throws IOException if the file can not be watched
+     */
+    public synchronized void start() throws IOException {
+        if(watcher != null){
+            return;
+        }
+        final Path dir = file.getParentFile().toPath();
+        final Path name = file.toPath().getFileName();
+        watchService = FileSystems.getDefault().newWatchService();
+        //editors often replace files so also listen to created files
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY, 
+                StandardWatchEventKinds.ENTRY_CREATE);
+        final WatchService service = watchService;
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true){
+                        WatchKey key = service.take();
+                        boolean changed = pollChanges(key, name);
+                        //collect further changes
+                        while((key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null){
+                            changed = pollChanges(key, name) || changed;
+                        }
+                        if(changed && file.isFile()){
+                            try {
+                                reload();
+                            } catch (IOException e) {
+                                log.warn("Unable to read configuration file " + file, e);
+                            } catch (RuntimeException e) {
+                                log.warn("Unable to reload configuration from " + file
+                                        + " (message: " + e.getMessage() + ")", e);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ClosedWatchServiceException e) {
+                    //closed
+                }
+                log.debug(" - stopped watching {}", file);
+            }
+        }, "any23-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("> watch configuration file {}", file);
+    }
+
+    private boolean pollChanges(WatchKey key, Path name) {
+        boolean changed = false;
+        for(WatchEvent<?> event : key.pollEvents()){
+            if(name.equals(event.context())){
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Stops watching the configuration file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(watcher != null){
+            watchService.close();
+            watcher.interrupt();
+            watcher = null;
+            watchService = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.SingleXZInputStream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * The <code>Content-Encoding</code>s supported for request bodies. Encoded
+ * data are spooled as-is and only decoded when read by Any23.
+ */
+enum ContentEncoding {
+
+    IDENTITY("identity"),
+    GZIP("gzip", "x-gzip"),
+    DEFLATE("deflate"),
+    XZ("xz"),
+    ZSTD("zstd");
+
+    private final String[] names;
+
+    private ContentEncoding(String...names) {
+        this.names = names;
+    }
+
+    /**
+     * The name as used in the <code>Content-Encoding</code> header
+     */
+    public String getName() {
+        return names[0];
+    }
+
+    /**
+     * Parses the value of a <code>Content-Encoding</code> header
+     * @param header the header value or <code>null</code>
+     * @return the encoding ({@link #IDENTITY} for <code>null</code>) or 
+     * <code>null</code> if the encoding is not supported (including 
+     * multiple encodings)
+     */
+    public static ContentEncoding parse(String header) {
+        if(header == null){
+            return IDENTITY;
+        }
+        String name = header.trim().toLowerCase(Locale.ROOT);
+        if(name.isEmpty()){
+            return IDENTITY;
+        }
+        for(ContentEncoding encoding : values()){
+            for(String n : encoding.names){
+                if(n.equals(name)){
+                    return encoding;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wraps the parsed stream with a decoder for this encoding
+     * @param in the encoded stream
+     * @return the decoded stream
+     * @throws IOException if the stream is not valid for this encoding
+     */
+    public InputStream decode(InputStream in) throws IOException {
+        return decode(in, null);
+    }
+
+    /**
+     * Wraps the parsed stream with a decoder for this encoding
+     * @param in the encoded stream
+     * @param cache the cache for the arrays of {@link #XZ} decoders (e.g. a 
+     * {@link BufferPool}) or <code>null</code> for the default cache of the
+     * XZ library
+     * @return the decoded stream
+     * @throws IOException if the stream is not valid for this encoding
+     */
+    public InputStream decode(InputStream in, ArrayCache cache) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in);
+            case DEFLATE:
+                return inflate(in);
+            case XZ:
+                return new SingleXZInputStream(in, BufferPool.orDefault(cache));
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Reads the length of the decoded data from the metadata of the parsed
+     * encoded file without decoding it. Supported for {@link #GZIP} (the
+     * <code>ISIZE</code> of the trailer - modulo 2^32 and of the last member
+     * only), {@link #XZ} (the index) and {@link #ZSTD} (the frame header if
+     * it contains the content size).
+     * @param file the file with the encoded data
+     * @return the length of the decoded data or <code>-1</code> if not known
+     * @throws IOException on any error while reading the file
+     */
+    public long getDecodedLength(File file) throws IOException {
+        return getDecodedLength(file, null);
+    }
+
+    /**
+     * Reads the length of the decoded data from the metadata of the parsed
+     * encoded file without decoding it (see {@link #getDecodedLength(File)}).
+     * @param file the file with the encoded data
+     * @param cache the cache for the arrays used to read the {@link #XZ}
+     * index or <code>null</code> for the default cache of the XZ library
+     * @return the length of the decoded data or <code>-1</code> if not known
+     * @throws IOException on any error while reading the file
+     */
+    public long getDecodedLength(File file, ArrayCache cache) throws IOException {
+        switch (this) {
+            case IDENTITY:
+                return file.length();
+            case GZIP:
+                if(file.length() < 18){ //min size of a gzip member
+                    return -1;
+                }
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.seek(file.length() - 4);
+                    byte[] isize = new byte[4];
+                    raf.readFully(isize);
+                    return (isize[0] & 0xffL) | (isize[1] & 0xffL) << 8 |
+                            (isize[2] & 0xffL) << 16 | (isize[3] & 0xffL) << 24;
+                } finally {
+                    raf.close();
+                }
+            case XZ:
+                SeekableXZInputStream xz = new SeekableXZInputStream(
+                        new SeekableFileInputStream(file), BufferPool.orDefault(cache));
+                try {
+                    return xz.length();
+                } finally {
+                    xz.close();
+                }
+            case ZSTD:
+                byte[] header = new byte[18]; //ZSTD_FRAMEHEADERSIZE_MAX
+                InputStream in = new FileInputStream(file);
+                int read;
+                try {
+                    read = IOUtils.read(in, header);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+                long size = Zstd.decompressedSize(header, 0, read);
+                return size > 0 ? size : -1; //0 if unknown (or empty)
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * HTTP defines <code>deflate</code> as zlib wrapped data, but some
+     * clients send raw deflate data. So check for the zlib header.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int read = 0;
+        while(read < header.length){
+            int n = pin.read(header, read, header.length - read);
+            if(n < 0){
+                break;
+            }
+            read += n;
+        }
+        pin.unread(header, 0, read);
+        int cmf = header[0] & 0xff;
+        int flg = header[1] & 0xff;
+        boolean zlib = read == 2 && (cmf & 0x0f) == 8 && (cmf * 256 + flg) % 31 == 0;
+        return new InflaterInputStream(pin, new Inflater(!zlib));
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
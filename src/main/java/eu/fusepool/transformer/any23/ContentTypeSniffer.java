@@ -0,0 +1,491 @@
+package eu.fusepool.transformer.any23;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.activation.MimeType;
+
+/**
+ * Lightweight content-type sniffer that only looks at the first few kBytes of
+ * a document. It is used for requests without an explicit content type (see
+ * {@link Any23Transformer#BINARY}) so that the type can be detected while the
+ * request body is spooled to the tmp file instead of reading (and decompressing)
+ * the whole document again for the Tika based detection of Any23.<p>
+ * Supported are HTML/XHTML, RDF/XML, Turtle, N-Triples/N-Quads, JSON-LD and
+ * CSV. If none of those formats is recognised <code>null</code> is returned
+ * and the detection is left to Any23.
+ */
+final class ContentTypeSniffer {
+
+    /**
+     * The number of bytes at the beginning of a document used for sniffing
+     */
+    public static final int SNIFF_LENGTH = 4096;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset UTF16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+
+    private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private static final String XHTML_NS = "http://www.w3.org/1999/xhtml";
+
+    /**
+     * The maximum number of lines used by line based formats
+     */
+    private static final int MAX_LINES = 20;
+
+    private static final char[] CSV_SEPARATORS = new char[]{',',';','\t','|'};
+
+    private ContentTypeSniffer() {/* no instances */}
+
+    /**
+     * Sniffs the content type of the parsed document prefix
+     * @param data the first bytes of the document
+     * @param len the number of valid bytes in data
+     * @param complete if the parsed data represent the whole document. If
+     * <code>false</code> the last (incomplete) line is ignored by line based
+     * formats.
+     * @return the detected type or <code>null</code> if not recognised
+     */
+    public static MimeType sniff(byte[] data, int len, boolean complete) {
+        if(data == null || len <= 0){
+            return null;
+        }
+        String content = decode(data, len);
+        int start = skipWhitespace(content, 0);
+        if(start >= content.length()){
+            return null;
+        }
+        char first = content.charAt(start);
+        if(first == '<'){
+            MimeType type = sniffMarkup(content, start);
+            if(type != null){
+                return type;
+            } //else could still be N-Triples/N-Quads or Turtle
+        } else if(first == '{' || first == '['){
+            return sniffJsonLd(content, start);
+        }
+        List<String> lines = getLines(content, start, complete);
+        if(lines.isEmpty()){
+            return null;
+        }
+        if(isTurtle(lines)){
+            return Any23Transformer.TURTLE;
+        }
+        MimeType type = sniffNTriples(lines);
+        if(type != null){
+            return type;
+        }
+        if(first != '<' && isCsv(lines)){
+            return Any23Transformer.CSV;
+        }
+        return null;
+    }
+
+    /**
+     * Sniffs the charset of the parsed document prefix. This considers (in
+     * that order) a BOM, the encoding of the XML declaration and the charset
+     * of an HTML <code>meta</code> element. If none of those is present the
+     * data are validated as UTF-8.<p>
+     * NOTE: This is only intended to be used if no charset was declared for
+     * the document.
+     * @param data the first bytes of the document
+     * @param len the number of valid bytes in data
+     * @param complete if the parsed data represent the whole document
+     * @return the name of the charset or <code>null</code> if the charset
+     * could not be determined or the declared charset is not supported.
+     */
+    public static String sniffCharset(byte[] data, int len, boolean complete) {
+        if(data == null || len <= 0){
+            return null;
+        }
+        if(len >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB
+                && (data[2] & 0xFF) == 0xBF){
+            return UTF8.name();
+        } else if(len >= 2 && (data[0] & 0xFF) == 0xFE && (data[1] & 0xFF) == 0xFF){
+            return UTF16BE.name();
+        } else if(len >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xFE){
+            return UTF16LE.name();
+        }
+        String content = new String(data, 0, len, ISO_8859_1);
+        int start = skipWhitespace(content, 0);
+        if(content.startsWith("<?xml", start)){
+            int end = content.indexOf("?>", start);
+            String decl = end < 0 ? content.substring(start) : content.substring(start, end);
+            String encoding = getAttributeValue(decl, "encoding");
+            //XML without encoding declaration is UTF-8
+            return encoding != null ? supported(encoding) : UTF8.name();
+        }
+        String lower = content.toLowerCase(Locale.ROOT);
+        for(int meta = lower.indexOf("<meta"); meta >= 0; meta = lower.indexOf("<meta", meta + 5)){
+            int end = lower.indexOf('>', meta);
+            if(end < 0){
+                break;
+            }
+            String tag = lower.substring(meta, end);
+            int charset = tag.indexOf("charset=");
+            if(charset >= 0){
+                int valueStart = charset + 8;
+                while(valueStart < tag.length() && (tag.charAt(valueStart) == '"' 
+                        || tag.charAt(valueStart) == '\'')){
+                    valueStart++;
+                }
+                int valueEnd = valueStart;
+                while(valueEnd < tag.length() && isCharsetChar(tag.charAt(valueEnd))){
+                    valueEnd++;
+                }
+                if(valueEnd > valueStart){
+                    return supported(content.substring(meta + valueStart, meta + valueEnd));
+                }
+            }
+        }
+        return isUtf8(data, len, complete) ? UTF8.name() : null;
+    }
+
+    /**
+     * Checks that a declared charset is supported by this JVM
+     * @return the charset or <code>null</code> if not supported
+     */
+    private static String supported(String charset) {
+        try {
+            return Charset.isSupported(charset) ? charset : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
+    private static boolean isCharsetChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' || c == ':';
+    }
+
+    private static String getAttributeValue(String tag, String attribute) {
+        int index = tag.indexOf(attribute + '=');
+        if(index < 0){
+            return null;
+        }
+        index = index + attribute.length() + 1;
+        if(index >= tag.length()){
+            return null;
+        }
+        char quote = tag.charAt(index);
+        if(quote != '"' && quote != '\''){
+            return null;
+        }
+        int end = tag.indexOf(quote, index + 1);
+        return end < 0 ? null : tag.substring(index + 1, end);
+    }
+
+    /**
+     * Validates that the parsed bytes are a valid UTF-8 sequence
+     * @param complete if <code>false</code> an incomplete multi byte sequence
+     * at the end of the data is accepted
+     */
+    private static boolean isUtf8(byte[] data, int len, boolean complete) {
+        int i = 0;
+        while(i < len){
+            int b = data[i] & 0xFF;
+            int following;
+            if(b < 0x80){
+                following = 0;
+            } else if(b >= 0xC2 && b <= 0xDF){
+                following = 1;
+            } else if(b >= 0xE0 && b <= 0xEF){
+                following = 2;
+            } else if(b >= 0xF0 && b <= 0xF4){
+                following = 3;
+            } else {
+                return false;
+            }
+            if(i + following >= len){ //incomplete sequence at the end
+                return !complete;
+            }
+            for(int j = 1; j <= following; j++){
+                if((data[i + j] & 0xC0) != 0x80){
+                    return false;
+                }
+            }
+            i += following + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the parsed bytes by considering an optional BOM. If no BOM is
+     * present ISO-8859-1 is used as this preserves all bytes and all markers
+     * relevant for sniffing are ASCII.
+     */
+    private static String decode(byte[] data, int len) {
+        if(len >= 3 && (data[0] & 0xFF) == 0xEF && (data[1] & 0xFF) == 0xBB
+                && (data[2] & 0xFF) == 0xBF){
+            return new String(data, 3, len - 3, UTF8);
+        } else if(len >= 2 && (data[0] & 0xFF) == 0xFE && (data[1] & 0xFF) == 0xFF){
+            return new String(data, 2, (len - 2) & ~1, UTF16BE);
+        } else if(len >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xFE){
+            return new String(data, 2, (len - 2) & ~1, UTF16LE);
+        } else {
+            return new String(data, 0, len, ISO_8859_1);
+        }
+    }
+
+    private static int skipWhitespace(String content, int index) {
+        while(index < content.length() && Character.isWhitespace(content.charAt(index))){
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Sniffs XML/HTML content by looking at the document type declaration
+     * and the root element.
+     */
+    private static MimeType sniffMarkup(String content, int index) {
+        boolean xmlDecl = false;
+        while(index < content.length() && content.charAt(index) == '<'){
+            if(content.startsWith("<?", index)){
+                xmlDecl = xmlDecl || content.startsWith("<?xml", index);
+                index = content.indexOf("?>", index);
+                if(index < 0){
+                    return null;
+                }
+                index = skipWhitespace(content, index + 2);
+            } else if(content.startsWith("<!--", index)){
+                index = content.indexOf("-->", index);
+                if(index < 0){
+                    return null;
+                }
+                index = skipWhitespace(content, index + 3);
+            } else if(content.regionMatches(true, index, "<!doctype", 0, 9)){
+                int nameStart = skipWhitespace(content, index + 9);
+                String name = readName(content, nameStart);
+                int end = content.indexOf('>', nameStart);
+                int subset = content.indexOf('[', nameStart);
+                if(subset >= 0 && subset < end){ //internal DTD subset
+                    int subsetEnd = content.indexOf(']', subset);
+                    end = subsetEnd < 0 ? -1 : content.indexOf('>', subsetEnd);
+                }
+                if("html".equalsIgnoreCase(name)){
+                    return xmlDecl || (end > 0 && content.substring(nameStart, end)
+                            .toUpperCase(Locale.ROOT).contains("XHTML")) ?
+                                    Any23Transformer.XHTML : Any23Transformer.HTML;
+                }
+                if(end < 0){
+                    return null;
+                }
+                index = skipWhitespace(content, end + 1);
+            } else { //the root element
+                String name = readName(content, index + 1);
+                if(name.isEmpty()){
+                    return null;
+                }
+                int sep = name.indexOf(':');
+                String localName = sep < 0 ? name : name.substring(sep + 1);
+                int end = content.indexOf('>', index);
+                String tag = end < 0 ? content.substring(index) : content.substring(index, end);
+                if("RDF".equals(localName) && (sep < 0 || tag.contains(RDF_NS))){
+                    return Any23Transformer.RDF_XML;
+                }
+                if("html".equalsIgnoreCase(localName)){
+                    return xmlDecl || tag.contains(XHTML_NS) ?
+                            Any23Transformer.XHTML : Any23Transformer.HTML;
+                }
+                if(!xmlDecl && isHtmlElement(localName)){
+                    return Any23Transformer.HTML;
+                }
+                return null; //some other XML format
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHtmlElement(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return "head".equals(lower) || "body".equals(lower) || "title".equals(lower)
+                || "meta".equals(lower) || "div".equals(lower) || "p".equals(lower);
+    }
+
+    private static String readName(String content, int index) {
+        int end = index;
+        while(end < content.length()){
+            char c = content.charAt(end);
+            if(Character.isLetterOrDigit(c) || c == ':' || c == '_' || c == '-' || c == '.'){
+                end++;
+            } else {
+                break;
+            }
+        }
+        return content.substring(index, end);
+    }
+
+    private static MimeType sniffJsonLd(String content, int index) {
+        //JSON-LD documents use keywords such as "@context" or "@id" near
+        //the beginning. Plain JSON is not supported by Any23
+        if(content.indexOf("\"@context\"", index) >= 0 || content.indexOf("\"@id\"", index) >= 0
+                || content.indexOf("\"@graph\"", index) >= 0){
+            return Any23Transformer.JSON_LD;
+        }
+        return null;
+    }
+
+    /**
+     * Splits the parsed content in lines. Empty lines are skipped and
+     * a maximum of {@link #MAX_LINES} are returned.
+     */
+    private static List<String> getLines(String content, int index, boolean complete) {
+        List<String> lines = new ArrayList<String>();
+        while(index < content.length() && lines.size() < MAX_LINES){
+            int end = index;
+            while(end < content.length() && content.charAt(end) != '\n' && content.charAt(end) != '\r'){
+                end++;
+            }
+            if(end >= content.length() && !complete){
+                break; //ignore the incomplete last line
+            }
+            String line = content.substring(index, end).trim();
+            if(!line.isEmpty()){
+                lines.add(line);
+            }
+            index = end + 1;
+        }
+        return lines;
+    }
+
+    private static boolean isTurtle(List<String> lines) {
+        for(String line : lines){
+            if(line.charAt(0) == '#'){
+                continue; //skip comments
+            }
+            String lower = line.toLowerCase(Locale.ROOT);
+            return lower.startsWith("@prefix") || lower.startsWith("@base") ||
+                    lower.startsWith("prefix ") || lower.startsWith("base ");
+        }
+        return false;
+    }
+
+    /**
+     * Checks if all (complete) lines are valid N-Triples or N-Quads statements
+     * @return {@link Any23Transformer#N_TRIPLE}, {@link Any23Transformer#N_QUADS}
+     * or <code>null</code> if the lines are not valid statements
+     */
+    private static MimeType sniffNTriples(List<String> lines) {
+        boolean quads = false;
+        int statements = 0;
+        for(String line : lines){
+            if(line.charAt(0) == '#'){
+                continue;
+            }
+            int terms = countTerms(line);
+            if(terms == 4){
+                quads = true;
+            } else if(terms != 3){
+                return null;
+            }
+            statements++;
+        }
+        if(statements == 0){
+            return null;
+        }
+        return quads ? Any23Transformer.N_QUADS : Any23Transformer.N_TRIPLE;
+    }
+
+    /**
+     * Counts the RDF terms of an N-Triples/N-Quads line
+     * @return the number of terms or <code>-1</code> if the line is not
+     * a valid statement
+     */
+    private static int countTerms(String line) {
+        int terms = 0;
+        int i = 0;
+        int len = line.length();
+        while(i < len){
+            char c = line.charAt(i);
+            if(c == '<'){
+                int end = line.indexOf('>', i);
+                int space = line.indexOf(' ', i);
+                if(end < 0 || (space >= 0 && space < end)){
+                    return -1; //no IRI
+                }
+                i = end + 1;
+            } else if(c == '_' && i + 1 < len && line.charAt(i + 1) == ':'){
+                i += 2;
+                while(i < len && !Character.isWhitespace(line.charAt(i))){
+                    i++;
+                }
+            } else if(c == '"' && terms == 2){ //literals are only allowed as object
+                i++;
+                while(i < len && line.charAt(i) != '"'){
+                    i += line.charAt(i) == '\\' ? 2 : 1;
+                }
+                if(i >= len){
+                    return -1;
+                }
+                i++;
+                if(line.startsWith("^^<", i)){
+                    int end = line.indexOf('>', i);
+                    if(end < 0){
+                        return -1;
+                    }
+                    i = end + 1;
+                } else if(i < len && line.charAt(i) == '@'){
+                    while(i < len && !Character.isWhitespace(line.charAt(i)) && line.charAt(i) != '.'){
+                        i++;
+                    }
+                }
+            } else if(c == '.'){
+                i = skipWhitespace(line, i + 1);
+                return i >= len || line.charAt(i) == '#' ? terms : -1;
+            } else {
+                return -1;
+            }
+            terms++;
+            i = skipWhitespace(line, i);
+        }
+        return -1; //missing '.'
+    }
+
+    /**
+     * Checks if the parsed lines look like CSV data. This requires at least
+     * two lines with all lines containing a common separator and no control
+     * characters.
+     */
+    private static boolean isCsv(List<String> lines) {
+        if(lines.size() < 2){
+            return false;
+        }
+        for(String line : lines){
+            for(int i = 0; i < line.length(); i++){
+                char c = line.charAt(i);
+                if(c < 0x20 && c != '\t'){
+                    return false; //binary data
+                }
+            }
+        }
+        for(char sep : CSV_SEPARATORS){
+            boolean found = true;
+            for(int i = 0; found && i < lines.size(); i++){
+                found = countSeparators(lines.get(i), sep) > 0;
+            }
+            if(found){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countSeparators(String line, char sep) {
+        int count = 0;
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if(c == '"'){
+                quoted = !quoted;
+            } else if(c == sep && !quoted){
+                count++;
+            }
+        }
+        return count;
+    }
+}
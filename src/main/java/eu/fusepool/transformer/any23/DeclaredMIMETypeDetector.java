@@ -0,0 +1,85 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.activation.MimeType;
+
+import org.apache.any23.mime.MIMEType;
+import org.apache.any23.mime.MIMETypeDetector;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link MIMETypeDetector} that trusts the content type of a document if it
+ * is one of the parsed well known types. This is the case for all requests
+ * with an explicit content type and for <code>application/octet-stream</code>
+ * requests where the {@link ContentTypeSniffer} was able to detect the type
+ * while spooling the request body. Trusted types Any23 registers its
+ * extractors for under a different name are mapped to that name.<p>
+ * Only for other types the detection is delegated to the parsed detector
+ * (typically the Tika based detector used by Any23). The time needed for the
+ * detection is recorded as span of the {@link JobTrace#current() current}
+ * {@link JobTrace}.
+ */
+class DeclaredMIMETypeDetector implements MIMETypeDetector {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Set<String> trusted;
+    private final Map<String,String> aliases;
+    private final MIMETypeDetector fallback;
+
+    /**
+     * Creates a detector
+     * @param trusted the trusted content types
+     * @param aliases trusted content types that are passed to Any23 with an
+     * other name (e.g. <code>text/rdf+nt</code> as <code>text/nt</code> as
+     * the Any23 extractors are only registered for the latter). 
+     * <code>null</code> if none
+     * @param fallback the detector used for other content types
+     */
+    public DeclaredMIMETypeDetector(Set<MimeType> trusted, Map<String,String> aliases,
+            MIMETypeDetector fallback) {
+        assert fallback != null;
+        Set<String> types = new HashSet<String>();
+        if(trusted != null){
+            for(MimeType type : trusted){
+                types.add(type.getBaseType());
+            }
+        }
+        this.trusted = Collections.unmodifiableSet(types);
+        this.aliases = aliases == null ? Collections.<String,String>emptyMap() : aliases;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public MIMEType guessMIMEType(String fileName, InputStream input,
+            MIMEType mimeTypeFromMetadata) {
+        if(mimeTypeFromMetadata != null &&
+                trusted.contains(mimeTypeFromMetadata.getFullType())){
+            log.trace(" - use declared type {}", mimeTypeFromMetadata);
+            //Any23 opens the stream for the detection. As we do not need
+            //it we need to close it.
+            IOUtils.closeQuietly(input);
+            String alias = aliases.get(mimeTypeFromMetadata.getFullType());
+            return MIMEType.parse(alias == null ? mimeTypeFromMetadata.getFullType() : alias);
+        } else {
+            log.debug(" - detect type of {} (declared: {})", fileName, mimeTypeFromMetadata);
+            long start = System.nanoTime();
+            try {
+                return fallback.guessMIMEType(fileName, input, mimeTypeFromMetadata);
+            } finally {
+                JobTrace trace = JobTrace.current();
+                if(trace != null){
+                    trace.span(JobTrace.DETECTION, start, System.nanoTime());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.any23.extractor.ExtractionContext;
+import org.apache.any23.extractor.ExtractionException;
+import org.apache.any23.extractor.ExtractionParameters;
+import org.apache.any23.extractor.ExtractionResultImpl;
+import org.apache.any23.extractor.Extractor.ContentExtractor;
+import org.apache.any23.extractor.ExtractorFactory;
+import org.apache.any23.extractor.ExtractorGroup;
+import org.apache.any23.source.DocumentSource;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.any23.writer.TripleHandlerException;
+import org.apache.commons.io.IOUtils;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * Converts RDF serializations by directly running a single Any23
+ * {@link ContentExtractor} (see {@link Any23Transformer#setDirectConversion(boolean)}).
+ * This does the same as Any23 for a document with a single matching extractor
+ * but without the content type detection. The data of
+ * {@link TmpFileDocumentSource}s are streamed from the spooled file.<p>
+ * Instances hold the factories of the extractor group of a configuration.
+ */
+final class DirectConversion {
+
+    /**
+     * RDF serializations that are converted by directly running a single
+     * Any23 extractor. Maps the base content type to the name of the
+     * extractor. Extractors are looked up by name as Any23 does not register
+     * them for all of those types (e.g. <code>rdf-nt</code> is not registered
+     * for <code>text/rdf+nt</code>). N3 is parsed by <code>rdf-turtle</code>
+     * as Any23 has no N3 extractor.
+     */
+    private static final Map<String,String> EXTRACTORS;
+
+    static {
+        Map<String,String> extractors = new HashMap<String,String>();
+        extractors.put(Any23Transformer.RDF_XML.getBaseType(), "rdf-xml");
+        extractors.put(Any23Transformer.TURTLE.getBaseType(), "rdf-turtle");
+        extractors.put(Any23Transformer.N3.getBaseType(), "rdf-turtle");
+        extractors.put(Any23Transformer.N_TRIPLE.getBaseType(), "rdf-nt");
+        extractors.put(Any23Transformer.N_TRIPLE2.getBaseType(), "rdf-nt");
+        extractors.put(Any23Transformer.N_QUADS.getBaseType(), "rdf-nq");
+        extractors.put(Any23Transformer.JSON_LD.getBaseType(), "rdf-jsonld");
+        EXTRACTORS = Collections.unmodifiableMap(extractors);
+    }
+
+    /**
+     * The names of the Any23 extractors that stream RDF serializations with
+     * constant memory. The <code>rdf-jsonld</code> extractor is not included
+     * as it needs to load the whole document.
+     */
+    private static final Set<String> STREAMING_EXTRACTORS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList("rdf-xml", "rdf-turtle", "rdf-nt", "rdf-nq")));
+
+    /**
+     * The factories of the extractors by base content type
+     */
+    private final Map<String,ExtractorFactory<?>> factories;
+
+    /**
+     * Looks up the extractors used for the direct conversion in the parsed group
+     * @param extractors the extractors used by Any23
+     * @throws IllegalStateException if an extractor is missing or is not a
+     * {@link ContentExtractor}
+     */
+    DirectConversion(ExtractorGroup extractors) {
+        Map<String,ExtractorFactory<?>> byName = new HashMap<String,ExtractorFactory<?>>();
+        for(ExtractorFactory<?> factory : extractors){
+            byName.put(factory.getExtractorName(), factory);
+        }
+        Map<String,ExtractorFactory<?>> factories = new HashMap<String,ExtractorFactory<?>>();
+        for(Map.Entry<String,String> entry : EXTRACTORS.entrySet()){
+            ExtractorFactory<?> factory = byName.get(entry.getValue());
+            if(factory == null || !(factory.createExtractor() instanceof ContentExtractor)){
+                throw new IllegalStateException("No Any23 content extractor '"
+                        + entry.getValue() + "' for the direct conversion of "
+                        + entry.getKey() + " (available: " + byName.keySet() + ")");
+            }
+            factories.put(entry.getKey(), factory);
+        }
+        this.factories = factories;
+    }
+
+    /**
+     * The base content types converted directly
+     * @return the content types
+     */
+    Set<String> getTypes() {
+        return Collections.unmodifiableSet(factories.keySet());
+    }
+
+    /**
+     * The factory used to directly convert documents of the parsed type
+     * @param contentType the content type (parameters are ignored)
+     * @return the factory or <code>null</code> if documents of this type
+     * can not be converted directly
+     */
+    ExtractorFactory<?> getFactory(String contentType) {
+        return contentType == null ? null : factories.get(getBaseType(contentType));
+    }
+
+    /**
+     * If the extractor created by the parsed factory streams the data with
+     * constant memory
+     * @param factory the factory
+     * @return the streaming state
+     */
+    static boolean isStreaming(ExtractorFactory<?> factory) {
+        return factory != null && STREAMING_EXTRACTORS.contains(factory.getExtractorName());
+    }
+
+    /**
+     * Converts the parsed source by directly running the extractor created
+     * by the parsed factory.
+     * @param factory the factory of the extractor
+     * @param params the extraction parameters
+     * @param source the source
+     * @param handler the handler
+     * @throws IOException on any error while reading the source
+     * @throws ExtractionException on any error of the extractor
+     * @throws TripleHandlerException on any error of the handler
+     */
+    static void convert(ExtractorFactory<?> factory, ExtractionParameters params,
+            DocumentSource source, TripleHandler handler)
+                    throws IOException, ExtractionException, TripleHandlerException {
+        ContentExtractor extractor = (ContentExtractor)factory.createExtractor();
+        ExtractionContext context = new ExtractionContext(factory.getExtractorName(),
+                ValueFactoryImpl.getInstance().createURI(source.getDocumentURI()));
+        InputStream in = source instanceof TmpFileDocumentSource ?
+                ((TmpFileDocumentSource)source).openSinglePassStream() :
+                    source.openInputStream();
+        try {
+            handler.startDocument(context.getDocumentURI());
+            handler.setContentLength(source.getContentLength());
+            ExtractionResultImpl result = new ExtractionResultImpl(context, extractor, handler);
+            try {
+                extractor.run(params, context, in, result);
+            } finally {
+                result.close();
+            }
+            handler.endDocument(context.getDocumentURI());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static String getBaseType(String contentType) {
+        int idx = contentType.indexOf(';');
+        String baseType = (idx < 0 ? contentType : contentType.substring(0, idx)).trim();
+        return baseType.toLowerCase(Locale.ROOT);
+    }
+}
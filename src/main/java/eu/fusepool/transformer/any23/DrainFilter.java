@@ -0,0 +1,67 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Refuses new transformation requests (<code>POST</code>) while the 
+ * {@link Any23Transformer} is {@link Any23Transformer#isDraining() draining}.
+ * Requests are refused with a <code>503 Service Unavailable</code> and a
+ * <code>Retry-After</code> header before the request body is read. Other
+ * requests (e.g. fetching results) are processed as usual.
+ */
+public class DrainFilter implements Filter {
+
+    /**
+     * The default value of the <code>Retry-After</code> header in seconds
+     */
+    public static final int DEFAULT_RETRY_AFTER = 10;
+
+    private final Any23Transformer transformer;
+    private final int retryAfter;
+
+    public DrainFilter(Any23Transformer transformer) {
+        this(transformer, DEFAULT_RETRY_AFTER);
+    }
+
+    /**
+     * @param transformer the transformer
+     * @param retryAfter the value of the <code>Retry-After</code> header in seconds
+     */
+    public DrainFilter(Any23Transformer transformer, int retryAfter) {
+        this.transformer = transformer;
+        this.retryAfter = retryAfter;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if(transformer.isDraining() && request instanceof HttpServletRequest &&
+                "POST".equals(((HttpServletRequest)request).getMethod())){
+            HttpServletResponse resp = (HttpServletResponse)response;
+            resp.setHeader("Retry-After", String.valueOf(retryAfter));
+            //do not keep the connection as we do not read the request body
+            resp.setHeader("Connection", "close");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, 
+                    "The transformer is shutting down. Please retry the request.");
+        } else {
+            chain.doFilter(request, response);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
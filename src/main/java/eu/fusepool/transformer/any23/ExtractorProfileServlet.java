@@ -0,0 +1,44 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the {@link ExtractorProfiler#getSummary() summary} of the 
+ * {@link ExtractorProfiler} as JSON. A <code>DELETE</code> request resets
+ * the statistics. Resets are only accepted from the loopback interface.
+ */
+public class ExtractorProfileServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExtractorProfiler profiler;
+
+    public ExtractorProfileServlet(ExtractorProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        resp.setContentType("application/json;charset=UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.getWriter().write(profiler.getSummary());
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        if(!InetAddress.getByName(req.getRemoteAddr()).isLoopbackAddress()){
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        profiler.reset();
+        resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+}
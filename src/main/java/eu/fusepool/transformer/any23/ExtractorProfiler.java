@@ -0,0 +1,582 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import javax.management.ObjectName;
+
+import org.apache.any23.ExtractionReport;
+import org.apache.any23.extractor.ExtractionContext;
+import org.apache.any23.extractor.ExtractionException;
+import org.apache.any23.extractor.ExtractionParameters;
+import org.apache.any23.extractor.ExtractionResult;
+import org.apache.any23.extractor.Extractor;
+import org.apache.any23.extractor.Extractor.BlindExtractor;
+import org.apache.any23.extractor.Extractor.ContentExtractor;
+import org.apache.any23.extractor.Extractor.TagSoupDOMExtractor;
+import org.apache.any23.extractor.ExtractorDescription;
+import org.apache.any23.extractor.ExtractorFactory;
+import org.apache.any23.extractor.ExtractorGroup;
+import org.apache.any23.extractor.IssueReport.Issue;
+import org.apache.any23.extractor.IssueReport.IssueLevel;
+import org.apache.any23.mime.MIMEType;
+import org.apache.any23.rdf.Prefixes;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.any23.writer.TripleHandlerException;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.w3c.dom.Document;
+
+/**
+ * Records per format and extractor the wall-clock time, the number of
+ * emitted triples and the number of errors of the Any23 extractors. The
+ * format of a job is the content type detected by Any23 or - if not
+ * available - the content type declared by the client. Only types supported
+ * by an extractor of the profiled groups are used as format. All others are
+ * recorded as {@link #OTHER} so that clients can not create an unbounded
+ * number of entries. Extractor
+ * runs are also added as spans to the {@link JobTrace#current() current}
+ * {@link JobTrace}.<p>
+ * Extractors are profiled by wrapping the {@link ExtractorFactory factories}
+ * of the {@link ExtractorGroup} used by Any23 (see {@link #wrap(ExtractorGroup)}).
+ * Triples are counted by wrapping the {@link TripleHandler} of a job (see
+ * {@link Profile#wrap(TripleHandler)}). Errors are exceptions thrown by 
+ * extractors and issues of the level {@link IssueLevel#Error} or 
+ * {@link IssueLevel#Fatal} reported by Any23.<p>
+ * Statistics are exposed via JMX (see {@link ExtractorProfilerMBean}) and 
+ * by {@link #getSummary()}.
+ */
+public class ExtractorProfiler implements ExtractorProfilerMBean {
+
+    /**
+     * The format of jobs with a content type not supported by any extractor
+     */
+    public static final String OTHER = "other";
+
+    private final ConcurrentMap<String,ConcurrentMap<String,Stats>> stats =
+            new ConcurrentHashMap<String,ConcurrentMap<String,Stats>>();
+
+    /**
+     * The base types supported by the extractors of the wrapped groups
+     */
+    private final Set<String> supportedTypes =
+            Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    /**
+     * The profile of the job processed by the current thread
+     */
+    private final ThreadLocal<Profile> current = new ThreadLocal<Profile>();
+
+    private ObjectName objectName;
+
+    /**
+     * Registers the MBean
+     */
+    public synchronized void start() {
+        if(objectName == null){
+            objectName = MBeans.register(this, "ExtractorProfiler", "extractors");
+        }
+    }
+
+    /**
+     * Unregisters the MBean
+     */
+    public synchronized void stop() {
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * Wraps all factories of the parsed group so that the created extractors
+     * are profiled
+     * @param group the extractor group
+     * @return the group with the profiled extractors
+     */
+    public ExtractorGroup wrap(ExtractorGroup group) {
+        List<ExtractorFactory<?>> factories = new ArrayList<ExtractorFactory<?>>();
+        for(ExtractorFactory<?> factory : group){
+            factories.add(new ProfilingExtractorFactory(factory));
+            for(MIMEType type : factory.getSupportedMIMETypes()){
+                if(!type.isAnyMajorType() && !type.isAnySubtype()){
+                    supportedTypes.add(type.getFullType());
+                }
+            }
+        }
+        return new ExtractorGroup(factories);
+    }
+
+    /**
+     * Starts the profile of a job processed by the current thread. The profile
+     * MUST BE {@link Profile#finish(ExtractionReport) finished} by the same thread.
+     * @param contentType the content type of the processed data as declared
+     * by the client
+     * @return the profile
+     */
+    public Profile start(String contentType) {
+        Profile profile = new Profile(getBaseType(contentType));
+        current.set(profile);
+        return profile;
+    }
+
+    private Stats getStats(String format, String extractor) {
+        ConcurrentMap<String,Stats> typeStats = stats.get(format);
+        if(typeStats == null){
+            typeStats = new ConcurrentHashMap<String,Stats>();
+            ConcurrentMap<String,Stats> existing = stats.putIfAbsent(format, typeStats);
+            if(existing != null){
+                typeStats = existing;
+            }
+        }
+        Stats extractorStats = typeStats.get(extractor);
+        if(extractorStats == null){
+            extractorStats = new Stats();
+            Stats existing = typeStats.putIfAbsent(extractor, extractorStats);
+            if(existing != null){
+                extractorStats = existing;
+            }
+        }
+        return extractorStats;
+    }
+
+    /**
+     * The format the statistics of a job are recorded for
+     * @param detected the content type detected by Any23 or <code>null</code>
+     * if not available
+     * @param declared the base type declared by the client or <code>null</code>
+     * if not available
+     * @return the detected or declared type if supported by an extractor.
+     * Otherwise {@link #OTHER}
+     */
+    String getFormat(String detected, String declared) {
+        detected = getBaseType(detected);
+        if(detected != null && supportedTypes.contains(detected)){
+            return detected;
+        }
+        return declared != null && supportedTypes.contains(declared) ? declared : OTHER;
+    }
+
+    private static String getBaseType(String contentType) {
+        if(contentType == null){
+            return null;
+        }
+        try {
+            return new MimeType(contentType).getBaseType();
+        } catch (MimeTypeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The statistics per format and extractor as JSON object of the 
+     * form <code>{"{format}":{"{extractor}":{"invocations":n,"time":ms,
+     * "triples":n,"errors":n}}}</code>
+     */
+    @Override
+    public String getSummary() {
+        StringBuilder json = new StringBuilder("{");
+        boolean firstType = true;
+        for(Map.Entry<String,ConcurrentMap<String,Stats>> type : 
+                new TreeMap<String,ConcurrentMap<String,Stats>>(stats).entrySet()){
+            if(!firstType){
+                json.append(',');
+            }
+            firstType = false;
+            appendString(json, type.getKey()).append(":{");
+            boolean first = true;
+            for(Map.Entry<String,Stats> extractor : 
+                    new TreeMap<String,Stats>(type.getValue()).entrySet()){
+                if(!first){
+                    json.append(',');
+                }
+                first = false;
+                Stats s = extractor.getValue();
+                appendString(json, extractor.getKey()).append(":{\"invocations\":")
+                    .append(s.invocations.get()).append(",\"time\":")
+                    .append(TimeUnit.NANOSECONDS.toMillis(s.time.get()))
+                    .append(",\"triples\":").append(s.triples.get())
+                    .append(",\"errors\":").append(s.errors.get()).append('}');
+            }
+            json.append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder appendString(StringBuilder json, String value) {
+        json.append('"');
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\'){
+                json.append('\\').append(c);
+            } else if(c < 0x20){
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    @Override
+    public long getTotalTime() {
+        long time = 0;
+        for(Stats s : allStats()){
+            time += s.time.get();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(time);
+    }
+
+    @Override
+    public long getTotalTriples() {
+        long triples = 0;
+        for(Stats s : allStats()){
+            triples += s.triples.get();
+        }
+        return triples;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long errors = 0;
+        for(Stats s : allStats()){
+            errors += s.errors.get();
+        }
+        return errors;
+    }
+
+    private Collection<Stats> allStats() {
+        List<Stats> all = new ArrayList<Stats>();
+        for(ConcurrentMap<String,Stats> typeStats : stats.values()){
+            all.addAll(typeStats.values());
+        }
+        return all;
+    }
+
+    @Override
+    public void reset() {
+        stats.clear();
+    }
+
+    /**
+     * Statistics of an extractor for a format
+     */
+    private static class Stats {
+        final AtomicLong invocations = new AtomicLong();
+        final AtomicLong time = new AtomicLong();
+        final AtomicLong triples = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    /**
+     * Collects the statistics of a single job. Accessed by the thread 
+     * processing the job and - if extractors run in parallel (see 
+     * {@link ParallelExtraction}) - the threads the profile is
+     * {@link #attach() attached} to while they run extractors of the job.
+     * Extractors still running when the profile is {@link #finish(ExtractionReport)
+     * finished} (e.g. cancelled tasks of a {@link ParallelExtraction.Batch})
+     * are not recorded.
+     */
+    public class Profile {
+
+        /**
+         * The declared base type or <code>null</code> if not available
+         */
+        private final String contentType;
+        private final Map<String,long[]> extractors = new HashMap<String,long[]>();
+        /**
+         * Set by {@link #finish(ExtractionReport)}. Guarded by this profile
+         */
+        private boolean finished;
+
+        private static final int INVOCATIONS = 0;
+        private static final int TIME = 1;
+        private static final int TRIPLES = 2;
+        private static final int ERRORS = 3;
+
+        private Profile(String contentType) {
+            this.contentType = contentType;
+        }
+
+        /**
+         * Attaches this profile to the current thread so that extractors
+         * run by the thread are recorded for this job
+         */
+        void attach() {
+            current.set(this);
+        }
+
+        /**
+         * Detaches this profile from the current thread
+         */
+        void detach() {
+            if(current.get() == this){
+                current.remove();
+            }
+        }
+
+        private long[] get(String extractor) {
+            long[] values = extractors.get(extractor);
+            if(values == null){
+                values = new long[4];
+                extractors.put(extractor, values);
+            }
+            return values;
+        }
+
+        synchronized void extracted(String extractor, long nanos, boolean error) {
+            if(finished){
+                return;
+            }
+            long[] values = get(extractor);
+            values[INVOCATIONS]++;
+            values[TIME] += nanos;
+            if(error){
+                values[ERRORS]++;
+            }
+        }
+
+        synchronized void triple(String extractor) {
+            if(!finished){
+                get(extractor)[TRIPLES]++;
+            }
+        }
+
+        /**
+         * Wraps the parsed handler to count the triples emitted by extractors
+         * @param handler the handler
+         * @return the counting handler
+         */
+        public TripleHandler wrap(TripleHandler handler) {
+            return new CountingTripleHandler(this, handler);
+        }
+
+        /**
+         * Adds the statistics of this job to the statistics of the profiler
+         * @param report the extraction report used to get the detected
+         * content type and to count the issues of extractors or 
+         * <code>null</code> if the extraction failed
+         */
+        public synchronized void finish(ExtractionReport report) {
+            detach();
+            if(finished){
+                return;
+            }
+            finished = true;
+            String format = getFormat(report == null ? null : report.getDetectedMimeType(),
+                    contentType);
+            for(Map.Entry<String,long[]> entry : extractors.entrySet()){
+                String extractor = entry.getKey();
+                long[] values = entry.getValue();
+                long errors = values[ERRORS];
+                if(report != null){
+                    Collection<Issue> issues = report.getExtractorIssues(extractor);
+                    if(issues != null){
+                        for(Issue issue : issues){
+                            if(issue.getLevel() == IssueLevel.Error || 
+                                    issue.getLevel() == IssueLevel.Fatal){
+                                errors++;
+                            }
+                        }
+                    }
+                }
+                Stats s = getStats(format, extractor);
+                s.invocations.addAndGet(values[INVOCATIONS]);
+                s.time.addAndGet(values[TIME]);
+                s.triples.addAndGet(values[TRIPLES]);
+                s.errors.addAndGet(errors);
+            }
+        }
+    }
+
+    /**
+     * Counts the triples emitted per extractor
+     */
+    private static class CountingTripleHandler implements TripleHandler {
+
+        private final Profile profile;
+        private final TripleHandler delegate;
+
+        CountingTripleHandler(Profile profile, TripleHandler delegate) {
+            this.profile = profile;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void startDocument(URI documentURI) throws TripleHandlerException {
+            delegate.startDocument(documentURI);
+        }
+
+        @Override
+        public void openContext(ExtractionContext context) throws TripleHandlerException {
+            delegate.openContext(context);
+        }
+
+        @Override
+        public void receiveTriple(Resource s, URI p, Value o, URI g, ExtractionContext context)
+                throws TripleHandlerException {
+            profile.triple(context.getExtractorName());
+            delegate.receiveTriple(s, p, o, g, context);
+        }
+
+        @Override
+        public void receiveNamespace(String prefix, String uri, ExtractionContext context)
+                throws TripleHandlerException {
+            delegate.receiveNamespace(prefix, uri, context);
+        }
+
+        @Override
+        public void closeContext(ExtractionContext context) throws TripleHandlerException {
+            delegate.closeContext(context);
+        }
+
+        @Override
+        public void endDocument(URI documentURI) throws TripleHandlerException {
+            delegate.endDocument(documentURI);
+        }
+
+        @Override
+        public void setContentLength(long contentLength) {
+            delegate.setContentLength(contentLength);
+        }
+
+        @Override
+        public void close() throws TripleHandlerException {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Wraps the created extractors with profiling ones
+     */
+    private class ProfilingExtractorFactory implements ExtractorFactory<Extractor<?>> {
+
+        private final ExtractorFactory<?> delegate;
+
+        ProfilingExtractorFactory(ExtractorFactory<?> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getExtractorName() {
+            return delegate.getExtractorName();
+        }
+
+        @Override
+        public String getExtractorLabel() {
+            return delegate.getExtractorLabel();
+        }
+
+        @Override
+        public Prefixes getPrefixes() {
+            return delegate.getPrefixes();
+        }
+
+        @Override
+        public Extractor<?> createExtractor() {
+            Extractor<?> extractor = delegate.createExtractor();
+            if(extractor instanceof TagSoupDOMExtractor){
+                return new ProfilingTagSoupDOMExtractor((TagSoupDOMExtractor)extractor);
+            } else if(extractor instanceof ContentExtractor){
+                return new ProfilingContentExtractor((ContentExtractor)extractor);
+            } else if(extractor instanceof BlindExtractor){
+                return new ProfilingBlindExtractor((BlindExtractor)extractor);
+            } else { //unknown type
+                return extractor;
+            }
+        }
+
+        @Override
+        public Collection<MIMEType> getSupportedMIMETypes() {
+            return delegate.getSupportedMIMETypes();
+        }
+
+        @Override
+        public String getExampleInput() {
+            return delegate.getExampleInput();
+        }
+    }
+
+    /**
+     * Measures the time and the errors of extractor runs
+     */
+    private abstract class ProfilingExtractor<I> implements Extractor<I> {
+
+        private final Extractor<I> delegate;
+
+        ProfilingExtractor(Extractor<I> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run(ExtractionParameters extractionParameters, ExtractionContext context,
+                I in, ExtractionResult out) throws IOException, ExtractionException {
+            Profile profile = current.get();
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                delegate.run(extractionParameters, context, in, out);
+                success = true;
+            } finally {
+                long end = System.nanoTime();
+                if(profile != null){
+                    profile.extracted(context.getExtractorName(), end - start, !success);
+                }
+                JobTrace trace = JobTrace.current();
+                if(trace != null){
+                    trace.span(context.getExtractorName(), start, end);
+                }
+            }
+        }
+
+        @Override
+        public ExtractorDescription getDescription() {
+            return delegate.getDescription();
+        }
+    }
+
+    private class ProfilingBlindExtractor extends ProfilingExtractor<URI> 
+            implements BlindExtractor {
+
+        ProfilingBlindExtractor(BlindExtractor delegate) {
+            super(delegate);
+        }
+    }
+
+    private class ProfilingContentExtractor extends ProfilingExtractor<InputStream> 
+            implements ContentExtractor {
+
+        private final ContentExtractor delegate;
+
+        ProfilingContentExtractor(ContentExtractor delegate) {
+            super(delegate);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setStopAtFirstError(boolean stopAtFirstError) {
+            delegate.setStopAtFirstError(stopAtFirstError);
+        }
+    }
+
+    private class ProfilingTagSoupDOMExtractor extends ProfilingExtractor<Document> 
+            implements TagSoupDOMExtractor {
+
+        ProfilingTagSoupDOMExtractor(TagSoupDOMExtractor delegate) {
+            super(delegate);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package eu.fusepool.transformer.any23;
+
+/**
+ * JMX interface exposing the statistics of the {@link ExtractorProfiler}
+ */
+public interface ExtractorProfilerMBean {
+
+    /**
+     * The statistics per format and extractor as JSON
+     */
+    String getSummary();
+
+    /**
+     * The total time spent in extractors in milliseconds
+     */
+    long getTotalTime();
+
+    /**
+     * The total number of triples emitted by extractors
+     */
+    long getTotalTriples();
+
+    /**
+     * The total number of extractor errors
+     */
+    long getTotalErrors();
+
+    /**
+     * Resets all statistics
+     */
+    void reset();
+
+}
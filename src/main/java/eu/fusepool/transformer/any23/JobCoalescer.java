@@ -0,0 +1,137 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces identical submissions (see {@link Any23Transformer#setCoalescing(boolean)}).
+ * Running jobs are registered by a key built from the content hash, encoding,
+ * content type, charset and document URI of the spooled data, the version of
+ * the configuration and the requested filter. Jobs submitted with the key of
+ * a running job are attached to it as followers and get a copy of its result
+ * (see {@link #share(TmpFileEntity, TmpFileEntity)}) when it finishes.<p>
+ * NOTE: This class is not thread-safe. Callers MUST guard all calls by the
+ * same lock (the request lock of the {@link Any23Transformer}) so that no
+ * job can attach after the running job {@link #finished(String) finished}.
+ * @param <J> the type of the jobs
+ */
+final class JobCoalescer<J> {
+
+    private static final Logger log = LoggerFactory.getLogger(JobCoalescer.class);
+
+    /**
+     * Running jobs and their followers by key
+     */
+    private final Map<String,Running<J>> inFlight = new HashMap<String,Running<J>>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * The key used to coalesce identical submissions
+     * @param version the version of the configuration used by the job
+     * @param source the spooled data of the job
+     * @param filter the filter requested for the job or <code>null</code> if none
+     * @return the key or <code>null</code> if the content hash is not known
+     */
+    static String getKey(long version, TmpFileDocumentSource source, TripleFilter filter) {
+        if(source.getContentHash() == null){
+            return null;
+        }
+        return new StringBuilder().append(version).append('|')
+                .append(source.getContentHash()).append('|')
+                .append(source.getEncoding()).append('|')
+                .append(source.getContentType()).append('|')
+                .append(source.getCharset()).append('|')
+                .append(source.getDocumentURI()).append('|')
+                .append(filter).toString();
+    }
+
+    /**
+     * Attaches the parsed job to the running job with the same key
+     * @param key the key of the job
+     * @param job the job
+     * @return the running job the parsed one was attached to or
+     * <code>null</code> if there is none. In that case the parsed job needs
+     * to be run and {@link #started(String, Object) registered}
+     */
+    J attach(String key, J job) {
+        Running<J> running = key == null ? null : inFlight.get(key);
+        if(running == null){
+            return null;
+        }
+        running.followers.add(job);
+        coalesced.incrementAndGet();
+        return running.job;
+    }
+
+    /**
+     * Registers a job that was submitted for execution
+     * @param key the key of the job. If <code>null</code> the job is not registered
+     * @param job the job
+     */
+    void started(String key, J job) {
+        if(key != null){
+            inFlight.put(key, new Running<J>(job));
+        }
+    }
+
+    /**
+     * Unregisters a finished job. No more jobs can attach to it afterwards.
+     * @param key the key of the job
+     * @return the followers attached to the job
+     */
+    List<J> finished(String key) {
+        Running<J> running = key == null ? null : inFlight.remove(key);
+        return running == null ? Collections.<J>emptyList() :
+            new ArrayList<J>(running.followers);
+    }
+
+    /**
+     * The number of jobs attached to a running job
+     * @return the number of coalesced jobs
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Shares the data of the result of a job with the result of a follower
+     * by linking (or - if not supported - copying) the file
+     * @param result the result of the job
+     * @param shared the (empty) result of the follower
+     * @throws IOException on any error while linking or copying the file
+     */
+    static void share(TmpFileEntity result, TmpFileEntity shared) throws IOException {
+        Path target = shared.getFile().toPath();
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, result.getFile().toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug(" - unable to link result (message: {}), copy", e.getMessage());
+            Files.copy(result.getFile().toPath(), target);
+        }
+        shared.setETag(result.getETag());
+    }
+
+    /**
+     * A running job and its followers
+     */
+    private static class Running<J> {
+
+        private final J job;
+        private final List<J> followers = new ArrayList<J>();
+
+        Running(J job) {
+            this.job = job;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of accepted jobs. Every accepted job is recorded
+ * together with the file its data are spooled to. Completed and failed jobs
+ * are recorded as well so that on a restart pending jobs can be replayed and
+ * results of completed jobs can be re-registered instead of recomputed.<p>
+ * Records are written by a single writer thread. All records queued while
+ * the writer thread syncs the previous batch to disk are written and synced
+ * together (group commit). So callers waiting for a record to be durable
+ * share the costs of the sync.<p>
+ * Completed and failed jobs older than the {@link #getRetention() retention}
+ * are dropped when the journal is {@link #open() opened}. The results of
+ * dropped jobs are deleted.
+ */
+public class JobJournal implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String JOURNAL_FILE = "jobs.journal";
+
+    /**
+     * The states of a journal {@link Entry}
+     */
+    public enum State { ACCEPTED, COMPLETED, FAILED }
+
+    /**
+     * The default time in milliseconds completed and failed jobs are kept
+     */
+    public static final long DEFAULT_RETENTION = TimeUnit.HOURS.toMillis(24);
+
+    private final File dir;
+    private final File journalFile;
+    private final long retention;
+
+    private final Object lock = new Object();
+    private final List<String> pending = new ArrayList<String>();
+    private long appended;
+    private long committed;
+    private IOException failure;
+    private boolean closed;
+
+    private FileOutputStream out;
+    private Writer writer;
+    private Thread writerThread;
+
+    /**
+     * Creates a journal in the parsed directory. The same directory is used
+     * to spool the data of accepted jobs. The directory is created if it
+     * does not yet exist.
+     * @param dir the directory
+     * @throws IOException if the directory can not be created or is not writeable
+     */
+    public JobJournal(File dir) throws IOException {
+        this(dir, DEFAULT_RETENTION);
+    }
+
+    /**
+     * Creates a journal in the parsed directory. The same directory is used
+     * to spool the data of accepted jobs. The directory is created if it
+     * does not yet exist.
+     * @param dir the directory
+     * @param retention the time in milliseconds completed and failed jobs
+     * are kept
+     * @throws IOException if the directory can not be created or is not writeable
+     */
+    public JobJournal(File dir, long retention) throws IOException {
+        if(retention <= 0){
+            throw new IllegalArgumentException("The retention MUST BE greater as 0");
+        }
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Unable to create journal directory "
+                    + dir.getAbsolutePath());
+        }
+        if(!dir.canWrite()){
+            throw new IOException("Journal directory " + dir.getAbsolutePath()
+                    + " is not writeable");
+        }
+        this.dir = dir;
+        this.journalFile = new File(dir, JOURNAL_FILE);
+        this.retention = retention;
+    }
+
+    /**
+     * The directory used by the journal. This is also the directory used
+     * to spool the data of accepted jobs.
+     * @return the directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Getter for the time completed and failed jobs are kept
+     * @return the retention in milliseconds
+     */
+    public long getRetention() {
+        return retention;
+    }
+
+    /**
+     * Reads the existing journal, compacts it to the latest record of every
+     * job (dropping completed and failed jobs older than the 
+     * {@link #getRetention() retention}) and opens it for appending new records.
+     * @return the latest entry for every job recorded by the journal
+     * @throws IOException on any error while reading or writing the journal
+     * @throws IllegalStateException if the journal was already opened
+     */
+    public Collection<Entry> open() throws IOException {
+        synchronized (lock) {
+            if(writerThread != null || closed){
+                throw new IllegalStateException("Journal already opened");
+            }
+        }
+        Map<String,Entry> entries = read();
+        int expired = expire(entries);
+        //compact the journal
+        File tmp = new File(dir, JOURNAL_FILE + ".tmp");
+        Writer compacted = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            for(Entry entry : entries.values()){
+                compacted.write(entry.toRecord());
+                compacted.write('\n');
+            }
+        } finally {
+            IOUtils.closeQuietly(compacted);
+        }
+        try {
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        out = new FileOutputStream(journalFile, true);
+        writer = new OutputStreamWriter(out, UTF8);
+        synchronized (lock) {
+            writerThread = new Thread(new JournalWriter(), "any23-journal-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        log.info("> opened job journal {} ({} entries, {} expired)", 
+                new Object[]{journalFile, entries.size(), expired});
+        return entries.values();
+    }
+
+    private Map<String,Entry> read() throws IOException {
+        Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+        if(!journalFile.isFile()){
+            return entries;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), UTF8));
+        try {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null){
+                lineNumber++;
+                Entry entry = Entry.parse(line);
+                if(entry == null){ //e.g. a partial record written on a crash
+                    log.warn("Ignore invalid journal record {} (line {})", line, lineNumber);
+                } else if(entry.getState() == State.ACCEPTED){
+                    entries.put(entry.getRequestId(), entry);
+                } else {
+                    //completed or failed entries replace the accepted one
+                    entries.remove(entry.getRequestId());
+                    entries.put(entry.getRequestId(), entry);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return entries;
+    }
+
+    /**
+     * Removes completed and failed entries older than the retention and
+     * deletes the results of expired jobs
+     * @param entries the entries
+     * @return the number of removed entries
+     */
+    private int expire(Map<String,Entry> entries) {
+        long expired = System.currentTimeMillis() - retention;
+        int removed = 0;
+        for(Iterator<Entry> it = entries.values().iterator(); it.hasNext();){
+            Entry entry = it.next();
+            if(entry.getState() != State.ACCEPTED && entry.getTime() < expired){
+                it.remove();
+                removed++;
+                if(entry.getState() == State.COMPLETED && entry.getFile() != null){
+                    log.debug(" - delete expired result {}", entry.getFile());
+                    entry.getFile().delete();
+                    new File(entry.getFile().getPath() + TmpFileEntity.ETAG_SUFFIX).delete();
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Records an accepted job. Returns after the record is durable.
+     * @param requestId the request id
+     * @param source the spooled data of the job
+     * @throws IOException if the record could not be written
+     */
+    public void accepted(String requestId, TmpFileDocumentSource source) throws IOException {
+        accepted(requestId, source, null);
+    }
+
+    /**
+     * Records an accepted job. Returns after the record is durable.
+     * @param requestId the request id
+     * @param source the spooled data of the job
+     * @param filter the filter requested for the job or <code>null</code> if none
+     * @throws IOException if the record could not be written
+     */
+    public void accepted(String requestId, TmpFileDocumentSource source, TripleFilter filter) 
+            throws IOException {
+        append(new Entry(State.ACCEPTED, requestId, source.getFile(), source.getContentType(),
+                source.getContentLength(), source.getDocumentURI(), source.getCharset(), 
+                source.getEncoding().getName(), filter == null ? null : filter.toString(),
+                source.isCompressed(), null, System.currentTimeMillis()), true);
+    }
+
+    /**
+     * Records a completed job. This does not wait for the record to be durable.
+     * @param requestId the request id
+     * @param result the result of the job
+     * @throws IOException if the journal is closed or has failed
+     */
+    public void completed(String requestId, TmpFileEntity result) throws IOException {
+        append(new Entry(State.COMPLETED, requestId, result.getFile(),
+                result.getType().toString(), -1, null, null, null, null, true, null,
+                System.currentTimeMillis()), false);
+    }
+
+    /**
+     * Records a failed job. This does not wait for the record to be durable.
+     * @param requestId the request id
+     * @param e the exception
+     * @throws IOException if the journal is closed or has failed
+     */
+    public void failed(String requestId, Exception e) throws IOException {
+        append(new Entry(State.FAILED, requestId, null, null, -1, null, null, null, null, true,
+                e == null || e.getMessage() == null ? String.valueOf(e) : e.getMessage(),
+                System.currentTimeMillis()), false);
+    }
+
+    private void append(Entry entry, boolean sync) throws IOException {
+        synchronized (lock) {
+            if(closed || writerThread == null){
+                throw new IOException("Journal " + journalFile + " is not open");
+            }
+            if(failure != null){
+                throw new IOException("Journal " + journalFile + " has failed", failure);
+            }
+            pending.add(entry.toRecord());
+            long seq = ++appended;
+            lock.notifyAll();
+            while(sync && committed < seq && failure == null && !closed){
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for "
+                            + "the journal record of " + entry.getRequestId());
+                }
+            }
+            if(sync && committed < seq){
+                throw new IOException("Unable to write journal record for "
+                        + entry.getRequestId(), failure);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            thread = writerThread;
+        }
+        if(thread != null){
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOUtils.closeQuietly(writer);
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[file: ")
+                .append(journalFile).append("]").toString();
+    }
+
+    /**
+     * Writes queued records in batches and syncs each batch to disk
+     */
+    private class JournalWriter implements Runnable {
+
+        @Override
+        public void run() {
+            while(true){
+                List<String> batch;
+                long last;
+                synchronized (lock) {
+                    while(pending.isEmpty() && !closed){
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if(pending.isEmpty()){ //closed and all records written
+                        return;
+                    }
+                    batch = new ArrayList<String>(pending);
+                    pending.clear();
+                    last = appended;
+                }
+                try {
+                    for(String record : batch){
+                        writer.write(record);
+                        writer.write('\n');
+                    }
+                    writer.flush();
+                    out.getChannel().force(false);
+                    synchronized (lock) {
+                        committed = last;
+                        lock.notifyAll();
+                    }
+                    log.trace(" - committed {} journal records", batch.size());
+                } catch (IOException e) {
+                    log.error("Unable to write to job journal " + journalFile, e);
+                    synchronized (lock) {
+                        failure = e;
+                        lock.notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A record of the journal.
+     */
+    public static class Entry {
+
+        private static final String SEPARATOR = "\t";
+        /**
+         * The number of fields of a record
+         */
+        private static final int FIELDS = 12;
+
+        private final State state;
+        private final String requestId;
+        private final File file;
+        private final String type;
+        private final long length;
+        private final String documentUri;
+        private final String charset;
+        private final String encoding;
+        private final String filter;
+        private final boolean compressed;
+        private final String message;
+        private final long time;
+
+        Entry(State state, String requestId, File file, String type, long length,
+                String documentUri, String charset, String encoding, String filter,
+                boolean compressed, String message, long time) {
+            this.state = state;
+            this.requestId = requestId;
+            this.file = file;
+            this.type = type;
+            this.length = length;
+            this.documentUri = documentUri;
+            this.charset = charset;
+            this.encoding = encoding;
+            this.filter = filter;
+            this.compressed = compressed;
+            this.message = message;
+            this.time = time;
+        }
+
+        /**
+         * The state of the job
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The request id
+         */
+        public String getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * The spooled data for {@link State#ACCEPTED} and the result for
+         * {@link State#COMPLETED} jobs.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * The content type of the data or the result
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * The length of the spooled data
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * The document URI of an {@link State#ACCEPTED} job
+         */
+        public String getDocumentUri() {
+            return documentUri;
+        }
+
+        /**
+         * The charset of the spooled data or <code>null</code> if unknown
+         */
+        public String getCharset() {
+            return charset;
+        }
+
+        /**
+         * The <code>Content-Encoding</code> of the spooled data or 
+         * <code>null</code> if the data are XZ compressed
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * The {@link TripleFilter} requested for an {@link State#ACCEPTED}
+         * job or <code>null</code> if none
+         */
+        public String getFilter() {
+            return filter;
+        }
+
+        /**
+         * If the spooled data of an {@link State#ACCEPTED} job without 
+         * {@link #getEncoding()} are XZ compressed
+         */
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * The error message of a {@link State#FAILED} job
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * The time the record was written as returned by
+         * {@link System#currentTimeMillis()}
+         */
+        public long getTime() {
+            return time;
+        }
+
+        String toRecord() {
+            return new StringBuilder(state.name())
+                .append(SEPARATOR).append(encode(requestId))
+                .append(SEPARATOR).append(encode(file == null ? null : file.getAbsolutePath()))
+                .append(SEPARATOR).append(encode(type))
+                .append(SEPARATOR).append(length)
+                .append(SEPARATOR).append(encode(documentUri))
+                .append(SEPARATOR).append(encode(charset))
+                .append(SEPARATOR).append(encode(message))
+                .append(SEPARATOR).append(encode(encoding))
+                .append(SEPARATOR).append(encode(filter))
+                .append(SEPARATOR).append(compressed)
+                .append(SEPARATOR).append(time).toString();
+        }
+
+        static Entry parse(String record) {
+            String[] fields = record.split(SEPARATOR, -1);
+            //the journal is not versioned. Records of an other format (e.g.
+            //written by an older version) are invalid and therefore ignored
+            if(fields.length != FIELDS){
+                return null;
+            }
+            try {
+                String path = decode(fields[2]);
+                return new Entry(State.valueOf(fields[0]), decode(fields[1]),
+                        path == null ? null : new File(path), decode(fields[3]),
+                        Long.parseLong(fields[4]), decode(fields[5]), decode(fields[6]),
+                        decode(fields[8]), decode(fields[9]), Boolean.parseBoolean(fields[10]),
+                        decode(fields[7]), Long.parseLong(fields[11]));
+            } catch (IllegalArgumentException e) { //also NumberFormatException
+                return null;
+            }
+        }
+
+        private static String encode(String value) {
+            if(value == null){
+                return "";
+            }
+            try {
+                //prefix values so that empty strings can be distinguished from null
+                return "=" + URLEncoder.encode(value, UTF8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String decode(String value) {
+            if(value.isEmpty()){
+                return null;
+            }
+            if(value.charAt(0) != '='){
+                throw new IllegalArgumentException("Invalid journal value " + value);
+            }
+            try {
+                return URLDecoder.decode(value.substring(1), UTF8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return toRecord();
+        }
+    }
+}
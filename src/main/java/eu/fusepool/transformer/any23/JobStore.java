@@ -0,0 +1,99 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import javax.activation.MimeType;
+
+import eu.fusepool.p3.transformer.commons.Entity;
+
+/**
+ * Stores the state and the results of transformation jobs. This allows
+ * several instances of the {@link Any23Transformer} running behind a load
+ * balancer to answer status and result requests for jobs processed by any
+ * of the instances.<p>
+ * Jobs processed by the local instance are always answered from memory.
+ * The store is only consulted for requests the local instance does not
+ * know about.
+ */
+public interface JobStore extends Closeable {
+
+    /**
+     * The states of a job as known by the store
+     */
+    enum JobState {
+        /**
+         * The job is not known by the store
+         */
+        UNKNOWN,
+        /**
+         * The job was accepted and is not yet finished
+         */
+        ACTIVE,
+        /**
+         * The job was completed and the result is available
+         */
+        COMPLETED,
+        /**
+         * The job failed
+         */
+        FAILED
+    }
+
+    /**
+     * Marks a job as accepted
+     * @param requestId the request id
+     * @throws IOException on any error while writing the state
+     */
+    void accepted(String requestId) throws IOException;
+
+    /**
+     * Creates the entity used to write the results of the job
+     * @param requestId the request id
+     * @param type the media type of the results
+     * @return the entity
+     * @throws IOException on any error while creating the entity
+     */
+    TmpFileEntity createResult(String requestId, MimeType type) throws IOException;
+
+    /**
+     * Marks a job as completed.
+     * @param requestId the request id
+     * @param result the result as created by {@link #createResult(String, MimeType)}
+     * @throws IOException on any error while writing the state
+     */
+    void completed(String requestId, TmpFileEntity result) throws IOException;
+
+    /**
+     * Marks a job as failed
+     * @param requestId the request id
+     * @param e the exception
+     * @throws IOException on any error while writing the state
+     */
+    void failed(String requestId, Exception e) throws IOException;
+
+    /**
+     * Getter for the state of a job
+     * @param requestId the request id
+     * @return the state. {@link JobState#UNKNOWN} if the job is not known
+     * @throws IOException on any error while reading the state
+     */
+    JobState getState(String requestId) throws IOException;
+
+    /**
+     * Getter for the result of a {@link JobState#COMPLETED completed} job
+     * @param requestId the request id
+     * @return the result or <code>null</code> if not available
+     * @throws IOException on any error while reading the result
+     */
+    Entity getResult(String requestId) throws IOException;
+
+    /**
+     * Getter for the exception of a {@link JobState#FAILED failed} job
+     * @param requestId the request id
+     * @return the exception or <code>null</code> if not available
+     * @throws IOException on any error while reading the state
+     */
+    Exception getException(String requestId) throws IOException;
+
+}
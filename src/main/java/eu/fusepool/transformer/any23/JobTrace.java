@@ -0,0 +1,419 @@
+package eu.fusepool.transformer.any23;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.any23.extractor.ExtractionContext;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.any23.writer.TripleHandlerException;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+
+/**
+ * Records the phases (spans) of a single transformation job: spooling the
+ * request data, waiting in the queue, waiting for memory budget, MIME type
+ * detection, every extractor, serialization of the triples and the 
+ * callback.<p>
+ * The trace ID is taken from the W3C <code>traceparent</code> header of the
+ * request if present. Otherwise it is derived from the request ID so that
+ * log messages of a job can be correlated with traces of upstream pipelines
+ * using the job URI.<p>
+ * A trace is attached to the thread processing the job (see 
+ * {@link #attach()}) so that components called by Any23 (e.g. the 
+ * {@link ExtractorProfiler}) can add spans to it.
+ */
+public class JobTrace {
+
+    /**
+     * The W3C trace context header
+     */
+    public static final String TRACEPARENT = "traceparent";
+
+    /**
+     * Span for spooling the request data
+     */
+    public static final String SPOOL = "spool";
+    /**
+     * Span for waiting in the queue of the thread pool
+     */
+    public static final String QUEUE = "queue";
+    /**
+     * Span for waiting for memory budget
+     */
+    public static final String BUDGET = "budget";
+    /**
+     * Span for the detection of the content type
+     */
+    public static final String DETECTION = "detection";
+    /**
+     * Span for writing the extracted triples. Aggregated over all 
+     * {@link TripleHandler} calls. NOTE that those calls happen while 
+     * extractors are running so their spans include this time.
+     */
+    public static final String SERIALIZATION = "serialization";
+    /**
+     * Span for notifying the transformer library about the result
+     */
+    public static final String CALLBACK = "callback";
+
+    private static final Pattern TRACEPARENT_PATTERN = Pattern.compile(
+            "^\\s*([0-9a-f]{2})-([0-9a-f]{32})-([0-9a-f]{16})-([0-9a-f]{2})\\s*$");
+    private static final Pattern UUID_PATTERN = Pattern.compile(
+            "([0-9a-fA-F]{8})-([0-9a-fA-F]{4})-([0-9a-fA-F]{4})-([0-9a-fA-F]{4})-([0-9a-fA-F]{12})$");
+    private static final String INVALID_TRACE_ID = "00000000000000000000000000000000";
+
+    private static final ThreadLocal<JobTrace> CURRENT = new ThreadLocal<JobTrace>();
+
+    private final String requestId;
+    private final String traceId;
+    private final String parentId;
+    private final long created = System.nanoTime();
+    private long finished = -1;
+    /**
+     * Spans in the order they are started. Aggregated spans are summed up.
+     */
+    private final Map<String,Span> spans = new LinkedHashMap<String,Span>();
+
+    private String documentUri;
+    private String contentType;
+    private long contentLength = -1;
+
+    /**
+     * Creates the trace for a job
+     * @param requestId the request ID of the job
+     * @param traceparent the value of the <code>traceparent</code> header of
+     * the request or <code>null</code> if none
+     */
+    public JobTrace(String requestId, String traceparent) {
+        this.requestId = requestId;
+        Matcher m = traceparent == null ? null : TRACEPARENT_PATTERN.matcher(traceparent);
+        if(m != null && m.matches() && !"ff".equals(m.group(1)) && 
+                !INVALID_TRACE_ID.equals(m.group(2))){
+            traceId = m.group(2);
+            parentId = m.group(3);
+        } else {
+            traceId = toTraceId(requestId);
+            parentId = null;
+        }
+    }
+
+    /**
+     * Derives a trace ID from a request ID. For request IDs ending with an
+     * UUID (e.g. <code>/job/{uuid}</code>) the hex digits of the UUID are
+     * used.
+     */
+    static String toTraceId(String requestId) {
+        Matcher m = UUID_PATTERN.matcher(requestId);
+        if(m.find()){
+            StringBuilder id = new StringBuilder(32);
+            for(int i = 1; i <= m.groupCount(); i++){
+                id.append(m.group(i).toLowerCase());
+            }
+            return id.toString();
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(
+                    requestId.getBytes(Charset.forName("UTF-8")));
+            StringBuilder id = new StringBuilder(32);
+            for(byte b : hash){
+                id.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The trace attached to the current thread
+     * @return the trace or <code>null</code> if none
+     */
+    public static JobTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Attaches this trace to the current thread
+     */
+    public void attach() {
+        CURRENT.set(this);
+    }
+
+    /**
+     * Detaches this trace from the current thread
+     */
+    public void detach() {
+        if(CURRENT.get() == this){
+            CURRENT.remove();
+        }
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * The trace ID (32 hex digits)
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * The span ID of the upstream caller as parsed by the 
+     * <code>traceparent</code> header
+     * @return the parent span ID or <code>null</code> if not known
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * Sets information about the transformed document
+     * @param documentUri the document URI
+     * @param contentType the content type
+     * @param contentLength the content length or <code>-1</code> if not known
+     */
+    public synchronized void setDocument(String documentUri, String contentType, long contentLength) {
+        this.documentUri = documentUri;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Adds a span. If a span with the same name already exists the durations
+     * are summed up.
+     * @param name the name of the span
+     * @param start the start as returned by {@link System#nanoTime()}
+     * @param end the end as returned by {@link System#nanoTime()}
+     */
+    public synchronized void span(String name, long start, long end) {
+        Span span = spans.get(name);
+        if(span == null){
+            span = new Span(name, start - created);
+            spans.put(name, span);
+        }
+        span.duration += end - start;
+        span.count++;
+    }
+
+    /**
+     * Marks the job as finished
+     */
+    public synchronized void finish() {
+        if(finished < 0){
+            finished = System.nanoTime();
+        }
+    }
+
+    /**
+     * The duration of the job until it {@link #finish() finished} (or until 
+     * now if still running)
+     * @param unit the unit
+     * @return the duration
+     */
+    public synchronized long getDuration(TimeUnit unit) {
+        return unit.convert((finished < 0 ? System.nanoTime() : finished) - created, 
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The recorded spans
+     */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<Span>(spans.values());
+    }
+
+    /**
+     * Wraps the parsed handler to measure the time used to serialize triples
+     * @param handler the handler
+     * @return the timing handler
+     */
+    public TripleHandler wrap(TripleHandler handler) {
+        return new TimingTripleHandler(this, handler);
+    }
+
+    /**
+     * Formats the trace as a single line of <code>key=value</code> pairs.
+     * Spans are formatted as <code>{name}={duration}ms@{offset}ms</code>.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder line = new StringBuilder();
+        line.append("trace=").append(traceId);
+        if(parentId != null){
+            line.append(" parent=").append(parentId);
+        }
+        line.append(" job=").append(requestId);
+        line.append(" time=").append(getDuration(TimeUnit.MILLISECONDS)).append("ms");
+        line.append(" type=").append(contentType);
+        line.append(" size=").append(contentLength);
+        line.append(" uri=").append(documentUri);
+        for(Span span : spans.values()){
+            line.append(' ').append(span.name).append('=')
+                .append(TimeUnit.NANOSECONDS.toMillis(span.duration)).append("ms");
+            if(span.count > 1){
+                line.append('/').append(span.count);
+            }
+            line.append('@').append(TimeUnit.NANOSECONDS.toMillis(span.offset)).append("ms");
+        }
+        return line.toString();
+    }
+
+    /**
+     * A phase of a job
+     */
+    public static class Span {
+
+        private final String name;
+        private final long offset;
+        private long duration;
+        private int count;
+
+        Span(String name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The start of the (first) span relative to the start of the job
+         */
+        public long getOffset(TimeUnit unit) {
+            return unit.convert(offset, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * The (summed up) duration of the span
+         */
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(duration, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * The number of times the span was recorded
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Measures the time spent in the wrapped handler
+     */
+    private static class TimingTripleHandler implements TripleHandler {
+
+        private final JobTrace trace;
+        private final TripleHandler delegate;
+        private long first = -1;
+        private long time;
+
+        TimingTripleHandler(JobTrace trace, TripleHandler delegate) {
+            this.trace = trace;
+            this.delegate = delegate;
+        }
+
+        private long start() {
+            long start = System.nanoTime();
+            if(first < 0){
+                first = start;
+            }
+            return start;
+        }
+
+        @Override
+        public void startDocument(URI documentURI) throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.startDocument(documentURI);
+            } finally {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void openContext(ExtractionContext context) throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.openContext(context);
+            } finally {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void receiveTriple(Resource s, URI p, Value o, URI g, ExtractionContext context)
+                throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.receiveTriple(s, p, o, g, context);
+            } finally {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void receiveNamespace(String prefix, String uri, ExtractionContext context)
+                throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.receiveNamespace(prefix, uri, context);
+            } finally {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void closeContext(ExtractionContext context) throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.closeContext(context);
+            } finally {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void endDocument(URI documentURI) throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.endDocument(documentURI);
+            } finally {
+                time += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void setContentLength(long contentLength) {
+            delegate.setContentLength(contentLength);
+        }
+
+        /**
+         * Closes the delegate (flushing the serializer) and adds the 
+         * measured time as {@link JobTrace#SERIALIZATION} span
+         */
+        @Override
+        public void close() throws TripleHandlerException {
+            long start = start();
+            try {
+                delegate.close();
+            } finally {
+                time += System.nanoTime() - start;
+                trace.span(SERIALIZATION, first, first + time);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fusepool.p3.transformer.AsyncTransformer.CallBackHandler;
+
+/**
+ * Replays the entries of the {@link JobJournal} of an {@link Any23Transformer}
+ * on {@link Any23Transformer#activate(CallBackHandler) activation}. Results of
+ * completed and failed jobs are re-registered with the {@link CallBackHandler}.
+ * Pending jobs are re-submitted by a background thread as the bulkheads
+ * might not be able to accept all of them at once.
+ */
+final class JournalReplay {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Any23Transformer transformer;
+    private final JobJournal journal;
+    private final CallBackHandler callBackHandler;
+
+    /**
+     * @param transformer the transformer the jobs are re-submitted to
+     * @param journal the journal
+     * @param callBackHandler the handler the results are registered with or
+     * <code>null</code> if the transformer was activated without one
+     */
+    JournalReplay(Any23Transformer transformer, JobJournal journal,
+            CallBackHandler callBackHandler) {
+        this.transformer = transformer;
+        this.journal = journal;
+        this.callBackHandler = callBackHandler;
+    }
+
+    /**
+     * Replays the parsed entries
+     * @param entries the entries of the journal
+     */
+    void replay(Collection<JobJournal.Entry> entries) {
+        final List<Any23Transformer.TransformationJob> pending =
+                new ArrayList<Any23Transformer.TransformationJob>();
+        for(JobJournal.Entry entry : entries){
+            String id = entry.getRequestId();
+            switch (entry.getState()) {
+                case ACCEPTED:
+                    if(entry.getFile() != null && entry.getFile().isFile()){
+                        TmpFileDocumentSource source = new TmpFileDocumentSource(
+                                entry.getFile(), entry.getType(), entry.getLength(),
+                                entry.getDocumentUri(), entry.getCharset(),
+                                new TmpFileDocumentSource.Options()
+                                    .encoding(ContentEncoding.parse(entry.getEncoding()))
+                                    .compress(entry.isCompressed())
+                                    .arrayCache(transformer.getBufferPool()));
+                        JobTrace trace = new JobTrace(id, null);
+                        trace.setDocument(entry.getDocumentUri(), entry.getType(),
+                                entry.getLength());
+                        pending.add(transformer.createJob(id, source,
+                                TripleFilter.fromQuery(entry.getFilter()), trace));
+                    } else {
+                        log.warn("Spooled data of pending job {} are no longer available", id);
+                        Exception e = new IOException("Spooled data of Request " + id
+                                + " lost on restart");
+                        if(callBackHandler != null){
+                            callBackHandler.reportException(id, e);
+                        }
+                        try {
+                            journal.failed(id, e);
+                        } catch (IOException e1) {
+                            log.warn("Unable to journal failed job " + id, e1);
+                        }
+                    }
+                    break;
+                case COMPLETED:
+                    if(entry.getFile() != null && entry.getFile().isFile()){
+                        try {
+                            TmpFileEntity result = new TmpFileEntity(
+                                    entry.getFile(), new MimeType(entry.getType()), true);
+                            result.setArrayCache(transformer.getBufferPool());
+                            if(callBackHandler != null){
+                                callBackHandler.responseAvailable(id, result);
+                            }
+                        } catch (MimeTypeParseException e) {
+                            log.warn("Unable to re-register result of job " + id, e);
+                        }
+                    } else {
+                        log.warn("Result of completed job {} is no longer available", id);
+                    }
+                    break;
+                case FAILED:
+                    if(callBackHandler != null){
+                        callBackHandler.reportException(id, new RuntimeException(
+                                "Error while processing Request " + id + ": " + entry.getMessage()));
+                    }
+                    break;
+            }
+        }
+        log.info("> replayed job journal ({} entries, {} pending jobs)",
+                entries.size(), pending.size());
+        if(pending.isEmpty()){
+            return;
+        }
+        List<String> ids = new ArrayList<String>(pending.size());
+        for(Any23Transformer.TransformationJob job : pending){
+            ids.add(job.getId());
+        }
+        transformer.addActive(ids);
+        Thread replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(Any23Transformer.TransformationJob job : pending){
+                    while(true){
+                        try {
+                            transformer.submit(job);
+                            log.debug(" - re-submitted {}", job.getId());
+                            break;
+                        } catch (IllegalStateException e) {
+                            return; //closed
+                        } catch (RejectedExecutionException e) {
+                            try { //wait for a free thread
+                                Thread.sleep(Any23Transformer.RETRY_WAIT);
+                            } catch (InterruptedException e1) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                        }
+                    }
+                }
+            }
+        }, "any23-journal-replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+}
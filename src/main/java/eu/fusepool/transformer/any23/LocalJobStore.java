@@ -0,0 +1,88 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.activation.MimeType;
+
+import eu.fusepool.p3.transformer.commons.Entity;
+
+/**
+ * The default {@link JobStore} used by a single instance. Results are kept
+ * in local tmp files and the store does not know about any other jobs as
+ * the local ones are answered from memory by the {@link Any23Transformer}.
+ */
+public class LocalJobStore implements JobStore {
+
+    private static final String RESULT_SUFFIX = ".result";
+
+    private final File dir;
+
+    /**
+     * Creates a store that writes results to tmp files that are deleted on exit
+     */
+    public LocalJobStore() {
+        this(null);
+    }
+
+    /**
+     * Creates a store that writes results to the parsed directory. Those
+     * files are NOT deleted on exit so that they can be re-registered by
+     * the {@link JobJournal} after a restart.
+     * @param dir the directory or <code>null</code> to use tmp files
+     */
+    public LocalJobStore(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void accepted(String requestId) {
+        //nothing to do
+    }
+
+    @Override
+    public TmpFileEntity createResult(String requestId, MimeType type) throws IOException {
+        if(dir == null){
+            return new TmpFileEntity(requestId, type);
+        } else {
+            return new TmpFileEntity(new File(dir, TmpFileEntity.toFileName(requestId)
+                    + RESULT_SUFFIX), type, true);
+        }
+    }
+
+    @Override
+    public void completed(String requestId, TmpFileEntity result) {
+        //nothing to do
+    }
+
+    @Override
+    public void failed(String requestId, Exception e) {
+        //nothing to do
+    }
+
+    @Override
+    public JobState getState(String requestId) {
+        return JobState.UNKNOWN;
+    }
+
+    @Override
+    public Entity getResult(String requestId) {
+        return null;
+    }
+
+    @Override
+    public Exception getException(String requestId) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        //nothing to do
+    }
+
+    @Override
+    public String toString() {
+        return dir == null ? getClass().getSimpleName() : 
+            getClass().getSimpleName() + "[dir: " + dir + "]";
+    }
+}
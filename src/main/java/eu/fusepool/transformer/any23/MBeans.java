@@ -0,0 +1,64 @@
+package eu.fusepool.transformer.any23;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the MBeans of the transformer (e.g. {@link Bulkhead},
+ * {@link MemoryBudget}, {@link BufferPool}) with the platform MBean server
+ * using <code>eu.fusepool.transformer.any23:type={type},name={name}</code>
+ * object names.
+ */
+final class MBeans {
+
+    private static final Logger log = LoggerFactory.getLogger(MBeans.class);
+
+    private static final String JMX_DOMAIN = "eu.fusepool.transformer.any23";
+
+    private MBeans() {/* no instances */}
+
+    /**
+     * Registers an MBean with the platform MBean server
+     * @param mbean the MBean
+     * @param type the type used for the object name
+     * @param name the name used for the object name
+     * @return the object name or <code>null</code> if the MBean could not be
+     * registered
+     */
+    static ObjectName register(Object mbean, String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type
+                    + ",name=" + ObjectName.quote(name));
+            if(!server.isRegistered(objectName)){
+                server.registerMBean(mbean, objectName);
+                return objectName;
+            } else {
+                log.warn("Unable to register MBean {} (already registered)", objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to register MBean " + type + " for " + name, e);
+        }
+        return null;
+    }
+
+    /**
+     * Unregisters an MBean registered by {@link #register(Object, String, String)}
+     * @param objectName the object name or <code>null</code>
+     */
+    static void unregister(ObjectName objectName) {
+        if(objectName != null){
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.debug("Unable to unregister MBean " + objectName, e);
+            }
+        }
+    }
+}
@@ -3,24 +3,27 @@ package eu.fusepool.transformer.any23;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.any23.extractor.ExtractionParameters.ValidationMode;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import eu.fusepool.p3.transformer.server.TransformerServer;
 
 /**
  * Main for the Any23 transformer.<p>
- * Uses the {@link TransformerServer} to startup an environment based on an
+ * Uses the {@link Any23Server} to startup an environment based on an
  * embedded Jetty server.<p>
  * The <code>-h</code> option will print an help screen with the different
  * options.
@@ -44,7 +47,8 @@ public class Main {
                 String.format("the port for the Any23 transformer (default: %s)",
                     DEFAULT_PORT));
         options.addOption("c", "config",true, "The Any23 configuration file. "
-                + "Will be applied on top of the Any23 default configuration");
+                + "Will be applied on top of the Any23 default configuration. Changes "
+                + "of the file are applied to new requests without restart");
         options.addOption("m", "mode", true, "The validation mode used by Any23 ("
                 + "options: "+ Arrays.toString(ValidationMode.values())+", default:" 
                 + Any23Transformer.DEFAULT_VALIDATION_MODE + ")");
@@ -56,6 +60,85 @@ public class Main {
                 + Any23Transformer.MAX_POOL_SIZE + ")");
         options.addOption("z", "keep-alive", true, "The maximum time that excess "
                 + "idle threads (default: " + Any23Transformer.KEEP_ALIVE_TIME + ")");
+        options.addOption("j", "journal", true, "Directory used to spool request "
+                + "data and to journal accepted jobs so that they survive restarts "
+                + "(default: none)");
+        options.addOption("s", "shared-store", true, "Directory on a shared file "
+                + "system used to share job states and results between several "
+                + "instances (default: none)");
+        options.addOption("r", "retention", true, "The number of hours states and "
+                + "results of finished jobs are kept in the shared store and the "
+                + "journal (default: " 
+                + TimeUnit.MILLISECONDS.toHours(SharedFileJobStore.DEFAULT_RETENTION) + ")");
+        options.addOption("b", "bulkhead", true, "A separate thread pool for a group "
+                + "of content types. Can be used multiple times. Format: "
+                + "'{name}={type}[,{type}]:{core}:{max}[:{queue}]' (e.g. "
+                + "'csv=text/csv:1:2:10'). Other content types use the default pool. "
+                + "Bulkheads can also be configured by '" + Bulkhead.PROPERTY_PREFIX 
+                + "{name}.{property}' properties in the config file (default: none)");
+        options.addOption("A", "adaptive", false, "Adapt the number of threads of "
+                + "the thread pools between the core and max pool size based on the "
+                + "observed latency, queue wait and CPU utilization");
+        options.addOption("M", "memory-budget", true, "The heap budget in MB shared "
+                + "by all transformation jobs. Jobs wait for budget before they start "
+                + "and jobs with an estimated cost exceeding the budget are rejected. "
+                + "'0' disables the budget (default: "
+                + (int)(MemoryBudget.DEFAULT_HEAP_FRACTION * 100) + "% of the max heap)");
+        options.addOption("R", "buffer-pool", true, "The size in MB of the pool of "
+                + "arrays reused by the XZ streams and copy buffers of transformation "
+                + "jobs. '0' disables the pool (default: " 
+                + BufferPool.DEFAULT_MAX_SIZE / (1024 * 1024) + "MB but at most "
+                + Math.round(BufferPool.DEFAULT_HEAP_FRACTION * 100) + "% of the max heap)");
+        options.addOption("S", "stream-results", false, "Allow clients to stream the "
+                + "results of running jobs by requesting '/job/{id}?stream'");
+        options.addOption("I", "nonblocking-ingest", false, "Read request bodies with "
+                + "non-blocking I/O so that slow uploads do not block server threads");
+        options.addOption("e", "extractor-threads", true, "The number of threads "
+                + "shared by all jobs to run the extractors of HTML documents in "
+                + "parallel. '0' runs them one after the other (default: 0)");
+        options.addOption("T", "slow-job-threshold", true, "Jobs taking longer than "
+                + "this number of milliseconds are logged with a breakdown of their "
+                + "phases to the 'eu.fusepool.transformer.any23.Any23Transformer.SlowJobs' "
+                + "logger. '-1' disables the slow job log (default: "
+                + Any23Transformer.SLOW_JOB_THRESHOLD + ")");
+        options.addOption("d", "drain-timeout", true, "On shutdown (or 'POST /admin/drain') "
+                + "new requests are refused and active jobs are given this number of "
+                + "seconds to finish (default: " + Any23Server.DEFAULT_DRAIN_TIMEOUT + ")");
+        options.addOption("g", "drain-grace", true, "The number of seconds results stay "
+                + "available after draining before the server stops (default: "
+                + Any23Server.DEFAULT_DRAIN_GRACE_PERIOD + ")");
+        options.addOption("D", "shutdown-timeout", true, "On SIGTERM the server waits at "
+                + "most this number of seconds for draining and the grace period before "
+                + "the JVM exits. Set it lower as the time the container runtime waits "
+                + "before it kills the process (default: " 
+                + Any23Server.DEFAULT_SHUTDOWN_TIMEOUT + ")");
+        options.addOption("B", "batch", false, "Offline batch mode: converts the "
+                + "files, directories and archives (zip, jar, tar[.gz|.xz|.zst]) parsed "
+                + "as arguments instead of starting the server. Requires '-o' or '-O'");
+        options.addOption("o", "output", true, "Batch mode: the N-Quads file the "
+                + "results of all files are written to ('-' for stdout)");
+        options.addOption("O", "output-dir", true, "Batch mode: the directory Turtle "
+                + "results are written to (one file per input file)");
+        options.addOption("t", "type", true, "Batch mode: maps a file name pattern to a "
+                + "media type. Can be used multiple times. Format: '{glob}={type}' (e.g. "
+                + "'*.xml=application/rdf+xml'). Files not matching any pattern are "
+                + "skipped (default: " + BatchConverter.DEFAULT_TYPES + ")");
+        options.addOption("k", "checkpoint", true, "Batch mode: file used to record "
+                + "converted files. A restarted conversion skips recorded files "
+                + "(default: none)");
+        options.addOption("w", "workers", true, "Batch mode: the number of files "
+                + "converted in parallel (default: number of processors)");
+        options.addOption("u", "base-uri", true, "Batch mode: base URI for the "
+                + "document URIs. The relative path of files is appended (default: "
+                + "file URIs)");
+        Option warmup = new Option("W", "warmup", true, "Sends a warm-up corpus to the "
+                + "server before it reports to be ready. The optional argument is a "
+                + "directory with the documents to use (default: built-in corpus)");
+        warmup.setOptionalArg(true);
+        options.addOption(warmup);
+        options.addOption("C", "cds-training", false, "Training run for class data "
+                + "sharing archives: starts the server, sends the warm-up corpus and "
+                + "exits. Used by the launcher script (see README)");
 
     }
 
@@ -88,8 +171,9 @@ public class Main {
         log.info("    - port: {}",port);
         
         Properties config = null;
+        File configFile = null;
         if(line.hasOption('c')){
-            File configFile = new File(line.getOptionValue('c'));
+            configFile = new File(line.getOptionValue('c'));
             if(configFile.isFile()){
                 config = new Properties();
                 try {
@@ -180,18 +264,325 @@ public class Main {
         log.info("    - thread pool:[core: {}| max: {}| keep: {}sec]", 
                 new Object[]{corePoolSize, maxPoolSize, keepAliveTime});
         
+        List<Bulkhead> bulkheads = new ArrayList<Bulkhead>();
+        if(line.hasOption('b')){
+            for(String value : line.getOptionValues('b')){
+                try {
+                    bulkheads.add(Bulkhead.parse(value, keepAliveTime));
+                } catch (IllegalArgumentException e) {
+                    log.error(e.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        for(Bulkhead bulkhead : bulkheads){
+            log.info("    - bulkhead: {}", bulkhead);
+        }
+        boolean adaptive = line.hasOption('A');
+        log.info("    - adaptive concurrency: {}", adaptive);
+        
+        MemoryBudget memoryBudget = null;
+        if(line.hasOption('M')){
+            String value = line.getOptionValue('M');
+            try {
+                long budget = Long.parseLong(value);
+                if(budget < 0){
+                    log.error("The parsed memory budget '{}' MUST NOT be negative", value);
+                    System.exit(1);
+                }
+                memoryBudget = budget == 0 ? null : new MemoryBudget(budget * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                log.error(" parsed memory budget '{}' is not an integer", value);
+                System.exit(1);
+            }
+        } else {
+            memoryBudget = new MemoryBudget();
+        }
+        log.info("    - memory budget: {}", memoryBudget == null ? "none" : memoryBudget);
+        BufferPool bufferPool = null;
+        if(line.hasOption('R')){
+            String value = line.getOptionValue('R');
+            try {
+                long size = Long.parseLong(value);
+                if(size < 0){
+                    log.error("The parsed buffer pool size '{}' MUST NOT be negative", value);
+                    System.exit(1);
+                }
+                bufferPool = size == 0 ? null : new BufferPool(size * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                log.error(" parsed buffer pool size '{}' is not an integer", value);
+                System.exit(1);
+            }
+        } else {
+            bufferPool = new BufferPool();
+        }
+        log.info("    - buffer pool: {}", bufferPool == null ? "none" : bufferPool);
+        boolean streamResults = line.hasOption('S');
+        log.info("    - stream results: {}", streamResults);
+        boolean nonBlockingIngest = line.hasOption('I');
+        log.info("    - non-blocking ingest: {}", nonBlockingIngest);
+        int extractorThreads = 0;
+        if(line.hasOption('e')){
+            String value = line.getOptionValue('e');
+            try {
+                extractorThreads = Integer.parseInt(value);
+                if(extractorThreads < 0){
+                    log.error("The parsed number of extractor threads '{}' MUST NOT be negative", value);
+                    System.exit(1);
+                }
+            } catch (NumberFormatException e) {
+                log.error(" parsed number of extractor threads '{}' is not an integer", value);
+                System.exit(1);
+            }
+        }
+        log.info("    - extractor threads: {}", extractorThreads);
+        Long slowJobThreshold = null;
+        if(line.hasOption('T')){
+            String value = line.getOptionValue('T');
+            try {
+                slowJobThreshold = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                log.error(" parsed slow job threshold '{}' is not an integer", value);
+                System.exit(1);
+            }
+            log.info("    - slow job threshold: {}ms", slowJobThreshold);
+        }
+        
+        int drainTimeout = Any23Server.DEFAULT_DRAIN_TIMEOUT;
+        if(line.hasOption('d')){
+            String value = line.getOptionValue('d');
+            try {
+                drainTimeout = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                log.error(" parsed drain timeout '{}' is not an integer", value);
+                System.exit(1);
+            }
+        }
+        log.info("    - drain timeout: {}sec", drainTimeout);
+        int drainGrace = Any23Server.DEFAULT_DRAIN_GRACE_PERIOD;
+        if(line.hasOption('g')){
+            String value = line.getOptionValue('g');
+            try {
+                drainGrace = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                log.error(" parsed drain grace period '{}' is not an integer", value);
+                System.exit(1);
+            }
+        }
+        log.info("    - drain grace period: {}sec", drainGrace);
+        int shutdownTimeout = Any23Server.DEFAULT_SHUTDOWN_TIMEOUT;
+        if(line.hasOption('D')){
+            String value = line.getOptionValue('D');
+            try {
+                shutdownTimeout = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                log.error(" parsed shutdown timeout '{}' is not an integer", value);
+                System.exit(1);
+            }
+            if(shutdownTimeout <= 0){
+                log.error(" parsed shutdown timeout '{}' MUST BE greater as 0", value);
+                System.exit(1);
+            }
+        }
+        log.info("    - shutdown timeout: {}sec", shutdownTimeout);
+        boolean training = line.hasOption('C');
+        Warmup warmup = null;
+        if(line.hasOption('W') || training){
+            String dir = line.getOptionValue('W');
+            try {
+                warmup = dir == null ? new Warmup() : new Warmup(new File(dir));
+            } catch (IOException e) {
+                log.error("Unable to read warm-up corpus (message: " + e.getMessage() + ")!", e);
+                System.exit(1);
+            } catch (IllegalArgumentException e) {
+                log.error(e.getMessage());
+                System.exit(1);
+            }
+            log.info("    - warm-up: {}", warmup.getDocuments());
+        }
+        log.info("    - training run: {}", training);
+        
+        long retention = SharedFileJobStore.DEFAULT_RETENTION;
+        if(line.hasOption('r')){
+            String value = line.getOptionValue('r');
+            try {
+                retention = TimeUnit.HOURS.toMillis(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                log.error(" parsed retention '{}' is not an integer", value);
+                System.exit(1);
+            }
+            if(retention <= 0){
+                log.error(" parsed retention '{}' MUST BE greater as 0", value);
+                System.exit(1);
+            }
+        }
+        log.info("    - retention: {}h", TimeUnit.MILLISECONDS.toHours(retention));
+        JobStore jobStore = null;
+        if(line.hasOption('s')){
+            File storeDir = new File(line.getOptionValue('s'));
+            try {
+                jobStore = new SharedFileJobStore(storeDir, retention);
+            } catch (IOException e) {
+                log.error("Unable to init shared job store in '" + storeDir 
+                        + "' (message: " + e.getMessage() + ")!", e);
+                System.exit(1);
+            }
+        }
+        JobJournal journal = null;
+        if(line.hasOption('j')){
+            File journalDir = new File(line.getOptionValue('j'));
+            try {
+                journal = new JobJournal(journalDir, retention);
+            } catch (IOException e) {
+                log.error("Unable to init job journal in '" + journalDir 
+                        + "' (message: " + e.getMessage() + ")!", e);
+                System.exit(1);
+            }
+            if(jobStore == null){ //keep local results in the journal directory
+                jobStore = new LocalJobStore(journalDir);
+            }
+        }
+        log.info("    - job store: {}", jobStore == null ? "local" : jobStore);
+        log.info("    - journal: {}", journal == null ? "none" : journal);
+        
         log.info(" ... init Transformer ...");
-        Any23Transformer transformer = new Any23Transformer(config, mode);
+        Any23Transformer transformer = null;
+        try {
+            transformer = new Any23Transformer(config, mode);
+        } catch (IllegalArgumentException e) { //invalid bulkhead configuration
+            log.error(e.getMessage());
+            System.exit(1);
+        }
         transformer.setCorePoolSize(corePoolSize);
         transformer.setMaxPoolSize(maxPoolSize);
         transformer.setKeepAliveTime(keepAliveTime);
+        transformer.setJobStore(jobStore);
+        transformer.setJournal(journal);
+        transformer.setAdaptiveConcurrency(adaptive);
+        transformer.setMemoryBudget(memoryBudget);
+        transformer.setBufferPool(bufferPool);
+        transformer.setStreamingResults(streamResults);
+        transformer.setExtractorThreads(extractorThreads);
+        if(slowJobThreshold != null){
+            transformer.setSlowJobThreshold(slowJobThreshold);
+        }
+        for(Bulkhead bulkhead : bulkheads){
+            transformer.addBulkhead(bulkhead);
+        }
+        
+        if(line.hasOption('B')){
+            System.exit(batch(line, transformer));
+        }
         
         log.info(" ... init Server on port {}...", port);
-        TransformerServer server = new TransformerServer(port,true);
+        final Any23Server server = new Any23Server(port,true);
+        server.setDrainTimeout(drainTimeout);
+        server.setDrainGracePeriod(training ? 0 : drainGrace);
+        server.setShutdownTimeout(shutdownTimeout);
+        server.setWarmup(warmup);
+        if(configFile != null){ //reload the configuration on changes
+            ConfigReloader reloader = new ConfigReloader(configFile, transformer);
+            try {
+                reloader.start();
+            } catch (IOException e) {
+                log.warn("Unable to watch configuration file " + configFile 
+                        + " (message: " + e.getMessage() + ")", e);
+            }
+            server.setConfigReloader(reloader);
+        }
+        if(nonBlockingIngest){
+            //spool to the journal directory so that bodies can be moved there
+            server.addFilter(new NonBlockingIngestFilter(
+                    journal == null ? null : journal.getDirectory()), "/");
+        }
         log.info(" ... start Server ...");
         server.start(transformer);
-        //log.info(" ... shutdown ...");
-        //transformer.close();
+        if(training){ //classes used to process requests are loaded
+            server.drainAndStop();
+            System.exit(0);
+        }
+        //drain on SIGTERM so that rolling restarts do not drop jobs
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                log.info(" ... shutdown ...");
+                server.shutdown();
+            }
+        }, "any23-shutdown"));
+        server.join();
+        //stopped by 'POST /admin/drain'
+        System.exit(0);
+    }
+    
+    /**
+     * Runs the batch conversion for the parsed command line
+     * @return the exit code
+     */
+    private static int batch(CommandLine line, Any23Transformer transformer) 
+            throws IOException, InterruptedException {
+        log.info(" ... init batch conversion ...");
+        BatchConverter converter = new BatchConverter(transformer);
+        if(line.hasOption('o')){
+            converter.setOutputFile(new File(line.getOptionValue('o')));
+            log.info("    - output: {}", converter.getOutputFile());
+        }
+        if(line.hasOption('O')){
+            converter.setOutputDir(new File(line.getOptionValue('O')));
+            log.info("    - output directory: {}", converter.getOutputDir());
+        }
+        if(converter.getOutputFile() == null && converter.getOutputDir() == null){
+            log.error(" batch mode requires an output file (-o) or directory (-O)");
+            return 1;
+        }
+        if(converter.getOutputFile() != null && converter.getOutputDir() != null){
+            log.error(" only one of output file (-o) and directory (-O) can be used");
+            return 1;
+        }
+        if(line.hasOption('t')){
+            for(String value : line.getOptionValues('t')){
+                try {
+                    converter.addType(value);
+                } catch (IllegalArgumentException e) {
+                    log.error(e.getMessage());
+                    return 1;
+                }
+            }
+        }
+        log.info("    - types: {}", converter.getTypes());
+        if(line.hasOption('k')){
+            converter.setCheckpointFile(new File(line.getOptionValue('k')));
+            log.info("    - checkpoint: {}", converter.getCheckpointFile());
+        }
+        if(line.hasOption('w')){
+            String value = line.getOptionValue('w');
+            try {
+                converter.setWorkers(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                log.error(" parsed number of workers '{}' is not an integer", value);
+                return 1;
+            } catch (IllegalArgumentException e) {
+                log.error(e.getMessage());
+                return 1;
+            }
+        }
+        log.info("    - workers: {}", converter.getWorkers());
+        if(line.hasOption('u')){
+            converter.setBaseUri(line.getOptionValue('u'));
+            log.info("    - base URI: {}", converter.getBaseUri());
+        }
+        List<File> inputs = new ArrayList<File>();
+        for(String arg : line.getArgs()){
+            inputs.add(new File(arg));
+        }
+        if(inputs.isEmpty()){
+            log.error(" batch mode requires at least one input file or directory");
+            return 1;
+        }
+        BatchConverter.Stats stats = converter.convert(inputs);
+        log.info("> extractor profile: {}", transformer.getExtractorProfiler().getSummary());
+        transformer.close();
+        log.info("> converted {}", stats);
+        return stats.getFailed() > 0 ? 2 : 0;
     }
     
     /**
@@ -200,7 +591,7 @@ public class Main {
     private static void printHelp() {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp(
-            "java -Xmx{size} -jar {jar-name} [options]",
+            "java -Xmx{size} -jar {jar-name} [options] [-B {input}...]",
             "Any23 Transformer: \n",
             options,
             "provided by Fusepool P3 and powered by http://any23.apache.org");
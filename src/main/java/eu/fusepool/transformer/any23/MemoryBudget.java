@@ -0,0 +1,502 @@
+package eu.fusepool.transformer.any23;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A heap budget shared by all transformation jobs. Before a job starts it
+ * reserves its estimated memory cost. Jobs with an estimated cost exceeding
+ * the whole budget are not admitted at all. If not enough budget is
+ * available the job is parked (without occupying a thread) and its
+ * {@link Listener} is notified as soon as budget was reserved for it.<p>
+ * The cost of a job is estimated as <code>{@link #BASE_COST} + factor * 
+ * length * (1 + copies)</code> where the factor depends on the content type
+ * (e.g. the DOM built for HTML documents is many times larger than the
+ * document itself) and <code>copies</code> is the number of additional
+ * copies of the in-memory representation kept by the job (e.g. the DOM copies
+ * of a {@link ParallelExtraction.Batch}).
+ * Factors start with defaults and are learned from the growth of the heap
+ * retained after garbage collections (an exponential moving average). Only
+ * jobs that ran alone and saw a garbage collection are used for learning as
+ * the heap can not be attributed to concurrent jobs. Learned factors stay
+ * within {@link #MAX_DEVIATION} of the default so that a few bad samples
+ * can not cause documents to be rejected.
+ */
+public class MemoryBudget implements MemoryBudgetMBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default fraction of the max heap used as budget
+     */
+    public static final double DEFAULT_HEAP_FRACTION = 0.5;
+    /**
+     * Fixed cost of a job (Any23 extractors, buffers ...)
+     */
+    public static final long BASE_COST = 1024 * 1024;
+    /**
+     * The factor used for content types without a default nor learned factor
+     */
+    public static final double DEFAULT_FACTOR = 6;
+
+    private static final Map<String,Double> DEFAULT_FACTORS;
+    static {
+        Map<String,Double> factors = new TreeMap<String,Double>();
+        factors.put("text/html", 20d);
+        factors.put("application/xhtml+xml", 20d);
+        factors.put("application/rdf+xml", 8d);
+        factors.put("application/ld+json", 8d);
+        factors.put("text/turtle", 4d);
+        factors.put("text/n3", 4d);
+        factors.put("text/rdf+n3", 4d);
+        factors.put("text/rdf+nt", 2d);
+        factors.put("text/plain", 2d); //N-Triples
+        factors.put("application/n-triples", 2d);
+        factors.put("application/n-quads", 2d);
+        factors.put("text/csv", 4d);
+        DEFAULT_FACTORS = factors;
+    }
+    /**
+     * The weight of a new observation for learning factors
+     */
+    private static final double LEARN_WEIGHT = 0.2;
+    /**
+     * Smaller documents are not used for learning as the fixed costs dominate
+     */
+    private static final long MIN_LEARN_LENGTH = 64 * 1024;
+    /**
+     * Learned factors are kept within the default factor divided and 
+     * multiplied by this value
+     */
+    public static final double MAX_DEVIATION = 2;
+
+    private final long budget;
+    private final ConcurrentMap<String,Double> factors = new ConcurrentHashMap<String,Double>(DEFAULT_FACTORS);
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+    private final List<GarbageCollectorMXBean> collectors;
+
+    private final Object lock = new Object();
+    private long reserved;
+    /**
+     * The active reservations. Guarded by the {@link #lock}
+     */
+    private final Set<Reservation> active = new HashSet<Reservation>();
+    /**
+     * The jobs waiting for budget. Guarded by the {@link #lock}
+     */
+    private final Deque<Waiting> waiting = new ArrayDeque<Waiting>();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * Creates a budget of {@link #DEFAULT_HEAP_FRACTION} of the max heap
+     */
+    public MemoryBudget() {
+        this((long)(Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * Creates a budget
+     * @param budget the budget in bytes
+     */
+    public MemoryBudget(long budget) {
+        if(budget <= BASE_COST){
+            throw new IllegalArgumentException("The budget MUST BE greater as "
+                    + BASE_COST + " bytes");
+        }
+        this.budget = budget;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()){
+                heapPools.add(pool);
+            }
+        }
+        this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        if(heapPools.isEmpty()){
+            log.info("Heap usage after collections not available. Cost factors are not learned");
+        }
+    }
+
+    /**
+     * Registers the MBean
+     */
+    public synchronized void start() {
+        if(objectName == null){
+            objectName = MBeans.register(this, "MemoryBudget", "heap");
+        }
+    }
+
+    /**
+     * Unregisters the MBean
+     */
+    public synchronized void stop() {
+        MBeans.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * Estimates the memory cost of a job
+     * @param contentType the content type of the data
+     * @param length the length of the data in bytes (negative if unknown)
+     * @return the estimated cost in bytes
+     */
+    public long estimate(String contentType, long length) {
+        return estimate(contentType, length, 0);
+    }
+
+    /**
+     * Estimates the memory cost of a job
+     * @param contentType the content type of the data
+     * @param length the length of the data in bytes (negative if unknown)
+     * @param copies the number of additional copies of the in-memory
+     * representation of the data kept by the job
+     * @return the estimated cost in bytes
+     */
+    public long estimate(String contentType, long length, int copies) {
+        return BASE_COST + (long)(getFactor(contentType) * Math.max(0, length) 
+                * (1 + Math.max(0, copies)));
+    }
+
+    /**
+     * Checks if a job can be admitted. Jobs with an estimated cost exceeding
+     * the whole budget can never run and are rejected.
+     * @param contentType the content type of the data
+     * @param length the length of the data in bytes
+     * @return if the job can be admitted
+     */
+    public boolean admit(String contentType, long length) {
+        return admit(contentType, length, 0);
+    }
+
+    /**
+     * Checks if a job can be admitted. Jobs with an estimated cost exceeding
+     * the whole budget can never run and are rejected.
+     * @param contentType the content type of the data
+     * @param length the length of the data in bytes
+     * @param copies the number of additional copies of the in-memory
+     * representation of the data kept by the job
+     * @return if the job can be admitted
+     */
+    public boolean admit(String contentType, long length, int copies) {
+        if(estimate(contentType, length, copies) > budget){
+            rejected.incrementAndGet();
+            return false;
+        } else {
+            admitted.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Reserves the estimated cost of a job. If not enough budget is available
+     * the job is parked and the parsed listener is notified once the budget
+     * was reserved for it. Parked jobs get budget in the order they were
+     * parked.
+     * @param contentType the content type of the data
+     * @param length the length of the data in bytes
+     * @param listener notified with the reservation if the job needs to wait
+     * @return the reservation or <code>null</code> if the job was parked. 
+     * Reservations MUST BE {@link Reservation#release() released} after the
+     * job completes.
+     */
+    public Reservation reserve(String contentType, long length, Listener listener) {
+        return reserve(contentType, length, 0, listener);
+    }
+
+    /**
+     * Reserves the estimated cost of a job. If not enough budget is available
+     * the job is parked and the parsed listener is notified once the budget
+     * was reserved for it. Parked jobs get budget in the order they were
+     * parked.
+     * @param contentType the content type of the data
+     * @param length the length of the data in bytes
+     * @param copies the number of additional copies of the in-memory
+     * representation of the data kept by the job. Not used for learning as
+     * copies are not retained after the job.
+     * @param listener notified with the reservation if the job needs to wait
+     * @return the reservation or <code>null</code> if the job was parked. 
+     * Reservations MUST BE {@link Reservation#release() released} after the
+     * job completes.
+     */
+    public Reservation reserve(String contentType, long length, int copies, Listener listener) {
+        //factors might have been increased since admission so cap the cost
+        long cost = Math.min(budget, estimate(contentType, length, copies));
+        String type = getBaseType(contentType);
+        synchronized (lock) {
+            if(waiting.isEmpty() && reserved + cost <= budget){
+                return createReservation(type, length, cost);
+            }
+            log.debug(" - wait for {} bytes of heap budget (reserved: {}/{})",
+                    new Object[]{cost, reserved, budget});
+            waiting.add(new Waiting(type, length, cost, listener));
+            return null;
+        }
+    }
+
+    /**
+     * Creates a reservation. MUST BE called while holding the {@link #lock}
+     */
+    private Reservation createReservation(String type, long length, long cost) {
+        Reservation reservation = new Reservation(type, length, cost, !active.isEmpty());
+        if(!active.isEmpty()){ //heap growth can no longer be attributed
+            for(Reservation other : active){
+                other.shared = true;
+            }
+        }
+        active.add(reservation);
+        reserved += cost;
+        return reservation;
+    }
+
+    private double getFactor(String contentType) {
+        Double factor = factors.get(getBaseType(contentType));
+        return factor == null ? DEFAULT_FACTOR : factor;
+    }
+
+    /**
+     * Learns the factor for the parsed type from an observation
+     * @param type the base type
+     * @param length the length of the data
+     * @param retained the heap retained by the job
+     */
+    void learn(String type, long length, long retained) {
+        if(type == null || length < MIN_LEARN_LENGTH || retained <= 0){
+            return;
+        }
+        Double defaultFactor = DEFAULT_FACTORS.get(type);
+        double initial = defaultFactor == null ? DEFAULT_FACTOR : defaultFactor;
+        double observed = Math.max(initial / MAX_DEVIATION, Math.min(initial * MAX_DEVIATION,
+                retained / (double)length));
+        Double current = factors.get(type);
+        double factor = current == null ? observed : 
+            (1 - LEARN_WEIGHT) * current + LEARN_WEIGHT * observed;
+        factors.put(type, factor);
+        log.trace(" - learned factor {} for {} (observed: {})", 
+                new Object[]{factor, type, observed});
+    }
+
+    private static String getBaseType(String contentType) {
+        if(contentType == null){
+            return null;
+        }
+        try {
+            return new MimeType(contentType).getBaseType();
+        } catch (MimeTypeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The number of garbage collections since the start of the JVM
+     */
+    private long getCollectionCount() {
+        long count = 0;
+        for(GarbageCollectorMXBean collector : collectors){
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * The heap retained after the most recent garbage collection of every
+     * heap pool or <code>-1</code> if not available
+     */
+    private long getRetainedHeap() {
+        if(heapPools.isEmpty()){
+            return -1;
+        }
+        long retained = 0;
+        for(MemoryPoolMXBean pool : heapPools){
+            MemoryUsage usage = pool.getCollectionUsage();
+            if(usage != null){
+                retained += usage.getUsed();
+            }
+        }
+        return retained;
+    }
+
+    @Override
+    public long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public long getReserved() {
+        synchronized (lock) {
+            return reserved;
+        }
+    }
+
+    @Override
+    public int getWaitingCount() {
+        synchronized (lock) {
+            return waiting.size();
+        }
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String getFactors() {
+        return new TreeMap<String,Double>(factors).toString();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[budget: ")
+                .append(budget / (1024 * 1024)).append("MB]").toString();
+    }
+
+    /**
+     * Notified when budget was reserved for a job that needed to wait
+     */
+    public interface Listener {
+
+        /**
+         * Called with the reservation made for the waiting job. Called by the
+         * thread releasing budget so implementations MUST NOT block nor run
+         * the job (e.g. they should resubmit the job to its thread pool and
+         * retry later if the pool is saturated).
+         * @param reservation the reservation
+         */
+        void budgetAvailable(Reservation reservation);
+    }
+
+    /**
+     * A job waiting for budget
+     */
+    private static class Waiting {
+
+        private final String type;
+        private final long length;
+        private final long cost;
+        private final Listener listener;
+
+        Waiting(String type, long length, long cost, Listener listener) {
+            this.type = type;
+            this.length = length;
+            this.cost = cost;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Budget reserved for a job. Releasing the reservation also learns the
+     * cost factor from the growth of the retained heap if the job ran alone
+     * and a garbage collection happened while it was running.
+     */
+    public class Reservation {
+
+        private final String type;
+        private final long length;
+        private final long cost;
+        private final long collections;
+        private final long retained;
+        /**
+         * If other jobs were running at the same time. Guarded by the 
+         * {@link MemoryBudget#lock}
+         */
+        private boolean shared;
+        private boolean released;
+
+        private Reservation(String type, long length, long cost, boolean shared) {
+            this.type = type;
+            this.length = length;
+            this.cost = cost;
+            this.shared = shared;
+            this.collections = getCollectionCount();
+            this.retained = getRetainedHeap();
+        }
+
+        /**
+         * The reserved cost in bytes
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * Releases the reserved budget and hands it over to waiting jobs.
+         * Reservations of jobs that fail to resume are released by the same
+         * loop instead of recursively.
+         */
+        public void release() {
+            Deque<Reservation> releasing = new ArrayDeque<Reservation>();
+            releasing.add(this);
+            while(!releasing.isEmpty()){
+                Reservation reservation = releasing.pollFirst();
+                List<Waiting> resumed = new ArrayList<Waiting>();
+                List<Reservation> reservations = new ArrayList<Reservation>();
+                if(!reservation.free(resumed, reservations)){
+                    continue; //already released
+                }
+                for(int i = 0; i < resumed.size(); i++){
+                    try {
+                        resumed.get(i).listener.budgetAvailable(reservations.get(i));
+                    } catch (RuntimeException e) {
+                        log.warn("Unable to resume job waiting for heap budget", e);
+                        releasing.add(reservations.get(i));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Frees the reserved budget and reserves it for waiting jobs
+         * @param resumed the waiting jobs that got budget
+         * @param reservations the reservations made for the resumed jobs
+         * @return <code>false</code> if already released
+         */
+        private boolean free(List<Waiting> resumed, List<Reservation> reservations) {
+            boolean learn;
+            synchronized (lock) {
+                if(released){
+                    return false;
+                }
+                released = true;
+                learn = !shared;
+                active.remove(this);
+                reserved -= cost;
+                while(!waiting.isEmpty() && reserved + waiting.peekFirst().cost <= budget){
+                    Waiting next = waiting.pollFirst();
+                    resumed.add(next);
+                    reservations.add(createReservation(next.type, next.length, next.cost));
+                }
+            }
+            if(learn && retained >= 0 && getCollectionCount() > collections){
+                learn(type, length, getRetainedHeap() - retained);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package eu.fusepool.transformer.any23;
+
+/**
+ * JMX interface exposing the state of the {@link MemoryBudget}
+ */
+public interface MemoryBudgetMBean {
+
+    /**
+     * The heap budget in bytes
+     */
+    long getBudget();
+
+    /**
+     * The heap currently reserved by running jobs in bytes
+     */
+    long getReserved();
+
+    /**
+     * The number of jobs currently waiting for budget
+     */
+    int getWaitingCount();
+
+    /**
+     * The number of jobs that were admitted
+     */
+    long getAdmittedCount();
+
+    /**
+     * The number of jobs rejected because their estimated cost exceeds the
+     * whole budget
+     */
+    long getRejectedCount();
+
+    /**
+     * The (learned) cost factors per content type
+     */
+    String getFactors();
+
+}
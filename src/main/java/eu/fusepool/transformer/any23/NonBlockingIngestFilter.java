@@ -0,0 +1,289 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the bodies of POST requests with Servlet 3.1 non-blocking I/O 
+ * ({@link ReadListener}) and spools them to a file as data become available.
+ * No server thread is blocked while a (slow) client uploads data. Only when
+ * all data are read the request is passed on - with the spooled data as 
+ * body - to the transformer servlet.<p>
+ * The spooled file is also available as {@link SpooledBody} request 
+ * attribute ({@link #SPOOLED_BODY}) so that the transformer can take it
+ * over instead of copying the data once more. Data are spooled as received
+ * (without compression) to keep the container threads calling the
+ * {@link ReadListener} free of CPU intensive work.
+ */
+public class NonBlockingIngestFilter implements Filter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The request attribute holding the {@link SpooledBody}
+     */
+    static final String SPOOLED_BODY = NonBlockingIngestFilter.class.getName() + ".body";
+
+    private final File spoolDir;
+
+    /**
+     * Creates the filter
+     * @param spoolDir the directory for spooled request bodies or 
+     * <code>null</code> to use the tmp directory. Use the directory data
+     * of accepted jobs are spooled to (e.g. the {@link JobJournal#getDirectory()
+     * journal directory}) so that spooled bodies can be moved there.
+     */
+    public NonBlockingIngestFilter(File spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if(!(request instanceof HttpServletRequest) || 
+                !"POST".equals(((HttpServletRequest)request).getMethod()) ||
+                !request.isAsyncSupported() || request.getContentLength() == 0){
+            chain.doFilter(request, response);
+            return;
+        }
+        File spool = File.createTempFile("any23-ingest", ".spool", spoolDir);
+        spool.deleteOnExit();
+        OutputStream out;
+        try {
+            out = new FileOutputStream(spool);
+        } catch (IOException e) {
+            spool.delete();
+            throw e;
+        }
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0); //slow uploads are limited by the idle timeout
+        ServletInputStream in = request.getInputStream();
+        in.setReadListener(new SpoolingReadListener((HttpServletRequest)request,
+                async, chain, in, out, new SpooledBody(spool)));
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Spools data as they become available and passes the request on when
+     * all data are read.
+     */
+    private class SpoolingReadListener implements ReadListener {
+
+        private final HttpServletRequest request;
+        private final AsyncContext async;
+        private final FilterChain chain;
+        private final ServletInputStream in;
+        private final OutputStream out;
+        private final SpooledBody body;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        SpoolingReadListener(HttpServletRequest request, AsyncContext async,
+                FilterChain chain, ServletInputStream in, OutputStream out, SpooledBody body) {
+            this.request = request;
+            this.async = async;
+            this.chain = chain;
+            this.in = in;
+            this.out = out;
+            this.body = body;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            int n;
+            while(in.isReady() && (n = in.read(buffer)) >= 0){
+                out.write(buffer, 0, n);
+                body.digest.update(buffer, 0, n);
+                body.length += n;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            HttpServletResponse response = (HttpServletResponse)async.getResponse();
+            try {
+                out.close();
+                body.contentHash = TmpFileDocumentSource.toHex(body.digest.digest());
+                log.debug(" - spooled {} bytes of {} {}", new Object[]{
+                        body.length, request.getMethod(), request.getRequestURI()});
+                request.setAttribute(SPOOLED_BODY, body);
+                chain.doFilter(new SpooledRequest(request, body.file), response);
+            } catch (ServletException e) {
+                log.warn("Unable to process " + request.getRequestURI(), e);
+                if(!response.isCommitted()){
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+                }
+            } finally {
+                body.delete(); //unless taken over by the transformer
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.debug("Unable to read request body of " + request.getRequestURI(), t);
+            IOUtils.closeQuietly(out);
+            body.delete();
+            try {
+                HttpServletResponse response = (HttpServletResponse)async.getResponse();
+                if(!response.isCommitted()){
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                            "Unable to read request body (" + t.getMessage() + ")");
+                }
+            } catch (IOException e) {
+                log.debug("Unable to send error response", e);
+            } finally {
+                async.complete();
+            }
+        }
+    }
+
+    /**
+     * A request body spooled to a file as received
+     */
+    static class SpooledBody {
+
+        private final File file;
+        private final MessageDigest digest;
+        private long length;
+        private String contentHash;
+        private boolean taken;
+
+        SpooledBody(File file) {
+            this.file = file;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Takes over the file. The caller is responsible to delete it.
+         * @return the file
+         * @throws IllegalStateException if the file was already taken
+         */
+        synchronized File take() {
+            if(taken){
+                throw new IllegalStateException("Spooled body " + file + " already taken");
+            }
+            taken = true;
+            return file;
+        }
+
+        /**
+         * The number of spooled bytes
+         */
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * The SHA-256 hash (hex) of the spooled data
+         */
+        String getContentHash() {
+            return contentHash;
+        }
+
+        synchronized void delete() {
+            if(!taken){
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Request with the spooled data as body
+     */
+    private static class SpooledRequest extends HttpServletRequestWrapper {
+
+        private final File spool;
+        private ServletInputStream stream;
+
+        SpooledRequest(HttpServletRequest request, File spool) {
+            super(request);
+            this.spool = spool;
+        }
+
+        @Override
+        public synchronized ServletInputStream getInputStream() throws IOException {
+            if(stream == null){
+                stream = openStream();
+            }
+            return stream;
+        }
+
+        private ServletInputStream openStream() throws IOException {
+            final InputStream in = new FileInputStream(spool);
+            return new ServletInputStream() {
+
+                private boolean finished;
+
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    finished = b < 0;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    finished = n < 0;
+                    return n;
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return finished;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true; //local file
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    throw new IllegalStateException("Data are already read");
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.any23.extractor.ExtractionContext;
+import org.apache.any23.extractor.ExtractionException;
+import org.apache.any23.extractor.ExtractionParameters;
+import org.apache.any23.extractor.ExtractionResult;
+import org.apache.any23.extractor.Extractor;
+import org.apache.any23.extractor.Extractor.ContentExtractor;
+import org.apache.any23.extractor.Extractor.TagSoupDOMExtractor;
+import org.apache.any23.extractor.ExtractorDescription;
+import org.apache.any23.extractor.ExtractorFactory;
+import org.apache.any23.extractor.ExtractorGroup;
+import org.apache.any23.extractor.IssueReport.Issue;
+import org.apache.any23.extractor.IssueReport.IssueLevel;
+import org.apache.any23.extractor.TagSoupExtractionResult;
+import org.apache.any23.extractor.html.MicroformatExtractor;
+import org.apache.any23.extractor.html.TagSoupParser;
+import org.apache.any23.mime.MIMEType;
+import org.apache.any23.rdf.Prefixes;
+import org.apache.any23.source.DocumentSource;
+import org.apache.commons.io.IOUtils;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Runs the extractors (RDFa, microdata, microformats ...) of an HTML document
+ * in parallel on a shared {@link ForkJoinPool}.<p>
+ * Any23 parses (and validates) an HTML document once and runs its
+ * {@link TagSoupDOMExtractor}s and {@link ContentExtractor}s (e.g. RDFa) one
+ * after the other in the calling thread. Factories wrapped by 
+ * {@link #wrap(ExtractorGroup)} create extractors that - if a {@link Batch}
+ * was {@link #start(ExtractorGroup, DocumentSource) started} by the current
+ * thread - submit all extractors of the batch to the pool when Any23 runs
+ * the first of them. Every extractor records its output. When
+ * Any23 runs an extractor its recorded output is replayed to the
+ * {@link ExtractionResult} provided by Any23. Triples, issues and the nesting
+ * information of microformats therefore reach the
+ * {@link org.apache.any23.writer.TripleHandler} chain in the same order as
+ * for sequential extraction.<p>
+ * Factories are expected to wrap {@link ExtractorProfiler#wrap(ExtractorGroup)
+ * profiled} factories. The {@link JobTrace} and the 
+ * {@link ExtractorProfiler.Profile} of the job are attached to the pool
+ * thread while it runs an extractor so that the time of the extractor (and
+ * not the time waiting for its output) is recorded.<p>
+ * DOM implementations are not thread-safe even for reads (node lists cache
+ * their state) so extractors do not share the parsed DOM but work on deep
+ * copies. Copies are created one after the other when a task starts so at
+ * most one copy per pool thread is in memory (see {@link #getCopies(ExtractorGroup, 
+ * long)} for the number of copies to charge to a job). The recorded output of every
+ * extractor is kept in memory until Any23 runs the extractor. Therefore only
+ * documents of up to {@link #MAX_LENGTH} are extracted in parallel.
+ */
+public class ParallelExtraction {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Larger documents (and those of unknown length) are extracted
+     * sequentially as the DOM copies and the recorded output of all their 
+     * extractors would need to be kept in memory
+     */
+    public static final long MAX_LENGTH = 4 * 1024 * 1024;
+
+    private ForkJoinPool pool;
+
+    /**
+     * The batch of the job processed by the current thread
+     */
+    private final ThreadLocal<Batch> current = new ThreadLocal<Batch>();
+
+    /**
+     * Creates the pool. Until the pool is created extractors run inline.
+     * @param parallelism the number of threads of the pool
+     */
+    public synchronized void start(int parallelism) {
+        if(parallelism < 1){
+            throw new IllegalArgumentException("The parallelism MUST BE greater than zero");
+        }
+        if(pool == null){
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    /**
+     * Shuts down the pool
+     */
+    public synchronized void stop() {
+        if(pool != null){
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * The maximum number of DOM copies a {@link Batch} for a document of the
+     * parsed length creates at the same time
+     * @param group the extractors (as returned by {@link #wrap(ExtractorGroup)})
+     * Any23 will run for the document
+     * @param length the length of the document
+     * @return the number of DOM copies or <code>0</code> if the document
+     * would be extracted sequentially
+     */
+    public int getCopies(ExtractorGroup group, long length) {
+        ForkJoinPool pool = getPool();
+        if(pool == null || group == null || length < 0 || length > MAX_LENGTH){
+            return 0;
+        }
+        int parallel = 0;
+        int dom = 0;
+        for(ExtractorFactory<?> factory : group){
+            if(factory instanceof ParallelExtractorFactory){
+                parallel++;
+                if(((ParallelExtractorFactory)factory).delegate.createExtractor()
+                        instanceof TagSoupDOMExtractor){
+                    dom++;
+                }
+            }
+        }
+        return parallel < 2 ? 0 : Math.min(dom, pool.getParallelism());
+    }
+
+    /**
+     * Wraps the {@link TagSoupDOMExtractor} and {@link ContentExtractor} 
+     * factories of the parsed group so that their extractors can be run in
+     * parallel. Other factories are kept as is.
+     * @param group the extractor group
+     * @return the group with the wrapped factories
+     */
+    public ExtractorGroup wrap(ExtractorGroup group) {
+        List<ExtractorFactory<?>> factories = new ArrayList<ExtractorFactory<?>>();
+        for(ExtractorFactory<?> factory : group){
+            Extractor<?> extractor = factory.createExtractor();
+            if(extractor instanceof TagSoupDOMExtractor || extractor instanceof ContentExtractor){
+                factories.add(new ParallelExtractorFactory(factory));
+            } else {
+                factories.add(factory);
+            }
+        }
+        return new ExtractorGroup(factories);
+    }
+
+    /**
+     * Starts a batch for the document processed by the current thread. The
+     * batch MUST BE {@link Batch#finish() finished} by the same thread.
+     * @param group the extractors (as returned by {@link #wrap(ExtractorGroup)})
+     * Any23 will run for the document
+     * @param source the document. {@link ContentExtractor}s open their own
+     * stream by {@link DocumentSource#openInputStream()} 
+     * @param profile the profile of the job or <code>null</code> if none
+     * @return the batch or <code>null</code> if the pool is not started, the
+     * document is larger as {@link #MAX_LENGTH} or the group contains less
+     * than two extractors that can run in parallel
+     */
+    public Batch start(ExtractorGroup group, DocumentSource source, 
+            ExtractorProfiler.Profile profile) {
+        ForkJoinPool pool = getPool();
+        if(pool == null || group == null){
+            return null;
+        }
+        long length = source.getContentLength();
+        if(length < 0 || length > MAX_LENGTH){
+            log.debug(" - extract {} sequentially (length: {})", source.getDocumentURI(), length);
+            return null;
+        }
+        Map<String,ExtractorFactory<?>> factories = new LinkedHashMap<String,ExtractorFactory<?>>();
+        for(ExtractorFactory<?> factory : group){
+            if(factory instanceof ParallelExtractorFactory){
+                factories.put(factory.getExtractorName(),
+                        ((ParallelExtractorFactory)factory).delegate);
+            }
+        }
+        if(factories.size() < 2){
+            return null;
+        }
+        Batch batch = new Batch(pool, factories, source, JobTrace.current(), profile);
+        current.set(batch);
+        return batch;
+    }
+
+    /**
+     * Copies the parsed DOM including the document URI (used as base URI by
+     * extractors) and the element locations set by the {@link TagSoupParser}
+     */
+    private static Document copy(Document document) {
+        Document copy = (Document)document.cloneNode(true);
+        copy.setDocumentURI(document.getDocumentURI());
+        copyLocations(document, copy);
+        return copy;
+    }
+
+    private static void copyLocations(Node source, Node target) {
+        Object location = source.getUserData(TagSoupParser.ELEMENT_LOCATION);
+        if(location != null){
+            target.setUserData(TagSoupParser.ELEMENT_LOCATION, location, null);
+        }
+        Node child = source.getFirstChild();
+        Node targetChild = target.getFirstChild();
+        while(child != null && targetChild != null){
+            copyLocations(child, targetChild);
+            child = child.getNextSibling();
+            targetChild = targetChild.getNextSibling();
+        }
+    }
+
+    /**
+     * The extractors run in parallel for a single document
+     */
+    public class Batch {
+
+        private final ForkJoinPool pool;
+        private final Map<String,ExtractorFactory<?>> factories;
+        private final DocumentSource source;
+        private final JobTrace trace;
+        private final ExtractorProfiler.Profile profile;
+        /**
+         * The DOM the tasks of the DOM extractors were submitted for or
+         * <code>null</code> if not yet submitted. Also used as lock while
+         * copying the DOM
+         */
+        private Document document;
+        private boolean submitted;
+        private final Map<String,Future<Recording>> tasks =
+                new LinkedHashMap<String,Future<Recording>>();
+
+        private Batch(ForkJoinPool pool, Map<String,ExtractorFactory<?>> factories,
+                DocumentSource source, JobTrace trace, ExtractorProfiler.Profile profile) {
+            this.pool = pool;
+            this.factories = factories;
+            this.source = source;
+            this.trace = trace;
+            this.profile = profile;
+        }
+
+        /**
+         * Gets the recorded output of the parsed extractor. Submits the tasks
+         * of the {@link ContentExtractor}s on the first call and those of the
+         * {@link TagSoupDOMExtractor}s on the first call with a DOM.
+         * @param dom the DOM or <code>null</code> for a {@link ContentExtractor}
+         * @return the recording or <code>null</code> if the extractor is not
+         * part of this batch or the DOM is not the one the tasks were
+         * submitted for. In that case the extractor needs to run inline.
+         */
+        private Recording get(String name, ExtractionParameters params,
+                ExtractionContext context, Document dom)
+                        throws IOException, ExtractionException {
+            if(!submitted){
+                submitted = true;
+                submit(params, context, false);
+            }
+            if(dom != null){
+                if(document == null){
+                    document = dom;
+                    submit(params, context, true);
+                } else if(document != dom){
+                    return null;
+                }
+            }
+            Future<Recording> task = tasks.remove(name);
+            if(task == null){
+                return null;
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ExtractionException("Interrupted while waiting for extractor " + name, e);
+            } catch (ExecutionException e) {
+                throw new ExtractionException("Unable to run extractor " + name, e.getCause());
+            }
+        }
+
+        private void submit(final ExtractionParameters params, ExtractionContext context,
+                boolean dom) {
+            int count = 0;
+            for(final Map.Entry<String,ExtractorFactory<?>> entry : factories.entrySet()){
+                if(dom != (entry.getValue().createExtractor() instanceof TagSoupDOMExtractor)){
+                    continue;
+                }
+                final ExtractionContext taskContext = new ExtractionContext(entry.getKey(),
+                        context.getDocumentURI(), context.getDefaultLanguage());
+                tasks.put(entry.getKey(), pool.submit(new Callable<Recording>() {
+                    @Override
+                    public Recording call() throws Exception {
+                        return extract(entry.getValue(), params, taskContext);
+                    }
+                }));
+                count++;
+            }
+            log.debug(" - submitted {} {} extractors for {}", new Object[]{
+                    count, dom ? "DOM" : "content", context.getDocumentURI()});
+        }
+
+        private Recording extract(ExtractorFactory<?> factory, ExtractionParameters params,
+                ExtractionContext context) {
+            Recording recording = new Recording();
+            //profiled extractors record to the trace and profile of the job
+            if(trace != null){
+                trace.attach();
+            }
+            if(profile != null){
+                profile.attach();
+            }
+            try {
+                Extractor<?> extractor = factory.createExtractor();
+                if(extractor instanceof TagSoupDOMExtractor){
+                    Document copy;
+                    synchronized (document) {
+                        copy = copy(document);
+                    }
+                    ((TagSoupDOMExtractor)extractor).run(params, context, copy, recording.root);
+                } else {
+                    InputStream in = source.openInputStream();
+                    try {
+                        ((ContentExtractor)extractor).run(params, context, in, recording.root);
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            } catch (IOException | ExtractionException | RuntimeException e) {
+                recording.failure = e;
+            } finally {
+                if(profile != null){
+                    profile.detach();
+                }
+                if(trace != null){
+                    trace.detach();
+                }
+            }
+            return recording;
+        }
+
+        /**
+         * Ends the batch. Cancels tasks of extractors that were not run by
+         * Any23 (e.g. because an other extractor failed). Tasks already
+         * running complete in the background. MUST BE called before the
+         * profile of the job is {@link ExtractorProfiler.Profile#finish(
+         * org.apache.any23.ExtractionReport) finished}.
+         */
+        public void finish() {
+            if(current.get() == this){
+                current.remove();
+            }
+            for(Future<Recording> task : tasks.values()){
+                task.cancel(false);
+            }
+            tasks.clear();
+        }
+    }
+
+    /**
+     * The recorded output of an extractor
+     */
+    private static class Recording {
+
+        private final List<Event> events = new ArrayList<Event>();
+        /**
+         * The number of recorded results (the root and opened sub results)
+         */
+        private int results;
+        private final RecordingExtractionResult root = new RecordingExtractionResult(this);
+        private Exception failure;
+
+        /**
+         * Replays the recorded output
+         * @param out the result to replay the output of the root result to
+         */
+        void replay(ExtractionResult out) throws IOException, ExtractionException {
+            List<ExtractionResult> targets = new ArrayList<ExtractionResult>(results);
+            targets.add(out);
+            for(Event event : events){
+                event.replay(targets);
+            }
+            if(failure instanceof IOException){
+                throw (IOException)failure;
+            } else if(failure instanceof ExtractionException){
+                throw (ExtractionException)failure;
+            } else if(failure != null){
+                throw (RuntimeException)failure;
+            }
+        }
+    }
+
+    private static abstract class Event {
+
+        /**
+         * The index of the result the event was recorded for
+         */
+        final int result;
+
+        Event(int result) {
+            this.result = result;
+        }
+
+        abstract void replay(List<ExtractionResult> targets);
+    }
+
+    /**
+     * Records calls to an {@link ExtractionResult}. The getters return empty
+     * collections as the recorded issues, resource roots and property paths
+     * are only available from the result they are replayed to.
+     */
+    private static class RecordingExtractionResult implements TagSoupExtractionResult {
+
+        private final Recording recording;
+        private final int index;
+
+        RecordingExtractionResult(Recording recording) {
+            this.recording = recording;
+            this.index = recording.results++;
+        }
+
+        @Override
+        public void notifyIssue(final IssueLevel level, final String msg,
+                final int row, final int col) {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    targets.get(result).notifyIssue(level, msg, row, col);
+                }
+            });
+        }
+
+        @Override
+        public void printReport(PrintStream ps) {
+        }
+
+        @Override
+        public Collection<Issue> getIssues() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void writeTriple(final Resource s, final URI p, final Value o, final URI g) {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    targets.get(result).writeTriple(s, p, o, g);
+                }
+            });
+        }
+
+        @Override
+        public void writeTriple(final Resource s, final URI p, final Value o) {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    targets.get(result).writeTriple(s, p, o);
+                }
+            });
+        }
+
+        @Override
+        public void writeNamespace(final String prefix, final String uri) {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    targets.get(result).writeNamespace(prefix, uri);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    targets.get(result).close();
+                }
+            });
+        }
+
+        @Override
+        public ExtractionResult openSubResult(final ExtractionContext context) {
+            final RecordingExtractionResult sub = new RecordingExtractionResult(recording);
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    //sub results are replayed in the order they were opened
+                    targets.add(targets.get(result).openSubResult(context));
+                }
+            });
+            return sub;
+        }
+
+        @Override
+        public void addResourceRoot(final String[] path, final Resource root,
+                final Class<? extends MicroformatExtractor> extractor) {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    ((TagSoupExtractionResult)targets.get(result)).addResourceRoot(
+                            path, root, extractor);
+                }
+            });
+        }
+
+        @Override
+        public List<ResourceRoot> getResourceRoots() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void addPropertyPath(final Class<? extends MicroformatExtractor> extractor,
+                final Resource propertySubject, final Resource property,
+                final BNode object, final String[] path) {
+            recording.events.add(new Event(index) {
+                @Override
+                void replay(List<ExtractionResult> targets) {
+                    ((TagSoupExtractionResult)targets.get(result)).addPropertyPath(
+                            extractor, propertySubject, property, object, path);
+                }
+            });
+        }
+
+        @Override
+        public List<PropertyPath> getPropertyPaths() {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Creates {@link ParallelDOMExtractor}s and {@link ParallelContentExtractor}s
+     */
+    private class ParallelExtractorFactory implements ExtractorFactory<Extractor<?>> {
+
+        private final ExtractorFactory<?> delegate;
+
+        ParallelExtractorFactory(ExtractorFactory<?> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String getExtractorName() {
+            return delegate.getExtractorName();
+        }
+
+        @Override
+        public String getExtractorLabel() {
+            return delegate.getExtractorLabel();
+        }
+
+        @Override
+        public Prefixes getPrefixes() {
+            return delegate.getPrefixes();
+        }
+
+        @Override
+        public Extractor<?> createExtractor() {
+            Extractor<?> extractor = delegate.createExtractor();
+            if(extractor instanceof TagSoupDOMExtractor){
+                return new ParallelDOMExtractor((TagSoupDOMExtractor)extractor);
+            } else {
+                return new ParallelContentExtractor((ContentExtractor)extractor);
+            }
+        }
+
+        @Override
+        public Collection<MIMEType> getSupportedMIMETypes() {
+            return delegate.getSupportedMIMETypes();
+        }
+
+        @Override
+        public String getExampleInput() {
+            return delegate.getExampleInput();
+        }
+    }
+
+    /**
+     * Replays the output recorded for the extractor by the {@link Batch} of
+     * the current thread. Runs the extractor inline if there is no batch
+     * or the extractor is not part of it.
+     */
+    private abstract class ParallelExtractor<I> implements Extractor<I> {
+
+        private final Extractor<I> delegate;
+
+        ParallelExtractor(Extractor<I> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run(ExtractionParameters extractionParameters, ExtractionContext context,
+                I in, ExtractionResult out) throws IOException, ExtractionException {
+            Batch batch = current.get();
+            Recording recording = batch == null ? null : batch.get(context.getExtractorName(),
+                    extractionParameters, context, in instanceof Document ? (Document)in : null);
+            if(recording != null){
+                recording.replay(out);
+            } else {
+                delegate.run(extractionParameters, context, in, out);
+            }
+        }
+
+        @Override
+        public ExtractorDescription getDescription() {
+            return delegate.getDescription();
+        }
+    }
+
+    private class ParallelDOMExtractor extends ParallelExtractor<Document>
+            implements TagSoupDOMExtractor {
+
+        ParallelDOMExtractor(TagSoupDOMExtractor delegate) {
+            super(delegate);
+        }
+    }
+
+    /**
+     * The stream parsed by Any23 is not used if the output was recorded as
+     * the task of the extractor opened its own stream.
+     */
+    private class ParallelContentExtractor extends ParallelExtractor<InputStream>
+            implements ContentExtractor {
+
+        private final ContentExtractor delegate;
+
+        ParallelContentExtractor(ContentExtractor delegate) {
+            super(delegate);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setStopAtFirstError(boolean stopAtFirstError) {
+            delegate.setStopAtFirstError(stopAtFirstError);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The result of a job while it is produced. The serialized triples are
+ * written (uncompressed) to a tmp file that can be tailed by any number of
+ * readers (see {@link #tail()}). Readers either block until more data are
+ * written or the job has finished or - to not block a thread for the whole
+ * job - {@link Tail#poll(byte[], int, int) poll} for data and
+ * {@link Tail#await(Runnable) register} to be notified about more data.<p>
+ * The file is deleted as soon as the job has finished and all readers are
+ * closed.
+ */
+class PartialResult {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The maximum time readers wait for data before re-checking the file
+     */
+    private static final long MAX_WAIT = 1000;
+
+    enum Status { PENDING, RUNNING, COMPLETED, FAILED }
+
+    private final String requestId;
+    private final File file;
+
+    private final Object lock = new Object();
+    private Status status = Status.PENDING;
+    private String message;
+    private int readers;
+    /**
+     * Incremented on every write and status change. Guarded by the {@link #lock}
+     */
+    private long version;
+    /**
+     * Notified once about the next write or status change. Guarded by 
+     * the {@link #lock}
+     */
+    private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+    /**
+     * Creates the partial result for the parsed job
+     * @param requestId the request id
+     * @throws IOException if the tmp file can not be created
+     */
+    PartialResult(String requestId) throws IOException {
+        this.requestId = requestId;
+        String prefix = requestId == null || requestId.length() < 3 ?
+                UUID.randomUUID().toString() : TmpFileEntity.toFileName(requestId);
+        file = File.createTempFile(prefix, ".partial");
+        file.deleteOnExit();
+    }
+
+    /**
+     * Opens the stream used by the job to write the result
+     * @return the stream
+     * @throws IOException if the file can not be opened
+     */
+    OutputStream open() throws IOException {
+        synchronized (lock) {
+            status = Status.RUNNING;
+        }
+        return new FilterOutputStream(new FileOutputStream(file)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                changed();
+            }
+        };
+    }
+
+    /**
+     * Marks the job as completed
+     */
+    void completed() {
+        finished(Status.COMPLETED, null);
+    }
+
+    /**
+     * Marks the job as failed
+     * @param message the error message
+     */
+    void failed(String message) {
+        finished(Status.FAILED, message);
+    }
+
+    private void finished(Status status, String message) {
+        synchronized (lock) {
+            this.status = status;
+            this.message = message;
+            if(readers == 0){
+                delete();
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Wakes up blocked readers and notifies registered callbacks
+     */
+    private void changed() {
+        List<Runnable> notify;
+        synchronized (lock) {
+            version++;
+            lock.notifyAll();
+            if(callbacks.isEmpty()){
+                return;
+            }
+            notify = callbacks;
+            callbacks = new ArrayList<Runnable>();
+        }
+        for(Runnable callback : notify){
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                log.warn("Unable to notify reader of " + requestId, e);
+            }
+        }
+    }
+
+    private void delete() {
+        if(file.isFile()){
+            log.debug(" - clean {}", file);
+            file.delete();
+        }
+    }
+
+    /**
+     * Getter for the status of the job
+     */
+    Status getStatus() {
+        synchronized (lock) {
+            return status;
+        }
+    }
+
+    /**
+     * Getter for the error message of a {@link Status#FAILED} job
+     */
+    String getMessage() {
+        synchronized (lock) {
+            return message;
+        }
+    }
+
+    /**
+     * Opens a stream that reads the result from the beginning and blocks
+     * until more data are available or the job has finished.
+     * @return the stream or <code>null</code> if the job has already finished
+     * and the data are no longer available
+     * @throws IOException if the file can not be opened
+     */
+    Tail tail() throws IOException {
+        synchronized (lock) {
+            if(!file.isFile()){
+                return null;
+            }
+            readers++;
+        }
+        try {
+            return new Tail(new FileInputStream(file));
+        } catch (IOException e) {
+            closeReader();
+            throw e;
+        }
+    }
+
+    private void closeReader() {
+        synchronized (lock) {
+            readers--;
+            if(readers == 0 && (status == Status.COMPLETED || status == Status.FAILED)){
+                delete();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[id: ")
+                .append(requestId).append(" | status: ").append(getStatus())
+                .append(" | file: ").append(file).append("]").toString();
+    }
+
+    /**
+     * Reads the result from the beginning
+     */
+    class Tail extends InputStream {
+
+        private final FileInputStream in;
+        private boolean closed;
+        /**
+         * The {@link PartialResult#version} seen by the last poll
+         */
+        private long seen = -1;
+
+        Tail(FileInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * Reads data and blocks until data are available or the job has finished
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return 0;
+            }
+            while(true){
+                int n = poll(b, off, len);
+                if(n != 0){
+                    return n;
+                }
+                synchronized (lock) {
+                    if(version == seen){
+                        try {
+                            lock.wait(MAX_WAIT);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while "
+                                    + "waiting for the result of " + requestId);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the data available without blocking
+         * @return the number of bytes read, <code>0</code> if no data are
+         * available or <code>-1</code> if the job has finished and all data
+         * were read
+         * @throws IOException on any error while reading the file
+         */
+        int poll(byte[] b, int off, int len) throws IOException {
+            boolean finished;
+            synchronized (lock) {
+                finished = status == Status.COMPLETED || status == Status.FAILED;
+                seen = version;
+            }
+            //read after checking the status so that no data written
+            //before the job finished are missed
+            int n = in.read(b, off, len);
+            if(n > 0){
+                return n;
+            }
+            return finished ? -1 : 0;
+        }
+
+        /**
+         * Registers a callback notified once data were written or the job
+         * finished after the last {@link #poll(byte[], int, int)}. The 
+         * callback is called by the thread writing the data so it MUST NOT
+         * block nor write to clients.
+         * @param callback the callback
+         * @return <code>true</code> if registered or <code>false</code> if 
+         * data were written since the last poll and the caller should poll
+         * again
+         */
+        boolean await(Runnable callback) {
+            synchronized (lock) {
+                if(version != seen){
+                    return false;
+                }
+                callbacks.add(callback);
+                return true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!closed){
+                closed = true;
+                in.close();
+                closeReader();
+            }
+        }
+    }
+}
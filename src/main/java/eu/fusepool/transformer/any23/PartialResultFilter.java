@@ -0,0 +1,184 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.HttpChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the result of running jobs to clients that request a job with
+ * the {@link #STREAM_PARAM} parameter (e.g. <code>GET /job/{id}?stream</code>).
+ * The response uses chunked transfer encoding and sends triples as they are
+ * produced by the job. The streamed data are exactly the data of the final
+ * result. If the job completes the response ends as usual. If the job fails
+ * the connection is aborted without sending the last chunk so that clients
+ * can not mistake a partial result for a complete one.<p>
+ * NOTE: A HTTP/1.1 trailer would be the natural place for the status of the
+ * job but trailers are not supported by Jetty 9.2.<p>
+ * The result is written with Servlet 3.1 non-blocking I/O
+ * ({@link WriteListener}) so that no server thread is blocked while waiting
+ * for the job to produce more data.<p>
+ * Requests for jobs without a {@link PartialResult} (e.g. already finished
+ * jobs) are processed as usual.
+ */
+public class PartialResultFilter implements Filter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    public static final String STREAM_PARAM = "stream";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Any23Transformer transformer;
+
+    public PartialResultFilter(Any23Transformer transformer) {
+        this.transformer = transformer;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if(!(request instanceof HttpServletRequest) ||
+                !"GET".equals(((HttpServletRequest)request).getMethod()) ||
+                request.getParameter(STREAM_PARAM) == null ||
+                !request.isAsyncSupported()){
+            chain.doFilter(request, response);
+            return;
+        }
+        String requestId = ((HttpServletRequest)request).getRequestURI();
+        PartialResult partial = transformer.getPartialResult(requestId);
+        PartialResult.Tail tail = partial == null ? null : partial.tail();
+        if(tail == null){ //not streamable (e.g. already finished)
+            chain.doFilter(request, response);
+            return;
+        }
+        log.debug("> stream partial result of {}", requestId);
+        HttpServletResponse resp = (HttpServletResponse)response;
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(Any23Transformer.OUTPUT.toString());
+        resp.flushBuffer(); //commit the response to use chunked encoding
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0); //the job might take longer as the async timeout
+        ServletOutputStream out = resp.getOutputStream();
+        out.setWriteListener(new TailWriteListener(requestId, partial, tail, async, out,
+                HttpChannel.getCurrentHttpChannel()));
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Writes the data of the partial result as they become available and
+     * completes the response when the job has finished.
+     */
+    private class TailWriteListener implements WriteListener, Runnable {
+
+        private final String requestId;
+        private final PartialResult partial;
+        private final PartialResult.Tail tail;
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        /**
+         * Used to abort the connection if the job fails and to dispatch
+         * writes. <code>null</code> if not available
+         */
+        private final HttpChannel<?> channel;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        /**
+         * If data were written since the last flush
+         */
+        private boolean written;
+
+        TailWriteListener(String requestId, PartialResult partial, PartialResult.Tail tail,
+                AsyncContext async, ServletOutputStream out, HttpChannel<?> channel) {
+            this.requestId = requestId;
+            this.partial = partial;
+            this.tail = tail;
+            this.async = async;
+            this.out = out;
+            this.channel = channel;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while(out.isReady()){
+                int n = tail.poll(buffer, 0, buffer.length);
+                if(n > 0){
+                    out.write(buffer, 0, n);
+                    written = true;
+                } else if(n < 0){
+                    finished();
+                    return;
+                } else if(written){ //send triples as soon as they are available
+                    written = false;
+                    out.flush();
+                } else if(tail.await(this)){
+                    return; //resumed by run() when more data are available
+                }
+            }
+        }
+
+        /**
+         * Called by the job when more data are available. Dispatches the
+         * write to a thread of the server.<p>
+         * NOTE: {@link AsyncContext#start(Runnable)} can not be used as it
+         * requires a servlet context.
+         */
+        @Override
+        public void run() {
+            Runnable write = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onWritePossible();
+                    } catch (IOException e) {
+                        onError(e);
+                    }
+                }
+            };
+            if(channel != null){
+                channel.getConnector().getExecutor().execute(write);
+            } else { //writes do not block in async mode
+                write.run();
+            }
+        }
+
+        private void finished() {
+            IOUtils.closeQuietly(tail);
+            PartialResult.Status status = partial.getStatus();
+            log.debug(" - streamed result of {} ({})", requestId, status);
+            if(status == PartialResult.Status.FAILED && channel != null){
+                log.debug(" - abort stream of failed job {} (message: {})",
+                        requestId, partial.getMessage());
+                channel.abort();
+            }
+            async.complete();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.debug("Unable to stream result of " + requestId, t);
+            IOUtils.closeQuietly(tail);
+            async.complete();
+        }
+    }
+}
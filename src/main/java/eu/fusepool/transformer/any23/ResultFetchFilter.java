@@ -0,0 +1,197 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the results of completed jobs with support for resumable and
+ * conditional downloads:<ul>
+ * <li>responses include an <code>ETag</code> (a hash of the result, see
+ * {@link TmpFileEntity#getETag()}), the <code>Content-Length</code> and
+ * <code>Accept-Ranges: bytes</code>
+ * <li><code>If-None-Match</code> matching the ETag is answered with
+ * <code>304 Not Modified</code>
+ * <li>a single <code>Range</code> (e.g. <code>bytes=1000-</code>) is answered
+ * with <code>206 Partial Content</code> (or <code>416 Requested Range Not
+ * Satisfiable</code>). Only the XZ blocks of the requested range are decoded.
+ * Multiple ranges and ranges with an <code>If-Range</code> not matching the
+ * ETag are answered with the whole result.
+ * </ul>
+ * Requests for jobs without a {@link Any23Transformer#getResult(String) result}
+ * (e.g. running or failed jobs) are processed as usual.
+ */
+public class ResultFetchFilter implements Filter {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String BYTES_UNIT = "bytes";
+
+    private final Any23Transformer transformer;
+
+    public ResultFetchFilter(Any23Transformer transformer) {
+        this.transformer = transformer;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = request instanceof HttpServletRequest ?
+                (HttpServletRequest)request : null;
+        if(req == null || !("GET".equals(req.getMethod()) || "HEAD".equals(req.getMethod())) ||
+                req.getParameter(PartialResultFilter.STREAM_PARAM) != null){
+            chain.doFilter(request, response);
+            return;
+        }
+        String requestId = req.getRequestURI();
+        TmpFileEntity result = transformer.getResult(requestId);
+        String etag;
+        long length;
+        try {
+            etag = result == null ? null : '"' + result.getETag() + '"';
+            length = result == null ? -1 : result.getLength();
+        } catch (FileNotFoundException e) { //result was deleted
+            log.debug(" - result of {} not available (message: {})", requestId, e.getMessage());
+            etag = null;
+            length = -1;
+        }
+        if(etag == null){
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletResponse resp = (HttpServletResponse)response;
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Accept-Ranges", BYTES_UNIT);
+        if(matches(req.getHeader("If-None-Match"), etag)){
+            log.debug("> result of {} not modified", requestId);
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        long start = 0;
+        long end = length - 1;
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if(range != null && (ifRange == null || ifRange.trim().equals(etag))){
+            long[] parsed = parseRange(range, length);
+            if(parsed == null){ //not supported (e.g. multiple ranges)
+                log.debug(" - ignore range '{}' for result of {}", range, requestId);
+            } else if(parsed.length == 0){
+                resp.setHeader("Content-Range", BYTES_UNIT + " */" + length);
+                resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else {
+                start = parsed[0];
+                end = parsed[1];
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", BYTES_UNIT + " " + start + "-" + end + "/" + length);
+            }
+        }
+        resp.setContentType(result.getType().toString());
+        long contentLength = end - start + 1;
+        resp.setHeader("Content-Length", String.valueOf(contentLength));
+        if("HEAD".equals(req.getMethod()) || contentLength <= 0){
+            return;
+        }
+        log.debug("> send result of {} (bytes {}-{}/{})", new Object[]{requestId, start, end, length});
+        InputStream in = result.getData(start);
+        try {
+            OutputStream out = resp.getOutputStream();
+            BufferPool.copy(in, out, 0, contentLength, transformer.getBufferPool());
+            out.flush();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Checks an <code>If-None-Match</code> header
+     * @param header the header value or <code>null</code>
+     * @param etag the ETag (quoted)
+     * @return if any of the listed ETags (weak comparison) matches
+     */
+    static boolean matches(String header, String etag) {
+        if(header == null){
+            return false;
+        }
+        for(String value : header.split(",")){
+            value = value.trim();
+            if(value.startsWith("W/")){
+                value = value.substring(2);
+            }
+            if(value.equals("*") || value.equals(etag)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a <code>Range</code> header with a single byte range
+     * @param header the header value
+     * @param length the length of the result
+     * @return the first and last byte position, an empty array if the range
+     * is not satisfiable or <code>null</code> if the header is not supported
+     */
+    static long[] parseRange(String header, long length) {
+        String value = header.trim();
+        if(!value.startsWith(BYTES_UNIT + "=")){
+            return null;
+        }
+        value = value.substring(BYTES_UNIT.length() + 1).trim();
+        int sep = value.indexOf('-');
+        if(sep < 0 || value.indexOf(',') >= 0){
+            return null;
+        }
+        String first = value.substring(0, sep).trim();
+        String last = value.substring(sep + 1).trim();
+        long start;
+        long end;
+        try {
+            if(first.isEmpty()){ //suffix range: the last N bytes
+                if(last.isEmpty()){
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if(suffix <= 0){
+                    return new long[]{};
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if(!last.isEmpty() && Long.parseLong(last) < start){
+                    return null; //syntactically invalid ranges are ignored
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if(start >= length || start < 0){
+            return new long[]{};
+        }
+        return new long[]{start, end};
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,436 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fusepool.p3.transformer.commons.Entity;
+
+/**
+ * {@link JobStore} that keeps job states and results in a directory on a
+ * shared file system (e.g. NFS). For every job a <code>.state</code> file
+ * (java properties) and - for completed jobs - a <code>.result</code> file
+ * (XZ compressed data) is written.<p>
+ * State files are written to a tmp file and moved in place so that other
+ * instances never see partially written states.<p>
+ * The state file of a job is removed together with its result when the
+ * owning instance {@link TmpFileEntity#close() closes} the result. Files of
+ * jobs older than the {@link #getRetention() retention} (e.g. those of
+ * crashed instances) are deleted by the next instance accepting a job.<p>
+ * The instance processing a job refreshes the lease of the job every
+ * third of the {@link #getLeaseTimeout() lease timeout}. Active jobs with
+ * an expired lease (e.g. because the owning instance crashed) are reported
+ * as {@link JobState#FAILED failed}.
+ */
+public class SharedFileJobStore implements JobStore {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String STATE_SUFFIX = ".state";
+    private static final String RESULT_SUFFIX = ".result";
+
+    private static final String PROP_STATE = "state";
+    private static final String PROP_NODE = "node";
+    private static final String PROP_TIME = "time";
+    private static final String PROP_LEASE = "lease";
+    private static final String PROP_TYPE = "type";
+    private static final String PROP_ERROR = "error";
+
+    /**
+     * The default time in milliseconds job states and results are kept
+     */
+    public static final long DEFAULT_RETENTION = TimeUnit.HOURS.toMillis(24);
+    /**
+     * The default time in milliseconds after that an active job without
+     * a refreshed lease is considered as failed
+     */
+    public static final long DEFAULT_LEASE_TIMEOUT = TimeUnit.SECONDS.toMillis(90);
+
+    private final File dir;
+    private final String nodeId;
+    private final long retention;
+    private final long leaseTimeout;
+    /**
+     * The active jobs of this instance. Updates of their state are 
+     * synchronized on this set so that a heartbeat never overrides the
+     * final state of a job.
+     */
+    private final Set<String> active = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private final ScheduledExecutorService heartbeat;
+    /**
+     * The time of the last {@link #cleanup()} as returned by 
+     * {@link System#currentTimeMillis()}
+     */
+    private volatile long lastCleanup;
+
+    /**
+     * Creates a store for the parsed directory. The directory is created
+     * if it does not yet exist.
+     * @param dir the directory on the shared file system
+     * @throws IOException if the directory can not be created or is not writeable
+     */
+    public SharedFileJobStore(File dir) throws IOException {
+        this(dir, DEFAULT_RETENTION);
+    }
+
+    /**
+     * Creates a store for the parsed directory. The directory is created
+     * if it does not yet exist.
+     * @param dir the directory on the shared file system
+     * @param retention the time in milliseconds job states and results are
+     * kept. 
+     * @throws IOException if the directory can not be created or is not writeable
+     */
+    public SharedFileJobStore(File dir, long retention) throws IOException {
+        this(dir, retention, DEFAULT_LEASE_TIMEOUT);
+    }
+
+    /**
+     * Creates a store for the parsed directory. The directory is created
+     * if it does not yet exist.
+     * @param dir the directory on the shared file system
+     * @param retention the time in milliseconds job states and results are
+     * kept. 
+     * @param leaseTimeout the time in milliseconds after that an active job
+     * is considered as failed if its lease was not refreshed
+     * @throws IOException if the directory can not be created or is not writeable
+     */
+    public SharedFileJobStore(File dir, long retention, long leaseTimeout) throws IOException {
+        if(retention <= 0){
+            throw new IllegalArgumentException("The retention MUST BE greater as 0");
+        }
+        if(leaseTimeout <= 0){
+            throw new IllegalArgumentException("The lease timeout MUST BE greater as 0");
+        }
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Unable to create shared job store directory "
+                    + dir.getAbsolutePath());
+        }
+        if(!dir.canWrite()){
+            throw new IOException("Shared job store directory " + dir.getAbsolutePath()
+                    + " is not writeable");
+        }
+        this.dir = dir;
+        this.retention = retention;
+        this.leaseTimeout = leaseTimeout;
+        //pid@hostname
+        this.nodeId = ManagementFactory.getRuntimeMXBean().getName();
+        log.info("> shared job store [dir: {} | node: {} | retention: {}min | lease: {}sec]", 
+                new Object[]{dir.getAbsolutePath(), nodeId, TimeUnit.MILLISECONDS.toMinutes(retention),
+                        TimeUnit.MILLISECONDS.toSeconds(leaseTimeout)});
+        cleanup();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "any23-job-store-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, leaseTimeout / 3);
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshLeases();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Getter for the directory used by this store
+     * @return the directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Getter for the time job states and results are kept
+     * @return the retention in milliseconds
+     */
+    public long getRetention() {
+        return retention;
+    }
+
+    /**
+     * Getter for the time after that active jobs without a refreshed lease
+     * are considered as failed
+     * @return the lease timeout in milliseconds
+     */
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    private File getStateFile(String requestId) {
+        return new File(dir, TmpFileEntity.toFileName(requestId) + STATE_SUFFIX);
+    }
+
+    private File getResultFile(String requestId) {
+        return new File(dir, TmpFileEntity.toFileName(requestId) + RESULT_SUFFIX);
+    }
+
+    @Override
+    public void accepted(String requestId) throws IOException {
+        synchronized (active) {
+            active.add(requestId);
+            writeState(requestId, JobState.ACTIVE, null);
+        }
+        //clean up at most 10 times per retention period
+        if(System.currentTimeMillis() - lastCleanup > retention / 10){
+            cleanup();
+        }
+    }
+
+    @Override
+    public TmpFileEntity createResult(final String requestId, MimeType type) throws IOException {
+        //results are directly written to the shared directory. The local
+        //entity is the owner of the file and also removes the state so that
+        //other instances do not report a job without data as completed.
+        return new TmpFileEntity(getResultFile(requestId), type, true){
+            @Override
+            public void close() throws IOException {
+                boolean exists = getFile().isFile();
+                super.close();
+                if(exists){
+                    deleteState(requestId);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void completed(String requestId, TmpFileEntity result) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(PROP_TYPE, result.getType().toString());
+        synchronized (active) {
+            active.remove(requestId);
+            writeState(requestId, JobState.COMPLETED, state);
+        }
+    }
+
+    @Override
+    public void failed(String requestId, Exception e) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(PROP_ERROR, e == null || e.getMessage() == null ?
+                String.valueOf(e) : e.getMessage());
+        synchronized (active) {
+            active.remove(requestId);
+            writeState(requestId, JobState.FAILED, state);
+        }
+    }
+
+    @Override
+    public JobState getState(String requestId) throws IOException {
+        Properties state = readState(requestId);
+        String value = state == null ? null : state.getProperty(PROP_STATE);
+        if(value == null){
+            return JobState.UNKNOWN;
+        }
+        JobState jobState;
+        try {
+            jobState = JobState.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid state '{}' for job {}", value, requestId);
+            return JobState.UNKNOWN;
+        }
+        return jobState == JobState.ACTIVE && isLeaseExpired(state) ? JobState.FAILED : jobState;
+    }
+
+    /**
+     * If the lease of the parsed state was not refreshed within the
+     * {@link #getLeaseTimeout() lease timeout}
+     */
+    private boolean isLeaseExpired(Properties state) {
+        String lease = state.getProperty(PROP_LEASE, state.getProperty(PROP_TIME));
+        try {
+            return lease != null && 
+                    System.currentTimeMillis() - Long.parseLong(lease) > leaseTimeout;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Entity getResult(String requestId) throws IOException {
+        Properties state = readState(requestId);
+        File resultFile = getResultFile(requestId);
+        if(state == null || !resultFile.isFile()){
+            return null;
+        }
+        try {
+            //results are owned by the instance that created them
+            return new TmpFileEntity(resultFile, new MimeType(
+                    state.getProperty(PROP_TYPE)), false);
+        } catch (MimeTypeParseException e) {
+            throw new IOException("Invalid media type for result of job " + requestId, e);
+        }
+    }
+
+    @Override
+    public Exception getException(String requestId) throws IOException {
+        Properties state = readState(requestId);
+        if(state == null){
+            return null;
+        }
+        if(JobState.ACTIVE.name().equals(state.getProperty(PROP_STATE)) &&
+                isLeaseExpired(state)){
+            return new RuntimeException("Request " + requestId + " was not finished by node "
+                    + state.getProperty(PROP_NODE) + " (lease expired at " 
+                    + state.getProperty(PROP_LEASE, state.getProperty(PROP_TIME)) + ")");
+        }
+        return new RuntimeException("Error while processing Request " + requestId
+                + " on node " + state.getProperty(PROP_NODE) + ": "
+                + state.getProperty(PROP_ERROR));
+    }
+
+    /**
+     * Deletes the state and result files of jobs last updated before the
+     * {@link #getRetention() retention}. Files of other instances are also
+     * deleted as the instance might have crashed.
+     * @return the number of removed jobs
+     */
+    public int cleanup() {
+        lastCleanup = System.currentTimeMillis();
+        long expired = lastCleanup - retention;
+        File[] stateFiles = dir.listFiles();
+        int removed = 0;
+        if(stateFiles == null){
+            return removed;
+        }
+        for(File file : stateFiles){
+            String name = file.getName();
+            if(file.lastModified() < expired){
+                if(name.endsWith(STATE_SUFFIX) && file.delete()){
+                    removed++; //state files are deleted first
+                    String base = name.substring(0, name.length() - STATE_SUFFIX.length());
+                    File result = new File(dir, base + RESULT_SUFFIX);
+                    result.delete();
+                    new File(dir, result.getName() + TmpFileEntity.ETAG_SUFFIX).delete();
+                } else if(name.endsWith(RESULT_SUFFIX) && //result without state
+                        !new File(dir, name.substring(0, name.length() - RESULT_SUFFIX.length())
+                                + STATE_SUFFIX).isFile()){
+                    file.delete();
+                    new File(dir, name + TmpFileEntity.ETAG_SUFFIX).delete();
+                } else if(name.endsWith(".tmp")){ //left over by a crashed writer
+                    file.delete();
+                }
+            }
+        }
+        if(removed > 0){
+            log.info(" - removed {} expired jobs from {}", removed, this);
+        }
+        return removed;
+    }
+
+    /**
+     * Refreshes the lease of the active jobs of this instance. Called by the
+     * heartbeat.
+     */
+    void refreshLeases() {
+        for(String requestId : new ArrayList<String>(active)){
+            try {
+                synchronized (active) {
+                    Properties state = readState(requestId);
+                    if(active.contains(requestId) && state != null){ //not finished in the meantime
+                        writeState(requestId, JobState.ACTIVE, state);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Unable to refresh the lease of job " + requestId, e);
+            } catch (RuntimeException e) { //do not stop scheduled executions
+                log.warn("Unable to refresh the lease of job " + requestId, e);
+            }
+        }
+    }
+
+    private void deleteState(String requestId) {
+        if(getStateFile(requestId).delete()){
+            log.debug(" - {} -> removed", requestId);
+        }
+    }
+
+    private Properties readState(String requestId) throws IOException {
+        File stateFile = getStateFile(requestId);
+        if(!stateFile.isFile()){
+            return null;
+        }
+        Properties state = new Properties();
+        InputStream in;
+        try {
+            in = new FileInputStream(stateFile);
+        } catch (FileNotFoundException e) { //removed concurrently
+            return null;
+        }
+        try {
+            state.load(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return state;
+    }
+
+    private void writeState(String requestId, JobState jobState, Properties state) throws IOException {
+        if(state == null){
+            state = new Properties();
+        }
+        state.setProperty(PROP_STATE, jobState.name());
+        state.setProperty(PROP_NODE, nodeId);
+        String now = String.valueOf(System.currentTimeMillis());
+        if(state.getProperty(PROP_TIME) == null){ //keep the time of the state change
+            state.setProperty(PROP_TIME, now);
+        }
+        state.setProperty(PROP_LEASE, now);
+        File stateFile = getStateFile(requestId);
+        File tmp = File.createTempFile(stateFile.getName(), ".tmp", dir);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            state.store(out, requestId);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        try {
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        log.debug(" - {} -> {}", requestId, jobState);
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        active.clear();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(getClass().getSimpleName()).append("[dir: ")
+                .append(dir).append(" | node: ").append(nodeId).append("]").toString();
+    }
+}
@@ -1,36 +1,131 @@
 package eu.fusepool.transformer.any23;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
 
 import javax.activation.MimeType;
 
 import org.apache.any23.source.DocumentSource;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SingleXZInputStream;
+import org.tukaani.xz.XZOutputStream;
 
 class TmpFileDocumentSource implements DocumentSource , Closeable {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
     private final String type;
+    /**
+     * The length of the (decoded) data or <code>-1</code> if unknown
+     */
     private final long length;
+    /**
+     * The encoding of the spooled data. Data with a {@link ContentEncoding}
+     * other than {@link ContentEncoding#IDENTITY} are spooled as-is. All
+     * other data are XZ compressed unless {@link #compressed} is 
+     * <code>false</code>.
+     */
+    private final ContentEncoding encoding;
+    /**
+     * If {@link ContentEncoding#IDENTITY} data are XZ compressed
+     */
+    private final boolean compressed;
+    /**
+     * The type detected by the {@link ContentTypeSniffer} or <code>null</code>
+     * if no detection was requested or the type was not recognised
+     */
+    private final MimeType detectedType;
+    /**
+     * The charset declared for the data or - if not declared - sniffed from
+     * the first bytes. <code>null</code> if unknown.
+     */
+    private final String charset;
+    /**
+     * The SHA-256 hash (hex) of the data as received or <code>null</code> 
+     * for restored sources
+     */
+    private final String contentHash;
+    /**
+     * The cache for the arrays of the XZ streams and copy buffers or 
+     * <code>null</code> to use the default cache of the XZ library
+     */
+    private final ArrayCache arrayCache;
 
+    /**
+     * Data up to this size are decoded into a shared heap buffer. Larger 
+     * data are decoded into a file that is memory mapped.
+     */
+    static final int HEAP_DECODE_THRESHOLD = 1024 * 1024;
+    /**
+     * The XZ dictionary size used to spool data. The default (8MB) makes the
+     * encoder allocate ~92MB of arrays per document. With 1MB these are ~12MB
+     * that fit into the {@link BufferPool} and are reused by following jobs.
+     */
+    static final int SPOOL_DICT_SIZE = TmpFileEntity.BLOCK_SIZE;
+    
     private File tmpFile;
+    /**
+     * The decoded data shared by all streams returned by {@link #openInputStream()}.
+     * Created on the first call
+     */
+    private ByteBuffer decoded;
+    /**
+     * The file holding the decoded data if they are memory mapped 
+     */
+    private File decodedFile;
     
     final private String docUri;
 
+    /**
+     * Spools the parsed stream to a XZ compressed tmp file.
+     * @param requestId the request id
+     * @param in the data
+     * @param type the declared content type
+     * @param docUri the document URI
+     * @throws IOException on any error while reading the data
+     */
     public TmpFileDocumentSource(String requestId, InputStream in, MimeType type,
             String docUri) throws IOException {
+        this(requestId, in, type, docUri, new Options());
+    }
+
+    /**
+     * Spools the parsed stream to a file. Data with a {@link ContentEncoding}
+     * other than {@link ContentEncoding#IDENTITY} are stored as-is and only
+     * decoded by {@link #openInputStream()}. Otherwise the data are XZ
+     * compressed unless disabled by {@link Options#compress(boolean)}.
+     * @param requestId the request id
+     * @param in the data
+     * @param type the declared content type
+     * @param docUri the document URI
+     * @param options the options
+     * @throws IOException on any error while reading the data or if encoded
+     * data can not be decoded
+     */
+    public TmpFileDocumentSource(String requestId, InputStream in, MimeType type,
+            String docUri, Options options) throws IOException {
         assert in != null;
         assert type != null;
         assert requestId != null;
@@ -45,29 +140,404 @@ class TmpFileDocumentSource implements DocumentSource , Closeable {
         log.debug(" - docUri: {}", docUri);
         this.type = type.toString();
         log.debug(" - type: {}", type);
-        tmpFile = File.createTempFile(prefix, ".entity");
-        tmpFile.deleteOnExit();
+        if(options.spoolDir == null){
+            tmpFile = File.createTempFile(prefix, ".entity");
+            tmpFile.deleteOnExit();
+        } else {
+            tmpFile = new File(options.spoolDir, TmpFileEntity.toFileName(prefix) + ".source");
+        }
         log.debug(" - tmpFile: {}",tmpFile);
-        XZCompressorOutputStream out = new XZCompressorOutputStream(new FileOutputStream(tmpFile));
+        this.encoding = options.encoding;
+        this.compressed = options.compress;
+        this.arrayCache = options.arrayCache;
+        MessageDigest digest;
         try {
-            length = IOUtils.copyLarge(in, out);
-            log.debug(" - copied {}kBytes from Request Body", Math.round(length/100f)/10);
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        in = new DigestInputStream(in, digest);
+        byte[] head = new byte[ContentTypeSniffer.SNIFF_LENGTH];
+        int headLength;
+        if(this.encoding == ContentEncoding.IDENTITY){
+            OutputStream out = compressed ? new XZOutputStream(new FileOutputStream(tmpFile),
+                    createSpoolOptions(), BufferPool.orDefault(arrayCache)) : new FileOutputStream(tmpFile);
+            try {
+                //read the head used for sniffing first
+                headLength = IOUtils.read(in, head);
+                out.write(head, 0, headLength);
+                length = headLength + BufferPool.copy(in, out, arrayCache);
+                log.debug(" - copied {}kBytes from Request Body", Math.round(length/100f)/10);
+            } finally {
+                out.close();
+            }
+        } else { //store encoded data as-is
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                long copied = BufferPool.copy(in, out, arrayCache);
+                log.debug(" - copied {}kBytes {} encoded data from Request Body",
+                        Math.round(copied/100f)/10, this.encoding);
+            } finally {
+                out.close();
+            }
+            //only the head used for sniffing is decoded
+            InputStream decoded = null;
+            try {
+                decoded = this.encoding.decode(new FileInputStream(tmpFile), arrayCache);
+                headLength = IOUtils.read(decoded, head);
+                length = this.encoding.getDecodedLength(tmpFile, arrayCache);
+            } catch (IOException e) {
+                tmpFile.delete();
+                throw new IOException("Unable to decode " + this.encoding 
+                        + " encoded data of document " + docUri, e);
+            } finally {
+                IOUtils.closeQuietly(decoded);
+            }
+        }
+        contentHash = toHex(digest.digest());
+        detectedType = options.detect ? detectType(head, headLength) : null;
+        charset = getCharset(type, head, headLength);
+    }
+
+    /**
+     * Takes over a request body that was already spooled as received (see
+     * {@link NonBlockingIngestFilter}). The data are not copied: the file is
+     * moved to the spool directory and kept as-is. So data without a
+     * {@link ContentEncoding} are stored uncompressed.
+     * @param requestId the request id
+     * @param body the spooled body
+     * @param type the declared content type
+     * @param docUri the document URI
+     * @param options the options. {@link Options#compress(boolean)} is
+     * ignored. Without {@link Options#spoolDirectory(File) spool directory}
+     * the spooled file is used as is.
+     * @throws IOException if the file can not be moved or encoded data can
+     * not be decoded
+     */
+    public TmpFileDocumentSource(String requestId, NonBlockingIngestFilter.SpooledBody body,
+            MimeType type, String docUri, Options options) throws IOException {
+        assert body != null;
+        assert type != null;
+        assert docUri != null;
+        this.docUri = docUri;
+        this.type = type.toString();
+        this.encoding = options.encoding;
+        this.compressed = false;
+        this.arrayCache = options.arrayCache;
+        this.contentHash = body.getContentHash();
+        File spooled = body.take();
+        if(options.spoolDir == null){
+            tmpFile = spooled;
+        } else {
+            String prefix = requestId == null || requestId.length() < 3 ? 
+                    UUID.randomUUID().toString() : requestId;
+            tmpFile = new File(options.spoolDir, TmpFileEntity.toFileName(prefix) + ".source");
+            try {
+                Files.move(spooled.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                spooled.delete();
+                throw e;
+            }
+        }
+        log.debug(" - took over {} ({} bytes, encoding: {})", new Object[]{
+                tmpFile, body.getLength(), this.encoding});
+        byte[] head = new byte[ContentTypeSniffer.SNIFF_LENGTH];
+        int headLength;
+        InputStream in = null;
+        try {
+            in = openDecodingStream();
+            headLength = IOUtils.read(in, head);
+            length = this.encoding == ContentEncoding.IDENTITY ? tmpFile.length() :
+                this.encoding.getDecodedLength(tmpFile, arrayCache);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw new IOException("Unable to decode " + this.encoding 
+                    + " encoded data of document " + docUri, e);
         } finally {
-            out.close();
+            IOUtils.closeQuietly(in);
+        }
+        detectedType = options.detect ? detectType(head, headLength) : null;
+        charset = getCharset(type, head, headLength);
+    }
+
+    private MimeType detectType(byte[] head, int headLength) {
+        MimeType detected = ContentTypeSniffer.sniff(head, headLength, 
+                headLength < head.length);
+        log.debug(" - detected type: {}", detected);
+        return detected;
+    }
+
+    /**
+     * The declared charset or - if none - the charset sniffed from the head
+     */
+    private String getCharset(MimeType type, byte[] head, int headLength) {
+        String declared = getDeclaredCharset(type);
+        String charset;
+        if(declared != null){
+            charset = declared;
+        } else { //sniff the charset from the head only
+            charset = ContentTypeSniffer.sniffCharset(head, headLength, 
+                    headLength < head.length);
+        }
+        log.debug(" - charset: {} (declared: {})", charset, declared != null);
+        return charset;
+    }
+    
+    /**
+     * Restores a document source for data that where already spooled to the
+     * parsed file (e.g. when replaying the {@link JobJournal} after a restart).
+     * @param spoolFile the spooled data
+     * @param type the content type (as returned by {@link #getContentType()})
+     * @param length the length of the data
+     * @param docUri the document URI
+     * @param charset the charset or <code>null</code> if unknown
+     * @param options the options the data were spooled with.
+     * {@link Options#detect(boolean)} and {@link Options#spoolDirectory(File)}
+     * are ignored.
+     */
+    public TmpFileDocumentSource(File spoolFile, String type, long length, 
+            String docUri, String charset, Options options) {
+        assert spoolFile != null;
+        assert type != null;
+        assert docUri != null;
+        this.tmpFile = spoolFile;
+        this.type = type;
+        this.length = length;
+        this.docUri = docUri;
+        this.charset = charset;
+        this.encoding = options.encoding;
+        this.compressed = options.compress;
+        this.arrayCache = options.arrayCache;
+        this.detectedType = null;
+        this.contentHash = null;
+        log.debug(" - restored {}", this);
+    }
+    
+    /**
+     * Getter for the file holding the spooled data
+     * @return the file
+     */
+    public File getFile() {
+        return tmpFile;
+    }
+    
+    /**
+     * Getter for the SHA-256 hash of the data as received (before decoding)
+     * @return the hash as hex string or <code>null</code> if not known (e.g.
+     * for sources restored from the {@link JobJournal})
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes){
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Getter for the encoding of the spooled data
+     * @return the encoding. {@link ContentEncoding#IDENTITY} for XZ
+     * compressed (or - if not {@link #isCompressed()} - plain) data
+     */
+    public ContentEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * If {@link ContentEncoding#IDENTITY} data are XZ compressed
+     * @return the compression state
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+    
+    /**
+     * Getter for the charset parameter of the parsed type.
+     * @return the charset or <code>null</code> if not present or not supported
+     */
+    private String getDeclaredCharset(MimeType type){
+        String charset = type.getParameter("charset");
+        if(charset == null || charset.isEmpty()){
+            return null;
+        }
+        try {
+            if(Charset.isSupported(charset)){
+                return charset;
+            }
+        } catch (IllegalCharsetNameException e) {
+            //handled below
         }
+        log.warn("Ignore unsupported charset '{}' declared for document {}", charset, docUri);
+        return null;
     }
     
+    /**
+     * Any23 opens the data several times (MIME type and charset detection as 
+     * well as every extractor). To avoid decompressing the spooled data on
+     * every call they are decoded only once on the first call. Later calls 
+     * return a view on the decoded data.<p>
+     * Data of up to {@link #HEAP_DECODE_THRESHOLD} are decoded into a heap
+     * buffer. Larger data are decoded into an uncompressed file next to the
+     * spooled data that is memory mapped. If the decoded data exceed the size
+     * that can be mapped the decoded file is read by a buffered stream.
+     */
     @Override
     public InputStream openInputStream() throws IOException {
-        return new BufferedInputStream(new XZCompressorInputStream(
-                new FileInputStream(tmpFile)));
+        ByteBuffer buffer;
+        File file;
+        synchronized (this) {
+            if(decoded == null && decodedFile == null){
+                decode();
+            }
+            buffer = decoded;
+            file = decodedFile;
+        }
+        if(buffer != null){
+            return new ByteBufferInputStream(buffer);
+        } else {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+    }
+
+    /**
+     * Opens a stream that decodes the spooled data while they are read. 
+     * Unlike {@link #openInputStream()} this does not create a decoded copy 
+     * of the data so it holds constant memory and disk space for consumers
+     * that read the data only once. If the data were already decoded by
+     * {@link #openInputStream()} a view on the decoded data is returned.
+     * @return the stream
+     * @throws IOException if the spooled data can not be opened
+     */
+    public InputStream openSinglePassStream() throws IOException {
+        synchronized (this) {
+            if(decoded != null || decodedFile != null){
+                return openInputStream();
+            }
+        }
+        return new BufferedInputStream(openDecodingStream());
+    }
+
+    private static LZMA2Options createSpoolOptions() throws IOException {
+        LZMA2Options options = new LZMA2Options();
+        options.setDictSize(SPOOL_DICT_SIZE);
+        return options;
+    }
+
+    /**
+     * Opens a stream decoding the spooled data
+     */
+    private InputStream openDecodingStream() throws IOException {
+        if(encoding == ContentEncoding.IDENTITY){
+            return compressed ? new SingleXZInputStream(new FileInputStream(tmpFile),
+                    BufferPool.orDefault(arrayCache)) : new FileInputStream(tmpFile);
+        } else {
+            return encoding.decode(new FileInputStream(tmpFile), arrayCache);
+        }
+    }
+
+    private void decode() throws IOException {
+        long start = System.currentTimeMillis();
+        if(encoding == ContentEncoding.IDENTITY && !compressed && 
+                tmpFile.length() > HEAP_DECODE_THRESHOLD){
+            //plain data: use the spooled file itself
+            map(tmpFile, tmpFile.length(), start);
+            return;
+        }
+        //NOTE: the decoded length declared by an encoding (e.g. the gzip 
+        //      ISIZE) is provided by the client and MUST NOT be trusted. So
+        //      at most HEAP_DECODE_THRESHOLD bytes are read into the heap and
+        //      larger data are spilled to a file
+        InputStream in = new BufferedInputStream(openDecodingStream());
+        File file = null;
+        try {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            long headLength = BufferPool.copy(in, head, 0, HEAP_DECODE_THRESHOLD + 1, arrayCache);
+            if(headLength <= HEAP_DECODE_THRESHOLD){
+                decoded = ByteBuffer.wrap(head.toByteArray()).asReadOnlyBuffer();
+                log.debug(" - decoded {} bytes into heap buffer in {}ms", decoded.capacity(),
+                        System.currentTimeMillis() - start);
+                return;
+            }
+            file = new File(tmpFile.getParentFile(), tmpFile.getName() + ".decoded");
+            file.deleteOnExit();
+            long decodedLength;
+            OutputStream out = new FileOutputStream(file);
+            try {
+                head.writeTo(out);
+                head = null; //spilled
+                decodedLength = headLength + BufferPool.copy(in, out, arrayCache);
+            } finally {
+                out.close();
+            }
+            map(file, decodedLength, start);
+            file = null; //owned by decodedFile
+        } finally {
+            IOUtils.closeQuietly(in);
+            if(file != null){ //failed to decode
+                file.delete();
+            }
+        }
     }
 
+    /**
+     * Uses the parsed file with the decoded data. The file is memory mapped
+     * unless it is too big to be mapped.
+     */
+    private void map(File file, long decodedLength, long start) throws IOException {
+        ByteBuffer buffer = null;
+        if(decodedLength <= Integer.MAX_VALUE){
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try { //the mapping stays valid after the channel is closed
+                buffer = raf.getChannel().map(MapMode.READ_ONLY, 0, decodedLength);
+            } finally {
+                raf.close();
+            }
+        } //else too big to be mapped
+        decodedFile = file;
+        decoded = buffer;
+        log.debug(" - decoded {} bytes into {} (mapped: {}) in {}ms", new Object[]{
+                decodedLength, file, buffer != null, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * The content type. If the type was detected by the 
+     * {@link ContentTypeSniffer} the detected type is returned
+     */
     @Override
     public String getContentType() {
-        return type;
+        return detectedType != null ? detectedType.toString() : type;
+    }
+    
+    /**
+     * The charset of the data. This is the charset declared by the
+     * <code>charset</code> parameter of the content type. If no charset
+     * was declared the charset sniffed from the first 
+     * {@link ContentTypeSniffer#SNIFF_LENGTH} bytes is returned.
+     * @return the charset or <code>null</code> if unknown
+     */
+    public String getCharset() {
+        return charset;
+    }
+    
+    /**
+     * The content type detected while spooling the data
+     * @return the detected type or <code>null</code> if not available
+     */
+    public MimeType getDetectedType() {
+        return detectedType;
     }
 
+    /**
+     * The length of the data. For encoded data this is the decoded length
+     * if it is available from the metadata of the encoding. As this metadata
+     * is provided by the client the length of encoded data is only a hint.
+     * @return the length or <code>-1</code> if unknown
+     */
     @Override
     public long getContentLength() {
         return length;
@@ -89,6 +559,15 @@ class TmpFileDocumentSource implements DocumentSource , Closeable {
             log.debug(" - clean {}", tmpFile);
             tmpFile.delete();
         }
+        synchronized (this) {
+            //NOTE: mapped buffers are only unmapped when garbage collected.
+            //      On Unix deleting the file is fine in any case
+            decoded = null;
+            if(decodedFile != null){
+                decodedFile.delete();
+                decodedFile = null;
+            }
+        }
     }
     
     @Override
@@ -99,8 +578,88 @@ class TmpFileDocumentSource implements DocumentSource , Closeable {
     @Override
     public String toString() {
         return new StringBuilder(getClass().getSimpleName()).append("[uri: ")
-                .append(docUri).append(" | file: ").append(tmpFile)
+                .append(docUri).append(" | type: ").append(getContentType())
+                .append(" | file: ").append(tmpFile)
+                .append(" | encoding: ").append(encoding)
+                .append(" | compressed: ").append(compressed)
                 .append(" | length: ").append(length/1000)
                 .append("kByte]").toString();
     }
+
+    /**
+     * Options used to spool (or restore) the data of a
+     * {@link TmpFileDocumentSource}. The defaults spool XZ compressed
+     * {@link ContentEncoding#IDENTITY} data to a tmp file without content
+     * type detection.
+     */
+    static final class Options {
+
+        private boolean detect;
+        private File spoolDir;
+        private ContentEncoding encoding = ContentEncoding.IDENTITY;
+        private boolean compress = true;
+        private ArrayCache arrayCache;
+
+        /**
+         * If the content type should be sniffed from the first
+         * {@link ContentTypeSniffer#SNIFF_LENGTH} bytes of the data (e.g.
+         * because the declared type is <code>application/octet-stream</code>).
+         * Default: <code>false</code>
+         * @param detect the detection state
+         * @return this options
+         */
+        Options detect(boolean detect) {
+            this.detect = detect;
+            return this;
+        }
+
+        /**
+         * The directory used to spool the data. If <code>null</code> (default)
+         * a tmp file that is deleted on exit is used. Otherwise the file is
+         * kept so that the data are still available after a restart.
+         * @param spoolDir the directory or <code>null</code>
+         * @return this options
+         */
+        Options spoolDirectory(File spoolDir) {
+            this.spoolDir = spoolDir;
+            return this;
+        }
+
+        /**
+         * The content encoding of the data. <code>null</code> is interpreted
+         * as {@link ContentEncoding#IDENTITY} (default)
+         * @param encoding the encoding
+         * @return this options
+         */
+        Options encoding(ContentEncoding encoding) {
+            this.encoding = encoding == null ? ContentEncoding.IDENTITY : encoding;
+            return this;
+        }
+
+        /**
+         * If {@link ContentEncoding#IDENTITY} data are XZ compressed. Storing 
+         * them uncompressed is preferable for data that are read only once by
+         * {@link TmpFileDocumentSource#openSinglePassStream()} as compressing
+         * is slower than parsing most RDF serializations.
+         * Default: <code>true</code>
+         * @param compress the compression state
+         * @return this options
+         */
+        Options compress(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        /**
+         * The cache for the arrays of the XZ streams and copy buffers (e.g. a
+         * {@link BufferPool}). If <code>null</code> (default) the default cache
+         * of the XZ library is used.
+         * @param arrayCache the cache or <code>null</code>
+         * @return this options
+         */
+        Options arrayCache(ArrayCache arrayCache) {
+            this.arrayCache = arrayCache;
+            return this;
+        }
+    }
 }
\ No newline at end of file
@@ -8,20 +8,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
 
 import javax.activation.MimeType;
 
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.SingleXZInputStream;
+import org.tukaani.xz.XZOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.fusepool.p3.transformer.commons.Entity;
 
 /**
- * {@link Entity} that keeps data in an XZ compressed tmp file.
+ * {@link Entity} that keeps data in an XZ compressed tmp file.<p>
+ * Data are written in XZ blocks of {@link #BLOCK_SIZE} so that reading 
+ * from an offset ({@link #getData(long)}) only needs to decode the block 
+ * containing the offset. While writing a SHA-1 hash of the data is 
+ * calculated and stored next to the file. It is used as 
+ * {@link #getETag() ETag} of the data. The owner of the file also deletes
+ * the file storing the ETag.
  * @author Rupert Westenthler
  *
  */
@@ -29,8 +42,29 @@ public class TmpFileEntity implements Entity, Closeable {
 	
 	private final Logger log = LoggerFactory.getLogger(TmpFileEntity.class);
 
+	/**
+	 * The number of uncompressed bytes per XZ block
+	 */
+	public static final int BLOCK_SIZE = 1024 * 1024;
+	/**
+	 * The suffix of the file storing the ETag
+	 */
+	public static final String ETAG_SUFFIX = ".etag";
+
+	private static final String DIGEST = "SHA-1";
+
 	private final File tmpFile;
 	private final MimeType type;
+	/**
+	 * Only the owner of the file deletes it on {@link #close()}
+	 */
+	private final boolean owner;
+	private volatile String etag;
+	/**
+	 * The cache for the arrays of the XZ streams or <code>null</code> to
+	 * use the default cache of the XZ library
+	 */
+	private volatile ArrayCache arrayCache;
 
 	public TmpFileEntity(String requestId, MimeType mime) throws IOException {
 		String prefix;
@@ -44,15 +78,63 @@ public class TmpFileEntity implements Entity, Closeable {
 		tmpFile.deleteOnExit();
 		log.debug(" - tmpFile: {}",tmpFile);
 		type = mime;
+		owner = true;
 	}
+	
+	/**
+	 * Creates an entity for the parsed file. Unlike for tmp files created by
+	 * the other constructor the file is NOT deleted on exit.
+	 * @param file the file used to keep the XZ compressed data
+	 * @param mime the media type of the data
+	 * @param owner if <code>true</code> the file is deleted on {@link #close()}.
+	 * Parse <code>false</code> for files that are managed by some other
+	 * component (e.g. a shared {@link JobStore}).
+	 */
+	public TmpFileEntity(File file, MimeType mime, boolean owner) {
+		tmpFile = file;
+		log.debug(" - file: {} (owner: {})", tmpFile, owner);
+		type = mime;
+		this.owner = owner;
+	}
+
+	/**
+	 * Sets the cache used for the arrays of the XZ streams and buffers used
+	 * to read and write the data of this entity
+	 * @param arrayCache the cache (e.g. a {@link BufferPool}) or <code>null</code>
+	 * to use the default cache of the XZ library
+	 */
+	void setArrayCache(ArrayCache arrayCache) {
+		this.arrayCache = arrayCache;
+	}
+
+	/**
+	 * Converts a request id (e.g. <code>/job/{uuid}</code>) to a save file name
+	 * @param requestId the request id
+	 * @return the file name
+	 */
+	public static String toFileName(String requestId) {
+		StringBuilder name = new StringBuilder(requestId.length());
+		for(int i = 0; i < requestId.length(); i++){
+			char c = requestId.charAt(i);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+					(c >= '0' && c <= '9') || c == '-' || c == '.'){
+				name.append(c);
+			} else {
+				name.append('_');
+			}
+		}
+		return name.toString();
+	}
+	
 	/**
 	 * Creates an {@link OutputStream} for the tmp file used by this entity to
-	 * cache the data until they are requestsd
+	 * cache the data until they are requestsd. The {@link #getETag() ETag}
+	 * is stored when the stream is closed.
 	 * @return
 	 * @throws IOException
 	 */
 	public OutputStream getWriter() throws IOException {
-		return new XZCompressorOutputStream(new FileOutputStream(tmpFile));
+		return new BlockOutputStream(new FileOutputStream(tmpFile));
 	}
 	
 	@Override
@@ -62,7 +144,121 @@ public class TmpFileEntity implements Entity, Closeable {
 
 	@Override
 	public InputStream getData() throws IOException {
-		return new XZCompressorInputStream(new FileInputStream(tmpFile));
+		InputStream in = new FileInputStream(tmpFile);
+		try {
+			return new SingleXZInputStream(in, BufferPool.orDefault(arrayCache));
+		} catch (IOException e) {
+			IOUtils.closeQuietly(in);
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the data starting from the parsed offset. Only the XZ block
+	 * containing the offset needs to be decoded.
+	 * @param offset the offset within the (uncompressed) data
+	 * @return the stream positioned at the offset
+	 * @throws IOException on any error while reading the file
+	 */
+	public InputStream getData(long offset) throws IOException {
+		SeekableXZInputStream in = new SeekableXZInputStream(new SeekableFileInputStream(tmpFile),
+				BufferPool.orDefault(arrayCache));
+		try {
+			in.seek(offset);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(in);
+			throw e;
+		}
+		return in;
+	}
+
+	/**
+	 * The length of the (uncompressed) data as read from the XZ index
+	 * @return the length in bytes
+	 * @throws IOException on any error while reading the file
+	 */
+	public long getLength() throws IOException {
+		SeekableXZInputStream in = new SeekableXZInputStream(new SeekableFileInputStream(tmpFile),
+				BufferPool.orDefault(arrayCache));
+		try {
+			return in.length();
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * The ETag (a hash of the data) calculated while writing the data. For
+	 * files written by other components the hash is calculated on the first
+	 * call.
+	 * @return the ETag (without quotes)
+	 * @throws IOException on any error while reading the file
+	 */
+	public String getETag() throws IOException {
+		String etag = this.etag;
+		if(etag == null){
+			File etagFile = getETagFile();
+			if(etagFile.isFile()){
+				etag = FileUtils.readFileToString(etagFile, "UTF-8").trim();
+			} else { //written by some other component
+				MessageDigest digest = createDigest();
+				InputStream in = getData();
+				ArrayCache cache = BufferPool.orDefault(arrayCache);
+				byte[] buffer = cache.getByteArray(BufferPool.COPY_BUFFER_SIZE, false);
+				try {
+					int n;
+					while((n = in.read(buffer)) >= 0){
+						digest.update(buffer, 0, n);
+					}
+				} finally {
+					cache.putArray(buffer);
+					IOUtils.closeQuietly(in);
+				}
+				etag = toHex(digest.digest());
+			}
+			this.etag = etag;
+		}
+		return etag;
+	}
+
+	/**
+	 * Sets the ETag of data written by other means (e.g. a link to the
+	 * file of an other entity)
+	 * @param etag the ETag
+	 * @throws IOException on any error while storing the ETag
+	 */
+	void setETag(String etag) throws IOException {
+		File etagFile = getETagFile();
+		if(owner){ //like the data the ETag must not outlive the JVM
+			etagFile.deleteOnExit();
+		}
+		try {
+			FileUtils.writeStringToFile(etagFile, etag, "UTF-8");
+		} catch (IOException | RuntimeException e) {
+			etagFile.delete();
+			throw e;
+		}
+		this.etag = etag;
+	}
+
+	private File getETagFile() {
+		return new File(tmpFile.getPath() + ETAG_SUFFIX);
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST + " is not supported by this JVM", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes){
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
 	}
 
 	@Override
@@ -74,7 +270,7 @@ public class TmpFileEntity implements Entity, Closeable {
 	public void writeData(OutputStream out) throws IOException {
 		InputStream in = getData();
 		try {
-			IOUtils.copy(in, out);
+			BufferPool.copy(in, out, arrayCache);
 		} finally {
 			IOUtils.closeQuietly(in);
 		}
@@ -88,13 +284,26 @@ public class TmpFileEntity implements Entity, Closeable {
 
 	
 	/**
-	 * Deletes the tmp file
+	 * Getter for the file used to store the data
+	 * @return the file
+	 */
+	public File getFile() {
+		return tmpFile;
+	}
+	
+	/**
+	 * Deletes the tmp file and the file storing the ETag if this entity is
+	 * the owner of the file
 	 */
 	@Override
 	public void close() throws IOException {
-		if(tmpFile.isFile()){
-			log.debug(" - clean {}", tmpFile);
-			tmpFile.delete();
+		if(owner){
+			if(tmpFile.isFile()){
+				log.debug(" - clean {}", tmpFile);
+				tmpFile.delete();
+			}
+			//also if the data were already deleted
+			getETagFile().delete();
 		}
 	}
 	@Override
@@ -103,4 +312,58 @@ public class TmpFileEntity implements Entity, Closeable {
 		super.finalize();
 	}
 
+	/**
+	 * Writes XZ blocks of {@link TmpFileEntity#BLOCK_SIZE} and calculates
+	 * the ETag of the written data
+	 */
+	private class BlockOutputStream extends OutputStream {
+
+		private final XZOutputStream out;
+		private final MessageDigest digest = createDigest();
+		private int blockRemaining = BLOCK_SIZE;
+		private boolean closed;
+
+		BlockOutputStream(OutputStream out) throws IOException {
+			LZMA2Options options = new LZMA2Options();
+			//blocks are encoded independently
+			options.setDictSize(BLOCK_SIZE);
+			this.out = new XZOutputStream(out, options, BufferPool.orDefault(arrayCache));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			digest.update(b, off, len);
+			while(len > 0){
+				int n = Math.min(len, blockRemaining);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+				blockRemaining -= n;
+				if(blockRemaining == 0){
+					out.endBlock();
+					blockRemaining = BLOCK_SIZE;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed){
+				return;
+			}
+			closed = true;
+			out.close();
+			setETag(toHex(digest.digest()));
+		}
+	}
 }
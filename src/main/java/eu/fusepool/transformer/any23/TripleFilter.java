@@ -0,0 +1,351 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.any23.extractor.ExtractionContext;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.any23.writer.TripleHandlerException;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+
+/**
+ * Include and exclude filters on predicate namespaces, <code>rdf:type</code>
+ * classes and extractor names applied in the {@link TripleHandler} chain
+ * before serialization.<p>
+ * Predicates and classes are matched as IRI prefixes (e.g.
+ * <code>http://schema.org/</code>) by using a prefix trie compiled when the
+ * filter is created. <code>rdf:type</code> triples are matched against the
+ * class filters if any are present and against the predicate filters
+ * otherwise. Extractors are matched by name (e.g. <code>html-rdfa11</code>).
+ * A triple is accepted if it matches all present include filters and none
+ * of the exclude filters.<p>
+ * Filters can be configured by <code>transformer.filter.{parameter}</code>
+ * properties and by query parameters of requests. Values are comma
+ * separated lists.
+ */
+public class TripleFilter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Prefix of the properties used to configure the filter
+     */
+    public static final String PROPERTY_PREFIX = Any23Transformer.PROPERTY_PREFIX + "filter.";
+
+    public static final String INCLUDE_PREDICATES = "include-predicates";
+    public static final String EXCLUDE_PREDICATES = "exclude-predicates";
+    public static final String INCLUDE_TYPES = "include-types";
+    public static final String EXCLUDE_TYPES = "exclude-types";
+    public static final String INCLUDE_EXTRACTORS = "include-extractors";
+    public static final String EXCLUDE_EXTRACTORS = "exclude-extractors";
+
+    /**
+     * The names of the filter parameters
+     */
+    public static final Set<String> PARAMETERS = Collections.unmodifiableSet(
+            new LinkedHashSet<String>(Arrays.asList(INCLUDE_PREDICATES, EXCLUDE_PREDICATES,
+                    INCLUDE_TYPES, EXCLUDE_TYPES, INCLUDE_EXTRACTORS, EXCLUDE_EXTRACTORS)));
+
+    private final Map<String,Set<String>> values;
+    private final PrefixTrie includePredicates;
+    private final PrefixTrie excludePredicates;
+    private final PrefixTrie includeTypes;
+    private final PrefixTrie excludeTypes;
+    private final Set<String> includeExtractors;
+    private final Set<String> excludeExtractors;
+
+    private TripleFilter(Map<String,Set<String>> values) {
+        this.values = values;
+        this.includePredicates = PrefixTrie.create(values.get(INCLUDE_PREDICATES));
+        this.excludePredicates = PrefixTrie.create(values.get(EXCLUDE_PREDICATES));
+        this.includeTypes = PrefixTrie.create(values.get(INCLUDE_TYPES));
+        this.excludeTypes = PrefixTrie.create(values.get(EXCLUDE_TYPES));
+        this.includeExtractors = values.get(INCLUDE_EXTRACTORS);
+        this.excludeExtractors = values.get(EXCLUDE_EXTRACTORS);
+    }
+
+    /**
+     * Creates a filter from <code>transformer.filter.{parameter}</code>
+     * properties
+     * @param config the properties
+     * @return the filter or <code>null</code> if no filter is configured
+     * @throws IllegalArgumentException if an unknown filter property is present
+     */
+    public static TripleFilter fromProperties(Properties config) {
+        Map<String,Set<String>> values = new LinkedHashMap<String,Set<String>>();
+        if(config != null){
+            for(String key : config.stringPropertyNames()){
+                if(key.startsWith(PROPERTY_PREFIX)){
+                    add(values, key.substring(PROPERTY_PREFIX.length()),
+                            config.getProperty(key), key);
+                }
+            }
+        }
+        return values.isEmpty() ? null : new TripleFilter(values);
+    }
+
+    /**
+     * Creates a filter from the filter parameters of an URL query string.
+     * Other parameters are ignored.
+     * @param query the query string (e.g. as returned by
+     * <code>HttpServletRequest#getQueryString()</code>)
+     * @return the filter or <code>null</code> if the query does not contain
+     * filter parameters
+     */
+    public static TripleFilter fromQuery(String query) {
+        Map<String,Set<String>> values = new LinkedHashMap<String,Set<String>>();
+        if(query != null){
+            for(String param : query.split("&")){
+                int idx = param.indexOf('=');
+                String name = decode(idx < 0 ? param : param.substring(0, idx));
+                if(PARAMETERS.contains(name)){
+                    add(values, name, idx < 0 ? "" : decode(param.substring(idx + 1)), name);
+                }
+            }
+        }
+        return values.isEmpty() ? null : new TripleFilter(values);
+    }
+
+    private static void add(Map<String,Set<String>> values, String name, String value,
+            String key) {
+        if(!PARAMETERS.contains(name)){
+            throw new IllegalArgumentException("Unknown filter '" + key + "' (supported: "
+                    + PARAMETERS + ")");
+        }
+        Set<String> set = values.get(name);
+        if(set == null){
+            set = new LinkedHashSet<String>();
+            values.put(name, set);
+        }
+        for(String v : value.split(",")){
+            v = v.trim();
+            if(!v.isEmpty()){
+                set.add(v);
+            }
+        }
+        if(set.isEmpty()){ //an empty value does not filter
+            values.remove(name);
+        }
+    }
+
+    /**
+     * If the parsed triple passes the filter
+     * @param p the predicate
+     * @param o the object
+     * @param context the extraction context providing the extractor name
+     * @return <code>true</code> if the triple is accepted
+     */
+    public boolean accept(URI p, Value o, ExtractionContext context) {
+        if(includeExtractors != null || excludeExtractors != null){
+            String extractor = context == null ? null : context.getExtractorName();
+            if(includeExtractors != null && !includeExtractors.contains(extractor)){
+                return false;
+            }
+            if(excludeExtractors != null && excludeExtractors.contains(extractor)){
+                return false;
+            }
+        }
+        if((includeTypes != null || excludeTypes != null) && RDF.TYPE.equals(p)){
+            String type = o.stringValue();
+            return (includeTypes == null || includeTypes.matches(type)) &&
+                    (excludeTypes == null || !excludeTypes.matches(type));
+        }
+        String predicate = p.stringValue();
+        return (includePredicates == null || includePredicates.matches(predicate)) &&
+                (excludePredicates == null || !excludePredicates.matches(predicate));
+    }
+
+    /**
+     * Wraps the parsed handler so that only triples accepted by this
+     * filter are forwarded
+     * @param handler the handler
+     * @return the filtering handler
+     */
+    public TripleHandler wrap(TripleHandler handler) {
+        return new FilteringTripleHandler(this, handler);
+    }
+
+    /**
+     * The canonical query string representation of this filter. Can be
+     * parsed by {@link #fromQuery(String)}
+     */
+    @Override
+    public String toString() {
+        StringBuilder query = new StringBuilder();
+        for(Map.Entry<String,Set<String>> entry : values.entrySet()){
+            if(query.length() > 0){
+                query.append('&');
+            }
+            query.append(entry.getKey()).append('=');
+            boolean first = true;
+            for(String value : entry.getValue()){
+                if(first){
+                    first = false;
+                } else {
+                    query.append(',');
+                }
+                query.append(encode(value));
+            }
+        }
+        return query.toString();
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TripleFilter && ((TripleFilter)obj).values.equals(values);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, UTF8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, UTF8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Trie over the characters of IRI prefixes. Children are kept in sorted
+     * arrays so that matching an IRI does not allocate.
+     */
+    static final class PrefixTrie {
+
+        private static final char[] NO_KEYS = new char[0];
+        private static final PrefixTrie[] NO_CHILDREN = new PrefixTrie[0];
+
+        private char[] keys = NO_KEYS;
+        private PrefixTrie[] children = NO_CHILDREN;
+        private boolean end;
+
+        static PrefixTrie create(Set<String> prefixes) {
+            if(prefixes == null){
+                return null;
+            }
+            PrefixTrie root = new PrefixTrie();
+            for(String prefix : prefixes){
+                root.add(prefix);
+            }
+            return root;
+        }
+
+        void add(String prefix) {
+            PrefixTrie node = this;
+            for(int i = 0; i < prefix.length(); i++){
+                char c = prefix.charAt(i);
+                int idx = Arrays.binarySearch(node.keys, c);
+                if(idx < 0){
+                    idx = -idx - 1;
+                    char[] keys = new char[node.keys.length + 1];
+                    PrefixTrie[] children = new PrefixTrie[keys.length];
+                    System.arraycopy(node.keys, 0, keys, 0, idx);
+                    System.arraycopy(node.children, 0, children, 0, idx);
+                    System.arraycopy(node.keys, idx, keys, idx + 1, node.keys.length - idx);
+                    System.arraycopy(node.children, idx, children, idx + 1, node.keys.length - idx);
+                    keys[idx] = c;
+                    children[idx] = new PrefixTrie();
+                    node.keys = keys;
+                    node.children = children;
+                }
+                node = node.children[idx];
+            }
+            node.end = true;
+        }
+
+        /**
+         * If the parsed value starts with any of the prefixes of this trie
+         */
+        boolean matches(String value) {
+            PrefixTrie node = this;
+            for(int i = 0; !node.end; i++){
+                if(i == value.length()){
+                    return false;
+                }
+                int idx = Arrays.binarySearch(node.keys, value.charAt(i));
+                if(idx < 0){
+                    return false;
+                }
+                node = node.children[idx];
+            }
+            return true;
+        }
+    }
+
+    private static class FilteringTripleHandler implements TripleHandler {
+
+        private final TripleFilter filter;
+        private final TripleHandler delegate;
+
+        FilteringTripleHandler(TripleFilter filter, TripleHandler delegate) {
+            this.filter = filter;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void startDocument(URI documentURI) throws TripleHandlerException {
+            delegate.startDocument(documentURI);
+        }
+
+        @Override
+        public void openContext(ExtractionContext context) throws TripleHandlerException {
+            delegate.openContext(context);
+        }
+
+        @Override
+        public void receiveTriple(Resource s, URI p, Value o, URI g, ExtractionContext context)
+                throws TripleHandlerException {
+            if(filter.accept(p, o, context)){
+                delegate.receiveTriple(s, p, o, g, context);
+            }
+        }
+
+        @Override
+        public void receiveNamespace(String prefix, String uri, ExtractionContext context)
+                throws TripleHandlerException {
+            delegate.receiveNamespace(prefix, uri, context);
+        }
+
+        @Override
+        public void closeContext(ExtractionContext context) throws TripleHandlerException {
+            delegate.closeContext(context);
+        }
+
+        @Override
+        public void endDocument(URI documentURI) throws TripleHandlerException {
+            delegate.endDocument(documentURI);
+        }
+
+        @Override
+        public void setContentLength(long contentLength) {
+            delegate.setContentLength(contentLength);
+        }
+
+        @Override
+        public void close() throws TripleHandlerException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a corpus of documents to a started {@link Any23Server} and fetches
+ * the results so that the classes used to process requests are loaded and
+ * the hot code is compiled before the server reports to be ready.<p>
+ * The built-in corpus (<code>warmup/</code> resources) includes a document
+ * for every supported format. It is also used for the training runs that
+ * create class data sharing archives (see <code>Main --cds-training</code>).
+ * Alternatively the files of a directory can be used. Their media types are
+ * determined by the {@link BatchConverter#DEFAULT_TYPES}.
+ */
+public class Warmup {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default number of times the corpus is sent to the server
+     */
+    public static final int DEFAULT_ITERATIONS = 3;
+    /**
+     * The documents of the built-in corpus
+     */
+    public static final List<String> CORPUS = Collections.unmodifiableList(Arrays.asList(
+            "hcard.html", "rdfa11.html", "schemaorg.html", "people.csv",
+            "vocabulary.rdf", "people.ttl", "people.nt", "people.jsonld"));
+
+    private static final String CORPUS_PATH = "warmup/";
+    /**
+     * The max time to wait for the result of a document
+     */
+    private static final long RESULT_TIMEOUT = 60000;
+    private static final long POLL_INTERVAL = 20;
+
+    private final List<Document> documents = new ArrayList<Document>();
+    private int iterations = DEFAULT_ITERATIONS;
+
+    /**
+     * Creates a warm-up using the built-in corpus
+     * @throws IOException if the corpus can not be read
+     */
+    public Warmup() throws IOException {
+        ClassLoader cl = Warmup.class.getClassLoader();
+        for(String name : CORPUS){
+            InputStream in = cl.getResourceAsStream(CORPUS_PATH + name);
+            if(in == null){
+                throw new IOException("Missing warm-up document " + CORPUS_PATH + name);
+            }
+            try {
+                documents.add(new Document(name, IOUtils.toByteArray(in), getType(name)));
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Creates a warm-up using the files in the parsed directory. Files with
+     * unknown media types are ignored.
+     * @param dir the directory
+     * @throws IOException if the files can not be read
+     * @throws IllegalArgumentException if the directory does not contain any
+     * file with a known media type
+     */
+    public Warmup(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if(files != null){
+            Arrays.sort(files);
+            for(File file : files){
+                String type = file.isFile() ? getType(file.getName()) : null;
+                if(type != null){
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        documents.add(new Document(file.getName(), IOUtils.toByteArray(in), type));
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+            }
+        }
+        if(documents.isEmpty()){
+            throw new IllegalArgumentException("The warm-up directory '" + dir
+                    + "' does not contain any file with a known media type (patterns: "
+                    + BatchConverter.DEFAULT_TYPES.keySet() + ")");
+        }
+    }
+
+    /**
+     * The media type of a document by its file name (see
+     * {@link BatchConverter#DEFAULT_TYPES})
+     * @return the type or <code>null</code> if not known
+     */
+    static String getType(String name) {
+        Path path = Paths.get(name.toLowerCase(Locale.ROOT));
+        for(Map.Entry<String,String> entry : BatchConverter.DEFAULT_TYPES.entrySet()){
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + entry.getKey());
+            if(matcher.matches(path)){
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Setter for the number of times the corpus is sent to the server
+     * @param iterations the number of iterations
+     */
+    public void setIterations(int iterations) {
+        if(iterations < 1){
+            throw new IllegalArgumentException("The number of iterations MUST BE >= 1");
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * The names of the documents of this warm-up
+     * @return the document names
+     */
+    public List<String> getDocuments() {
+        List<String> names = new ArrayList<String>(documents.size());
+        for(Document document : documents){
+            names.add(document.name);
+        }
+        return names;
+    }
+
+    /**
+     * Requests the capabilities of the transformer and sends all documents
+     * {@link #getIterations()} times. Failed documents are logged but do not
+     * stop the warm-up.
+     * @param base the base URL of the transformer (e.g.
+     * <code>http://localhost:8303/</code>)
+     * @return the number of failed documents
+     * @throws InterruptedException if interrupted while waiting for results
+     */
+    public int run(URL base) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        int failed = 0;
+        try {
+            consume(open(base, "GET"));
+        } catch (IOException e) {
+            log.warn("Unable to request the capabilities of " + base + " (message: "
+                    + e.getMessage() + ")");
+            failed++;
+        }
+        for(int i = 0; i < iterations; i++){
+            for(Document document : documents){
+                long docStart = System.currentTimeMillis();
+                try {
+                    transform(base, document);
+                    log.debug(" - {} transformed in {}ms", document.name,
+                            System.currentTimeMillis() - docStart);
+                } catch (IOException e) {
+                    log.warn("Unable to transform warm-up document " + document.name
+                            + " (message: " + e.getMessage() + ")");
+                    failed++;
+                }
+            }
+        }
+        log.info(" ... warm-up: {} documents x {} in {}ms ({} failed)", new Object[]{
+                documents.size(), iterations, System.currentTimeMillis() - start, failed});
+        return failed;
+    }
+
+    private void transform(URL base, Document document) throws IOException, InterruptedException {
+        HttpURLConnection con = open(base, "POST");
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-Type", document.type);
+        OutputStream out = con.getOutputStream();
+        try {
+            out.write(document.data);
+        } finally {
+            out.close();
+        }
+        int status = con.getResponseCode();
+        if(status == HttpURLConnection.HTTP_OK){ //synchronous response
+            consume(con);
+            return;
+        }
+        String location = con.getHeaderField("Location");
+        consume(con);
+        if(status != HttpURLConnection.HTTP_ACCEPTED || location == null){
+            throw new IOException("Unexpected response " + status);
+        }
+        URL job = new URL(base, location);
+        long timeout = System.currentTimeMillis() + RESULT_TIMEOUT;
+        while(true){
+            con = open(job, "GET");
+            status = con.getResponseCode();
+            consume(con);
+            if(status == HttpURLConnection.HTTP_OK){
+                return;
+            } else if(status != HttpURLConnection.HTTP_ACCEPTED){
+                throw new IOException("Unexpected response " + status + " for " + job);
+            } else if(System.currentTimeMillis() > timeout){
+                throw new IOException("No result after " + RESULT_TIMEOUT + "ms for " + job);
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+    }
+
+    private static HttpURLConnection open(URL url, String method) throws IOException {
+        HttpURLConnection con = (HttpURLConnection)url.openConnection();
+        con.setRequestMethod(method);
+        con.setInstanceFollowRedirects(false);
+        return con;
+    }
+
+    /**
+     * Reads the response so that the connection can be reused
+     */
+    private static void consume(HttpURLConnection con) throws IOException {
+        InputStream in = con.getResponseCode() >= 400 ? con.getErrorStream() : con.getInputStream();
+        if(in != null){
+            try {
+                IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class Document {
+
+        final String name;
+        final byte[] data;
+        final String type;
+
+        Document(String name, byte[] data, String type) {
+            this.name = name;
+            this.data = data;
+            this.type = type;
+        }
+    }
+}
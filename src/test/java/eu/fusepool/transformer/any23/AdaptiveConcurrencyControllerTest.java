@@ -0,0 +1,156 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyControllerTest {
+
+	/**
+	 * The time a job needs per unit of work
+	 */
+	private static final long UNIT_TIME = 10;
+
+	private Bulkhead bulkhead;
+	private AdaptiveConcurrencyController controller;
+
+	@Before
+	public void init() {
+		bulkhead = new Bulkhead("adaptive-test", null, 2, 8, 1, 0);
+		bulkhead.start();
+		//do not let the CPU load of the build influence the decisions
+		controller = new AdaptiveConcurrencyController(bulkhead, 2, 8, 1.0) {
+			@Override
+			double getCurrentCpuLoad() {
+				return -1;
+			}
+		};
+		controller.start();
+	}
+
+	@After
+	public void cleanup() {
+		controller.stop();
+		bulkhead.shutdown();
+	}
+
+	@Test
+	public void testMixedLoad() throws Exception {
+		assertEquals(8, bulkhead.getLimit());
+		//parked jobs and small documents
+		for(int i = 0; i < 10; i++){
+			run(new Job(-1));
+		}
+		run(new Job(1024));
+		run(new Job(1024));
+		controller.run();
+		assertEquals(UNIT_TIME, controller.getLatency(), UNIT_TIME);
+		//large documents take longer but the latency per unit is the same
+		run(new Job(4 * AdaptiveConcurrencyController.LATENCY_UNIT));
+		controller.run();
+		assertEquals("HOLD", controller.getLastDecision());
+		//only parked jobs are not measured
+		for(int i = 0; i < 10; i++){
+			run(new Job(-1));
+		}
+		controller.run();
+		assertEquals(-1, controller.getLatency(), 0);
+		run(new Job(8 * AdaptiveConcurrencyController.LATENCY_UNIT));
+		run(new Job(0));
+		controller.run();
+		assertEquals("HOLD", controller.getLastDecision());
+		assertEquals(0, controller.getDecreaseCount());
+		assertEquals(8, bulkhead.getLimit());
+		//a real latency increase for the same documents is still detected
+		run(new Job(1024, 5 * UNIT_TIME));
+		run(new Job(1024, 5 * UNIT_TIME));
+		controller.run();
+		assertEquals("DECREASE", controller.getLastDecision());
+		assertEquals(6, bulkhead.getLimit());
+		//rejected jobs -> additive increase
+		CountDownLatch blocked = new CountDownLatch(1);
+		try {
+			for(int i = 0; i < 6; i++){
+				bulkhead.submit(new Blocked(blocked));
+			}
+			try {
+				bulkhead.submit(new Blocked(blocked));
+				fail("bulkhead not saturated");
+			} catch (RejectedExecutionException e) {/*expected*/}
+			controller.run();
+			assertEquals("INCREASE", controller.getLastDecision());
+			assertEquals(7, bulkhead.getLimit());
+		} finally {
+			blocked.countDown();
+		}
+	}
+
+	/**
+	 * Runs the parsed job by the bulkhead and waits until it was recorded
+	 */
+	private void run(Job job) throws InterruptedException {
+		long processed = bulkhead.getProcessedCount();
+		bulkhead.submit(job);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(bulkhead.getProcessedCount() == processed){
+			assertTrue("job not processed", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Takes {@link #UNIT_TIME} per unit of work or returns immediately if parked
+	 */
+	private static class Job implements Bulkhead.MeasuredJob {
+
+		private final long length;
+		private final long time;
+
+		Job(long length) {
+			this(length, UNIT_TIME);
+		}
+
+		Job(long length, long unitTime) {
+			this.length = length;
+			this.time = length < 0 ? 0 :
+				unitTime * (1 + length / AdaptiveConcurrencyController.LATENCY_UNIT);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Thread.sleep(time);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public long getProcessedLength() {
+			return length;
+		}
+	}
+
+	private static class Blocked implements Runnable {
+
+		private final CountDownLatch latch;
+
+		Blocked(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -59,9 +59,9 @@ public class Any23TransformerTest {
 	private static final Logger log = LoggerFactory.getLogger(Any23TransformerTest.class);
 
 	private static final String CSV_CONTENT_FILE = "test.csv";
-	private static final String HTML_RDFA_CONTENT_FILE = "rdfa11.html";
-	private static final String HTML_MICROFORMAT_CONTENT_FILE = "hcard.html";
-	private static final String HTML_MICRODATA_CONTENT_FILE = "schemaorg.html";
+	private static final String HTML_RDFA_CONTENT_FILE = "warmup/rdfa11.html";
+	private static final String HTML_MICROFORMAT_CONTENT_FILE = "warmup/hcard.html";
+	private static final String HTML_MICRODATA_CONTENT_FILE = "warmup/schemaorg.html";
 	private static final String RDF_XML_CONTENT_FILE = "dcterms.rdf";
 
 	private static final Set<String> EXPECTED_SUPPORTED_INPUT_FORMATS = new HashSet<String>();
@@ -196,6 +196,28 @@ public class Any23TransformerTest {
 		assertEquals(CSV_LINE_COUNT, rowsCount);
 	}
 
+	@Test
+	public void testFilteredCsvPost() throws Exception {
+		log.info("> test CSV with triple filter");
+		String acceptType = "text/turtle";
+		ResponseBodyData result = validateAsyncTransformerRequest(BASE_URI 
+				+ "?include-types=" + SINDICE_ROW.getUnicodeString()
+				+ "&include-predicates=" + SINDICE_ROW_PROP.getUnicodeString(), 
+				"text/csv;charset=UTF-8", CSV_CONTENT, null, acceptType);
+		Graph graph = parser.parse(result.asInputStream(), acceptType);
+		int rowsCount = 0;
+		for(Triple t : graph){
+			if(t.getPredicate().equals(RDF.type)){
+				assertEquals(SINDICE_ROW, t.getObject());
+				rowsCount++;
+			} else { //predicates are matched as prefixes (e.g. csv:rowPosition)
+				assertTrue("unexpected triple " + t, t.getPredicate().getUnicodeString()
+						.startsWith(SINDICE_ROW_PROP.getUnicodeString()));
+			}
+		}
+		assertEquals(CSV_LINE_COUNT, rowsCount);
+	}
+
 	@Test
 	public void testHtmlRdfaPost() throws Exception {
 		log.info("> test HTML with RDFa annottions");
@@ -280,6 +302,36 @@ public class Any23TransformerTest {
 		assertTrue(graph.size() > 0);
 	}
 
+	/**
+	 * N-Triples and N-Quads declared with the types used by the transformer
+	 * as well as sniffed from <code>application/octet-stream</code> requests
+	 * (Any23 registers its extractors for other types of those formats)
+	 */
+	@Test
+	public void testNTriplesAndNQuadsPost() throws Exception {
+		log.info("> test N-Triples and N-Quads");
+		String acceptType = "text/turtle";
+		byte[] nt = ("<http://www.example.org/a> <http://www.example.org/b> \"literal\"@en .\n"
+				+ "<http://www.example.org/a> <http://www.example.org/c> <http://www.example.org/d> .\n")
+				.getBytes(Charset.forName("UTF-8"));
+		byte[] nq = ("<http://www.example.org/a> <http://www.example.org/b> <http://www.example.org/c> "
+				+ "<http://www.example.org/graph> .\n").getBytes(Charset.forName("UTF-8"));
+		for(String contentType : new String[]{"application/octet-stream",
+				Any23Transformer.N_TRIPLE.toString(), Any23Transformer.N_TRIPLE2.toString()}){
+			log.info(" - N-Triples as {}", contentType);
+			ResponseBodyData result = validateAsyncTransformerRequest(BASE_URI, 
+					contentType, nt, null, acceptType);
+			assertEquals(contentType, 2, parser.parse(result.asInputStream(), acceptType).size());
+		}
+		for(String contentType : new String[]{"application/octet-stream",
+				Any23Transformer.N_QUADS.toString()}){
+			log.info(" - N-Quads as {}", contentType);
+			ResponseBodyData result = validateAsyncTransformerRequest(BASE_URI, 
+					contentType, nq, null, acceptType);
+			assertEquals(contentType, 1, parser.parse(result.asInputStream(), acceptType).size());
+		}
+	}
+
 	
 	/**
 	 * Helper method that sends an transformer request to the postURI using the
@@ -321,8 +373,10 @@ public class Any23TransformerTest {
 		log.info(" - accepted with location: {}", location);
 		
 		//(2) try for min 30sec max 60sec to retrieve the transformation results
-		String locationUri = (postURI.charAt(postURI.length() - 1) == '/' ? 
-				postURI.substring(0, postURI.length()-1) : postURI) + location;
+		String baseUri = postURI.indexOf('?') < 0 ? postURI : //ignore query parameters
+			postURI.substring(0, postURI.indexOf('?'));
+		String locationUri = (baseUri.charAt(baseUri.length() - 1) == '/' ? 
+				baseUri.substring(0, baseUri.length()-1) : baseUri) + location;
 		UriRef locationUriRef = new UriRef(locationUri);
 		
 		long start = System.currentTimeMillis();
@@ -0,0 +1,149 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchConverterTest {
+
+	private File dir;
+	private Any23Transformer transformer;
+
+	@Before
+	public void init() throws Exception {
+		dir = File.createTempFile("any23-batch", "");
+		dir.delete();
+		File input = new File(dir, "input/sub");
+		assertTrue(input.mkdirs());
+		copy("warmup/rdfa11.html", new File(input, "rdfa11.html"));
+		copy("dcterms.rdf", new File(input.getParentFile(), "dcterms.rdf"));
+		copy("test.csv", new File(input, "test.csv"));
+		FileUtils.writeStringToFile(new File(input, "readme.txt"), "not converted");
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(input, "data.zip")));
+		try {
+			zip.putNextEntry(new ZipEntry("pages/schema org.html"));
+			InputStream in = getClass().getClassLoader().getResourceAsStream("warmup/schemaorg.html");
+			IOUtils.copy(in, zip);
+			in.close();
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+		transformer = new Any23Transformer();
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		transformer.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private void copy(String resource, File file) throws Exception {
+		InputStream in = getClass().getClassLoader().getResourceAsStream(resource);
+		try {
+			FileUtils.copyInputStreamToFile(in, file);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testNQuadsAndResume() throws Exception {
+		File output = new File(dir, "out.nq");
+		File checkpoint = new File(dir, "checkpoint");
+		BatchConverter converter = new BatchConverter(transformer);
+		converter.setOutputFile(output);
+		converter.setCheckpointFile(checkpoint);
+		converter.setWorkers(2);
+		BatchConverter.Stats stats = converter.convert(Arrays.asList(new File(dir, "input")));
+		assertEquals(4, stats.getConverted());
+		assertEquals(0, stats.getFailed());
+		assertEquals(1, stats.getSkipped());
+		assertTrue(stats.getTriples() > 0);
+		String nquads = FileUtils.readFileToString(output, "UTF-8");
+		assertTrue(nquads.contains("<" + new File(dir, "input/dcterms.rdf").toURI() + ">"));
+		assertTrue(nquads.contains("!/pages/schema%20org.html>"));
+		long length = output.length();
+		assertEquals(4, FileUtils.readLines(checkpoint, Charset.forName("UTF-8")).size());
+		//a restarted conversion skips completed files
+		stats = converter.convert(Arrays.asList(new File(dir, "input")));
+		assertEquals(0, stats.getConverted());
+		assertEquals(4, stats.getResumed());
+		assertEquals(length, output.length());
+	}
+
+	@Test
+	public void testPerFileOutput() throws Exception {
+		File output = new File(dir, "out");
+		BatchConverter converter = new BatchConverter(transformer);
+		converter.setOutputDir(output);
+		converter.setBaseUri("http://example.org/docs");
+		converter.addType("*.txt=text/csv");
+		BatchConverter.Stats stats = converter.convert(Arrays.asList(new File(dir, "input")));
+		assertEquals(5, stats.getConverted());
+		assertEquals(0, stats.getSkipped());
+		assertTrue(new File(output, "sub/rdfa11.html.ttl").isFile());
+		assertTrue(new File(output, "sub/readme.txt.ttl").isFile());
+		assertTrue(new File(output, "sub/data.zip/pages/schema org.html.ttl").isFile());
+		assertTrue(FileUtils.readFileToString(new File(output, "sub/test.csv.ttl"), "UTF-8")
+				.contains("http://example.org/docs/sub/test.csv"));
+	}
+
+	@Test
+	public void testNTriplesAndNQuads() throws Exception {
+		File input = new File(dir, "rdf");
+		FileUtils.writeStringToFile(new File(input, "people.nt"),
+				"<http://example.org/alice> <http://xmlns.com/foaf/0.1/name> \"Alice\" .\n"
+				+ "<http://example.org/alice> <http://xmlns.com/foaf/0.1/knows> <http://example.org/bob> .\n",
+				"UTF-8");
+		FileUtils.writeStringToFile(new File(input, "graph.nq"),
+				"<http://example.org/bob> <http://xmlns.com/foaf/0.1/name> \"Bob\" <http://example.org/g> .\n",
+				"UTF-8");
+		for(boolean direct : new boolean[]{true, false}){
+			Any23Transformer transformer = new Any23Transformer();
+			transformer.setDirectConversion(direct);
+			try {
+				File output = new File(dir, "out-" + direct + ".nq");
+				BatchConverter converter = new BatchConverter(transformer);
+				converter.setOutputFile(output);
+				BatchConverter.Stats stats = converter.convert(Arrays.asList(input));
+				assertEquals(2, stats.getConverted());
+				assertEquals(0, stats.getFailed());
+				assertEquals("direct conversion: " + direct, 3, stats.getTriples());
+				String nquads = FileUtils.readFileToString(output, "UTF-8");
+				assertTrue(nquads.contains("\"Alice\""));
+				assertTrue(nquads.contains("\"Bob\""));
+			} finally {
+				transformer.close();
+			}
+		}
+	}
+
+	@Test
+	public void testTypes() {
+		BatchConverter converter = new BatchConverter(transformer);
+		assertEquals("text/html", converter.getType("Index.HTM"));
+		assertNull(converter.getType("file.txt"));
+		converter.addType("*.xml=application/rdf+xml");
+		assertEquals("application/rdf+xml", converter.getType("data.xml"));
+		assertTrue(BatchConverter.isArchive("dump.tar.gz"));
+		try {
+			converter.addType("*.xml");
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
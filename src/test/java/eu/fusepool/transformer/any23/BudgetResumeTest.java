@@ -0,0 +1,127 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BudgetResumeTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MB = 1024 * 1024;
+
+	private static int port;
+	private static MemoryBudget budget;
+	private static Bulkhead bulkhead;
+	private static Any23Transformer transformer;
+	private static Any23Server server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		transformer = new Any23Transformer();
+		budget = new MemoryBudget(8 * MB);
+		transformer.setMemoryBudget(budget);
+		//a single thread and no queue so that the pool is easily saturated
+		bulkhead = new Bulkhead("csv", Collections.singleton(new MimeType("text/csv")), 1, 1, 60, 0);
+		transformer.addBulkhead(bulkhead);
+		server = new Any23Server(port, true);
+		server.start(transformer);
+	}
+
+	@AfterClass
+	public static void cleanup() throws Exception {
+		server.stop();
+		transformer.close();
+	}
+
+	@Test
+	public void testResumeWhilePoolSaturated() throws Exception {
+		MemoryBudget.Reservation blocker = budget.reserve("text/plain", 3 * MB, null);
+		final CountDownLatch busy = new CountDownLatch(1);
+		String location;
+		try {
+			location = post("a;b\n1;2\n");
+			for(int i = 0; i < 100 && budget.getWaitingCount() == 0; i++){
+				Thread.sleep(50);
+			}
+			assertEquals("job not parked", 1, budget.getWaitingCount());
+			//occupy the only thread of the bulkhead
+			bulkhead.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						busy.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		} catch (Exception e) {
+			busy.countDown();
+			throw e;
+		} finally {
+			blocker.release();
+		}
+		try {
+			//the resumed job was rejected but neither run nor failed by release()
+			assertEquals(0, budget.getWaitingCount());
+			assertTrue(bulkhead.getRejectedCount() > 0);
+			assertEquals(1, transformer.getActiveCount());
+			Thread.sleep(300); //retries are rejected as well
+			assertEquals(1, transformer.getActiveCount());
+		} finally {
+			busy.countDown();
+		}
+		String result = getResult(location);
+		assertTrue(result, result.contains("\"1\""));
+		assertEquals(0, budget.getReserved());
+	}
+
+	private String post(String body) throws Exception {
+		HttpURLConnection con = (HttpURLConnection)
+				new URL("http://localhost:" + port + "/").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setRequestProperty("Content-Type", "text/csv;charset=UTF-8");
+		OutputStream out = con.getOutputStream();
+		out.write(body.getBytes(UTF8));
+		out.close();
+		assertEquals(202, con.getResponseCode());
+		String location = con.getHeaderField("Location");
+		con.disconnect();
+		return location;
+	}
+
+	private String getResult(String location) throws Exception {
+		for(int retry = 0; retry < 40; retry++){
+			HttpURLConnection con = (HttpURLConnection)
+					new URL("http://localhost:" + port + location).openConnection();
+			if(con.getResponseCode() == 200){
+				try {
+					return IOUtils.toString(con.getInputStream(), "UTF-8");
+				} finally {
+					con.disconnect();
+				}
+			}
+			con.disconnect();
+			Thread.sleep(250);
+		}
+		fail("Result of " + location + " not available");
+		return null;
+	}
+}
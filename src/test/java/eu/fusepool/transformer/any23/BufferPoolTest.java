@@ -0,0 +1,111 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.tukaani.xz.ArrayCache;
+
+public class BufferPoolTest {
+
+	private BufferPool pool;
+
+	@After
+	public void cleanup() {
+		if(pool != null){
+			pool.stop();
+		}
+	}
+
+	@Test
+	public void testReuse() {
+		pool = new BufferPool(1024 * 1024);
+		pool.start();
+		byte[] array = pool.getByteArray(64 * 1024, false);
+		array[0] = 1;
+		pool.putArray(array);
+		assertEquals(1, pool.getPooledArrays());
+		assertEquals(64 * 1024, pool.getPooledBytes());
+		assertEquals(1 / 16d, pool.getOccupancy(), 0.0001);
+		//arrays are pooled by their exact length
+		assertNotSame(array, pool.getByteArray(32 * 1024, false));
+		byte[] reused = pool.getByteArray(64 * 1024, true);
+		assertSame(array, reused);
+		assertEquals("requested to be filled with zeros", 0, reused[0]);
+		assertEquals(1, pool.getHitCount());
+		assertEquals(2, pool.getMissCount());
+		assertEquals(64 * 1024, pool.getReusedBytes());
+		assertEquals(0, pool.getPooledBytes());
+
+		int[] ints = pool.getIntArray(1024, false);
+		pool.putArray(ints);
+		assertSame(ints, pool.getIntArray(1024, false));
+		//small arrays are not pooled
+		byte[] small = new byte[16];
+		pool.putArray(small);
+		assertNotSame(small, pool.getByteArray(16, false));
+	}
+
+	@Test
+	public void testBounded() {
+		pool = new BufferPool(100 * 1024);
+		pool.start();
+		pool.putArray(new byte[64 * 1024]);
+		pool.putArray(new byte[64 * 1024]); //exceeds the max size
+		assertEquals(1, pool.getPooledArrays());
+		assertEquals(1, pool.getDroppedCount());
+		pool.clear();
+		assertEquals(0, pool.getPooledBytes());
+		pool.stop();
+		//stopped pools drop returned arrays
+		pool.putArray(new byte[64 * 1024]);
+		assertEquals(0, pool.getPooledArrays());
+	}
+
+	@Test
+	public void testXzStreams() throws Exception {
+		pool = new BufferPool(64 * 1024 * 1024);
+		pool.start();
+		//the pool is parsed to the streams and not installed JVM wide
+		assertNotSame(pool, ArrayCache.getDefaultCache());
+		byte[] data = new byte[256 * 1024];
+		Random random = new Random(42);
+		for(int i = 0; i < data.length; i++){ //compressible data
+			data[i] = (byte)('a' + random.nextInt(8));
+		}
+		for(int i = 0; i < 3; i++){
+			TmpFileDocumentSource source = new TmpFileDocumentSource("/job/pool-" + i,
+					new ByteArrayInputStream(data), new MimeType("text/plain"),
+					"http://www.example.org/pool", new TmpFileDocumentSource.Options().arrayCache(pool));
+			try {
+				assertArrayEquals(data, IOUtils.toByteArray(source.openSinglePassStream()));
+			} finally {
+				source.close();
+			}
+			TmpFileEntity entity = new TmpFileEntity("/job/pool-" + i, new MimeType("text/plain"));
+			entity.setArrayCache(pool);
+			try {
+				OutputStream writer = entity.getWriter();
+				writer.write(data);
+				writer.close();
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				entity.writeData(out);
+				assertArrayEquals(data, out.toByteArray());
+			} finally {
+				entity.close();
+			}
+		}
+		//the encoder and decoder arrays of the first job are reused by the following
+		assertTrue(pool.getHitCount() > 0);
+		assertTrue(pool.getReusedBytes() > 10 * 1024 * 1024);
+		assertTrue(pool.getPooledBytes() > 0);
+	}
+}
@@ -0,0 +1,92 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.activation.MimeType;
+
+import org.junit.Test;
+
+public class BulkheadTest {
+
+	@Test
+	public void testParse() throws Exception {
+		Bulkhead bulkhead = Bulkhead.parse("csv=text/csv, text/tab-separated-values:1:2:10", 30);
+		assertEquals("csv", bulkhead.getName());
+		assertEquals(2, bulkhead.getAcceptedTypes().size());
+		assertEquals(1, bulkhead.getCorePoolSize());
+		assertEquals(2, bulkhead.getMaxPoolSize());
+		assertEquals(10, bulkhead.getQueueCapacity());
+		assertEquals(30, bulkhead.getKeepAliveTime());
+		assertTrue(bulkhead.accepts(new MimeType("text/csv;charset=UTF-8")));
+		assertFalse(bulkhead.accepts(new MimeType("text/html")));
+		assertFalse(bulkhead.accepts(null));
+		for(String invalid : new String[]{"csv", "=text/csv:1:2", "csv=text/csv:1",
+				"csv=text/csv:a:2", "csv=text/csv:3:2", "csv=:1:2"}){
+			try {
+				Bulkhead.parse(invalid, 30);
+				fail("IllegalArgumentException expected for " + invalid);
+			} catch (IllegalArgumentException e) {/* expected */}
+		}
+	}
+
+	@Test
+	public void testFromProperties() throws Exception {
+		Properties config = new Properties();
+		config.setProperty("any23.extraction.metadata.nesting", "off");
+		config.setProperty("transformer.bulkhead.html.types", "text/html,application/xhtml+xml");
+		config.setProperty("transformer.bulkhead.html.max-pool", "4");
+		config.setProperty("transformer.bulkhead.csv.types", "text/csv");
+		config.setProperty("transformer.bulkhead.csv.core-pool", "1");
+		config.setProperty("transformer.bulkhead.csv.max-pool", "1");
+		config.setProperty("transformer.bulkhead.csv.queue", "5");
+		List<Bulkhead> bulkheads = Bulkhead.fromProperties(config);
+		assertEquals(2, bulkheads.size());
+		assertEquals("csv", bulkheads.get(0).getName());
+		assertEquals(5, bulkheads.get(0).getQueueCapacity());
+		assertEquals("html", bulkheads.get(1).getName());
+		assertEquals(Any23Transformer.CORE_POOL_SIZE, bulkheads.get(1).getCorePoolSize());
+		assertEquals(4, bulkheads.get(1).getMaxPoolSize());
+		assertTrue(bulkheads.get(1).accepts(new MimeType("application/xhtml+xml")));
+
+		config.remove("transformer.bulkhead.csv.types");
+		try {
+			Bulkhead.fromProperties(config);
+			fail("IllegalArgumentException expected for missing types");
+		} catch (IllegalArgumentException e) {/* expected */}
+	}
+
+	@Test
+	public void testIsolation() throws Exception {
+		Bulkhead bulkhead = new Bulkhead("test", null, 1, 1, 1, 1);
+		bulkhead.start();
+		final CountDownLatch latch = new CountDownLatch(1);
+		Runnable blocking = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		try {
+			bulkhead.submit(blocking); //processed
+			bulkhead.submit(blocking); //queued
+			try {
+				bulkhead.submit(blocking);
+				fail("RejectedExecutionException expected for a full bulkhead");
+			} catch (RejectedExecutionException e) {/* expected */}
+			assertEquals(2, bulkhead.getSubmittedCount());
+			assertEquals(1, bulkhead.getRejectedCount());
+		} finally {
+			latch.countDown();
+			bulkhead.shutdown();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CoalescingTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MB = 1024 * 1024;
+
+	private static int port;
+	private static MemoryBudget budget;
+	private static Any23Transformer transformer;
+	private static Any23Server server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		transformer = new Any23Transformer();
+		budget = new MemoryBudget(8 * MB);
+		transformer.setMemoryBudget(budget);
+		server = new Any23Server(port, true);
+		server.start(transformer);
+	}
+
+	@AfterClass
+	public static void cleanup() throws Exception {
+		server.stop();
+		transformer.close();
+	}
+
+	@Test
+	public void testCoalesceIdenticalSubmissions() throws Exception {
+		//block jobs while waiting for memory budget so that they stay in flight
+		MemoryBudget.Reservation blocker = budget.reserve("text/plain", 3 * MB, null);
+		String first, second, other;
+		try {
+			first = post("a;b\n1;2\n", "http://www.example.org/test.csv");
+			second = post("a;b\n1;2\n", "http://www.example.org/test.csv");
+			other = post("a;b\n3;4\n", "http://www.example.org/test.csv");
+			assertFalse(first.equals(second));
+			assertEquals(1, transformer.getCoalescedCount());
+		} finally {
+			blocker.release();
+		}
+		String firstResult = getResult(first);
+		assertTrue(firstResult, firstResult.contains("\"1\""));
+		assertEquals(firstResult, getResult(second));
+		assertTrue(getResult(other).contains("\"3\""));
+	}
+
+	private String post(String body, String contentLocation) throws Exception {
+		HttpURLConnection con = (HttpURLConnection)
+				new URL("http://localhost:" + port + "/").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setRequestProperty("Content-Type", "text/csv;charset=UTF-8");
+		con.setRequestProperty("Content-Location", contentLocation);
+		OutputStream out = con.getOutputStream();
+		out.write(body.getBytes(UTF8));
+		out.close();
+		assertEquals(202, con.getResponseCode());
+		String location = con.getHeaderField("Location");
+		con.disconnect();
+		return location;
+	}
+
+	private String getResult(String location) throws Exception {
+		for(int retry = 0; retry < 40; retry++){
+			HttpURLConnection con = (HttpURLConnection)
+					new URL("http://localhost:" + port + location).openConnection();
+			if(con.getResponseCode() == 200){
+				try {
+					return IOUtils.toString(con.getInputStream(), "UTF-8");
+				} finally {
+					con.disconnect();
+				}
+			}
+			con.disconnect();
+			Thread.sleep(250);
+		}
+		fail("Result of " + location + " not available");
+		return null;
+	}
+}
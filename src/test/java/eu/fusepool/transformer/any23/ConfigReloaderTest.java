@@ -0,0 +1,77 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.any23.extractor.ExtractionParameters.ValidationMode;
+import org.junit.Test;
+
+public class ConfigReloaderTest {
+
+	@Test
+	public void testReloadOnChange() throws Exception {
+		File file = File.createTempFile("any23-config", ".properties");
+		file.deleteOnExit();
+		Properties config = new Properties();
+		config.setProperty(Any23Transformer.PROPERTY_VALIDATION_MODE, ValidationMode.None.name());
+		write(config, file);
+		Any23Transformer transformer = new Any23Transformer(config, null);
+		assertEquals(ValidationMode.None, transformer.getValidationMode());
+		long version = transformer.getConfigurationVersion();
+		ConfigReloader reloader = new ConfigReloader(file, transformer);
+		reloader.start();
+		try {
+			config.setProperty(Any23Transformer.PROPERTY_VALIDATION_MODE, ValidationMode.Validate.name());
+			write(config, file);
+			for(int i = 0; i < 100 && transformer.getConfigurationVersion() == version; i++){
+				Thread.sleep(100);
+			}
+			assertEquals(ValidationMode.Validate, transformer.getValidationMode());
+			//invalid configurations keep the current one
+			version = transformer.getConfigurationVersion();
+			config.setProperty(Any23Transformer.PROPERTY_VALIDATION_MODE, "invalid");
+			write(config, file);
+			try {
+				reloader.reload();
+				fail("IllegalArgumentException expected");
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+			assertEquals(version, transformer.getConfigurationVersion());
+			assertEquals(ValidationMode.Validate, transformer.getValidationMode());
+			//nothing of an invalid configuration is applied
+			long threshold = transformer.getSlowJobThreshold();
+			config.setProperty(Any23Transformer.PROPERTY_VALIDATION_MODE, ValidationMode.None.name());
+			config.setProperty(Any23Transformer.PROPERTY_SLOW_JOB_THRESHOLD, String.valueOf(threshold + 1));
+			config.setProperty(TripleFilter.PROPERTY_PREFIX + "unknown", "value");
+			try {
+				transformer.reload(config);
+				fail("IllegalArgumentException expected");
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+			assertEquals(threshold, transformer.getSlowJobThreshold());
+			assertEquals(ValidationMode.Validate, transformer.getValidationMode());
+			config.remove(TripleFilter.PROPERTY_PREFIX + "unknown");
+			transformer.reload(config);
+			assertEquals(threshold + 1, transformer.getSlowJobThreshold());
+		} finally {
+			reloader.close();
+			transformer.close();
+			file.delete();
+		}
+	}
+
+	private void write(Properties config, File file) throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			config.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.github.luben.zstd.Zstd;
+
+public class ContentEncodingTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String CONTENT = "<?xml version=\"1.0\"?>\n"
+			+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n"
+			+ "</rdf:RDF>\n";
+
+	@Test
+	public void testParse() {
+		assertEquals(ContentEncoding.IDENTITY, ContentEncoding.parse(null));
+		assertEquals(ContentEncoding.GZIP, ContentEncoding.parse("x-gzip"));
+		assertEquals(ContentEncoding.ZSTD, ContentEncoding.parse(" ZSTD "));
+		assertNull(ContentEncoding.parse("br"));
+		assertNull(ContentEncoding.parse("gzip, deflate"));
+	}
+
+	@Test
+	public void testSpoolEncoded() throws Exception {
+		byte[] data = CONTENT.getBytes(UTF8);
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		encode(new GZIPOutputStream(gzip), data);
+		assertSpooled(ContentEncoding.GZIP, gzip.toByteArray(), data.length);
+		ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+		encode(new DeflaterOutputStream(deflate), data);
+		assertSpooled(ContentEncoding.DEFLATE, deflate.toByteArray(), -1);
+		ByteArrayOutputStream xz = new ByteArrayOutputStream();
+		encode(new XZCompressorOutputStream(xz), data);
+		assertSpooled(ContentEncoding.XZ, xz.toByteArray(), data.length);
+		assertSpooled(ContentEncoding.ZSTD, Zstd.compress(data), data.length);
+	}
+
+	private void encode(OutputStream encoder, byte[] data) throws Exception {
+		try {
+			encoder.write(data);
+		} finally {
+			encoder.close();
+		}
+	}
+
+	private void assertSpooled(ContentEncoding encoding, byte[] encoded, long length) throws Exception {
+		TmpFileDocumentSource source = new TmpFileDocumentSource("test-" + encoding, 
+				new ByteArrayInputStream(encoded), new MimeType("application/octet-stream"),
+				"http://www.example.org/test", new TmpFileDocumentSource.Options()
+				.detect(true).encoding(encoding));
+		try {
+			//encoded data are stored as-is
+			assertArrayEquals(encoded, FileUtils.readFileToByteArray(source.getFile()));
+			assertEquals(encoding, source.getEncoding());
+			assertEquals(length, source.getContentLength());
+			assertEquals("application/rdf+xml", source.getContentType());
+			assertEquals("UTF-8", source.getCharset());
+			assertEquals(CONTENT, new String(IOUtils.toByteArray(source.openInputStream()), UTF8));
+		} finally {
+			source.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ContentTypeSnifferTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static MimeType sniffResource(String file) throws IOException {
+		InputStream in = ContentTypeSnifferTest.class.getClassLoader().getResourceAsStream(file);
+		assertNotNull("Test file "+file+" not found via classpath!",in);
+		try {
+			byte[] prefix = new byte[ContentTypeSniffer.SNIFF_LENGTH];
+			int len = IOUtils.read(in, prefix);
+			return ContentTypeSniffer.sniff(prefix, len, len < prefix.length);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static MimeType sniff(String content) {
+		byte[] data = content.getBytes(UTF8);
+		return ContentTypeSniffer.sniff(data, data.length, true);
+	}
+
+	private static void assertType(MimeType expected, MimeType actual) {
+		assertNotNull("Expected type "+expected+" but nothing was detected", actual);
+		assertTrue("Expected type "+expected+" but was "+actual, expected.match(actual));
+	}
+
+	@Test
+	public void testResources() throws IOException {
+		assertType(Any23Transformer.XHTML, sniffResource("warmup/rdfa11.html"));
+		assertType(Any23Transformer.HTML, sniffResource("warmup/hcard.html"));
+		assertType(Any23Transformer.HTML, sniffResource("warmup/schemaorg.html"));
+		assertType(Any23Transformer.RDF_XML, sniffResource("dcterms.rdf"));
+		assertType(Any23Transformer.CSV, sniffResource("test.csv"));
+	}
+
+	@Test
+	public void testRdfFormats() {
+		assertType(Any23Transformer.TURTLE, sniff("# comment\n@prefix ex: <http://example.org/> .\n"
+				+ "ex:a ex:b ex:c .\n"));
+		assertType(Any23Transformer.TURTLE, sniff("PREFIX ex: <http://example.org/>\nex:a ex:b ex:c .\n"));
+		assertType(Any23Transformer.N_TRIPLE, sniff("<http://example.org/a> <http://example.org/b> "
+				+ "\"test \\\" literal\"@en .\n_:b1 <http://example.org/b> <http://example.org/c> .\n"));
+		assertType(Any23Transformer.N_QUADS, sniff("<http://example.org/a> <http://example.org/b> "
+				+ "\"1\"^^<http://www.w3.org/2001/XMLSchema#int> <http://example.org/g> .\n"));
+		assertType(Any23Transformer.JSON_LD, sniff("{\n  \"@context\": \"http://schema.org/\",\n"
+				+ "  \"@type\": \"Person\" }"));
+		assertType(Any23Transformer.RDF_XML, sniff("<?xml version=\"1.0\"?>\n<rdf:RDF xmlns:rdf="
+				+ "\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"></rdf:RDF>"));
+	}
+
+	@Test
+	public void testUnknown() {
+		assertNull(sniff(""));
+		assertNull(sniff("{\"name\": \"plain json\"}"));
+		assertNull(sniff("<?xml version=\"1.0\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\"/>"));
+		assertNull(sniff("Just some plain text\nwithout any structure"));
+		assertNull(ContentTypeSniffer.sniff(new byte[]{0,1,2,3,4,5,6}, 7, true));
+	}
+
+	@Test
+	public void testIncompleteLastLine() {
+		String nt = "<http://example.org/a> <http://example.org/b> <http://example.org/c> .\n"
+				+ "<http://example.org/a> <http://example.org/b> \"truncat";
+		byte[] data = nt.getBytes(UTF8);
+		assertType(Any23Transformer.N_TRIPLE, ContentTypeSniffer.sniff(data, data.length, false));
+		assertNull(ContentTypeSniffer.sniff(data, data.length, true));
+	}
+
+	@Test
+	public void testCharset() {
+		assertEquals("ISO-8859-1", sniffCharset("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<a/>"));
+		assertEquals("UTF-8", sniffCharset("<?xml version='1.0'?>\n<a/>"));
+		assertEquals("windows-1252", sniffCharset("<html><head><meta http-equiv=\"Content-Type\" "
+				+ "content=\"text/html; charset=windows-1252\"></head></html>"));
+		assertEquals("utf-8", sniffCharset("<!doctype html><html><head><meta charset=\"utf-8\">"));
+		assertEquals("UTF-8", sniffCharset("first;second\n\u00e4;\u00f6"));
+		byte[] latin1 = "first;second\n\u00e4;\u00f6".getBytes(Charset.forName("ISO-8859-1"));
+		assertNull(ContentTypeSniffer.sniffCharset(latin1, latin1.length, true));
+		//unsupported or invalid charset names are ignored
+		assertNull(sniffCharset("<?xml version=\"1.0\" encoding=\"no-such-charset\"?>\n<a/>"));
+		assertNull(sniffCharset("<?xml version=\"1.0\" encoding=\"in valid\"?>\n<a/>"));
+		assertNull(sniffCharset("<html><head><meta charset=\"x-unknown-42\"></head></html>"));
+		byte[] bom = new byte[]{(byte)0xFE, (byte)0xFF, 0, '<'};
+		assertEquals("UTF-16BE", ContentTypeSniffer.sniffCharset(bom, bom.length, true));
+	}
+
+	private static String sniffCharset(String content) {
+		byte[] data = content.getBytes(UTF8);
+		return ContentTypeSniffer.sniffCharset(data, data.length, true);
+	}
+}
@@ -0,0 +1,282 @@
+package eu.fusepool.transformer.any23;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates deterministic synthetic documents of a given size used by
+ * scaling tests and benchmarks. Documents consist of a header, a repeated
+ * record (a person with name, email, city, ...) and a footer. Records are
+ * written until the requested size is reached, so documents are at most
+ * one record larger than requested.<p>
+ * The same seed, format and size always result in the same document.<p>
+ * Can also be called from the command line to write a corpus to a directory:
+ * <pre>
+ *   CorpusGenerator {dir} {size}[k|m|g] [{size} ...]
+ * </pre>
+ */
+public class CorpusGenerator {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final long DEFAULT_SEED = 42L;
+
+	private static final String[] GIVEN_NAMES = {"Anna", "Bernd", "Clara", "David",
+		"Elena", "Felix", "Greta", "Hannes", "Ida", "Jakob", "Klara", "Lukas", "Maria",
+		"Noah", "Olivia", "Paul", "Rosa", "Simon", "Theresa", "Valentin"};
+	private static final String[] FAMILY_NAMES = {"Gruber", "Huber", "Bauer", "Wagner",
+		"M\u00fcller", "Pichler", "Steiner", "Moser", "Mayer", "Hofer", "Leitner", "Berger",
+		"Fuchs", "Eder", "Fischer", "Schmid", "Winkler", "Weber", "Schwarz", "Maier"};
+	private static final String[] CITIES = {"Salzburg", "Wien", "Graz", "Linz", 
+		"Innsbruck", "Klagenfurt", "Villach", "Wels", "Sankt P\u00f6lten", "Dornbirn"};
+	private static final String[] TITLES = {"Engineer", "Researcher", "Librarian",
+		"Curator", "Editor", "Architect", "Analyst", "Teacher"};
+
+	/**
+	 * The formats of generated documents
+	 */
+	public enum Format {
+		/**
+		 * HTML with RDFa 1.1 annotations using schema.org
+		 */
+		RDFA("text/html", "html"),
+		/**
+		 * HTML with schema.org microdata
+		 */
+		MICRODATA("text/html", "html"),
+		/**
+		 * HTML with hCard microformats
+		 */
+		MICROFORMATS("text/html", "html"),
+		CSV("text/csv", "csv"),
+		RDF_XML("application/rdf+xml", "rdf");
+
+		private final String contentType;
+		private final String extension;
+
+		private Format(String contentType, String extension) {
+			this.contentType = contentType;
+			this.extension = extension;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+	}
+
+	private final long seed;
+
+	public CorpusGenerator() {
+		this(DEFAULT_SEED);
+	}
+
+	public CorpusGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Writes a document to the parsed directory
+	 * @param format the format
+	 * @param size the size in bytes
+	 * @param dir the directory
+	 * @return the written file. The file name includes the format and size
+	 * @throws IOException on any error while writing the file
+	 */
+	public File generate(Format format, long size, File dir) throws IOException {
+		File file = new File(dir, format.name().toLowerCase() + "-" + size + "." 
+				+ format.getExtension());
+		OutputStream out = new FileOutputStream(file);
+		try {
+			generate(format, size, out);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Writes a document to the parsed stream. The stream is not closed.
+	 * @param format the format
+	 * @param size the (minimum) size in bytes
+	 * @param out the stream
+	 * @return the number of bytes written
+	 * @throws IOException on any error while writing
+	 */
+	public long generate(Format format, long size, OutputStream out) throws IOException {
+		CountingWriter w = new CountingWriter(new BufferedOutputStream(out, 64 * 1024));
+		Random random = new Random(seed * 31 + format.ordinal());
+		String footer = footer(format);
+		w.write(header(format));
+		long footerLength = footer.getBytes(UTF8).length;
+		for(int i = 0; w.count + footerLength < size; i++){
+			w.write(record(format, i, random));
+		}
+		w.write(footer);
+		w.flush();
+		return w.count;
+	}
+
+	private String header(Format format) {
+		switch (format) {
+		case RDFA:
+			return "<!DOCTYPE html>\n<html prefix=\"schema: http://schema.org/\">\n"
+				+ "<head><title>Synthetic RDFa corpus</title></head>\n<body vocab=\"http://schema.org/\">\n";
+		case MICRODATA:
+			return "<!DOCTYPE html>\n<html>\n<head><title>Synthetic microdata corpus</title></head>\n<body>\n";
+		case MICROFORMATS:
+			return "<!DOCTYPE html>\n<html>\n<head><title>Synthetic microformats corpus</title></head>\n<body>\n";
+		case CSV:
+			return "id,givenName,familyName,email,jobTitle,city,birthYear\n";
+		case RDF_XML:
+			return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n"
+				+ "    xmlns:foaf=\"http://xmlns.com/foaf/0.1/\"\n"
+				+ "    xmlns:schema=\"http://schema.org/\">\n";
+		default:
+			throw new IllegalArgumentException("Unsupported format " + format);
+		}
+	}
+
+	private String footer(Format format) {
+		switch (format) {
+		case RDFA:
+		case MICRODATA:
+		case MICROFORMATS:
+			return "</body>\n</html>\n";
+		case CSV:
+			return "";
+		case RDF_XML:
+			return "</rdf:RDF>\n";
+		default:
+			throw new IllegalArgumentException("Unsupported format " + format);
+		}
+	}
+
+	private String record(Format format, int i, Random random) {
+		String given = GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)];
+		String family = FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)];
+		String email = given.toLowerCase() + "." + i + "@example.org";
+		String title = TITLES[random.nextInt(TITLES.length)];
+		String city = CITIES[random.nextInt(CITIES.length)];
+		int birthYear = 1940 + random.nextInt(70);
+		switch (format) {
+		case RDFA:
+			return "<div typeof=\"Person\" resource=\"#person" + i + "\">\n"
+				+ "  <span property=\"givenName\">" + given + "</span> <span property=\"familyName\">" + family + "</span>\n"
+				+ "  <a property=\"email\" href=\"mailto:" + email + "\">" + email + "</a>\n"
+				+ "  <span property=\"jobTitle\">" + title + "</span>\n"
+				+ "  <div property=\"address\" typeof=\"PostalAddress\"><span property=\"addressLocality\">" + city + "</span></div>\n"
+				+ "  <span property=\"birthDate\">" + birthYear + "</span>\n"
+				+ "</div>\n";
+		case MICRODATA:
+			return "<div itemscope itemtype=\"http://schema.org/Person\" itemid=\"#person" + i + "\">\n"
+				+ "  <span itemprop=\"givenName\">" + given + "</span> <span itemprop=\"familyName\">" + family + "</span>\n"
+				+ "  <a itemprop=\"email\" href=\"mailto:" + email + "\">" + email + "</a>\n"
+				+ "  <span itemprop=\"jobTitle\">" + title + "</span>\n"
+				+ "  <div itemprop=\"address\" itemscope itemtype=\"http://schema.org/PostalAddress\"><span itemprop=\"addressLocality\">" + city + "</span></div>\n"
+				+ "  <span itemprop=\"birthDate\">" + birthYear + "</span>\n"
+				+ "</div>\n";
+		case MICROFORMATS:
+			return "<div class=\"vcard\" id=\"person" + i + "\">\n"
+				+ "  <span class=\"fn n\"><span class=\"given-name\">" + given + "</span> <span class=\"family-name\">" + family + "</span></span>\n"
+				+ "  <a class=\"email\" href=\"mailto:" + email + "\">" + email + "</a>\n"
+				+ "  <span class=\"title\">" + title + "</span>\n"
+				+ "  <div class=\"adr\"><span class=\"locality\">" + city + "</span></div>\n"
+				+ "  <span class=\"bday\">" + birthYear + "-01-01</span>\n"
+				+ "</div>\n";
+		case CSV:
+			return i + "," + given + "," + family + "," + email + "," + title + ",\"" + city + "\"," + birthYear + "\n";
+		case RDF_XML:
+			return "  <foaf:Person rdf:about=\"http://www.example.org/person/" + i + "\">\n"
+				+ "    <foaf:givenName>" + given + "</foaf:givenName>\n"
+				+ "    <foaf:familyName>" + family + "</foaf:familyName>\n"
+				+ "    <foaf:mbox rdf:resource=\"mailto:" + email + "\"/>\n"
+				+ "    <schema:jobTitle>" + title + "</schema:jobTitle>\n"
+				+ "    <schema:addressLocality>" + city + "</schema:addressLocality>\n"
+				+ "    <schema:birthDate>" + birthYear + "</schema:birthDate>\n"
+				+ "  </foaf:Person>\n";
+		default:
+			throw new IllegalArgumentException("Unsupported format " + format);
+		}
+	}
+
+	/**
+	 * Parses sizes like <code>512</code>, <code>64k</code>, <code>10m</code>
+	 * or <code>2g</code>
+	 */
+	public static long parseSize(String size) {
+		String value = size.trim().toLowerCase();
+		long factor = 1;
+		switch (value.charAt(value.length() - 1)) {
+		case 'k':
+			factor = 1024;
+			break;
+		case 'm':
+			factor = 1024 * 1024;
+			break;
+		case 'g':
+			factor = 1024 * 1024 * 1024;
+			break;
+		}
+		if(factor > 1){
+			value = value.substring(0, value.length() - 1);
+		}
+		return Long.parseLong(value) * factor;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2){
+			System.err.println("Usage: CorpusGenerator {dir} {size}[k|m|g] [{size} ...]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			System.err.println("Unable to create directory " + dir);
+			System.exit(1);
+		}
+		CorpusGenerator generator = new CorpusGenerator();
+		for(int i = 1; i < args.length; i++){
+			long size = parseSize(args[i]);
+			for(Format format : Format.values()){
+				File file = generator.generate(format, size, dir);
+				System.out.println(file + " (" + file.length() + " bytes)");
+			}
+		}
+	}
+
+	/**
+	 * UTF-8 writer that counts the written bytes
+	 */
+	private static class CountingWriter {
+
+		private final Writer writer;
+		private long count;
+
+		CountingWriter(OutputStream out) {
+			this.writer = new OutputStreamWriter(out, UTF8);
+		}
+
+		void write(String str) throws IOException {
+			writer.write(str);
+			for(int i = 0; i < str.length(); i++){
+				char c = str.charAt(i);
+				count += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+			}
+		}
+
+		void flush() throws IOException {
+			writer.flush();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import javax.activation.MimeType;
+
+import org.apache.any23.ExtractionReport;
+import org.apache.any23.writer.NTriplesWriter;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.openrdf.model.Model;
+import org.openrdf.model.util.ModelUtil;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.Rio;
+
+public class DirectConversionTest {
+
+	private static final String DOCUMENT_URI = "http://www.example.org/dcterms";
+
+	@Test
+	public void testSameResultAsAny23() throws Exception {
+		byte[] data = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream("dcterms.rdf"));
+		Model direct = convert(data, true);
+		Model any23 = convert(data, false);
+		assertFalse(direct.isEmpty());
+		assertEquals(any23.size(), direct.size());
+		assertTrue(ModelUtil.equals(any23, direct));
+	}
+
+	@Test
+	public void testTurtle() throws Exception {
+		assertDirectConversion(Any23Transformer.TURTLE, "@prefix ex: <http://www.example.org/> .\n"
+				+ "ex:a ex:b ex:c ; ex:d \"literal\"@en .\n", 2);
+	}
+
+	@Test
+	public void testN3() throws Exception {
+		assertDirectConversion(Any23Transformer.N3, "@prefix ex: <http://www.example.org/> .\n"
+				+ "ex:a ex:b ex:c .\n", 1);
+	}
+
+	@Test
+	public void testNTriples() throws Exception {
+		String nt = "<http://www.example.org/a> <http://www.example.org/b> <http://www.example.org/c> .\n"
+				+ "_:b1 <http://www.example.org/b> \"literal\" .\n";
+		assertDirectConversion(Any23Transformer.N_TRIPLE, nt, 2);
+		assertDirectConversion(Any23Transformer.N_TRIPLE2, nt, 2);
+	}
+
+	@Test
+	public void testNQuads() throws Exception {
+		assertDirectConversion(Any23Transformer.N_QUADS, "<http://www.example.org/a> "
+				+ "<http://www.example.org/b> <http://www.example.org/c> <http://www.example.org/g> .\n", 1);
+	}
+
+	@Test
+	public void testJsonLd() throws Exception {
+		assertDirectConversion(Any23Transformer.JSON_LD, "{\"@id\": \"http://www.example.org/a\", "
+				+ "\"http://www.example.org/b\": {\"@id\": \"http://www.example.org/c\"}}", 1);
+	}
+
+	@Test
+	public void testUncompressedSpool() throws Exception {
+		byte[] data = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream("dcterms.rdf"));
+		TmpFileDocumentSource source = new TmpFileDocumentSource("/job/uncompressed",
+				new ByteArrayInputStream(data), Any23Transformer.RDF_XML, DOCUMENT_URI,
+				new TmpFileDocumentSource.Options().compress(false));
+		try {
+			assertFalse(source.isCompressed());
+			assertEquals(data.length, source.getFile().length());
+			InputStream in = source.openSinglePassStream();
+			try {
+				assertArrayEquals(data, IOUtils.toByteArray(in));
+			} finally {
+				in.close();
+			}
+			//no decoded copy is created for plain data
+			assertArrayEquals(data, IOUtils.toByteArray(source.openInputStream()));
+			assertFalse(new File(source.getFile().getPath() + ".decoded").exists());
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Asserts that documents of the parsed type are converted directly and 
+	 * with the same result as by Any23
+	 */
+	private void assertDirectConversion(MimeType type, String content, int triples) throws Exception {
+		byte[] data = content.getBytes("UTF-8");
+		Model direct = convert(data, type, true);
+		Model any23 = convert(data, type, false);
+		assertEquals(type.toString(), triples, direct.size());
+		assertEquals(type.toString(), triples, any23.size());
+		assertTrue(type.toString(), ModelUtil.equals(any23, direct));
+	}
+
+	private Model convert(byte[] data, boolean directConversion) throws Exception {
+		return convert(data, Any23Transformer.RDF_XML, directConversion);
+	}
+
+	private Model convert(byte[] data, MimeType type, boolean directConversion) throws Exception {
+		Any23Transformer transformer = new Any23Transformer();
+		transformer.setDirectConversion(directConversion);
+		TmpFileDocumentSource source = new TmpFileDocumentSource("/job/direct-" + directConversion,
+				new ByteArrayInputStream(data), type, DOCUMENT_URI,
+				new TmpFileDocumentSource.Options().compress(!directConversion));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			TripleHandler handler = new NTriplesWriter(out);
+			try {
+				ExtractionReport report = transformer.extract(source, null, handler);
+				//no report is returned for directly converted documents
+				assertEquals("direct conversion of " + type, directConversion, report == null);
+			} finally {
+				handler.close();
+			}
+		} finally {
+			source.close();
+			transformer.close();
+		}
+		return Rio.parse(new ByteArrayInputStream(out.toByteArray()), DOCUMENT_URI, RDFFormat.NTRIPLES);
+	}
+}
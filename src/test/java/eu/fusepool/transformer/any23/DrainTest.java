@@ -0,0 +1,109 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DrainTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MB = 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private int port;
+
+	@Test
+	public void testDrain() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		Any23Transformer transformer = new Any23Transformer();
+		MemoryBudget budget = new MemoryBudget(8 * MB);
+		transformer.setMemoryBudget(budget);
+		final Any23Server server = new Any23Server(port, true);
+		server.setDrainTimeout(10);
+		server.setDrainGracePeriod(2);
+		File spoolDir = folder.newFolder("spool");
+		server.addFilter(new NonBlockingIngestFilter(spoolDir), "/");
+		server.start(transformer);
+		assertEquals(200, request("GET", "/admin/ready", null).getResponseCode());
+		//keep the job in flight while waiting for memory budget
+		MemoryBudget.Reservation blocker = budget.reserve("text/plain", 3 * MB, null);
+		HttpURLConnection con = request("POST", "/", "a;b\n1;2\n");
+		assertEquals(202, con.getResponseCode());
+		String location = con.getHeaderField("Location");
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.drainAndStop();
+			}
+		});
+		drain.start();
+		for(int i = 0; i < 50 && !transformer.isDraining(); i++){
+			Thread.sleep(20);
+		}
+		assertEquals(503, request("GET", "/admin/ready", null).getResponseCode());
+		con = request("POST", "/", "a;b\n3;4\n");
+		assertEquals(503, con.getResponseCode());
+		assertNotNull(con.getHeaderField("Retry-After"));
+		//refused before the ingest filter waits for the body
+		int spooled = spoolDir.list().length; //the body of the active job
+		Socket client = new Socket("localhost", port);
+		try {
+			client.setSoTimeout(5000);
+			client.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\n"
+					+ "Content-Type: text/csv;charset=UTF-8\r\n"
+					+ "Content-Length: 1000000\r\n\r\n").getBytes(UTF8));
+			client.getOutputStream().flush();
+			String response = IOUtils.toString(client.getInputStream(), "UTF-8");
+			assertTrue(response, response.startsWith("HTTP/1.1 503"));
+		} finally {
+			client.close();
+		}
+		assertEquals(spooled, spoolDir.list().length);
+		assertEquals(1, transformer.getActiveCount());
+		blocker.release();
+		//the result of the drained job is available during the grace period
+		String result = null;
+		for(int retry = 0; retry < 20 && result == null; retry++){
+			con = request("GET", location, null);
+			if(con.getResponseCode() == 200){
+				result = IOUtils.toString(con.getInputStream(), "UTF-8");
+			} else {
+				Thread.sleep(100);
+			}
+		}
+		assertNotNull(result);
+		assertTrue(result.contains("\"1\""));
+		drain.join(10000);
+		assertFalse(drain.isAlive());
+		assertFalse(transformer.isReady());
+	}
+
+	private HttpURLConnection request(String method, String path, String body) throws Exception {
+		HttpURLConnection con = (HttpURLConnection)
+				new URL("http://localhost:" + port + path).openConnection();
+		con.setRequestMethod(method);
+		if(body != null){
+			con.setDoOutput(true);
+			con.setRequestProperty("Content-Type", "text/csv;charset=UTF-8");
+			OutputStream out = con.getOutputStream();
+			out.write(body.getBytes(UTF8));
+			out.close();
+		}
+		return con;
+	}
+}
@@ -0,0 +1,63 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.apache.any23.Any23;
+import org.apache.any23.ExtractionReport;
+import org.apache.any23.configuration.DefaultConfiguration;
+import org.apache.any23.extractor.ExtractorRegistryImpl;
+import org.apache.any23.source.ByteArrayDocumentSource;
+import org.apache.any23.writer.TurtleWriter;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ExtractorProfilerTest {
+
+	@Test
+	public void testProfileHtmlExtraction() throws Exception {
+		ExtractorProfiler profiler = new ExtractorProfiler();
+		Any23 any23 = new Any23(DefaultConfiguration.singleton(), profiler.wrap(
+				ExtractorRegistryImpl.getInstance().getExtractorGroup()));
+		InputStream in = ExtractorProfilerTest.class.getClassLoader().getResourceAsStream("warmup/rdfa11.html");
+		byte[] data;
+		try {
+			data = IOUtils.toByteArray(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		ExtractorProfiler.Profile profile = profiler.start("text/html; charset=UTF-8");
+		ExtractionReport report = null;
+		TurtleWriter writer = new TurtleWriter(new ByteArrayOutputStream());
+		try {
+			report = any23.extract(new ByteArrayDocumentSource(data, 
+					"http://www.example.org/test.html", "text/html"), profile.wrap(writer));
+		} finally {
+			writer.close();
+			profile.finish(report);
+		}
+		assertTrue(report.hasMatchingExtractors());
+		assertTrue(profiler.getTotalTriples() > 0);
+		String summary = profiler.getSummary();
+		//the format detected by Any23
+		assertTrue(summary, summary.startsWith("{\"application/xhtml+xml\":{"));
+		assertTrue(summary, summary.contains("\"html-rdfa11\":{\"invocations\":1,"));
+		profiler.reset();
+		assertEquals("{}", profiler.getSummary());
+		assertEquals(0, profiler.getTotalTriples());
+	}
+
+	@Test
+	public void testFormat() throws Exception {
+		ExtractorProfiler profiler = new ExtractorProfiler();
+		profiler.wrap(ExtractorRegistryImpl.getInstance().getExtractorGroup());
+		assertEquals("text/html", profiler.getFormat("text/html; charset=UTF-8", "text/plain"));
+		assertEquals("text/csv", profiler.getFormat(null, "text/csv"));
+		assertEquals("text/csv", profiler.getFormat("application/x-unknown", "text/csv"));
+		//types declared by clients and not supported by any extractor
+		assertEquals(ExtractorProfiler.OTHER, profiler.getFormat(null, "application/x-random-1"));
+		assertEquals(ExtractorProfiler.OTHER, profiler.getFormat("invalid", null));
+	}
+}
@@ -0,0 +1,28 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JobCoalescerTest {
+
+	@Test
+	public void testAttach() {
+		JobCoalescer<String> coalescer = new JobCoalescer<String>();
+		assertNull(coalescer.attach("key", "/job/1"));
+		coalescer.started("key", "/job/1");
+		coalescer.started(null, "/job/2"); //not coalesced
+		assertEquals("/job/1", coalescer.attach("key", "/job/3"));
+		assertEquals("/job/1", coalescer.attach("key", "/job/4"));
+		assertNull(coalescer.attach("other", "/job/5"));
+		assertNull(coalescer.attach(null, "/job/6"));
+		assertEquals(2, coalescer.getCoalescedCount());
+		assertEquals(Arrays.asList("/job/3", "/job/4"), coalescer.finished("key"));
+		//no more jobs can attach after the job finished
+		assertNull(coalescer.attach("key", "/job/7"));
+		assertTrue(coalescer.finished("key").isEmpty());
+		assertTrue(coalescer.finished(null).isEmpty());
+	}
+}
@@ -0,0 +1,224 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.fusepool.transformer.any23.JobJournal.Entry;
+import eu.fusepool.transformer.any23.JobJournal.State;
+
+public class JobJournalTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TmpFileDocumentSource spool(File dir, String id, String content) throws Exception {
+		return new TmpFileDocumentSource(id, new ByteArrayInputStream(content.getBytes(UTF8)),
+				new MimeType("text/csv;charset=UTF-8"), "http://www.example.org/" + id,
+				new TmpFileDocumentSource.Options().spoolDirectory(dir));
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		File dir = folder.getRoot();
+		JobJournal journal = new JobJournal(dir);
+		assertTrue(journal.open().isEmpty());
+		TmpFileDocumentSource pending = spool(dir, "/job/pending", "a;b\nc;d");
+		journal.accepted("/job/pending", pending);
+		TmpFileDocumentSource done = spool(dir, "/job/done", "a;b\nc;d");
+		journal.accepted("/job/done", done);
+		TmpFileEntity result = new LocalJobStore(dir).createResult("/job/done", Any23Transformer.OUTPUT);
+		result.getWriter().close();
+		journal.completed("/job/done", result);
+		journal.accepted("/job/failed", spool(dir, "/job/failed", "x"));
+		journal.failed("/job/failed", new IOException("test\tfailure"));
+		journal.close();
+
+		//reopen the journal (e.g. after a restart)
+		journal = new JobJournal(dir);
+		Collection<Entry> entries = journal.open();
+		Map<String,Entry> byId = new HashMap<String,Entry>();
+		for(Entry entry : entries){
+			byId.put(entry.getRequestId(), entry);
+		}
+		assertEquals(3, byId.size());
+		Entry entry = byId.get("/job/pending");
+		assertEquals(State.ACCEPTED, entry.getState());
+		assertEquals(pending.getFile().getAbsoluteFile(), entry.getFile());
+		assertEquals(pending.getContentLength(), entry.getLength());
+		assertEquals("UTF-8", entry.getCharset());
+		assertEquals(pending.getDocumentURI(), entry.getDocumentUri());
+		assertEquals(pending.getContentType(), entry.getType());
+		assertEquals(State.COMPLETED, byId.get("/job/done").getState());
+		assertEquals(result.getFile().getAbsoluteFile(), byId.get("/job/done").getFile());
+		assertEquals(State.FAILED, byId.get("/job/failed").getState());
+		assertEquals("test\tfailure", byId.get("/job/failed").getMessage());
+		//restored sources need to provide the spooled data
+		TmpFileDocumentSource restored = new TmpFileDocumentSource(entry.getFile(),
+				entry.getType(), entry.getLength(), entry.getDocumentUri(), entry.getCharset(),
+				new TmpFileDocumentSource.Options().encoding(ContentEncoding.parse(entry.getEncoding())));
+		assertEquals("a;b\nc;d", new String(IOUtils.toByteArray(
+				restored.openInputStream()), UTF8));
+		journal.close();
+	}
+
+	@Test
+	public void testReplayWithoutCallBackHandler() throws Exception {
+		File dir = folder.getRoot();
+		JobJournal journal = new JobJournal(dir);
+		assertTrue(journal.open().isEmpty());
+		//keep a reference as the spooled data are deleted on finalization
+		TmpFileDocumentSource pending = spool(dir, "/job/pending", "a;b\nc;d");
+		journal.accepted("/job/pending", pending);
+		TmpFileDocumentSource lost = spool(dir, "/job/lost", "a;b\nc;d");
+		journal.accepted("/job/lost", lost);
+		assertTrue(lost.getFile().delete());
+		journal.accepted("/job/done", spool(dir, "/job/done", "a;b\nc;d"));
+		TmpFileEntity result = new LocalJobStore(dir).createResult("/job/done", Any23Transformer.OUTPUT);
+		result.getWriter().close();
+		journal.completed("/job/done", result);
+		journal.accepted("/job/failed", spool(dir, "/job/failed", "x"));
+		journal.failed("/job/failed", new IOException("test failure"));
+		journal.close();
+
+		//activated without callback handler (e.g. to only process pending jobs)
+		Any23Transformer transformer = new Any23Transformer();
+		transformer.setJournal(new JobJournal(dir));
+		transformer.activate(null);
+		try {
+			long end = System.currentTimeMillis() + 10000;
+			while(transformer.getActiveCount() > 0 && System.currentTimeMillis() < end){
+				Thread.sleep(50);
+			}
+			assertEquals(0, transformer.getActiveCount());
+		} finally {
+			transformer.close();
+		}
+		journal = new JobJournal(dir);
+		Map<String,Entry> byId = new HashMap<String,Entry>();
+		for(Entry entry : journal.open()){
+			byId.put(entry.getRequestId(), entry);
+		}
+		assertEquals(State.COMPLETED, byId.get("/job/pending").getState());
+		//the replayed job cleaned the spooled data
+		assertFalse(pending.getFile().exists());
+		assertEquals(State.FAILED, byId.get("/job/lost").getState());
+		assertEquals(State.COMPLETED, byId.get("/job/done").getState());
+		assertEquals(State.FAILED, byId.get("/job/failed").getState());
+		journal.close();
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		File dir = folder.getRoot();
+		JobJournal journal = new JobJournal(dir);
+		assertTrue(journal.open().isEmpty());
+		journal.accepted("/job/pending", spool(dir, "/job/pending", "a;b\nc;d"));
+		journal.close();
+		journal = new JobJournal(dir);
+		Entry entry = journal.open().iterator().next();
+		journal.close();
+		String record = entry.toRecord();
+		assertEquals(record, Entry.parse(record).toRecord());
+		//records of an other format are ignored
+		String[] fields = record.split("\t");
+		StringBuilder legacy = new StringBuilder(fields[0]);
+		for(int i = 1; i < 8; i++){
+			legacy.append('\t').append(fields[i]);
+		}
+		assertNull(Entry.parse(legacy.toString()));
+		assertNull(Entry.parse(record + "\tfoo"));
+	}
+
+	@Test
+	public void testRetention() throws Exception {
+		File dir = folder.getRoot();
+		JobJournal journal = new JobJournal(dir, 1000);
+		assertTrue(journal.open().isEmpty());
+		journal.accepted("/job/done", spool(dir, "/job/done", "a;b\nc;d"));
+		TmpFileEntity result = new LocalJobStore(dir).createResult("/job/done", Any23Transformer.OUTPUT);
+		result.getWriter().close();
+		journal.completed("/job/done", result);
+		journal.accepted("/job/failed", spool(dir, "/job/failed", "x"));
+		journal.failed("/job/failed", new IOException("test failure"));
+		journal.close();
+		Thread.sleep(1100);
+		//finished jobs expired and the result is deleted
+		journal = new JobJournal(dir, 1000);
+		assertTrue(journal.open().isEmpty());
+		assertFalse(result.getFile().exists());
+		journal.accepted("/job/pending", spool(dir, "/job/pending", "a;b\nc;d"));
+		journal.close();
+		Thread.sleep(1100);
+
+		//reopen the journal (e.g. after a restart)
+		journal = new JobJournal(dir, 1000);
+		Collection<Entry> entries = journal.open();
+		assertEquals(1, entries.size());
+		//pending jobs are kept regardless of their age
+		assertEquals("/job/pending", entries.iterator().next().getRequestId());
+		journal.close();
+	}
+
+	@Test
+	public void testNotAcceptedJob() throws Exception {
+		File dir = folder.newFolder("journal");
+		JobJournal journal = new JobJournal(dir);
+		Any23Transformer transformer = new Any23Transformer();
+		transformer.setJournal(journal);
+		transformer.setJobStore(new LocalJobStore(){
+			@Override
+			public void accepted(String requestId) {
+				throw new IllegalStateException("test failure");
+			}
+		});
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		Any23Server server = new Any23Server(port, true);
+		server.start(transformer);
+		try {
+			HttpURLConnection con = (HttpURLConnection)
+					new URL("http://localhost:" + port + "/").openConnection();
+			con.setRequestMethod("POST");
+			con.setDoOutput(true);
+			con.setRequestProperty("Content-Type", "text/csv;charset=UTF-8");
+			OutputStream out = con.getOutputStream();
+			out.write("a;b\nc;d".getBytes(UTF8));
+			out.close();
+			assertTrue(con.getResponseCode() >= 500);
+			assertEquals(0, transformer.getActiveCount());
+		} finally {
+			server.stop();
+			transformer.close();
+		}
+		//the spooled data are deleted
+		assertEquals(Arrays.asList("jobs.journal"), Arrays.asList(dir.list()));
+		//the job is not replayed
+		journal = new JobJournal(dir);
+		Collection<Entry> entries = journal.open();
+		assertEquals(1, entries.size());
+		assertEquals(State.FAILED, entries.iterator().next().getState());
+		journal.close();
+	}
+}
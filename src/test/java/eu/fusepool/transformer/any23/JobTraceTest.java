@@ -0,0 +1,49 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.fusepool.transformer.any23.JobTrace.Span;
+
+public class JobTraceTest {
+
+	@Test
+	public void testTraceId() {
+		JobTrace trace = new JobTrace("/job/1678699a-ed36-4282-aaf8-1823aea19970", null);
+		assertEquals("1678699aed364282aaf81823aea19970", trace.getTraceId());
+		assertNull(trace.getParentId());
+		trace = new JobTrace("/job/1678699a-ed36-4282-aaf8-1823aea19970", 
+				"00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+		assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", trace.getTraceId());
+		assertEquals("00f067aa0ba902b7", trace.getParentId());
+		//invalid header and no UUID in the request id
+		trace = new JobTrace("test", "00-00000000000000000000000000000000-00f067aa0ba902b7-01");
+		assertEquals(32, trace.getTraceId().length());
+		assertEquals(JobTrace.toTraceId("test"), trace.getTraceId());
+	}
+
+	@Test
+	public void testSpans() {
+		JobTrace trace = new JobTrace("/job/test", null);
+		long start = System.nanoTime();
+		trace.span(JobTrace.QUEUE, start, start + TimeUnit.MILLISECONDS.toNanos(5));
+		trace.span("html-rdfa11", start, start + TimeUnit.MILLISECONDS.toNanos(3));
+		trace.span("html-rdfa11", start, start + TimeUnit.MILLISECONDS.toNanos(4));
+		trace.finish();
+		List<Span> spans = trace.getSpans();
+		assertEquals(2, spans.size());
+		assertEquals(JobTrace.QUEUE, spans.get(0).getName());
+		assertEquals(7, spans.get(1).getDuration(TimeUnit.MILLISECONDS));
+		assertEquals(2, spans.get(1).getCount());
+		assertTrue(trace.toString(), trace.toString().contains(" html-rdfa11=7ms/2@"));
+		assertNull(JobTrace.current());
+		trace.attach();
+		assertSame(trace, JobTrace.current());
+		trace.detach();
+		assertNull(JobTrace.current());
+	}
+}
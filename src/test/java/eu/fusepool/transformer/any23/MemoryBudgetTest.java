@@ -0,0 +1,79 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import eu.fusepool.transformer.any23.MemoryBudget.Reservation;
+
+public class MemoryBudgetTest {
+
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void testEstimate() {
+		MemoryBudget budget = new MemoryBudget(100 * MB);
+		assertEquals(MemoryBudget.BASE_COST + 20 * MB, budget.estimate("text/html; charset=UTF-8", MB));
+		assertEquals(MemoryBudget.BASE_COST + 4 * MB, budget.estimate("text/csv", MB));
+		assertEquals(MemoryBudget.BASE_COST + (long)(MemoryBudget.DEFAULT_FACTOR * MB),
+				budget.estimate("application/x-unknown", MB));
+		assertTrue(budget.admit("text/html", 4 * MB));
+		assertFalse(budget.admit("text/html", 10 * MB));
+		assertEquals(1, budget.getAdmittedCount());
+		assertEquals(1, budget.getRejectedCount());
+		//copies of the DOM (e.g. for parallel extraction)
+		assertEquals(MemoryBudget.BASE_COST + 60 * MB, budget.estimate("text/html", MB, 2));
+		assertFalse(budget.admit("text/html", 2 * MB, 2));
+	}
+
+	@Test
+	public void testWaitForBudget() throws Exception {
+		final MemoryBudget budget = new MemoryBudget(50 * MB);
+		Reservation first = budget.reserve("text/html", 2 * MB, null);
+		assertNotNull(first);
+		assertEquals(first.getCost(), budget.getReserved());
+		final AtomicReference<Reservation> resumed = new AtomicReference<Reservation>();
+		//the second job is parked instead of blocking the thread
+		assertNull(budget.reserve("text/html", 2 * MB, new MemoryBudget.Listener() {
+			@Override
+			public void budgetAvailable(Reservation reservation) {
+				resumed.set(reservation);
+			}
+		}));
+		assertEquals(1, budget.getWaitingCount());
+		//later jobs wait behind the parked one even if budget is available
+		final AtomicReference<Reservation> later = new AtomicReference<Reservation>();
+		assertNull(budget.reserve("text/csv", 1, new MemoryBudget.Listener() {
+			@Override
+			public void budgetAvailable(Reservation reservation) {
+				later.set(reservation);
+			}
+		}));
+		assertEquals(2, budget.getWaitingCount());
+		first.release();
+		assertNotNull(resumed.get());
+		assertNotNull(later.get());
+		assertEquals(0, budget.getWaitingCount());
+		assertEquals(first.getCost() + later.get().getCost(), budget.getReserved());
+		resumed.get().release();
+		later.get().release();
+		assertEquals(0, budget.getReserved());
+	}
+
+	@Test
+	public void testLearnedFactorBounds() {
+		MemoryBudget budget = new MemoryBudget(100 * MB);
+		for(int i = 0; i < 100; i++){ //e.g. allocated instead of retained heap
+			budget.learn("text/html", MB, 100 * MB);
+		}
+		assertEquals(MemoryBudget.BASE_COST + 20 * MemoryBudget.MAX_DEVIATION * MB,
+				budget.estimate("text/html", MB), 1000);
+		for(int i = 0; i < 100; i++){
+			budget.learn("text/csv", MB, 1);
+		}
+		assertEquals(MemoryBudget.BASE_COST + 4 / MemoryBudget.MAX_DEVIATION * MB,
+				budget.estimate("text/csv", MB), 1000);
+	}
+}
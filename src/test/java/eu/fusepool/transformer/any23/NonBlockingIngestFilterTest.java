@@ -0,0 +1,99 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NonBlockingIngestFilterTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	private static int port;
+	private static File spoolDir;
+	private static Any23Transformer transformer;
+	private static Any23Server server;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		spoolDir = folder.newFolder("journal");
+		transformer = new Any23Transformer();
+		transformer.setJournal(new JobJournal(spoolDir));
+		server = new Any23Server(port, true);
+		server.addFilter(new NonBlockingIngestFilter(spoolDir), "/");
+		server.start(transformer);
+	}
+
+	@AfterClass
+	public static void cleanup() throws Exception {
+		server.stop();
+		transformer.close();
+	}
+
+	@Test
+	public void testSlowUpload() throws Exception {
+		byte[] body = "a;b\n1;2\n3;4\n".getBytes(UTF8);
+		Socket socket = new Socket("localhost", port);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("POST / HTTP/1.1\r\nHost: localhost\r\n"
+					+ "Content-Type: text/csv;charset=UTF-8\r\n"
+					+ "Content-Length: " + body.length + "\r\n"
+					+ "Connection: close\r\n\r\n").getBytes(UTF8));
+			out.flush();
+			for(int i = 0; i < body.length; i++){ //upload byte by byte
+				out.write(body[i]);
+				out.flush();
+				Thread.sleep(20);
+				if(i == body.length / 2){ //the server needs to serve other requests
+					HttpURLConnection con = (HttpURLConnection)
+							new URL("http://localhost:" + port + "/").openConnection();
+					assertEquals(200, con.getResponseCode());
+					con.disconnect();
+				}
+			}
+			String response = IOUtils.toString(socket.getInputStream(), "UTF-8");
+			assertTrue(response, response.startsWith("HTTP/1.1 202"));
+			int start = response.indexOf("Location: ") + "Location: ".length();
+			String location = response.substring(start, response.indexOf('\r', start));
+			//the spooled data are transformed as usual
+			for(int retry = 0; retry < 20; retry++){
+				HttpURLConnection con = (HttpURLConnection)
+						new URL("http://localhost:" + port + location).openConnection();
+				if(con.getResponseCode() == 200){
+					InputStream in = con.getInputStream();
+					assertTrue(IOUtils.toString(in, "UTF-8").contains("\"1\""));
+					//the spooled body was taken over by the job and deleted with it
+					for(String name : spoolDir.list()){
+						assertFalse(name, name.endsWith(".spool") || name.endsWith(".source"));
+					}
+					return;
+				}
+				con.disconnect();
+				Thread.sleep(250);
+			}
+			fail("Result of " + location + " not available");
+		} finally {
+			socket.close();
+		}
+	}
+}
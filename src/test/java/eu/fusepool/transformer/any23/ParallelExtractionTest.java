@@ -0,0 +1,256 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.activation.MimeType;
+
+import org.apache.any23.extractor.ExtractionContext;
+import org.apache.any23.extractor.ExtractionException;
+import org.apache.any23.extractor.ExtractionParameters;
+import org.apache.any23.extractor.ExtractionResult;
+import org.apache.any23.extractor.Extractor.ContentExtractor;
+import org.apache.any23.extractor.ExtractorDescription;
+import org.apache.any23.extractor.ExtractorFactory;
+import org.apache.any23.extractor.ExtractorGroup;
+import org.apache.any23.extractor.ExtractorRegistryImpl;
+import org.apache.any23.mime.MIMEType;
+import org.apache.any23.rdf.Prefixes;
+import org.apache.any23.source.StringDocumentSource;
+import org.apache.any23.writer.NTriplesWriter;
+import org.apache.any23.writer.TripleHandler;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.openrdf.model.Model;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.util.ModelUtil;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.Rio;
+
+public class ParallelExtractionTest {
+
+	private static final String DOCUMENT_URI = "http://www.example.org/test.html";
+
+	@Test
+	public void testSameResultAsSequential() throws Exception {
+		for(String resource : new String[]{"warmup/rdfa11.html", "warmup/hcard.html",
+				"warmup/schemaorg.html"}){
+			byte[] data = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(resource));
+			Model sequential = extract(data, 0);
+			Model parallel = extract(data, 4);
+			assertFalse(resource, parallel.isEmpty());
+			assertEquals(resource, sequential.size(), parallel.size());
+			assertTrue(resource, ModelUtil.equals(sequential, parallel));
+			//triples are written in the same order
+			assertEquals(resource, predicates(sequential), predicates(parallel));
+		}
+	}
+
+	@Test
+	public void testProfiledWhereExtractorsRun() throws Exception {
+		ExtractorProfiler profiler = new ExtractorProfiler();
+		ParallelExtraction parallel = new ParallelExtraction();
+		List<ExtractorFactory<?>> factories = new ArrayList<ExtractorFactory<?>>();
+		factories.add(new SleepingExtractorFactory("sleep-1"));
+		factories.add(new SleepingExtractorFactory("sleep-2"));
+		ExtractorGroup group = parallel.wrap(profiler.wrap(new ExtractorGroup(factories)));
+		parallel.start(2);
+		JobTrace trace = new JobTrace("/job/profiled", null);
+		trace.attach();
+		try {
+			ExtractorProfiler.Profile profile = profiler.start("text/html");
+			ParallelExtraction.Batch batch = parallel.start(group, 
+					new StringDocumentSource("<html/>", DOCUMENT_URI), profile);
+			assertNotNull(batch);
+			try { //Any23 runs the extractors one after the other
+				for(ExtractorFactory<?> factory : group){
+					ExtractionContext context = new ExtractionContext(factory.getExtractorName(),
+							ValueFactoryImpl.getInstance().createURI(DOCUMENT_URI));
+					((ContentExtractor)factory.createExtractor()).run(ExtractionParameters.newDefault(),
+							context, new ByteArrayInputStream(new byte[0]), null);
+				}
+			} finally {
+				batch.finish();
+			}
+			profile.finish(null);
+		} finally {
+			trace.detach();
+			parallel.stop();
+		}
+		//the extractors ran concurrently but each is recorded with its own time
+		//(and not the time Any23 waited for its output)
+		List<JobTrace.Span> spans = trace.getSpans();
+		assertEquals(2, spans.size());
+		for(JobTrace.Span span : spans){
+			assertTrue(span.getName(), span.getDuration(TimeUnit.MILLISECONDS) >= SLEEP);
+		}
+		Matcher times = Pattern.compile("\"time\":(\\d+)").matcher(profiler.getSummary());
+		int count = 0;
+		while(times.find()){
+			assertTrue(profiler.getSummary(), Long.parseLong(times.group(1)) >= SLEEP);
+			count++;
+		}
+		assertEquals(2, count);
+	}
+
+	@Test
+	public void testCancelledNotProfiled() throws Exception {
+		ExtractorProfiler profiler = new ExtractorProfiler();
+		ParallelExtraction parallel = new ParallelExtraction();
+		List<ExtractorFactory<?>> factories = new ArrayList<ExtractorFactory<?>>();
+		factories.add(new SleepingExtractorFactory("sleep-1"));
+		factories.add(new SleepingExtractorFactory("sleep-2", 3 * SLEEP));
+		ExtractorGroup group = parallel.wrap(profiler.wrap(new ExtractorGroup(factories)));
+		parallel.start(2);
+		try {
+			ExtractorProfiler.Profile profile = profiler.start("text/html");
+			ParallelExtraction.Batch batch = parallel.start(group, 
+					new StringDocumentSource("<html/>", DOCUMENT_URI), profile);
+			assertNotNull(batch);
+			try { //only the first extractor is run (e.g. as it failed)
+				ExtractorFactory<?> factory = group.iterator().next();
+				ExtractionContext context = new ExtractionContext(factory.getExtractorName(),
+						ValueFactoryImpl.getInstance().createURI(DOCUMENT_URI));
+				((ContentExtractor)factory.createExtractor()).run(ExtractionParameters.newDefault(),
+						context, new ByteArrayInputStream(new byte[0]), null);
+			} finally {
+				batch.finish();
+			}
+			profile.finish(null);
+			Thread.sleep(3 * SLEEP); //the cancelled task completes in the background
+		} finally {
+			parallel.stop();
+		}
+		String summary = profiler.getSummary();
+		assertTrue(summary, summary.contains("\"sleep-1\":{\"invocations\":1,"));
+		assertFalse(summary, summary.contains("sleep-2"));
+	}
+
+	@Test
+	public void testCopies() throws Exception {
+		ParallelExtraction parallel = new ParallelExtraction();
+		ExtractorGroup group = parallel.wrap(ExtractorRegistryImpl.getInstance().getExtractorGroup());
+		assertEquals(0, parallel.getCopies(group, 1024)); //not started
+		parallel.start(2);
+		try {
+			assertEquals(2, parallel.getCopies(group, 1024));
+			assertEquals(0, parallel.getCopies(group, ParallelExtraction.MAX_LENGTH + 1));
+			assertEquals(0, parallel.getCopies(group, -1));
+			assertEquals(0, parallel.getCopies(null, 1024));
+		} finally {
+			parallel.stop();
+		}
+	}
+
+	private static List<String> predicates(Model model) {
+		List<String> predicates = new ArrayList<String>();
+		for(Statement st : model){
+			predicates.add(st.getPredicate().stringValue());
+		}
+		return predicates;
+	}
+
+	private Model extract(byte[] data, int threads) throws Exception {
+		Any23Transformer transformer = new Any23Transformer();
+		transformer.setExtractorThreads(threads);
+		transformer.activate(null);
+		TmpFileDocumentSource source = new TmpFileDocumentSource("/job/parallel-" + threads,
+				new ByteArrayInputStream(data), new MimeType("text/html;charset=UTF-8"), DOCUMENT_URI);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			TripleHandler handler = new NTriplesWriter(out);
+			try {
+				transformer.extract(source, "UTF-8", handler);
+			} finally {
+				handler.close();
+			}
+		} finally {
+			source.close();
+			transformer.close();
+		}
+		return Rio.parse(new ByteArrayInputStream(out.toByteArray()), DOCUMENT_URI, RDFFormat.NTRIPLES);
+	}
+
+	private static final long SLEEP = 300;
+
+	/**
+	 * Creates content extractors that sleep for {@link #SLEEP} ms (if not
+	 * configured otherwise)
+	 */
+	private static class SleepingExtractorFactory implements ExtractorFactory<ContentExtractor> {
+
+		private final String name;
+		private final long sleep;
+
+		SleepingExtractorFactory(String name) {
+			this(name, SLEEP);
+		}
+
+		SleepingExtractorFactory(String name, long sleep) {
+			this.name = name;
+			this.sleep = sleep;
+		}
+
+		@Override
+		public String getExtractorName() {
+			return name;
+		}
+
+		@Override
+		public String getExtractorLabel() {
+			return name;
+		}
+
+		@Override
+		public Prefixes getPrefixes() {
+			return new Prefixes();
+		}
+
+		@Override
+		public ContentExtractor createExtractor() {
+			return new ContentExtractor() {
+
+				@Override
+				public void run(ExtractionParameters params, ExtractionContext context,
+						InputStream in, ExtractionResult out) throws IOException, ExtractionException {
+					try {
+						Thread.sleep(sleep);
+					} catch (InterruptedException e) {
+						throw new ExtractionException("interrupted", e);
+					}
+				}
+
+				@Override
+				public ExtractorDescription getDescription() {
+					return SleepingExtractorFactory.this;
+				}
+
+				@Override
+				public void setStopAtFirstError(boolean stopAtFirstError) {
+				}
+			};
+		}
+
+		@Override
+		public Collection<MIMEType> getSupportedMIMETypes() {
+			return Collections.singletonList(MIMEType.parse("text/html"));
+		}
+
+		@Override
+		public String getExampleInput() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import eu.fusepool.transformer.any23.PartialResult.Status;
+
+public class PartialResultTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long MB = 1024 * 1024;
+
+	@Test
+	public void testTail() throws Exception {
+		final PartialResult partial = new PartialResult("/job/partial-test");
+		final AtomicReference<String> read = new AtomicReference<String>();
+		//start reading before the job writes anything
+		final InputStream in = partial.tail();
+		assertNotNull(in);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ByteArrayOutputStream data = new ByteArrayOutputStream();
+					IOUtils.copy(in, data);
+					read.set(new String(data.toByteArray(), UTF8));
+				} catch (Exception e) {
+					read.set(e.toString());
+				} finally {
+					IOUtils.closeQuietly(in);
+				}
+			}
+		});
+		reader.start();
+		OutputStream out = partial.open();
+		out.write("<urn:s> <urn:p> \"1\" .\n".getBytes(UTF8));
+		out.flush();
+		Thread.sleep(100);
+		assertTrue(reader.isAlive()); //still waiting for more data
+		out.write("<urn:s> <urn:p> \"2\" .\n".getBytes(UTF8));
+		out.close();
+		partial.completed();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals("<urn:s> <urn:p> \"1\" .\n<urn:s> <urn:p> \"2\" .\n", read.get());
+		assertEquals(Status.COMPLETED, partial.getStatus());
+		//the data are deleted after the job finished and all readers are closed
+		assertNull(partial.tail());
+	}
+
+	@Test
+	public void testFailed() throws Exception {
+		PartialResult partial = new PartialResult("/job/partial-failed");
+		InputStream in = partial.tail();
+		OutputStream out = partial.open();
+		out.write("<urn:s> <urn:p> \"1\" .\n".getBytes(UTF8));
+		out.close();
+		partial.failed("test failure");
+		assertEquals("<urn:s> <urn:p> \"1\" .\n", IOUtils.toString(in, "UTF-8"));
+		in.close();
+		assertEquals(Status.FAILED, partial.getStatus());
+		assertEquals("test failure", partial.getMessage());
+	}
+
+	@Test
+	public void testStreamResult() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		Any23Transformer transformer = new Any23Transformer();
+		MemoryBudget budget = new MemoryBudget(8 * MB);
+		transformer.setMemoryBudget(budget);
+		transformer.setStreamingResults(true);
+		Any23Server server = new Any23Server(port, true);
+		server.start(transformer);
+		try {
+			//keep the jobs waiting for heap budget until the streams are requested
+			MemoryBudget.Reservation blocker = budget.reserve("text/plain", 3 * MB, null);
+			String completed, failed;
+			HttpURLConnection completedStream, failedStream;
+			try {
+				completed = post(port, "a;b\n1;2\n3;4\n".getBytes(UTF8), "text/csv;charset=UTF-8", null);
+				failed = post(port, corruptGzip(), "text/csv;charset=UTF-8", "gzip");
+				completedStream = stream(port, completed);
+				failedStream = stream(port, failed);
+			} finally {
+				blocker.release();
+			}
+			//the streamed data are exactly the final result
+			String streamed = IOUtils.toString(completedStream.getInputStream(), "UTF-8");
+			completedStream.disconnect();
+			assertFalse(streamed, streamed.contains("any23-job-status"));
+			HttpURLConnection con = (HttpURLConnection)
+					new URL("http://localhost:" + port + completed).openConnection();
+			assertEquals(200, con.getResponseCode());
+			assertEquals(streamed, IOUtils.toString(con.getInputStream(), "UTF-8"));
+			con.disconnect();
+			//the stream of a failed job is aborted
+			InputStream in = failedStream.getInputStream();
+			try {
+				IOUtils.toByteArray(in);
+				fail("stream of failed job not aborted");
+			} catch (IOException e) {
+				//expected
+			} finally {
+				failedStream.disconnect();
+			}
+		} finally {
+			server.stop();
+			transformer.close();
+		}
+	}
+
+	/**
+	 * gzip encoded data with a wrong CRC. Detected when the job decodes all data
+	 */
+	private static byte[] corruptGzip() throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(data);
+		out.write("a;b\n".getBytes(UTF8));
+		for(int i = 0; i < 10000; i++){
+			out.write((i + ";" + i + "\n").getBytes(UTF8));
+		}
+		out.close();
+		byte[] gzip = data.toByteArray();
+		gzip[gzip.length - 8] ^= 0xff;
+		return gzip;
+	}
+
+	private static String post(int port, byte[] body, String type, String encoding)
+			throws Exception {
+		HttpURLConnection con = (HttpURLConnection)
+				new URL("http://localhost:" + port + "/").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setRequestProperty("Content-Type", type);
+		if(encoding != null){
+			con.setRequestProperty("Content-Encoding", encoding);
+		}
+		OutputStream out = con.getOutputStream();
+		out.write(body);
+		out.close();
+		assertEquals(202, con.getResponseCode());
+		String location = con.getHeaderField("Location");
+		con.disconnect();
+		return location;
+	}
+
+	private static HttpURLConnection stream(int port, String location) throws Exception {
+		HttpURLConnection con = (HttpURLConnection)
+				new URL("http://localhost:" + port + location + "?stream").openConnection();
+		assertEquals(200, con.getResponseCode());
+		assertEquals("chunked", con.getHeaderField("Transfer-Encoding"));
+		return con;
+	}
+}
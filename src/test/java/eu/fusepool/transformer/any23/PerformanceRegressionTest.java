@@ -0,0 +1,351 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import eu.fusepool.transformer.any23.CorpusGenerator.Format;
+
+/**
+ * Runs a fixed set of benchmarks through the job path of an
+ * {@link Any23Server} (spooling by {@link TmpFileDocumentSource}, the job
+ * run by a bulkhead, extraction, writing the XZ compressed
+ * {@link TmpFileEntity} and serving the result) and compares the heap
+ * allocated per document and the throughput with the baseline in
+ * <code>perf-baseline.properties</code> (test resources).<p>
+ * Allocated bytes are the sum over all threads of the server (excluding the
+ * client thread running the benchmark) and are stable across machines.
+ * Allocations of threads terminated while a benchmark runs are not
+ * included.<p>
+ * Throughput depends on the machine. So the expected throughput is the
+ * baseline scaled by the ratio of a calibration run (XZ compression and
+ * hashing of fixed data) on this machine and on the machine that recorded
+ * the baseline. Without a calibration in the baseline throughput is only
+ * reported. Tolerances can be configured by the
+ * <code>any23.perf.allocation-tolerance</code> and
+ * <code>any23.perf.throughput-tolerance</code> system properties (e.g.
+ * <code>0.1</code> for 10%). Benchmarks without a baseline are only reported.
+ * Measurements, including GC counts and times, are written to
+ * <code>target/perf-report.csv</code> and as baseline to
+ * <code>target/perf-baseline.properties</code> so that the checked-in
+ * baseline can be updated after intended changes.<p>
+ * NOTE: This test is excluded from the default build and only executed by
+ * the <code>perf</code> profile (<code>mvn test -Pperf</code>).
+ */
+public class PerformanceRegressionTest {
+
+	private static final Logger log = LoggerFactory.getLogger(PerformanceRegressionTest.class);
+
+	public static final String ALLOCATION_TOLERANCE_PROPERTY = "any23.perf.allocation-tolerance";
+	public static final String THROUGHPUT_TOLERANCE_PROPERTY = "any23.perf.throughput-tolerance";
+	private static final double DEFAULT_ALLOCATION_TOLERANCE = 0.1;
+	private static final double DEFAULT_THROUGHPUT_TOLERANCE = 0.5;
+
+	private static final String BASELINE = "perf-baseline.properties";
+	/**
+	 * The size of the generated documents
+	 */
+	private static final long SIZE = 256 * 1024;
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+	/**
+	 * The size of the data compressed and hashed by a calibration iteration
+	 */
+	private static final int CALIBRATION_SIZE = 1024 * 1024;
+	private static final String CALIBRATION = "calibration.throughput";
+
+	private static int port;
+	private static Any23Transformer transformer;
+	private static Any23Server server;
+	private static ThreadMXBean threadBean;
+	private static Properties baseline;
+	private static Properties measured;
+	private static PrintWriter report;
+	private static File target;
+	/**
+	 * The throughput of the calibration run on this machine
+	 */
+	private static double calibration;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assertTrue("Thread allocated memory is not supported by this JVM",
+				bean instanceof com.sun.management.ThreadMXBean &&
+				((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported());
+		((com.sun.management.ThreadMXBean)bean).setThreadAllocatedMemoryEnabled(true);
+		threadBean = bean;
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		transformer = new Any23Transformer();
+		server = new Any23Server(port, true);
+		server.start(transformer);
+		baseline = new Properties();
+		InputStream in = PerformanceRegressionTest.class.getClassLoader().getResourceAsStream(BASELINE);
+		if(in != null){
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		measured = new Properties();
+		target = new File("target");
+		if(!target.isDirectory()){
+			target = new File(System.getProperty("java.io.tmpdir"));
+		}
+		report = new PrintWriter(new FileWriter(new File(target, "perf-report.csv")));
+		report.println("benchmark,bytes,allocatedPerDoc,docsPerSec,mbPerSec,gcCount,gcMs");
+		calibration = calibrate();
+		measured.setProperty(CALIBRATION, String.format(Locale.ROOT, "%.2f", calibration));
+		log.info(String.format(Locale.ROOT, " - calibration: %.2f iterations/s (baseline: %s)",
+				calibration, baseline.getProperty(CALIBRATION)));
+	}
+
+	@AfterClass
+	public static void cleanup() throws Exception {
+		if(report != null){
+			report.close();
+		}
+		if(measured != null && !measured.isEmpty()){
+			OutputStream out = new FileOutputStream(new File(target, BASELINE));
+			try {
+				measured.store(out, "measured by " + PerformanceRegressionTest.class.getSimpleName());
+			} finally {
+				out.close();
+			}
+		}
+		if(server != null){
+			server.stop();
+		}
+		if(transformer != null){
+			transformer.close();
+		}
+	}
+
+	@Test
+	public void testRdfa() throws Exception {
+		assertNoRegression("rdfa", generate(Format.RDFA), Format.RDFA.getContentType());
+	}
+
+	@Test
+	public void testMicrodata() throws Exception {
+		assertNoRegression("microdata", generate(Format.MICRODATA), Format.MICRODATA.getContentType());
+	}
+
+	@Test
+	public void testMicroformats() throws Exception {
+		assertNoRegression("microformats", generate(Format.MICROFORMATS),
+				Format.MICROFORMATS.getContentType());
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		assertNoRegression("csv", generate(Format.CSV), Format.CSV.getContentType());
+	}
+
+	@Test
+	public void testRdfXml() throws Exception {
+		assertNoRegression("rdfxml", generate(Format.RDF_XML), Format.RDF_XML.getContentType());
+	}
+
+	@Test
+	public void testSmallHtml() throws Exception {
+		assertNoRegression("small-html", resource("warmup/rdfa11.html"), "text/html;charset=UTF-8");
+	}
+
+	private static byte[] generate(Format format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int)SIZE + 4096);
+		new CorpusGenerator().generate(format, SIZE, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] resource(String name) throws IOException {
+		InputStream in = PerformanceRegressionTest.class.getClassLoader().getResourceAsStream(name);
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void assertNoRegression(String benchmark, byte[] data, String type) throws Exception {
+		for(int i = 0; i < WARMUP_ITERATIONS; i++){
+			transform(data, type);
+		}
+		long gcCount = 0;
+		long gcTime = 0;
+		List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+		for(GarbageCollectorMXBean gc : gcs){
+			gcCount -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+		}
+		long allocated = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++){
+			allocated += transform(data, type);
+		}
+		long nanos = System.nanoTime() - start;
+		for(GarbageCollectorMXBean gc : gcs){
+			gcCount += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+		}
+		long allocatedPerDoc = allocated / ITERATIONS;
+		double docsPerSec = ITERATIONS / (nanos / 1000000000d);
+		double mbPerSec = docsPerSec * data.length / (1024d * 1024d);
+		log.info(String.format(Locale.ROOT, " - %s [%d bytes | allocated: %d bytes/doc | %.2f docs/s "
+				+ "| %.2f MB/s | gc: %d (%dms)]", benchmark, data.length, allocatedPerDoc, docsPerSec,
+				mbPerSec, gcCount, gcTime));
+		report.println(String.format(Locale.ROOT, "%s,%d,%d,%.2f,%.2f,%d,%d", benchmark, data.length,
+				allocatedPerDoc, docsPerSec, mbPerSec, gcCount, gcTime));
+		report.flush();
+		measured.setProperty(benchmark + ".allocated", String.valueOf(allocatedPerDoc));
+		measured.setProperty(benchmark + ".throughput", String.format(Locale.ROOT, "%.2f", docsPerSec));
+
+		String expectedAllocated = baseline.getProperty(benchmark + ".allocated");
+		if(expectedAllocated != null){
+			double max = Long.parseLong(expectedAllocated.trim()) * (1 + getTolerance(
+					ALLOCATION_TOLERANCE_PROPERTY, DEFAULT_ALLOCATION_TOLERANCE));
+			assertTrue(benchmark + ": allocated " + allocatedPerDoc + " bytes per document (baseline: "
+					+ expectedAllocated + ")", allocatedPerDoc <= max);
+		} else {
+			log.warn("No allocation baseline for benchmark {}", benchmark);
+		}
+		String expectedThroughput = baseline.getProperty(benchmark + ".throughput");
+		String baselineCalibration = baseline.getProperty(CALIBRATION);
+		if(expectedThroughput != null && baselineCalibration != null){
+			//scale the baseline to the speed of this machine
+			double expected = Double.parseDouble(expectedThroughput.trim()) * calibration
+					/ Double.parseDouble(baselineCalibration.trim());
+			double min = expected * (1 - getTolerance(
+					THROUGHPUT_TOLERANCE_PROPERTY, DEFAULT_THROUGHPUT_TOLERANCE));
+			assertTrue(String.format(Locale.ROOT, "%s: throughput of %.2f documents/s (expected: "
+					+ "%.2f = baseline %s scaled by calibration %.2f/%s)", benchmark, docsPerSec,
+					expected, expectedThroughput, calibration, baselineCalibration), docsPerSec >= min);
+		} else {
+			log.warn("No throughput baseline or calibration for benchmark {}", benchmark);
+		}
+	}
+
+	/**
+	 * Processes the document by a job of the server: the document is posted,
+	 * the job is awaited and the result is read.
+	 * @return the bytes allocated by all threads other than the current one
+	 */
+	private long transform(byte[] data, String type) throws Exception {
+		long start = getAllocatedBytes();
+		HttpURLConnection con = (HttpURLConnection)
+				new URL("http://localhost:" + port + "/").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setFixedLengthStreamingMode(data.length);
+		con.setRequestProperty("Content-Type", type);
+		OutputStream out = con.getOutputStream();
+		out.write(data);
+		out.close();
+		assertEquals(202, con.getResponseCode());
+		String location = con.getHeaderField("Location");
+		con.disconnect();
+		//do not poll the server as this would add allocations
+		long deadline = System.currentTimeMillis() + 300000;
+		while(transformer.getActiveCount() > 0){
+			assertTrue("job " + location + " not finished", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		con = (HttpURLConnection)new URL("http://localhost:" + port + location).openConnection();
+		try {
+			assertEquals(200, con.getResponseCode());
+			InputStream in = con.getInputStream();
+			try {
+				assertTrue("empty result", IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM) > 0);
+			} finally {
+				in.close();
+			}
+		} finally {
+			con.disconnect();
+		}
+		return getAllocatedBytes() - start;
+	}
+
+	/**
+	 * The bytes allocated by all live threads other than the current one
+	 */
+	private static long getAllocatedBytes() {
+		long current = Thread.currentThread().getId();
+		long[] ids = threadBean.getAllThreadIds();
+		long[] allocated = ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(ids);
+		long sum = 0;
+		for(int i = 0; i < ids.length; i++){
+			if(ids[i] != current && allocated[i] > 0){
+				sum += allocated[i];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Measures the speed of this machine by XZ compressing and hashing fixed
+	 * data, the CPU bound work of every job
+	 * @return the calibration iterations per second
+	 */
+	private static double calibrate() throws Exception {
+		byte[] data = new byte[CALIBRATION_SIZE];
+		Random random = new Random(42);
+		for(int i = 0; i < data.length; i++){ //compressible data
+			data[i] = (byte)('a' + random.nextInt(16));
+		}
+		for(int i = 0; i < WARMUP_ITERATIONS; i++){
+			calibrate(data);
+		}
+		long start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++){
+			calibrate(data);
+		}
+		return ITERATIONS / ((System.nanoTime() - start) / 1000000000d);
+	}
+
+	private static void calibrate(byte[] data) throws Exception {
+		LZMA2Options options = new LZMA2Options();
+		options.setDictSize(TmpFileEntity.BLOCK_SIZE);
+		XZOutputStream out = new XZOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, options,
+				ArrayCache.getDummyCache());
+		out.write(data);
+		out.close();
+		MessageDigest.getInstance("SHA-1").digest(data);
+	}
+
+	private static double getTolerance(String property, double defaultValue) {
+		String value = System.getProperty(property);
+		return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+	}
+}
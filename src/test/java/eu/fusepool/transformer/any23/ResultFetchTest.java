@@ -0,0 +1,185 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ResultFetchTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int port;
+
+	@Test
+	public void testBlockIndexedEntity() throws Exception {
+		byte[] data = new byte[TmpFileEntity.BLOCK_SIZE * 2 + 12345];
+		Random random = new Random(42);
+		for(int i = 0; i < data.length; i++){ //compressible data
+			data[i] = (byte)('a' + random.nextInt(8));
+		}
+		TmpFileEntity entity = new TmpFileEntity("/job/block-test", new MimeType("text/plain"));
+		try {
+			OutputStream out = entity.getWriter();
+			out.write(data, 0, 100);
+			out.write(data, 100, data.length - 100);
+			out.close();
+			assertEquals(data.length, entity.getLength());
+			String sha1 = Hex.encodeHexString(MessageDigest.getInstance("SHA-1").digest(data));
+			assertEquals(sha1, entity.getETag());
+			for(long offset : new long[]{0, 1, TmpFileEntity.BLOCK_SIZE - 1,
+					TmpFileEntity.BLOCK_SIZE, data.length - 10}){
+				InputStream in = entity.getData(offset);
+				byte[] read = IOUtils.toByteArray(in);
+				in.close();
+				assertArrayEquals(Arrays.copyOfRange(data, (int)offset, data.length), read);
+			}
+			//the whole data are still a valid XZ stream
+			assertArrayEquals(data, IOUtils.toByteArray(entity.getData()));
+			//the ETag is read from the file written next to the data
+			assertEquals(sha1, new TmpFileEntity(entity.getFile(), entity.getType(), false).getETag());
+			//and calculated if not available
+			assertTrue(new File(entity.getFile().getPath() + TmpFileEntity.ETAG_SUFFIX).delete());
+			assertEquals(sha1, new TmpFileEntity(entity.getFile(), entity.getType(), false).getETag());
+			//written again by the owner
+			out = entity.getWriter();
+			out.write(data);
+			out.close();
+		} finally {
+			entity.close();
+		}
+		assertFalse(entity.getFile().exists());
+		assertFalse(new File(entity.getFile().getPath() + TmpFileEntity.ETAG_SUFFIX).exists());
+	}
+
+	@Test
+	public void testETagFileDeletedWithoutData() throws Exception {
+		TmpFileEntity entity = new TmpFileEntity("/job/etag-test", new MimeType("text/plain"));
+		File etagFile = new File(entity.getFile().getPath() + TmpFileEntity.ETAG_SUFFIX);
+		try {
+			OutputStream out = entity.getWriter();
+			out.write("test".getBytes(UTF8));
+			out.close();
+			assertTrue(etagFile.isFile());
+			//e.g. a result removed by the job store
+			assertTrue(entity.getFile().delete());
+		} finally {
+			entity.close();
+		}
+		assertFalse(etagFile.exists());
+	}
+
+	@Test
+	public void testParseRange() {
+		assertArrayEquals(new long[]{0, 99}, ResultFetchFilter.parseRange("bytes=0-99", 1000));
+		assertArrayEquals(new long[]{500, 999}, ResultFetchFilter.parseRange("bytes=500-", 1000));
+		assertArrayEquals(new long[]{900, 999}, ResultFetchFilter.parseRange("bytes=-100", 1000));
+		assertArrayEquals(new long[]{990, 999}, ResultFetchFilter.parseRange("bytes=990-2000", 1000));
+		assertEquals(0, ResultFetchFilter.parseRange("bytes=1000-", 1000).length);
+		assertNull(ResultFetchFilter.parseRange("bytes=0-10,20-30", 1000));
+		assertNull(ResultFetchFilter.parseRange("bytes=20-10", 1000));
+		assertNull(ResultFetchFilter.parseRange("items=0-10", 1000));
+		assertTrue(ResultFetchFilter.matches("\"a\", W/\"b\"", "\"b\""));
+		assertFalse(ResultFetchFilter.matches("\"a\"", "\"b\""));
+	}
+
+	@Test
+	public void testRangeAndConditionalRequests() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		Any23Server server = new Any23Server(port, true);
+		server.setDrainTimeout(1);
+		server.setDrainGracePeriod(0);
+		server.start(new Any23Transformer());
+		try {
+			StringBuilder csv = new StringBuilder("id;name;description\n");
+			for(int i = 0; i < 5000; i++){
+				csv.append(i).append(";name ").append(i).append(";a description of row ")
+					.append(i).append('\n');
+			}
+			HttpURLConnection con = open("/");
+			con.setRequestMethod("POST");
+			con.setDoOutput(true);
+			con.setRequestProperty("Content-Type", "text/csv;charset=UTF-8");
+			OutputStream out = con.getOutputStream();
+			out.write(csv.toString().getBytes(UTF8));
+			out.close();
+			assertEquals(202, con.getResponseCode());
+			String location = con.getHeaderField("Location");
+			byte[] result = null;
+			for(int retry = 0; retry < 100 && result == null; retry++){
+				con = open(location);
+				if(con.getResponseCode() == 200){
+					result = IOUtils.toByteArray(con.getInputStream());
+				} else {
+					assertEquals(202, con.getResponseCode());
+					Thread.sleep(100);
+				}
+			}
+			assertNotNull(result);
+			assertTrue("result spans several blocks", result.length > TmpFileEntity.BLOCK_SIZE + 100);
+			String etag = con.getHeaderField("ETag");
+			assertNotNull(etag);
+			assertEquals("bytes", con.getHeaderField("Accept-Ranges"));
+			assertEquals(String.valueOf(result.length), con.getHeaderField("Content-Length"));
+
+			con = request(location, "If-None-Match", etag);
+			assertEquals(304, con.getResponseCode());
+
+			con = request(location, "Range", "bytes=100-199");
+			assertEquals(206, con.getResponseCode());
+			assertEquals("bytes 100-199/" + result.length, con.getHeaderField("Content-Range"));
+			assertArrayEquals(Arrays.copyOfRange(result, 100, 200),
+					IOUtils.toByteArray(con.getInputStream()));
+
+			//resume a download from the second block
+			int offset = TmpFileEntity.BLOCK_SIZE + 50;
+			con = request(location, "Range", "bytes=" + offset + "-");
+			assertEquals(206, con.getResponseCode());
+			assertArrayEquals(Arrays.copyOfRange(result, offset, result.length),
+					IOUtils.toByteArray(con.getInputStream()));
+
+			con = request(location, "Range", "bytes=-10");
+			assertEquals(206, con.getResponseCode());
+			assertArrayEquals(Arrays.copyOfRange(result, result.length - 10, result.length),
+					IOUtils.toByteArray(con.getInputStream()));
+
+			con = request(location, "Range", "bytes=" + result.length + "-");
+			assertEquals(416, con.getResponseCode());
+			assertEquals("bytes */" + result.length, con.getHeaderField("Content-Range"));
+
+			//the result changed: send all
+			con = request(location, "Range", "bytes=100-199");
+			con.setRequestProperty("If-Range", "\"outdated\"");
+			assertEquals(200, con.getResponseCode());
+			assertArrayEquals(result, IOUtils.toByteArray(con.getInputStream()));
+		} finally {
+			server.drainAndStop();
+		}
+	}
+
+	private HttpURLConnection request(String path, String header, String value) throws Exception {
+		HttpURLConnection con = open(path);
+		con.setRequestProperty(header, value);
+		return con;
+	}
+
+	private HttpURLConnection open(String path) throws Exception {
+		return (HttpURLConnection)new URL("http://localhost:" + port + path).openConnection();
+	}
+}
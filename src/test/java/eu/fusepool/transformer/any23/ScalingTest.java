@@ -0,0 +1,299 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.activation.MimeType;
+
+import org.apache.any23.Any23;
+import org.apache.any23.configuration.DefaultConfiguration;
+import org.apache.any23.mime.TikaMIMETypeDetector;
+import org.apache.any23.mime.purifier.WhiteSpacesPurifier;
+import org.apache.any23.writer.TurtleWriter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fusepool.transformer.any23.CorpusGenerator.Format;
+
+/**
+ * Transforms synthetic documents of increasing size (see {@link CorpusGenerator})
+ * and records throughput, peak heap and spool disk usage to 
+ * <code>target/scaling-report.csv</code>. Fails if the processing time per byte
+ * of the largest document exceeds {@link #MAX_SUPERLINEAR_FACTOR} times the 
+ * one of the smallest.<p>
+ * By default documents up to {@link #DEFAULT_MAX_SIZE} are used. Larger sizes
+ * can be configured by the <code>any23.scaling.max-size</code> system property
+ * (e.g. <code>-Dany23.scaling.max-size=4g</code> or the <code>scaling</code>
+ * profile).<p>
+ * NOTE: This test is excluded from the default build and only executed by
+ * the <code>scaling</code> profile (<code>mvn test -Pscaling</code>).
+ */
+public class ScalingTest {
+
+	private static final Logger log = LoggerFactory.getLogger(ScalingTest.class);
+
+	public static final String MAX_SIZE_PROPERTY = "any23.scaling.max-size";
+	private static final String DEFAULT_MAX_SIZE = "1m";
+	private static final long MIN_SIZE = 64 * 1024;
+	/**
+	 * The factor between two measured sizes
+	 */
+	private static final int STEP = 4;
+	private static final double MAX_SUPERLINEAR_FACTOR = 4.0;
+	/**
+	 * The hCard extractor of Any23 1.1 searches the whole document for every
+	 * vcard and is therefore quadratic in the number of vcards. For this format
+	 * the results are only recorded and sizes are limited to 
+	 * {@link #KNOWN_SUPERLINEAR_MAX_SIZE}.
+	 */
+	private static final Set<Format> KNOWN_SUPERLINEAR = EnumSet.of(Format.MICROFORMATS);
+	private static final long KNOWN_SUPERLINEAR_MAX_SIZE = 1024 * 1024;
+
+	private static File dir;
+	private static Any23 any23;
+	private static PrintWriter report;
+	/**
+	 * Used to create unique request IDs as spool files are deleted when
+	 * the document source is finalized
+	 */
+	private static int count;
+
+	@BeforeClass
+	public static void init() throws IOException {
+		dir = new File(System.getProperty("java.io.tmpdir"), "any23-scaling-" + System.nanoTime());
+		assertTrue(dir.mkdirs());
+		any23 = new Any23(DefaultConfiguration.singleton());
+		Set<MimeType> trusted = new HashSet<MimeType>();
+		for(Format format : Format.values()){
+			trusted.add(toMimeType(format.getContentType()));
+		}
+		any23.setMIMETypeDetector(new DeclaredMIMETypeDetector(trusted, Any23Transformer.ANY23_MIME_TYPES,
+				new TikaMIMETypeDetector(new WhiteSpacesPurifier())));
+		File target = new File("target");
+		report = new PrintWriter(new FileWriter(new File(target.isDirectory() ? target : dir,
+				"scaling-report.csv")));
+		report.println("format,size,spoolMs,transformMs,mbPerSec,peakHeapMb,spoolBytes,outputBytes");
+	}
+
+	@AfterClass
+	public static void cleanup() throws IOException {
+		if(report != null){
+			report.close();
+		}
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testCorpusIsDeterministic() throws Exception {
+		CorpusGenerator generator = new CorpusGenerator();
+		assertTrue(new File(dir, "a").mkdir());
+		assertTrue(new File(dir, "b").mkdir());
+		for(Format format : Format.values()){
+			File first = generator.generate(format, 10 * 1024, new File(dir, "a"));
+			File second = new CorpusGenerator().generate(format, 10 * 1024, new File(dir, "b"));
+			assertTrue(first.length() >= 10 * 1024);
+			assertTrue(FileUtils.contentEquals(first, second));
+		}
+	}
+
+	@Test
+	public void testRdfa() throws Exception {
+		assertLinear(Format.RDFA);
+	}
+
+	@Test
+	public void testMicrodata() throws Exception {
+		assertLinear(Format.MICRODATA);
+	}
+
+	@Test
+	public void testMicroformats() throws Exception {
+		assertLinear(Format.MICROFORMATS);
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		assertLinear(Format.CSV);
+	}
+
+	@Test
+	public void testRdfXml() throws Exception {
+		assertLinear(Format.RDF_XML);
+	}
+
+	private void assertLinear(Format format) throws Exception {
+		long maxSize = CorpusGenerator.parseSize(System.getProperty(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+		if(KNOWN_SUPERLINEAR.contains(format)){
+			maxSize = Math.min(maxSize, KNOWN_SUPERLINEAR_MAX_SIZE);
+		}
+		CorpusGenerator generator = new CorpusGenerator();
+		transform(format, generator.generate(format, MIN_SIZE, dir)); //warm up
+		List<Measurement> measurements = new ArrayList<Measurement>();
+		for(long size = MIN_SIZE; size <= maxSize; size *= STEP){
+			File file = generator.generate(format, size, dir);
+			try {
+				Measurement m = transform(format, file);
+				log.info(" - {}", m);
+				report.println(m.toCsv());
+				report.flush();
+				measurements.add(m);
+			} finally {
+				file.delete();
+			}
+		}
+		assertTrue(measurements.size() > 1);
+		Measurement smallest = measurements.get(0);
+		Measurement largest = measurements.get(measurements.size() - 1);
+		assertTrue(largest.outputBytes > smallest.outputBytes);
+		boolean linear = largest.nanosPerByte() <= smallest.nanosPerByte() * MAX_SUPERLINEAR_FACTOR;
+		if(KNOWN_SUPERLINEAR.contains(format)){
+			if(!linear){
+				log.warn("Known super-linear processing time for {} ({} vs. {})",
+						new Object[]{format, smallest, largest});
+			}
+		} else {
+			assertTrue("Super-linear processing time for " + format + " (" + smallest + " vs. "
+					+ largest + ")", linear);
+		}
+	}
+
+	private Measurement transform(Format format, File file) throws Exception {
+		System.gc();
+		//sample the used heap as a whole. Peaks of the individual pools are
+		//reached at different times so their sum overstates the peak
+		HeapSampler sampler = new HeapSampler();
+		sampler.start();
+		Measurement m = new Measurement(format, file.length());
+		long start = System.nanoTime();
+		InputStream in = new FileInputStream(file);
+		TmpFileDocumentSource source;
+		try {
+			source = new TmpFileDocumentSource("/job/scaling-" + (++count), in, 
+					toMimeType(format.getContentType()), "http://www.example.org/" + file.getName(),
+					new TmpFileDocumentSource.Options().spoolDirectory(dir));
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		long spooled = System.nanoTime();
+		m.spoolNanos = spooled - start;
+		m.spoolBytes = source.getFile().length();
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		TurtleWriter writer = new TurtleWriter(out);
+		try {
+			any23.extract(source, writer);
+		} finally {
+			writer.close();
+			source.close();
+		}
+		m.transformNanos = System.nanoTime() - spooled;
+		m.outputBytes = out.getByteCount();
+		m.peakHeap = sampler.finish();
+		return m;
+	}
+
+	/**
+	 * Samples the used heap and keeps the maximum
+	 */
+	private static class HeapSampler extends Thread {
+
+		private static final long INTERVAL = 5;
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile boolean finished;
+		private volatile long peak;
+
+		HeapSampler() {
+			super("heap-sampler");
+			setDaemon(true);
+			peak = memory.getHeapMemoryUsage().getUsed();
+		}
+
+		@Override
+		public void run() {
+			while(!finished){
+				peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Stops sampling
+		 * @return the peak of the used heap in bytes
+		 */
+		long finish() throws InterruptedException {
+			finished = true;
+			join();
+			return Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+		}
+	}
+
+	private static MimeType toMimeType(String type) {
+		try {
+			return new MimeType(type);
+		} catch (javax.activation.MimeTypeParseException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Measurement {
+
+		final Format format;
+		final long size;
+		long spoolNanos;
+		long transformNanos;
+		long spoolBytes;
+		long outputBytes;
+		long peakHeap;
+
+		Measurement(Format format, long size) {
+			this.format = format;
+			this.size = size;
+		}
+
+		double nanosPerByte() {
+			return (spoolNanos + transformNanos) / (double)size;
+		}
+
+		double throughput() {
+			return (size / (1024d * 1024d)) / ((spoolNanos + transformNanos) / 1000000000d);
+		}
+
+		String toCsv() {
+			return String.format(java.util.Locale.ROOT, "%s,%d,%d,%d,%.2f,%d,%d,%d", format, size,
+					spoolNanos / 1000000, transformNanos / 1000000, throughput(), 
+					peakHeap / (1024 * 1024), spoolBytes, outputBytes);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(java.util.Locale.ROOT, 
+					"%s [size: %d | spool: %dms | transform: %dms | %.2f MB/s | peak heap: %dMB | spool: %d bytes]",
+					format, size, spoolNanos / 1000000, transformNanos / 1000000, throughput(),
+					peakHeap / (1024 * 1024), spoolBytes);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import eu.fusepool.p3.transformer.commons.Entity;
+import eu.fusepool.transformer.any23.JobStore.JobState;
+
+public class SharedFileJobStoreTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testJobLifecycle() throws IOException {
+		SharedFileJobStore node1 = new SharedFileJobStore(folder.getRoot());
+		SharedFileJobStore node2 = new SharedFileJobStore(folder.getRoot());
+		String id = "/job/0f2f4b7e-6b5d-4a1e-9f55-0d1b4c7a1e01";
+		assertEquals(JobState.UNKNOWN, node2.getState(id));
+		node1.accepted(id);
+		assertEquals(JobState.ACTIVE, node2.getState(id));
+		TmpFileEntity result = node1.createResult(id, Any23Transformer.OUTPUT);
+		OutputStream out = result.getWriter();
+		try {
+			out.write("<urn:a> <urn:b> <urn:c> .".getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+		node1.completed(id, result);
+		assertEquals(JobState.COMPLETED, node2.getState(id));
+		Entity shared = node2.getResult(id);
+		assertNotNull(shared);
+		assertTrue(Any23Transformer.OUTPUT.match(shared.getType()));
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		shared.writeData(data);
+		assertEquals("<urn:a> <urn:b> <urn:c> .", new String(data.toByteArray(), UTF8));
+		//closing the shared entity MUST NOT delete the result
+		((TmpFileEntity)shared).close();
+		assertNotNull(node2.getResult(id));
+	}
+
+	@Test
+	public void testFailedJob() throws IOException {
+		SharedFileJobStore store = new SharedFileJobStore(folder.getRoot());
+		String id = "/job/failed";
+		store.accepted(id);
+		store.failed(id, new IllegalStateException("test failure"));
+		assertEquals(JobState.FAILED, store.getState(id));
+		Exception e = store.getException(id);
+		assertNotNull(e);
+		assertTrue(e.getMessage().contains("test failure"));
+		assertNull(store.getResult(id));
+	}
+
+	@Test
+	public void testLease() throws Exception {
+		SharedFileJobStore node1 = new SharedFileJobStore(folder.getRoot(), 60 * 1000, 300);
+		SharedFileJobStore node2 = new SharedFileJobStore(folder.getRoot(), 60 * 1000, 300);
+		String running = "/job/running";
+		String crashed = "/job/crashed";
+		node1.accepted(running);
+		node1.accepted(crashed);
+		File crashedState = new File(folder.getRoot(), TmpFileEntity.toFileName(crashed) + ".state");
+		//a crashed node does no longer refresh the lease
+		Properties state = new Properties();
+		state.setProperty("state", JobState.ACTIVE.name());
+		state.setProperty("node", "4711@crashed-host");
+		state.setProperty("time", String.valueOf(System.currentTimeMillis()));
+		state.setProperty("lease", String.valueOf(System.currentTimeMillis()));
+		node1.failed(crashed, null); //stop the heartbeat for the job
+		OutputStream out = new FileOutputStream(crashedState);
+		try {
+			state.store(out, crashed);
+		} finally {
+			out.close();
+		}
+		assertEquals(JobState.ACTIVE, node2.getState(crashed));
+		Thread.sleep(1000);
+		//the heartbeat of node1 keeps the running job active
+		assertEquals(JobState.ACTIVE, node2.getState(running));
+		assertEquals(JobState.FAILED, node2.getState(crashed));
+		Exception e = node2.getException(crashed);
+		assertNotNull(e);
+		assertTrue(e.getMessage(), e.getMessage().contains("4711@crashed-host"));
+		//closed stores do no longer refresh leases
+		node1.close();
+		Thread.sleep(1000);
+		assertEquals(JobState.FAILED, node2.getState(running));
+		node2.close();
+	}
+
+	@Test
+	public void testRemovedResult() throws IOException {
+		SharedFileJobStore node1 = new SharedFileJobStore(folder.getRoot());
+		SharedFileJobStore node2 = new SharedFileJobStore(folder.getRoot());
+		String id = "/job/removed";
+		node1.accepted(id);
+		TmpFileEntity result = node1.createResult(id, Any23Transformer.OUTPUT);
+		OutputStream out = result.getWriter();
+		out.write("<urn:a> <urn:b> <urn:c> .".getBytes(UTF8));
+		out.close();
+		node1.completed(id, result);
+		assertEquals(JobState.COMPLETED, node2.getState(id));
+		//the owner deletes the result -> the job is no longer reported as completed
+		result.close();
+		assertFalse(result.getFile().exists());
+		assertEquals(JobState.UNKNOWN, node2.getState(id));
+		assertNull(node2.getResult(id));
+	}
+
+	@Test
+	public void testRetention() throws IOException {
+		SharedFileJobStore store = new SharedFileJobStore(folder.getRoot(), 60 * 1000);
+		String expired = "/job/expired";
+		String current = "/job/current";
+		//keep the results referenced as finalizing them deletes the files
+		List<TmpFileEntity> results = new ArrayList<TmpFileEntity>();
+		for(String id : new String[]{expired, current}){
+			store.accepted(id);
+			TmpFileEntity result = store.createResult(id, Any23Transformer.OUTPUT);
+			results.add(result);
+			OutputStream out = result.getWriter();
+			out.write("<urn:a> <urn:b> <urn:c> .".getBytes(UTF8));
+			out.close();
+			store.completed(id, result);
+		}
+		long old = System.currentTimeMillis() - 2 * 60 * 1000;
+		for(File file : folder.getRoot().listFiles()){
+			if(file.getName().startsWith(TmpFileEntity.toFileName(expired))){
+				assertTrue(file.setLastModified(old));
+			}
+		}
+		assertEquals(1, store.cleanup());
+		assertEquals(JobState.UNKNOWN, store.getState(expired));
+		assertNull(store.getResult(expired));
+		assertEquals(JobState.COMPLETED, store.getState(current));
+		assertNotNull(store.getResult(current));
+		//only the files of the current job remain (state, result and etag)
+		assertEquals(3, folder.getRoot().listFiles().length);
+		assertEquals(2, results.size());
+	}
+}
@@ -0,0 +1,141 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import javax.activation.MimeType;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TmpFileDocumentSourceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDecodeOnce() throws Exception {
+		assertDecodeOnce(1000);
+		assertDecodeOnce(TmpFileDocumentSource.HEAP_DECODE_THRESHOLD * 3);
+	}
+
+	private void assertDecodeOnce(int length) throws Exception {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		TmpFileDocumentSource source = new TmpFileDocumentSource("/job/test-" + length, 
+				new ByteArrayInputStream(data), new MimeType("text/plain"), "http://www.example.org/test");
+		File decoded = new File(source.getFile().getParentFile(), source.getFile().getName() + ".decoded");
+		try {
+			InputStream first = source.openInputStream();
+			InputStream second = source.openInputStream();
+			assertEquals(length > TmpFileDocumentSource.HEAP_DECODE_THRESHOLD, decoded.isFile());
+			//streams are independent views on the decoded data
+			assertEquals(data[0] & 0xff, first.read());
+			assertTrue(first.markSupported());
+			first.mark(16);
+			assertEquals(data[1] & 0xff, first.read());
+			first.reset();
+			assertArrayEquals(data, IOUtils.toByteArray(second));
+			byte[] rest = IOUtils.toByteArray(first);
+			assertEquals(length - 1, rest.length);
+			assertEquals(data[length - 1], rest[rest.length - 1]);
+		} finally {
+			source.close();
+		}
+		assertFalse(decoded.exists());
+		assertFalse(source.getFile().exists());
+	}
+
+	@Test
+	public void testTakeOverSpooledBody() throws Exception {
+		byte[] data = "<html><head><meta charset=\"ISO-8859-1\"></head><body/></html>".getBytes("UTF-8");
+		File spooled = folder.newFile("ingest.spool");
+		FileUtils.writeByteArrayToFile(spooled, data);
+		NonBlockingIngestFilter.SpooledBody body = new NonBlockingIngestFilter.SpooledBody(spooled);
+		File spoolDir = folder.newFolder("spool");
+		TmpFileDocumentSource source = new TmpFileDocumentSource("/job/spooled", body,
+				new MimeType("application/octet-stream"), "http://www.example.org/test",
+				new TmpFileDocumentSource.Options().detect(true).spoolDirectory(spoolDir));
+		try {
+			//the file is moved and kept as received
+			assertFalse(spooled.exists());
+			assertEquals(spoolDir, source.getFile().getParentFile());
+			assertFalse(source.isCompressed());
+			assertEquals(data.length, source.getContentLength());
+			assertEquals("text/html", source.getDetectedType().getBaseType());
+			assertEquals("ISO-8859-1", source.getCharset());
+			assertArrayEquals(data, IOUtils.toByteArray(source.openInputStream()));
+			//the body can only be taken once
+			try {
+				body.take();
+				fail("taken twice");
+			} catch (IllegalStateException e) {
+				//expected
+			}
+		} finally {
+			source.close();
+		}
+		assertFalse(source.getFile().exists());
+	}
+
+	@Test
+	public void testUntrustedDecodedLength() throws Exception {
+		byte[] data = new byte[TmpFileDocumentSource.HEAP_DECODE_THRESHOLD * 2];
+		Arrays.fill(data, (byte)'a');
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		//a valid gzip stream where the ISIZE of the last member is 1 byte
+		gzip(gzip, data);
+		gzip(gzip, new byte[]{'b'});
+		File spoolDir = folder.newFolder("spool");
+		TmpFileDocumentSource source = new TmpFileDocumentSource("/job/gzip", 
+				new ByteArrayInputStream(gzip.toByteArray()), new MimeType("text/plain"),
+				"http://www.example.org/test", new TmpFileDocumentSource.Options()
+				.spoolDirectory(spoolDir).encoding(ContentEncoding.GZIP));
+		File decoded = new File(spoolDir, source.getFile().getName() + ".decoded");
+		try {
+			assertEquals(1, source.getContentLength());
+			InputStream in = source.openInputStream();
+			//not decoded into the heap
+			assertTrue(decoded.isFile());
+			byte[] read = IOUtils.toByteArray(in);
+			assertEquals(data.length + 1, read.length);
+			assertEquals('b', read[data.length]);
+		} finally {
+			source.close();
+		}
+		assertFalse(decoded.exists());
+		
+		//a forged ISIZE makes decoding fail
+		byte[] forged = gzip.toByteArray();
+		forged[forged.length - 4] = 2;
+		source = new TmpFileDocumentSource("/job/forged", new ByteArrayInputStream(forged),
+				new MimeType("text/plain"), "http://www.example.org/test", new TmpFileDocumentSource.Options()
+				.spoolDirectory(spoolDir).encoding(ContentEncoding.GZIP));
+		try {
+			source.openInputStream();
+			fail("decoded data with a forged ISIZE");
+		} catch (IOException e) {
+			//expected
+		} finally {
+			source.close();
+		}
+		assertEquals("files left after failed decoding", 0, spoolDir.list().length);
+	}
+
+	private void gzip(ByteArrayOutputStream out, byte[] data) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(data);
+		gzip.finish();
+	}
+}
@@ -0,0 +1,67 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.junit.Test;
+
+public class TripleFilterTest {
+
+	private static final URI SCHEMA_NAME = new URIImpl("http://schema.org/name");
+	private static final URI DC_TITLE = new URIImpl("http://purl.org/dc/terms/title");
+	private static final URI FOAF_NAME = new URIImpl("http://xmlns.com/foaf/0.1/name");
+
+	@Test
+	public void testPrefixTrie() {
+		TripleFilter.PrefixTrie trie = TripleFilter.PrefixTrie.create(new LinkedHashSet<String>(
+				Arrays.asList("http://schema.org/", "http://purl.org/dc/", "http://purl.org/dc/terms/")));
+		assertTrue(trie.matches("http://schema.org/name"));
+		assertTrue(trie.matches("http://schema.org/"));
+		assertTrue(trie.matches("http://purl.org/dc/elements/1.1/title"));
+		assertFalse(trie.matches("http://schema.org"));
+		assertFalse(trie.matches("http://purl.org/goodrelations/v1#name"));
+		assertFalse(trie.matches(""));
+	}
+
+	@Test
+	public void testQuery() {
+		assertNull(TripleFilter.fromQuery(null));
+		assertNull(TripleFilter.fromQuery("stream&include-predicates="));
+		TripleFilter filter = TripleFilter.fromQuery("include-predicates=http%3A%2F%2Fschema.org%2F,"
+				+ "http://purl.org/dc/terms/&exclude-types=http://schema.org/WebPage&other=value");
+		assertTrue(filter.accept(SCHEMA_NAME, new LiteralImpl("test"), null));
+		assertTrue(filter.accept(DC_TITLE, new LiteralImpl("test"), null));
+		assertFalse(filter.accept(FOAF_NAME, new LiteralImpl("test"), null));
+		//rdf:type triples are matched against the type filter
+		assertTrue(filter.accept(RDF.TYPE, new URIImpl("http://schema.org/Person"), null));
+		assertFalse(filter.accept(RDF.TYPE, new URIImpl("http://schema.org/WebPage"), null));
+		//the canonical form can be parsed
+		assertEquals(filter, TripleFilter.fromQuery(filter.toString()));
+	}
+
+	@Test
+	public void testProperties() {
+		Properties config = new Properties();
+		config.setProperty("any23.http.user.agent.default", "test");
+		assertNull(TripleFilter.fromProperties(config));
+		config.setProperty(TripleFilter.PROPERTY_PREFIX + TripleFilter.EXCLUDE_PREDICATES, 
+				"http://xmlns.com/foaf/");
+		TripleFilter filter = TripleFilter.fromProperties(config);
+		assertTrue(filter.accept(SCHEMA_NAME, new LiteralImpl("test"), null));
+		assertFalse(filter.accept(FOAF_NAME, new LiteralImpl("test"), null));
+		config.setProperty(TripleFilter.PROPERTY_PREFIX + "unknown", "value");
+		try {
+			TripleFilter.fromProperties(config);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package eu.fusepool.transformer.any23;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import javax.activation.MimeType;
+
+import org.apache.any23.writer.CountingTripleHandler;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WarmupTest {
+
+	private int port;
+	private Any23Server server;
+
+	@Before
+	public void init() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		server = new Any23Server(port, true);
+		server.setDrainTimeout(1);
+		server.setDrainGracePeriod(0);
+	}
+
+	@After
+	public void cleanup() {
+		server.drainAndStop();
+	}
+
+	@Test
+	public void testBuiltInCorpus() throws Exception {
+		server.start(new Any23Transformer());
+		Warmup warmup = new Warmup();
+		assertEquals(Warmup.CORPUS, warmup.getDocuments());
+		warmup.setIterations(1);
+		assertEquals(0, warmup.run(new URL("http://localhost:" + port + "/")));
+	}
+
+	@Test
+	public void testCorpusYieldsTriples() throws Exception {
+		Any23Transformer transformer = new Any23Transformer();
+		transformer.activate(null);
+		try {
+			for(String name : Warmup.CORPUS){
+				InputStream in = getClass().getClassLoader().getResourceAsStream("warmup/" + name);
+				TmpFileDocumentSource source;
+				try {
+					source = new TmpFileDocumentSource("/job/warmup-" + name, in,
+							new MimeType(Warmup.getType(name)), "http://www.example.org/" + name);
+				} finally {
+					in.close();
+				}
+				CountingTripleHandler handler = new CountingTripleHandler();
+				try {
+					transformer.extract(source, null, handler);
+				} finally {
+					source.close();
+				}
+				assertTrue(name + " yields no triples", handler.getCount() > 0);
+			}
+		} finally {
+			transformer.close();
+		}
+	}
+
+	@Test
+	public void testStartupTimes() throws Exception {
+		File dir = new File("target/warmup-test");
+		FileUtils.forceMkdir(dir);
+		FileUtils.writeStringToFile(new File(dir, "people.csv"), "a;b\n1;2\n", "UTF-8");
+		FileUtils.writeStringToFile(new File(dir, "ignored.txt"), "no known type", "UTF-8");
+		Warmup warmup = new Warmup(dir);
+		assertEquals(1, warmup.getDocuments().size());
+		server.setWarmup(warmup);
+		server.start(new Any23Transformer());
+		assertFalse(server.isWarmingUp());
+		assertTrue(server.getReadyTime() > 0);
+		//warm-up requests are not counted as first request
+		assertEquals(-1, server.getFirstRequestTime());
+		HttpURLConnection con = (HttpURLConnection)new URL(
+				"http://localhost:" + port + "/admin/ready").openConnection();
+		assertEquals(200, con.getResponseCode());
+		con = (HttpURLConnection)new URL(
+				"http://localhost:" + port + "/admin/startup").openConnection();
+		assertEquals(200, con.getResponseCode());
+		String startup = IOUtils.toString(con.getInputStream(), "UTF-8");
+		assertTrue(startup.contains("ready=" + server.getReadyTime()));
+		assertTrue(server.getFirstRequestTime() >= server.getReadyTime());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoDocuments() throws Exception {
+		File dir = new File("target/warmup-empty");
+		FileUtils.forceMkdir(dir);
+		new Warmup(dir);
+	}
+}